@@ -0,0 +1,62 @@
+package master.flame.danmaku.controller;
+
+import android.content.ComponentCallbacks2;
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+/**
+ * 缓存容量按内存紧张通知和堆占用缩小, 压力解除后逐步恢复
+ */
+public class CacheBudgetTest extends InstrumentationTestCase {
+
+    private static final int MB = 1024 * 1024;
+
+    public void testTrimMemory() {
+        CacheBudget budget = new CacheBudget(64 * MB, 4 * MB, 0);
+        Assert.assertTrue(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, 0));
+        Assert.assertEquals(48 * MB, budget.getBudget());
+        Assert.assertTrue(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 0));
+        Assert.assertEquals(32 * MB, budget.getBudget());
+        // 较轻的通知不会放大容量
+        Assert.assertFalse(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, 0));
+        Assert.assertEquals(32 * MB, budget.getBudget());
+        Assert.assertTrue(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, 0));
+        Assert.assertEquals(4 * MB, budget.getBudget());
+        Assert.assertFalse(budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE, 0));
+        Assert.assertEquals(3, budget.getShrinkCount());
+    }
+
+    public void testGrowBack() {
+        CacheBudget budget = new CacheBudget(64 * MB, 4 * MB, 0);
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 0);
+        long time = CacheBudget.GROW_DELAY - 1;
+        Assert.assertFalse(budget.onHeapUsage(0, 256 * MB, time));
+        time++;
+        int steps = 0;
+        while (budget.onHeapUsage(0, 256 * MB, time)) {
+            time += 1000;
+            steps++;
+        }
+        Assert.assertEquals(4, steps);
+        Assert.assertEquals(64 * MB, budget.getBudget());
+        Assert.assertEquals(4, budget.getGrowCount());
+    }
+
+    public void testHeapUsage() {
+        CacheBudget budget = new CacheBudget(64 * MB, 4 * MB, 0.8f);
+        long maxHeap = 256 * MB;
+        Assert.assertFalse(budget.onHeapUsage(100 * MB, maxHeap, 0));
+        Assert.assertTrue(budget.onHeapUsage(210 * MB, maxHeap, 0));
+        Assert.assertEquals(48 * MB, budget.getBudget());
+        Assert.assertTrue(budget.onHeapUsage(210 * MB, maxHeap, 1000));
+        Assert.assertEquals(36 * MB, budget.getBudget());
+        // 压力持续时推迟恢复
+        Assert.assertFalse(budget.onHeapUsage(100 * MB, maxHeap, 1000 + CacheBudget.GROW_DELAY - 1));
+        // 恢复后会超过阈值时保持
+        Assert.assertFalse(budget.onHeapUsage(200 * MB, maxHeap, 1000 + CacheBudget.GROW_DELAY));
+        Assert.assertTrue(budget.onHeapUsage(100 * MB, maxHeap, 1000 + CacheBudget.GROW_DELAY));
+        Assert.assertEquals(44 * MB, budget.getBudget());
+    }
+
+}
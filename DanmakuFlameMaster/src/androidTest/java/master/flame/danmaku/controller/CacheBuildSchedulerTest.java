@@ -0,0 +1,107 @@
+package master.flame.danmaku.controller;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+
+/**
+ * 按截止时间(进入屏幕的时间)取出, 丢弃已消失和已被过滤的弹幕, 以及错过截止时间的计数
+ */
+public class CacheBuildSchedulerTest extends InstrumentationTestCase {
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    public void testEarliestDeadlineFirst() {
+        CacheBuildScheduler scheduler = new CacheBuildScheduler();
+        BaseDanmaku scroll1 = createDanmaku(1000, 0);
+        BaseDanmaku scroll2 = createDanmaku(1500, 0);
+        BaseDanmaku fixed = createDanmaku(1200, 0);
+        BaseDanmaku important = createDanmaku(1500, 1);
+        // 按类型分批加入, 取出时按时间排列
+        Assert.assertTrue(scheduler.schedule(scroll1, 0));
+        Assert.assertTrue(scheduler.schedule(scroll2, 0));
+        Assert.assertTrue(scheduler.schedule(fixed, 0));
+        Assert.assertTrue(scheduler.schedule(important, 0));
+        Assert.assertFalse(scheduler.schedule(scroll2, 0));
+        Assert.assertEquals(4, scheduler.size());
+
+        Assert.assertEquals(800, scheduler.getSlack(200));
+        Assert.assertSame(scroll1, scheduler.poll(0));
+        Assert.assertSame(fixed, scheduler.poll(0));
+        Assert.assertSame(important, scheduler.poll(0));
+        Assert.assertSame(scroll2, scheduler.poll(0));
+        Assert.assertNull(scheduler.poll(0));
+        Assert.assertEquals(Long.MAX_VALUE, scheduler.getSlack(0));
+    }
+
+    public void testDeadlineMiss() {
+        CacheBuildScheduler scheduler = new CacheBuildScheduler();
+        BaseDanmaku expired = createDanmaku(1000, 0);
+        BaseDanmaku filtered = createDanmaku(3000, 0);
+        filtered.mFilterParam = 1;
+        filtered.filterResetFlag = mFlags.FILTER_RESET_FLAG;
+        BaseDanmaku late = createDanmaku(3500, 0);
+        BaseDanmaku onTime = createDanmaku(6000, 0);
+        scheduler.schedule(onTime, 0);
+        scheduler.schedule(late, 0);
+        scheduler.schedule(filtered, 0);
+        scheduler.schedule(expired, 0);
+
+        long currTime = 4500;
+        BaseDanmaku next = scheduler.poll(currTime);
+        Assert.assertSame(late, next);
+        scheduler.onBuild(next, currTime);
+        next = scheduler.poll(currTime);
+        Assert.assertSame(onTime, next);
+        scheduler.onBuild(next, currTime);
+
+        Assert.assertEquals(2, scheduler.getBuiltCount());
+        Assert.assertEquals(1, scheduler.getLateCount());
+        Assert.assertEquals(1, scheduler.getExpiredCount());
+        Assert.assertEquals(1, scheduler.getFilteredCount());
+        Assert.assertEquals(2, scheduler.getDeadlineMissCount());
+    }
+
+    /**
+     * 加入时已在屏幕上的弹幕截止时间都是当前时间, 剩余显示时间长的先构建
+     */
+    public void testOnScreen() {
+        CacheBuildScheduler scheduler = new CacheBuildScheduler();
+        BaseDanmaku leaving = createDanmaku(1000, 0);
+        BaseDanmaku entered = createDanmaku(2500, 0);
+        BaseDanmaku longLived = createDanmaku(1500, 0, 6000);
+        BaseDanmaku upcoming = createDanmaku(3200, 0);
+        long currTime = 3000;
+        scheduler.schedule(leaving, currTime);
+        scheduler.schedule(upcoming, currTime);
+        scheduler.schedule(entered, currTime);
+        scheduler.schedule(longLived, currTime);
+
+        Assert.assertEquals(0, scheduler.getSlack(currTime));
+        Assert.assertEquals(-100, scheduler.getSlack(currTime + 100));
+        Assert.assertSame(longLived, scheduler.poll(currTime));
+        Assert.assertSame(entered, scheduler.poll(currTime));
+        Assert.assertSame(leaving, scheduler.poll(currTime));
+        Assert.assertEquals(200, scheduler.getSlack(currTime));
+        Assert.assertSame(upcoming, scheduler.poll(currTime));
+    }
+
+    private BaseDanmaku createDanmaku(long time, int priority) {
+        return createDanmaku(time, priority, 3000);
+    }
+
+    private BaseDanmaku createDanmaku(long time, int priority, long duration) {
+        BaseDanmaku danmaku = new Danmaku("test");
+        danmaku.flags = mFlags;
+        danmaku.setTime(time);
+        danmaku.duration = new Duration(duration);
+        danmaku.priority = (byte) priority;
+        return danmaku;
+    }
+
+}
@@ -0,0 +1,146 @@
+package master.flame.danmaku.controller;
+
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.model.android.CachingPolicy;
+import master.flame.danmaku.danmaku.model.android.DrawingCache;
+import master.flame.danmaku.danmaku.util.DanmakuUtils;
+
+/**
+ * 缓存绘制线程池: 交付顺序与提交顺序一致, 绘制结果与单线程一致, 以及1/2/4个工作线程时从提交到交付的延迟
+ */
+public class CacheRasterizerTest extends InstrumentationTestCase {
+
+    private static final String TAG = CacheRasterizerTest.class.getSimpleName();
+
+    private static final int BPP = CachingPolicy.BMP_BPP_ARGB_8888;
+
+    private static final int DANMAKU_COUNT = 2000;
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789哈草前方高能弹幕护体";
+
+    private final AndroidDisplayer mDisp = new AndroidDisplayer();
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    private static class Result {
+        final List<CacheRasterizer.Job> handedOff = new ArrayList<>();
+        long time;
+        long averageLatency;
+        long maxLatency;
+    }
+
+    public void testScaling() {
+        List<BaseDanmaku> danmakus = createDanmakus(DANMAKU_COUNT);
+        // 预热
+        destroy(rasterize(danmakus, 2));
+        StringBuilder sb = new StringBuilder();
+        sb.append(DANMAKU_COUNT).append(" caches");
+        for (int threadCount : new int[]{1, 2, 4}) {
+            Result result = rasterize(danmakus, threadCount);
+            Assert.assertEquals(DANMAKU_COUNT, result.handedOff.size());
+            for (int i = 0; i < DANMAKU_COUNT; i++) {
+                Assert.assertSame(danmakus.get(i), result.handedOff.get(i).danmaku);
+            }
+            sb.append("\n").append(threadCount).append(" workers: ")
+                    .append(result.time / 1000000).append(" ms total, latency avg ")
+                    .append(result.averageLatency / 1000).append(" us, max ")
+                    .append(result.maxLatency / 1000).append(" us");
+            destroy(result);
+        }
+        Log.i(TAG, sb.toString());
+    }
+
+    /**
+     * 工作线程使用自己的画笔, 结果与缓存线程上绘制相同
+     */
+    public void testSameAsSingleThread() {
+        List<BaseDanmaku> danmakus = createDanmakus(100);
+        Result result = rasterize(danmakus, 4);
+        for (CacheRasterizer.Job job : result.handedOff) {
+            DrawingCache expected = DanmakuUtils.buildDanmakuDrawingCache(job.danmaku, mDisp, null, BPP);
+            Assert.assertTrue(expected.get().bitmap.sameAs(job.cache.get().bitmap));
+            expected.destroy();
+        }
+        destroy(result);
+    }
+
+    private Result rasterize(List<BaseDanmaku> danmakus, int threadCount) {
+        final Result result = new Result();
+        final Object lock = new Object();
+        CacheRasterizer rasterizer = new CacheRasterizer(threadCount, mDisp, BPP, new CacheRasterizer.Callback() {
+            @Override
+            public void onRasterized() {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void onHandOff(CacheRasterizer.Job job, boolean success) {
+                Assert.assertTrue(success);
+                result.handedOff.add(job);
+            }
+        });
+        long startTime = System.nanoTime();
+        for (BaseDanmaku danmaku : danmakus) {
+            rasterizer.submit(danmaku, new DrawingCache(), 0, false);
+        }
+        while (result.handedOff.size() < danmakus.size()) {
+            synchronized (lock) {
+                try {
+                    lock.wait(5);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            rasterizer.handOff();
+        }
+        result.time = System.nanoTime() - startTime;
+        result.averageLatency = rasterizer.getAverageLatency();
+        result.maxLatency = rasterizer.getMaxLatency();
+        rasterizer.quit();
+        return result;
+    }
+
+    private static void destroy(Result result) {
+        for (CacheRasterizer.Job job : result.handedOff) {
+            job.cache.destroy();
+        }
+    }
+
+    private List<BaseDanmaku> createDanmakus(int count) {
+        Random random = new Random(20171019);
+        List<BaseDanmaku> danmakus = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 4 + random.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            Danmaku danmaku = new Danmaku(text);
+            danmaku.flags = mFlags;
+            danmaku.textSize = 25 + random.nextInt(3) * 10;
+            danmaku.textColor = Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            danmaku.textShadowColor = Color.BLACK;
+            danmaku.underlineColor = random.nextInt(10) == 0 ? Color.YELLOW : 0;
+            danmaku.borderColor = random.nextInt(10) == 0 ? Color.GREEN : 0;
+            danmaku.measure(mDisp, true);
+            danmakus.add(danmaku);
+        }
+        return danmakus;
+    }
+
+}
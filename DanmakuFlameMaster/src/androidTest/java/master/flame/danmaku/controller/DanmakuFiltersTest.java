@@ -0,0 +1,130 @@
+package master.flame.danmaku.controller;
+
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import java.util.Collections;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.android.DanmakuContext;
+
+/**
+ * 过滤管线: 按过滤率重新排序可重排的过滤器, 有状态的过滤器保持注册顺序排在最后;
+ * 绘制线程和缓存线程同时过滤时排序和统计数据仍然收敛
+ */
+public class DanmakuFiltersTest extends InstrumentationTestCase {
+
+    /**
+     * 触发一次重新排序的过滤次数
+     */
+    private static final int REORDER_INTERVAL = 0x2000;
+
+    private static final long DURATION = 4000;
+
+    private DanmakuContext mContext;
+
+    private DanmakuFilters mFilters;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = DanmakuContext.create();
+        mFilters = mContext.mDanmakuFilters;
+        // 注册顺序按tag排序: 类型, 数量, 颜色, 合并
+        mFilters.registerFilter(DanmakuFilters.TAG_TYPE_DANMAKU_FILTER);
+        mFilters.registerFilter(DanmakuFilters.TAG_QUANTITY_DANMAKU_FILTER);
+        DanmakuFilters.TextColorFilter colorFilter = (DanmakuFilters.TextColorFilter) mFilters
+                .registerFilter(DanmakuFilters.TAG_TEXT_COLOR_DANMAKU_FILTER);
+        colorFilter.setData(Collections.singletonList(Color.WHITE));
+        mFilters.registerFilter(DanmakuFilters.TAG_DUPLICATE_FILTER);
+    }
+
+    public void testReorder() {
+        // 没有统计数据时按注册顺序
+        assertOrder(DanmakuFilters.TAG_TYPE_DANMAKU_FILTER, DanmakuFilters.TAG_TEXT_COLOR_DANMAKU_FILTER);
+
+        for (int i = 0; i < REORDER_INTERVAL; i++) {
+            BaseDanmaku danmaku = createDanmaku(i);
+            mFilters.filter(danmaku, 0, 0, null, false, mContext);
+            Assert.assertEquals(i % 2 != 0, danmaku.isFilteredBy(DanmakuFilters.FILTER_TYPE_TEXTCOLOR));
+            Assert.assertEquals(mContext.mGlobalFlagValues.FILTER_RESET_FLAG, danmaku.filterResetFlag);
+        }
+        // 过滤率高的颜色过滤器排到前面
+        assertOrder(DanmakuFilters.TAG_TEXT_COLOR_DANMAKU_FILTER, DanmakuFilters.TAG_TYPE_DANMAKU_FILTER);
+
+        DanmakuFilters.FilterStat color = getStat(DanmakuFilters.TAG_TEXT_COLOR_DANMAKU_FILTER);
+        DanmakuFilters.FilterStat duplicate = getStat(DanmakuFilters.TAG_DUPLICATE_FILTER);
+        Assert.assertEquals(REORDER_INTERVAL, color.invocations);
+        Assert.assertEquals(REORDER_INTERVAL / 2, color.rejections);
+        Assert.assertEquals(REORDER_INTERVAL / 2, duplicate.invocations);
+        Assert.assertEquals(0, duplicate.rejections);
+        Assert.assertEquals(REORDER_INTERVAL / 64, color.sampledCount);
+
+        mFilters.resetFilterStats();
+        Assert.assertEquals(0, getStat(DanmakuFilters.TAG_TEXT_COLOR_DANMAKU_FILTER).invocations);
+    }
+
+    public void testConcurrentFilter() throws InterruptedException {
+        final int count = REORDER_INTERVAL * 8;
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean fromCachingTask = t == 0;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        mFilters.filter(createDanmaku(i), 0, 0, null, fromCachingTask, mContext);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertOrder(DanmakuFilters.TAG_TEXT_COLOR_DANMAKU_FILTER, DanmakuFilters.TAG_TYPE_DANMAKU_FILTER);
+        // 统计数据不加锁, 可能少计但过滤率仍接近实际值
+        DanmakuFilters.FilterStat color = getStat(DanmakuFilters.TAG_TEXT_COLOR_DANMAKU_FILTER);
+        Assert.assertTrue(color.invocations > 0 && color.invocations <= count * threads.length);
+        Assert.assertEquals(0.5f, color.getRejectionRate(), 0.05f);
+        Assert.assertEquals(0f, getStat(DanmakuFilters.TAG_TYPE_DANMAKU_FILTER).getRejectionRate());
+    }
+
+    /**
+     * 先是按统计数据排序的过滤器(expectedReorderable的顺序), 之后是按注册顺序的有状态过滤器
+     */
+    private void assertOrder(String... expectedReorderable) {
+        DanmakuFilters.FilterStat[] stats = mFilters.getFilterStats();
+        Assert.assertEquals(expectedReorderable.length + 2, stats.length);
+        for (int i = 0; i < expectedReorderable.length; i++) {
+            Assert.assertEquals(expectedReorderable[i], stats[i].tag);
+        }
+        Assert.assertEquals(DanmakuFilters.TAG_QUANTITY_DANMAKU_FILTER, stats[expectedReorderable.length].tag);
+        Assert.assertEquals(DanmakuFilters.TAG_DUPLICATE_FILTER, stats[expectedReorderable.length + 1].tag);
+    }
+
+    private DanmakuFilters.FilterStat getStat(String tag) {
+        for (DanmakuFilters.FilterStat stat : mFilters.getFilterStats()) {
+            if (stat.tag.equals(tag)) {
+                return stat;
+            }
+        }
+        return null;
+    }
+
+    private BaseDanmaku createDanmaku(int index) {
+        Danmaku danmaku = new Danmaku("text" + index);
+        danmaku.textColor = index % 2 == 0 ? Color.WHITE : Color.RED;
+        danmaku.duration = new Duration(DURATION);
+        danmaku.flags = mContext.mGlobalFlagValues;
+        return danmaku;
+    }
+
+}
@@ -0,0 +1,155 @@
+package master.flame.danmaku.controller;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import java.util.List;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.android.DanmakuContext;
+
+/**
+ * DensityController按每帧耗时调整同屏数量上限: 超出预算乘性减小, 低于预算加性增大, 之间保持不变;
+ * 上限变化后预过滤的结果失效
+ */
+public class DensityControllerTest extends InstrumentationTestCase {
+
+    private static final long TARGET = 12;
+
+    private static class TestController extends DensityController {
+
+        int applied;
+
+        int applyCount;
+
+        TestController() {
+            super(null, TARGET);
+        }
+
+        @Override
+        void apply(int size) {
+            applied = size;
+            applyCount++;
+        }
+
+    }
+
+    public void testDecrease() {
+        TestController controller = new TestController();
+        controller.setSizeRange(5, 40);
+        Assert.assertEquals(40, controller.applied);
+        long now = 10000;
+        // 连续3帧超出预算才减小
+        controller.onFrameRendered(30, now++);
+        controller.onFrameRendered(30, now++);
+        Assert.assertEquals(40, controller.getCurrentSize());
+        controller.onFrameRendered(30, now++);
+        Assert.assertEquals(30, controller.getCurrentSize());
+        Assert.assertEquals(30, controller.applied);
+        // 冷却期内不再减小
+        for (int i = 0; i < 30; i++) {
+            controller.onFrameRendered(30, now++);
+        }
+        Assert.assertEquals(30, controller.getCurrentSize());
+        now += 1000;
+        controller.onFrameRendered(30, now);
+        Assert.assertEquals(22, controller.getCurrentSize());
+        // 不低于下限
+        for (int i = 0; i < 20; i++) {
+            now += 1000;
+            for (int j = 0; j < 3; j++) {
+                controller.onFrameRendered(30, now);
+            }
+        }
+        Assert.assertEquals(5, controller.getCurrentSize());
+
+        List<DensityController.Decision> trace = controller.getTrace();
+        Assert.assertEquals(40, trace.get(0).oldSize);
+        Assert.assertEquals(30, trace.get(0).newSize);
+        Assert.assertEquals(DensityController.REASON_OVER_BUDGET, trace.get(0).reason);
+        Assert.assertEquals(5, trace.get(trace.size() - 1).newSize);
+    }
+
+    public void testIncrease() {
+        TestController controller = new TestController();
+        controller.setSizeRange(5, 40);
+        long now = 10000;
+        for (int i = 0; i < 3; i++) {
+            controller.onFrameRendered(30, now);
+        }
+        Assert.assertEquals(30, controller.getCurrentSize());
+        // 平滑后的耗时降到预算的70%以下后, 每20帧加1
+        int frames = 0;
+        while (controller.getCurrentSize() == 30) {
+            controller.onFrameRendered(2, ++now);
+            frames++;
+        }
+        Assert.assertTrue(frames >= 20);
+        Assert.assertEquals(31, controller.getCurrentSize());
+        for (int i = 0; i < 20 * 20; i++) {
+            controller.onFrameRendered(2, ++now);
+        }
+        // 不超过上限
+        Assert.assertEquals(40, controller.getCurrentSize());
+        Assert.assertEquals(DensityController.REASON_UNDER_BUDGET,
+                controller.getTrace().get(controller.getTrace().size() - 1).reason);
+    }
+
+    public void testHysteresis() {
+        TestController controller = new TestController();
+        controller.setSizeRange(5, 40);
+        int applyCount = controller.applyCount;
+        long now = 10000;
+        // 预算的70%~115%之间不调整
+        for (int i = 0; i < 200; i++) {
+            controller.onFrameRendered(i % 2 == 0 ? 9 : 13, now);
+            now += 16;
+        }
+        Assert.assertEquals(40, controller.getCurrentSize());
+        Assert.assertEquals(applyCount, controller.applyCount);
+        Assert.assertTrue(controller.getTrace().isEmpty());
+    }
+
+    public void testInvalidateFilterResults() {
+        DanmakuContext context = DanmakuContext.create();
+        final int[] notifyCount = new int[1];
+        DanmakuContext.ConfigChangedCallback callback = new DanmakuContext.ConfigChangedCallback() {
+            @Override
+            public boolean onDanmakuConfigChanged(DanmakuContext config, DanmakuContext.DanmakuConfigTag tag,
+                                                  Object... value) {
+                if (DanmakuContext.DanmakuConfigTag.MAXIMUM_NUMS_IN_SCREEN.equals(tag)) {
+                    notifyCount[0]++;
+                }
+                return false;
+            }
+        };
+        context.registerConfigChangedCallback(callback);
+        DensityController controller = new DensityController(context, TARGET);
+        controller.setSizeRange(5, 40);
+        Assert.assertEquals(1, notifyCount[0]);
+
+        // 缓存线程预过滤的结果
+        BaseDanmaku danmaku = new Danmaku("text");
+        danmaku.duration = new Duration(4000);
+        danmaku.flags = context.mGlobalFlagValues;
+        context.mDanmakuFilters.filter(danmaku, 0, 0, null, true, context);
+        Assert.assertTrue(danmaku.hasPassedFilter());
+
+        long now = 10000;
+        for (int i = 0; i < 3; i++) {
+            controller.onFrameRendered(30, now);
+        }
+        Assert.assertEquals(30, controller.getCurrentSize());
+        Assert.assertFalse(danmaku.hasPassedFilter());
+        Assert.assertEquals(2, notifyCount[0]);
+
+        // 按新的上限重新过滤
+        context.mDanmakuFilters.filter(danmaku, 0, 0, null, true, context);
+        Assert.assertTrue(danmaku.hasPassedFilter());
+        context.unregisterConfigChangedCallback(callback);
+    }
+
+}
@@ -0,0 +1,101 @@
+package master.flame.danmaku.controller;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.model.Duration;
+
+/**
+ * DuplicateMergingFilter按超时时间清理被合并的弹幕, 包括回退seek和超出时间轮范围的情况
+ */
+public class DuplicateMergingFilterTest extends InstrumentationTestCase {
+
+    private static final long DURATION = 4000;
+
+    private final DanmakuTimer mTimer = new DanmakuTimer();
+
+    public void testLongLivedHead() {
+        mTimer.update(0);
+        DanmakuFilters.DuplicateMergingFilter filter = new DanmakuFilters.DuplicateMergingFilter();
+        // 最先加入但很久才超时的弹幕不能挡住后面的清理
+        Assert.assertFalse(filter(filter, createDanmaku("高级弹幕", 0, DURATION * 100)));
+        BaseDanmaku first = createDanmaku("2333", 100, DURATION);
+        Assert.assertFalse(filter(filter, first));
+        for (int i = 1; i < 20; i++) {
+            Assert.assertTrue(filter(filter, createDanmaku("2333", 100 + i, DURATION)));
+        }
+        Assert.assertEquals(19, filter.blockedDanmakus.size());
+        Assert.assertEquals(20, filter.getMergedCount(first));
+
+        mTimer.update(DURATION + 1000);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertFalse(filter(filter, createDanmaku("text" + i, DURATION + 500, DURATION)));
+        }
+        Assert.assertEquals(0, filter.blockedDanmakus.size());
+        Assert.assertFalse(filter(filter, createDanmaku("2333", DURATION + 600, DURATION)));
+    }
+
+    public void testBackSeek() {
+        DanmakuFilters.DuplicateMergingFilter filter = new DanmakuFilters.DuplicateMergingFilter();
+        mTimer.update(60000);
+        Assert.assertFalse(filter(filter, createDanmaku("666", 60000, DURATION)));
+        for (int i = 1; i < 10; i++) {
+            Assert.assertTrue(filter(filter, createDanmaku("666", 60000 + i, DURATION)));
+        }
+
+        // 回退到开头, 之前加入的弹幕此时都未超时
+        mTimer.update(0);
+        Assert.assertFalse(filter(filter, createDanmaku("2333", 100, DURATION)));
+        for (int i = 1; i < 10; i++) {
+            Assert.assertTrue(filter(filter, createDanmaku("2333", 100 + i, DURATION)));
+        }
+        Assert.assertEquals(18, filter.blockedDanmakus.size());
+
+        mTimer.update(DURATION + 1000);
+        for (int i = 0; i < 10; i++) {
+            filter(filter, createDanmaku("text" + i, DURATION + 500, DURATION));
+        }
+        Assert.assertEquals(9, filter.blockedDanmakus.size());
+    }
+
+    /**
+     * 超时时间超出时间轮范围的弹幕在时间前进到附近后清理
+     */
+    public void testLongDuration() {
+        mTimer.update(0);
+        DanmakuFilters.DuplicateMergingFilter filter = new DanmakuFilters.DuplicateMergingFilter();
+        long duration = DURATION * 100;
+        Assert.assertFalse(filter(filter, createDanmaku("高级弹幕", 0, duration)));
+        for (int i = 1; i < 5; i++) {
+            Assert.assertTrue(filter(filter, createDanmaku("高级弹幕", i, duration)));
+        }
+        Assert.assertEquals(4, filter.blockedDanmakus.size());
+
+        // 未超时前不清理
+        mTimer.update(duration - 1000);
+        Assert.assertFalse(filter(filter, createDanmaku("text", duration - 1000, DURATION)));
+        Assert.assertEquals(4, filter.blockedDanmakus.size());
+
+        mTimer.update(duration + 1000);
+        Assert.assertFalse(filter(filter, createDanmaku("text2", duration + 1000, DURATION)));
+        Assert.assertEquals(0, filter.blockedDanmakus.size());
+        Assert.assertFalse(filter(filter, createDanmaku("高级弹幕", duration + 1000, DURATION)));
+    }
+
+    private boolean filter(DanmakuFilters.DuplicateMergingFilter filter, BaseDanmaku danmaku) {
+        return filter.filter(danmaku, 0, 0, mTimer, false, null);
+    }
+
+    private BaseDanmaku createDanmaku(String text, long time, long duration) {
+        Danmaku danmaku = new Danmaku(text);
+        danmaku.setTime(time);
+        danmaku.duration = new Duration(duration);
+        danmaku.setTimer(mTimer);
+        return danmaku;
+    }
+
+}
@@ -0,0 +1,139 @@
+package master.flame.danmaku.controller;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.util.KeywordAutomaton;
+
+/**
+ * KeywordFilter的正确性检查和性能测试: 10k关键词 x 100k弹幕
+ */
+public class KeywordFilterTest extends InstrumentationTestCase {
+
+    private static final String TAG = KeywordFilterTest.class.getSimpleName();
+
+    private static final int KEYWORD_COUNT = 10000;
+    private static final int DANMAKU_COUNT = 100000;
+    private static final int NAIVE_SAMPLE_COUNT = 1000;
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789哈草前方高能弹幕护体";
+
+    private final Random mRandom = new Random(20171019);
+
+    public void testAutomatonMatches() {
+        KeywordAutomaton automaton = KeywordAutomaton.compile(Arrays.asList("he", "she", "his", "hers", "前方高能"), true);
+        Assert.assertEquals(5, automaton.size());
+        Assert.assertTrue(automaton.matches("ushers"));
+        Assert.assertTrue(automaton.matches("SHE said"));
+        Assert.assertTrue(automaton.matches("注意前方高能!!"));
+        Assert.assertFalse(automaton.matches("hi"));
+        Assert.assertFalse(automaton.matches("前方高"));
+        Assert.assertFalse(automaton.matches(""));
+        Assert.assertFalse(KeywordAutomaton.compile(null, true).matches("anything"));
+    }
+
+    public void testRegexAndHotReplace() {
+        DanmakuFilters.KeywordFilter filter = new DanmakuFilters.KeywordFilter();
+        filter.setBlackList(Arrays.asList("spoiler"), Arrays.asList("^2{4,}$", "(invalid"));
+        Assert.assertTrue(filter(filter, "No SPOILER please"));
+        Assert.assertTrue(filter(filter, "22222"));
+        Assert.assertFalse(filter(filter, "2333"));
+        filter.setKeywords(Arrays.asList("2333"));
+        Assert.assertTrue(filter(filter, "2333"));
+        Assert.assertFalse(filter(filter, "No SPOILER please"));
+        filter.reset();
+        Assert.assertFalse(filter(filter, "22222"));
+    }
+
+    /**
+     * 含反向引用的正则和其他正则一起使用时, 分组编号不受合并影响
+     */
+    public void testBackreference() {
+        DanmakuFilters.KeywordFilter filter = new DanmakuFilters.KeywordFilter();
+        filter.setRegexPatterns(Arrays.asList("(a)(b)c", "(\\w)\\1{2,}", "(?<w>哈)\\k<w>{4}"));
+        Assert.assertTrue(filter(filter, "xxabcxx"));
+        Assert.assertTrue(filter(filter, "2333"));
+        Assert.assertTrue(filter(filter, "AAAA"));
+        Assert.assertTrue(filter(filter, "哈哈哈哈哈"));
+        Assert.assertFalse(filter(filter, "233"));
+        Assert.assertFalse(filter(filter, "abab"));
+        Assert.assertFalse(filter(filter, "哈哈哈哈"));
+
+        Assert.assertTrue(DanmakuFilters.KeywordFilter.hasGroupReference("(\\w)\\1"));
+        Assert.assertTrue(DanmakuFilters.KeywordFilter.hasGroupReference("(?<w>a)"));
+        Assert.assertFalse(DanmakuFilters.KeywordFilter.hasGroupReference("(?<=a)b(?<!c)"));
+        Assert.assertFalse(DanmakuFilters.KeywordFilter.hasGroupReference("\\\\1[\\1]\\Q\\1\\E"));
+    }
+
+    public void testBenchmark() {
+        List<String> keywords = new ArrayList<>(KEYWORD_COUNT);
+        for (int i = 0; i < KEYWORD_COUNT; i++) {
+            keywords.add(randomText(3 + mRandom.nextInt(6)));
+        }
+        List<BaseDanmaku> danmakus = new ArrayList<>(DANMAKU_COUNT);
+        for (int i = 0; i < DANMAKU_COUNT; i++) {
+            danmakus.add(new Danmaku(randomText(5 + mRandom.nextInt(25))));
+        }
+
+        long startTime = System.nanoTime();
+        DanmakuFilters.KeywordFilter filter = new DanmakuFilters.KeywordFilter();
+        filter.setKeywords(keywords);
+        long compileTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        int filteredCount = 0;
+        for (BaseDanmaku danmaku : danmakus) {
+            if (filter.filter(danmaku, 0, 0, null, false, null)) {
+                filteredCount++;
+            }
+        }
+        long filterTime = System.nanoTime() - startTime;
+
+        // String.contains循环只测部分样本, 同时校验结果一致
+        startTime = System.nanoTime();
+        for (int i = 0; i < NAIVE_SAMPLE_COUNT; i++) {
+            BaseDanmaku danmaku = danmakus.get(i);
+            String text = danmaku.text.toString().toLowerCase();
+            boolean expected = false;
+            for (String keyword : keywords) {
+                if (text.contains(keyword)) {
+                    expected = true;
+                    break;
+                }
+            }
+            Assert.assertEquals(expected, filter.filter(danmaku, 0, 0, null, false, null));
+        }
+        long naiveTime = System.nanoTime() - startTime;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n===== ").append(KEYWORD_COUNT).append(" keywords x ").append(DANMAKU_COUNT).append(" danmakus\n");
+        sb.append("compile:          ").append(compileTime / 1000000).append(" ms\n");
+        sb.append("aho-corasick:     ").append(filterTime / 1000000).append(" ms, ")
+                .append(filterTime / DANMAKU_COUNT).append(" ns/danmaku, filtered ").append(filteredCount).append("\n");
+        sb.append("String.contains:  ").append(naiveTime / NAIVE_SAMPLE_COUNT).append(" ns/danmaku (")
+                .append(NAIVE_SAMPLE_COUNT).append(" samples)\n");
+        Log.i(TAG, sb.toString());
+    }
+
+    private boolean filter(DanmakuFilters.KeywordFilter filter, String text) {
+        return filter.filter(new Danmaku(text), 0, 0, null, false, null);
+    }
+
+    private String randomText(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(mRandom.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,166 @@
+package master.flame.danmaku.controller;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.util.MinHash;
+
+/**
+ * NearDuplicateMergingFilter的正确性检查和单条弹幕耗时测试
+ */
+public class NearDuplicateMergingFilterTest extends InstrumentationTestCase {
+
+    private static final String TAG = NearDuplicateMergingFilterTest.class.getSimpleName();
+
+    private static final int DANMAKU_COUNT = 100000;
+
+    private static final long DURATION = 4000;
+
+    private static final String[] HOT_TEXTS = {"2333333", "前方高能", "哈哈哈哈哈", "awsl", "名场面打卡", "泪目"};
+
+    private static final String PUNCTUATIONS = "!！?？~。 ";
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789哈草前方高能弹幕护体这是什么神仙操作";
+
+    private final Random mRandom = new Random(20171019);
+
+    private final DanmakuTimer mTimer = new DanmakuTimer();
+
+    public void testNormalize() {
+        Assert.assertEquals(MinHash.normalize("2333333"), MinHash.normalize("233333!!"));
+        Assert.assertEquals(MinHash.normalize("前方高能！！！"), MinHash.normalize("前方 高能"));
+        Assert.assertEquals(MinHash.normalize("ＡＷＳＬ"), MinHash.normalize("awsl"));
+        Assert.assertFalse(MinHash.normalize("233").equals(MinHash.normalize("666")));
+        // 重复字符最多保留两个, 符号和emoji保留
+        Assert.assertEquals(MinHash.normalize("哈哈哈哈"), MinHash.normalize("哈哈哈哈哈哈"));
+        Assert.assertFalse(MinHash.normalize("哈哈哈哈").equals(MinHash.normalize("哈")));
+        Assert.assertEquals("\uD83D\uDE02\uD83D\uDE02", MinHash.normalize("\uD83D\uDE02\uD83D\uDE02\uD83D\uDE02"));
+        Assert.assertFalse(MinHash.normalize("\uD83D\uDE02\uD83D\uDE02").equals(MinHash.normalize("\uD83D\uDC4D\uD83D\uDC4D")));
+        Assert.assertEquals("", MinHash.normalize("？？？"));
+        Assert.assertFalse(MinHash.isMergeable(MinHash.normalize("!!!")));
+        Assert.assertFalse(MinHash.isMergeable(MinHash.normalize("哈")));
+        Assert.assertTrue(MinHash.isMergeable(MinHash.normalize("哈哈")));
+    }
+
+    public void testShortTexts() {
+        mTimer.update(0);
+        DanmakuFilters.NearDuplicateMergingFilter filter = new DanmakuFilters.NearDuplicateMergingFilter();
+        // 纯标点和单个字符不合并, 也不会互相合并
+        Assert.assertFalse(filter(filter, createDanmaku("？？？", 100)));
+        Assert.assertFalse(filter(filter, createDanmaku("!!!", 200)));
+        Assert.assertFalse(filter(filter, createDanmaku("哈", 300)));
+        Assert.assertFalse(filter(filter, createDanmaku("哈哈哈哈", 400)));
+        Assert.assertTrue(filter(filter, createDanmaku("哈哈哈哈哈哈", 500)));
+        Assert.assertFalse(filter(filter, createDanmaku("\uD83D\uDE02\uD83D\uDE02\uD83D\uDE02", 600)));
+        Assert.assertTrue(filter(filter, createDanmaku("\uD83D\uDE02\uD83D\uDE02", 700)));
+        Assert.assertFalse(filter(filter, createDanmaku("\uD83D\uDC4D\uD83D\uDC4D", 800)));
+    }
+
+    public void testMerging() {
+        mTimer.update(0);
+        DanmakuFilters.NearDuplicateMergingFilter filter = new DanmakuFilters.NearDuplicateMergingFilter();
+        BaseDanmaku first = createDanmaku("2333333", 100);
+        Assert.assertFalse(filter(filter, first));
+        BaseDanmaku merged = createDanmaku("233333!!", 200);
+        Assert.assertTrue(filter(filter, merged));
+        Assert.assertTrue(filter(filter, createDanmaku("２３３３", 300)));
+        Assert.assertFalse(filter(filter, createDanmaku("这是什么神仙操作", 400)));
+        Assert.assertTrue(filter(filter, createDanmaku("这是什么神仙操作啊", 500)));
+        Assert.assertFalse(filter(filter, createDanmaku("完全不一样的内容", 600)));
+        // 重复过滤结果不变
+        Assert.assertFalse(filter(filter, first));
+        Assert.assertEquals(3, filter.getMergedCount(first));
+        Assert.assertEquals(0, filter.getMergedCount(merged));
+
+        mTimer.update(DURATION + 1000);
+        Assert.assertFalse(filter(filter, createDanmaku("233333", DURATION + 500)));
+    }
+
+    public void testBenchmark() {
+        List<BaseDanmaku> danmakus = new ArrayList<>(DANMAKU_COUNT);
+        for (int i = 0; i < DANMAKU_COUNT; i++) {
+            String text;
+            if (mRandom.nextInt(3) == 0) {
+                // 热词加随机个数的重复字符和标点, 完全相同的文本较少
+                String hot = HOT_TEXTS[mRandom.nextInt(HOT_TEXTS.length)];
+                StringBuilder sb = new StringBuilder(hot);
+                for (int j = mRandom.nextInt(8); j > 0; j--) {
+                    sb.append(hot.charAt(hot.length() - 1));
+                }
+                for (int j = mRandom.nextInt(4); j > 0; j--) {
+                    sb.append(PUNCTUATIONS.charAt(mRandom.nextInt(PUNCTUATIONS.length())));
+                }
+                text = sb.toString();
+            } else {
+                text = randomText(5 + mRandom.nextInt(20));
+            }
+            // 每秒100条
+            danmakus.add(createDanmaku(text, i * 10L));
+        }
+
+        // 预热
+        DanmakuFilters.NearDuplicateMergingFilter nearFilter = new DanmakuFilters.NearDuplicateMergingFilter();
+        DanmakuFilters.DuplicateMergingFilter exactFilter = new DanmakuFilters.DuplicateMergingFilter();
+        for (BaseDanmaku danmaku : danmakus) {
+            mTimer.update(danmaku.getActualTime());
+            filter(nearFilter, danmaku);
+            exactFilter.filter(danmaku, 0, 0, mTimer, false, null);
+        }
+
+        nearFilter = new DanmakuFilters.NearDuplicateMergingFilter();
+        exactFilter = new DanmakuFilters.DuplicateMergingFilter();
+        long nearTime = 0, exactTime = 0;
+        int nearMerged = 0, exactMerged = 0;
+        for (BaseDanmaku danmaku : danmakus) {
+            mTimer.update(danmaku.getActualTime());
+            long startTime = System.nanoTime();
+            if (filter(nearFilter, danmaku)) {
+                nearMerged++;
+            }
+            nearTime += System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            if (exactFilter.filter(danmaku, 0, 0, mTimer, false, null)) {
+                exactMerged++;
+            }
+            exactTime += System.nanoTime() - startTime;
+        }
+        Assert.assertTrue(nearMerged >= exactMerged);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n===== ").append(DANMAKU_COUNT).append(" danmakus, 100 per second\n");
+        sb.append("near duplicate:  ").append(nearTime / DANMAKU_COUNT).append(" ns/danmaku, merged ").append(nearMerged).append("\n");
+        sb.append("exact duplicate: ").append(exactTime / DANMAKU_COUNT).append(" ns/danmaku, merged ").append(exactMerged).append("\n");
+        Log.i(TAG, sb.toString());
+    }
+
+    private boolean filter(DanmakuFilters.NearDuplicateMergingFilter filter, BaseDanmaku danmaku) {
+        return filter.filter(danmaku, 0, 0, mTimer, false, null);
+    }
+
+    private BaseDanmaku createDanmaku(String text, long time) {
+        Danmaku danmaku = new Danmaku(text);
+        danmaku.setTime(time);
+        danmaku.duration = new Duration(DURATION);
+        danmaku.setTimer(mTimer);
+        return danmaku;
+    }
+
+    private String randomText(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(mRandom.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+}
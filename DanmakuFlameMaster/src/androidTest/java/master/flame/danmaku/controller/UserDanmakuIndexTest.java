@@ -0,0 +1,80 @@
+package master.flame.danmaku.controller;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.android.Danmakus;
+
+/**
+ * UserDanmakuIndex的增删和整体清空
+ */
+public class UserDanmakuIndexTest extends InstrumentationTestCase {
+
+    public void testAddRemove() {
+        Danmakus danmakus = new Danmakus();
+        BaseDanmaku a1 = createDanmaku(1, 100, "hashA");
+        BaseDanmaku a2 = createDanmaku(1, 200, null);
+        BaseDanmaku b = createDanmaku(2, 300, "hashB");
+        BaseDanmaku anonymous = createDanmaku(UserDanmakuIndex.UNKNOWN_USER_ID, 400, "hashC");
+        danmakus.addItem(a1);
+        danmakus.addItem(b);
+        danmakus.addItem(anonymous);
+
+        UserDanmakuIndex index = new UserDanmakuIndex();
+        // 构建前忽略
+        index.add(a2);
+        Assert.assertFalse(index.isBuilt());
+        index.build(danmakus);
+        Assert.assertTrue(index.isBuilt());
+        index.add(a2);
+
+        List<BaseDanmaku> result = index.get(Collections.singletonList(1));
+        Assert.assertEquals(2, result.size());
+        Assert.assertTrue(result.contains(a1) && result.contains(a2));
+        Assert.assertEquals(Collections.singletonList(b), index.get(Arrays.asList(2, "hashX")));
+        Assert.assertEquals(Collections.singletonList(anonymous), index.get(Collections.singletonList("hashC")));
+        // 没有用户id的弹幕不建索引, 由调用方整体重新过滤
+        Assert.assertNull(index.get(Arrays.<Object>asList(2, UserDanmakuIndex.UNKNOWN_USER_ID)));
+
+        index.remove(a1);
+        Assert.assertEquals(Collections.singletonList(a2), index.get(Collections.singletonList(1)));
+        Assert.assertTrue(index.get(Collections.singletonList("hashA")).isEmpty());
+        index.remove(a2);
+        index.remove(anonymous);
+        Assert.assertTrue(index.get(Arrays.asList(1, "hashC")).isEmpty());
+        Assert.assertEquals(Collections.singletonList(b), index.get(Collections.singletonList("hashB")));
+    }
+
+    public void testRemoveAll() {
+        Danmakus danmakus = new Danmakus();
+        for (int i = 0; i < 100; i++) {
+            danmakus.addItem(createDanmaku(i % 10, i * 100, "hash" + (i % 10)));
+        }
+        UserDanmakuIndex index = new UserDanmakuIndex();
+        index.build(danmakus);
+        Assert.assertEquals(10, index.get(Collections.singletonList(3)).size());
+
+        index.reset();
+        Assert.assertFalse(index.isBuilt());
+        Assert.assertTrue(index.get(Arrays.asList(3, "hash3")).isEmpty());
+        // 清空后的add等到下次构建
+        index.add(createDanmaku(3, 20000, "hash3"));
+        Assert.assertTrue(index.get(Collections.singletonList(3)).isEmpty());
+    }
+
+    private BaseDanmaku createDanmaku(int userId, long time, String userHash) {
+        Danmaku danmaku = new Danmaku("text" + time);
+        danmaku.setTime(time);
+        danmaku.userId = userId;
+        danmaku.userHash = userHash;
+        return danmaku;
+    }
+
+}
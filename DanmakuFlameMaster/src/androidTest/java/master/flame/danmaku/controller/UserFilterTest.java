@@ -0,0 +1,130 @@
+package master.flame.danmaku.controller;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.util.BloomFilter;
+
+/**
+ * UserIdFilter/UserHashFilter的成员判断, 布隆过滤器误判和黑名单增删
+ */
+public class UserFilterTest extends InstrumentationTestCase {
+
+    private static final int BLACK_LIST_SIZE = 1000;
+
+    public void testMembership() {
+        DanmakuFilters.UserIdFilter idFilter = new DanmakuFilters.UserIdFilter();
+        idFilter.setData(Arrays.asList(1, 0, -5, 1));
+        Assert.assertEquals(3, idFilter.size());
+        Assert.assertTrue(filter(idFilter, createDanmaku(1, null)));
+        Assert.assertTrue(filter(idFilter, createDanmaku(0, null)));
+        Assert.assertTrue(filter(idFilter, createDanmaku(-5, null)));
+        Assert.assertFalse(filter(idFilter, createDanmaku(2, null)));
+
+        DanmakuFilters.UserHashFilter hashFilter = new DanmakuFilters.UserHashFilter();
+        hashFilter.setData(Arrays.asList("hashA", "hashB"));
+        Assert.assertTrue(filter(hashFilter, createDanmaku(0, "hashA")));
+        Assert.assertFalse(filter(hashFilter, createDanmaku(0, "hashC")));
+        Assert.assertFalse(filter(hashFilter, createDanmaku(0, null)));
+
+        // 判断不修改过滤状态
+        BaseDanmaku danmaku = createDanmaku(1, "hashA");
+        Assert.assertTrue(idFilter.isFiltered(danmaku));
+        Assert.assertTrue(hashFilter.isFiltered(danmaku));
+        Assert.assertEquals(0, danmaku.mFilterParam);
+    }
+
+    /**
+     * 布隆过滤器的误判只影响是否查集合, 不会误过滤; 误判率与容量设计相符
+     */
+    public void testFalsePositive() {
+        List<Integer> ids = new ArrayList<>(BLACK_LIST_SIZE);
+        BloomFilter bloomFilter = new BloomFilter(BLACK_LIST_SIZE * 2);
+        for (int i = 0; i < BLACK_LIST_SIZE; i++) {
+            ids.add(i * 7919);
+            bloomFilter.put(i * 7919);
+        }
+        DanmakuFilters.UserIdFilter filter = new DanmakuFilters.UserIdFilter();
+        filter.setData(ids);
+
+        int falsePositives = 0;
+        int samples = 100000;
+        for (int i = 0; i < samples; i++) {
+            int userId = i * 7919 + 1;
+            if (bloomFilter.mightContain(userId)) {
+                falsePositives++;
+            }
+            Assert.assertFalse(filter(filter, createDanmaku(userId, null)));
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < samples / 100);
+        for (int id : ids) {
+            Assert.assertTrue(filter(filter, createDanmaku(id, null)));
+        }
+
+        // 关闭布隆过滤器结果不变
+        filter.setBloomFilterEnabled(false);
+        Assert.assertTrue(filter(filter, createDanmaku(7919, null)));
+        Assert.assertFalse(filter(filter, createDanmaku(7920, null)));
+    }
+
+    public void testAddRemove() {
+        DanmakuFilters.UserHashFilter filter = new DanmakuFilters.UserHashFilter();
+        filter.addToBlackList(Arrays.asList("hashA", "hashB"));
+        Assert.assertTrue(filter(filter, createDanmaku(0, "hashB")));
+
+        filter.removeFromBlackList(Collections.singletonList("hashB"));
+        Assert.assertFalse(filter(filter, createDanmaku(0, "hashB")));
+        Assert.assertTrue(filter(filter, createDanmaku(0, "hashA")));
+
+        // 超过布隆过滤器容量后仍然正确
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < BLACK_LIST_SIZE; i++) {
+            hashes.add("hash" + i);
+        }
+        filter.addToBlackList(hashes);
+        Assert.assertEquals(BLACK_LIST_SIZE + 1, filter.size());
+        for (String hash : hashes) {
+            Assert.assertTrue(filter(filter, createDanmaku(0, hash)));
+        }
+
+        filter.reset();
+        Assert.assertEquals(0, filter.size());
+        Assert.assertFalse(filter(filter, createDanmaku(0, "hashA")));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testBlackListView() {
+        DanmakuFilters.UserIdFilter filter = new DanmakuFilters.UserIdFilter();
+        filter.setData(Arrays.asList(3, 1));
+        filter.addToBlackList(Arrays.asList(2, 3));
+        filter.removeFromBlackList(Collections.singletonList(1));
+        // 按加入顺序的只读快照
+        Assert.assertEquals(Arrays.asList(3, 2), filter.mBlackList);
+        try {
+            filter.mBlackList.add(4);
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private boolean filter(DanmakuFilters.UserFilter<?> filter, BaseDanmaku danmaku) {
+        return filter.filter(danmaku, 0, 0, null, false, null);
+    }
+
+    private BaseDanmaku createDanmaku(int userId, String userHash) {
+        Danmaku danmaku = new Danmaku("text");
+        danmaku.userId = userId;
+        danmaku.userHash = userHash;
+        return danmaku;
+    }
+
+}
@@ -0,0 +1,170 @@
+package master.flame.danmaku.danmaku.model;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.Random;
+
+/**
+ * 滚动弹幕碰撞的解析计算和按getRectAtTime取样比较的结果对比及耗时测试
+ */
+public class R2LDanmakuTest extends InstrumentationTestCase {
+
+    private static final String TAG = R2LDanmakuTest.class.getSimpleName();
+
+    private static final int WIDTH = 1280;
+
+    private static final int CASE_COUNT = 200000;
+
+    private static final int BENCHMARK_COUNT = 1000000;
+
+    /**
+     * 取样比较时两个边缘的距离小于该值视为恰好接触, 浮点误差可能使两种算法结果不同
+     */
+    private static final float EPSILON = 0.01f;
+
+    private final Random mRandom = new Random(20171019);
+
+    private final TestDisplayer mDisp = new TestDisplayer(WIDTH, 720, 0);
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    private final DanmakuTimer mTimer = new DanmakuTimer();
+
+    public void testWillHitMatchesRectSampling() {
+        int hitCount = 0, boundaryCount = 0;
+        for (int i = 0; i < CASE_COUNT; i++) {
+            boolean l2r = mRandom.nextBoolean();
+            long duration1 = 3000 + mRandom.nextInt(5000);
+            long duration2 = mRandom.nextInt(3) == 0 ? 3000 + mRandom.nextInt(5000) : duration1;
+            long time1 = mRandom.nextInt(100000);
+            long time2 = time1 + 1 + mRandom.nextInt((int) duration1 - 1);
+            long endTime = Math.min(time1 + duration1, time2 + duration2);
+            if (endTime <= time2) {
+                continue;
+            }
+            long currTime = time2 + mRandom.nextInt((int) (endTime - time2));
+            R2LDanmaku d1 = createDanmaku(l2r, time1, duration1, 10 + mRandom.nextInt(1500));
+            R2LDanmaku d2 = createDanmaku(l2r, time2, duration2, 10 + mRandom.nextInt(1500));
+
+            boolean expected = willHitByRect(d1, d2, currTime) || willHitByRect(d1, d2, time1 + duration1);
+            boolean actual = d1.willHit(d2, currTime, WIDTH);
+            if (expected != actual) {
+                float gap = Math.min(gap(d1, d2, currTime), gap(d1, d2, time1 + duration1));
+                Assert.assertTrue("case " + i + " gap " + gap, gap < EPSILON);
+                boundaryCount++;
+            }
+            if (expected) {
+                hitCount++;
+            }
+        }
+        Assert.assertTrue(boundaryCount < CASE_COUNT / 10000);
+        Log.i(TAG, CASE_COUNT + " cases, " + hitCount + " hits, " + boundaryCount + " differ only at the boundary");
+    }
+
+    public void testEarliestFollowTime() {
+        for (int i = 0; i < CASE_COUNT; i++) {
+            boolean l2r = mRandom.nextBoolean();
+            long duration = 3000 + mRandom.nextInt(5000);
+            long time1 = mRandom.nextInt(100000);
+            R2LDanmaku d1 = createDanmaku(l2r, time1, duration, 10 + mRandom.nextInt(1500));
+            R2LDanmaku d2 = createDanmaku(l2r, 0, duration, 10 + mRandom.nextInt(1500));
+            float earliest = d1.getEarliestFollowTime(d2.getStepX(), WIDTH);
+            Assert.assertTrue(earliest > time1);
+
+            // 在最早时间之后出现不会碰撞, 之前出现会碰撞
+            long after = (long) Math.ceil(earliest) + 1;
+            if (after < time1 + duration) {
+                d2.setTime(after);
+                Assert.assertFalse("case " + i, d1.willHit(d2, after, WIDTH));
+                Assert.assertFalse("case " + i, willHitByRect(d1, d2, after) || willHitByRect(d1, d2, time1 + duration));
+            }
+            long before = (long) Math.floor(earliest) - 1;
+            if (before > time1) {
+                d2.setTime(before);
+                Assert.assertTrue("case " + i, d1.willHit(d2, before, WIDTH));
+                Assert.assertTrue("case " + i, willHitByRect(d1, d2, before) || willHitByRect(d1, d2, time1 + duration));
+            }
+        }
+    }
+
+    public void testBenchmark() {
+        R2LDanmaku[] firsts = new R2LDanmaku[1024];
+        R2LDanmaku[] seconds = new R2LDanmaku[firsts.length];
+        long[] currTimes = new long[firsts.length];
+        for (int i = 0; i < firsts.length; i++) {
+            long time1 = mRandom.nextInt(100000);
+            long time2 = time1 + 1 + mRandom.nextInt(3999);
+            firsts[i] = createDanmaku(false, time1, 4000, 10 + mRandom.nextInt(1500));
+            seconds[i] = createDanmaku(false, time2, 4000, 10 + mRandom.nextInt(1500));
+            currTimes[i] = time2 + mRandom.nextInt((int) (time1 + 4000 - time2));
+        }
+
+        int rectHits = 0, analyticHits = 0;
+        long rectTime = 0, analyticTime = 0;
+        // 第一轮预热
+        for (int round = 0; round < 2; round++) {
+            rectHits = analyticHits = 0;
+            long startTime = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_COUNT; i++) {
+                int index = i & (firsts.length - 1);
+                R2LDanmaku d1 = firsts[index];
+                if (willHitByRect(d1, seconds[index], currTimes[index])
+                        || willHitByRect(d1, seconds[index], d1.getActualTime() + d1.getDuration())) {
+                    rectHits++;
+                }
+            }
+            rectTime = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_COUNT; i++) {
+                int index = i & (firsts.length - 1);
+                if (firsts[index].willHit(seconds[index], currTimes[index], WIDTH)) {
+                    analyticHits++;
+                }
+            }
+            analyticTime = System.nanoTime() - startTime;
+        }
+        Assert.assertEquals(rectHits, analyticHits);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n===== ").append(BENCHMARK_COUNT).append(" collision checks\n");
+        sb.append("getRectAtTime: ").append(rectTime / BENCHMARK_COUNT).append(" ns/check\n");
+        sb.append("analytic:      ").append(analyticTime / BENCHMARK_COUNT).append(" ns/check\n");
+        Log.i(TAG, sb.toString());
+    }
+
+    private R2LDanmaku createDanmaku(boolean l2r, long time, long duration, float width) {
+        R2LDanmaku danmaku = l2r ? new L2RDanmaku(new Duration(duration)) : new R2LDanmaku(new Duration(duration));
+        danmaku.flags = mFlags;
+        danmaku.setTime(time);
+        danmaku.setTimer(mTimer);
+        danmaku.paintWidth = width;
+        danmaku.paintHeight = 30;
+        danmaku.measure(mDisp, false);
+        return danmaku;
+    }
+
+    /**
+     * 原DanmakuUtils.checkHitAtTime的实现
+     */
+    private boolean willHitByRect(R2LDanmaku d1, R2LDanmaku d2, long time) {
+        float[] rect1 = d1.getRectAtTime(mDisp, time);
+        float[] rect2 = d2.getRectAtTime(mDisp, time);
+        if (d1.getType() == BaseDanmaku.TYPE_SCROLL_RL) {
+            return rect2[0] < rect1[2];
+        }
+        return rect2[2] > rect1[0];
+    }
+
+    private float gap(R2LDanmaku d1, R2LDanmaku d2, long time) {
+        float[] rect1 = d1.getRectAtTime(mDisp, time);
+        float[] rect2 = d2.getRectAtTime(mDisp, time);
+        if (d1.getType() == BaseDanmaku.TYPE_SCROLL_RL) {
+            return Math.abs(rect2[0] - rect1[2]);
+        }
+        return Math.abs(rect2[2] - rect1[0]);
+    }
+
+}
@@ -0,0 +1,125 @@
+package master.flame.danmaku.danmaku.model;
+
+/**
+ * 测试用, 只提供布局需要的尺寸, 弹幕的宽高由测试直接指定
+ */
+public class TestDisplayer implements IDisplayer {
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mMargin;
+
+    public TestDisplayer(int width, int height, int margin) {
+        mWidth = width;
+        mHeight = height;
+        mMargin = margin;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public float getDensity() {
+        return 1;
+    }
+
+    @Override
+    public int getDensityDpi() {
+        return 160;
+    }
+
+    @Override
+    public int draw(BaseDanmaku danmaku) {
+        return 0;
+    }
+
+    @Override
+    public void recycle(BaseDanmaku danmaku) {
+    }
+
+    @Override
+    public float getScaledDensity() {
+        return 1;
+    }
+
+    @Override
+    public int getSlopPixel() {
+        return 0;
+    }
+
+    @Override
+    public void prepare(BaseDanmaku danmaku, boolean fromWorkerThread) {
+    }
+
+    @Override
+    public void measure(BaseDanmaku danmaku, boolean fromWorkerThread) {
+    }
+
+    @Override
+    public float getStrokeWidth() {
+        return 0;
+    }
+
+    @Override
+    public void setHardwareAccelerated(boolean enable) {
+    }
+
+    @Override
+    public boolean isHardwareAccelerated() {
+        return false;
+    }
+
+    @Override
+    public int getMaximumCacheWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getMaximumCacheHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void resetSlopPixel(float factor) {
+    }
+
+    @Override
+    public void setDensities(float density, int densityDpi, float scaledDensity) {
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+    }
+
+    @Override
+    public void setDanmakuStyle(int style, float[] data) {
+    }
+
+    @Override
+    public void setMargin(int m) {
+    }
+
+    @Override
+    public int getMargin() {
+        return mMargin;
+    }
+
+    @Override
+    public void setAllMarginTop(int m) {
+    }
+
+    @Override
+    public int getAllMarginTop() {
+        return 0;
+    }
+
+}
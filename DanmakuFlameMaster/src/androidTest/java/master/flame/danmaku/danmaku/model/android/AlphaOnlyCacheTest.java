@@ -0,0 +1,100 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.util.DanmakuUtils;
+
+/**
+ * 只保存覆盖率的缓存: 颜色不同的弹幕共用, 内存小于ARGB_8888, 着色后与直接绘制的颜色一致
+ */
+public class AlphaOnlyCacheTest extends InstrumentationTestCase {
+
+    private static final String TAG = AlphaOnlyCacheTest.class.getSimpleName();
+
+    private static final int BPP = CachingPolicy.BMP_BPP_ARGB_8888;
+
+    private final AndroidDisplayer mDisp = new AndroidDisplayer();
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    public void testShareAcrossColors() {
+        DrawingCacheIndex index = new DrawingCacheIndex();
+        BaseDanmaku white = createDanmaku("前方高能", Color.WHITE);
+        BaseDanmaku red = createDanmaku("前方高能", Color.RED);
+        Assert.assertTrue(DanmakuUtils.isColorAgnostic(white, mDisp));
+
+        DrawingCache cache = DanmakuUtils.buildDanmakuDrawingCache(white, mDisp, null, BPP, true);
+        Assert.assertTrue(cache.isColorAgnostic());
+        Assert.assertNotNull(cache.get().strokeBitmap);
+        index.put(white, cache);
+        Assert.assertSame(cache, index.find(red, true));
+        Assert.assertNull(index.find(red, false));
+
+        // 有边框的弹幕仍使用ARGB缓存, 按颜色索引
+        BaseDanmaku bordered = createDanmaku("前方高能", Color.WHITE);
+        bordered.borderColor = Color.GREEN;
+        bordered.measure(mDisp, true);
+        Assert.assertFalse(DanmakuUtils.isColorAgnostic(bordered, mDisp));
+        DrawingCache argb = DanmakuUtils.buildDanmakuDrawingCache(bordered, mDisp, null, BPP, true);
+        Assert.assertFalse(argb.isColorAgnostic());
+        cache.destroy();
+        argb.destroy();
+    }
+
+    public void testMemoryAndTint() {
+        BaseDanmaku danmaku = createDanmaku("233333 hhhhhh 弹幕护体", Color.RED);
+        DrawingCache alpha = DanmakuUtils.buildDanmakuDrawingCache(danmaku, mDisp, null, BPP, true);
+        DrawingCache argb = DanmakuUtils.buildDanmakuDrawingCache(danmaku, mDisp, null, BPP, false);
+        Log.i(TAG, "ARGB_8888 " + argb.size() + " bytes, alpha layers " + alpha.size() + " bytes");
+        Assert.assertTrue(alpha.size() * 2 <= argb.size());
+
+        int width = argb.width(), height = argb.height();
+        Bitmap tinted = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Bitmap reference = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        danmaku.cache = alpha;
+        mDisp.getCacheStuffer().drawCache(danmaku, new Canvas(tinted), 0, 0, null, null);
+        danmaku.cache = argb;
+        mDisp.getCacheStuffer().drawCache(danmaku, new Canvas(reference), 0, 0, null, null);
+        int different = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!isClose(tinted.getPixel(x, y), reference.getPixel(x, y))) {
+                    different++;
+                }
+            }
+        }
+        Log.i(TAG, different + " of " + width * height + " pixels differ");
+        Assert.assertTrue(different * 100 < width * height);
+        tinted.recycle();
+        reference.recycle();
+        alpha.destroy();
+        argb.destroy();
+    }
+
+    private static boolean isClose(int a, int b) {
+        return Math.abs(Color.alpha(a) - Color.alpha(b)) <= 8
+                && Math.abs(Color.red(a) - Color.red(b)) <= 8
+                && Math.abs(Color.green(a) - Color.green(b)) <= 8
+                && Math.abs(Color.blue(a) - Color.blue(b)) <= 8;
+    }
+
+    private BaseDanmaku createDanmaku(String text, int color) {
+        Danmaku danmaku = new Danmaku(text);
+        danmaku.flags = mFlags;
+        danmaku.textSize = 25;
+        danmaku.textColor = color;
+        danmaku.textShadowColor = Color.BLACK;
+        danmaku.measure(mDisp, true);
+        return danmaku;
+    }
+
+}
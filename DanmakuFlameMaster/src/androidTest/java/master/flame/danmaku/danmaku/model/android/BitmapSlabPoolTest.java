@@ -0,0 +1,83 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * 稳定状态下从bitmap池构建缓存不再新建bitmap
+ */
+public class BitmapSlabPoolTest extends InstrumentationTestCase {
+
+    private static final String TAG = BitmapSlabPoolTest.class.getSimpleName();
+
+    private static final int BPP = CachingPolicy.BMP_BPP_ARGB_8888;
+
+    private static final int LIVE_COUNT = 200;
+
+    public void testRoundUp() {
+        Assert.assertEquals(16, BitmapSlabPool.roundUp(1));
+        Assert.assertEquals(24, BitmapSlabPool.roundUp(17));
+        Assert.assertEquals(32, BitmapSlabPool.roundUp(32));
+        Assert.assertEquals(48, BitmapSlabPool.roundUp(33));
+        Assert.assertEquals(64, BitmapSlabPool.roundUp(49));
+        Assert.assertEquals(96, BitmapSlabPool.roundUp(85));
+    }
+
+    public void testSteadyState() {
+        BitmapSlabPool pool = new BitmapSlabPool(BPP, 16 * 1024 * 1024);
+        // 尺寸按LIVE_COUNT周期重复, 第一轮之后存活缓存的尺寸分布不变
+        int[] widths = new int[LIVE_COUNT];
+        int[] heights = new int[LIVE_COUNT];
+        Random random = new Random(0);
+        for (int i = 0; i < LIVE_COUNT; i++) {
+            widths[i] = (2 + random.nextInt(20)) * 20;
+            heights[i] = random.nextInt(4) == 0 ? 85 : 42;
+        }
+        ArrayDeque<DrawingCache> alive = new ArrayDeque<>();
+        ArrayDeque<DrawingCache> free = new ArrayDeque<>();
+        int warmUpAllocations = 0;
+        for (int i = 0; i < 3000; i++) {
+            if (i == LIVE_COUNT) {
+                warmUpAllocations = pool.getAllocationCount();
+            }
+            if (alive.size() == LIVE_COUNT) {
+                DrawingCache cache = alive.poll();
+                cache.destroy();
+                free.add(cache);
+                if (i % 50 == 0) {
+                    pool.eraseReleased(50);
+                }
+            }
+            DrawingCache cache = free.poll();
+            if (cache == null) {
+                cache = new DrawingCache();
+                cache.setBitmapPool(pool);
+            }
+            cache.build(widths[i % LIVE_COUNT], heights[i % LIVE_COUNT], 0, false, BPP);
+            Assert.assertEquals(Color.TRANSPARENT, cache.get().bitmap.getPixel(0, 0));
+            cache.get().canvas.drawColor(Color.WHITE);
+            alive.add(cache);
+        }
+        Assert.assertEquals(warmUpAllocations, pool.getAllocationCount());
+        StringBuilder sb = new StringBuilder();
+        for (BitmapSlabPool.SizeClass sizeClass : pool.getSizeClasses()) {
+            sb.append(sizeClass.width).append('x').append(sizeClass.height).append(": inUse ").append(sizeClass.inUse)
+                    .append(", free ").append(sizeClass.getFreeCount()).append(", hits ").append(sizeClass.hits)
+                    .append(", misses ").append(sizeClass.misses).append('\n');
+        }
+        Log.i(TAG, pool.getAllocationCount() + " allocations, " + pool.getReconfigureCount() + " reconfigures, "
+                + pool.getRecycleCount() + " recycled\n" + sb);
+        for (DrawingCache cache : alive) {
+            cache.destroy();
+        }
+        pool.clear();
+        Assert.assertEquals(0, pool.getFreeBytes());
+    }
+
+}
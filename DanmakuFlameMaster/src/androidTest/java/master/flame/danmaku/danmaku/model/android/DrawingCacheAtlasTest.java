@@ -0,0 +1,207 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 图集缓存(AtlasDrawingCache)和每条弹幕单独bitmap(DrawingCache)的对比: 创建的bitmap数, 内存占用, 耗时和分配次数
+ */
+public class DrawingCacheAtlasTest extends InstrumentationTestCase {
+
+    private static final String TAG = DrawingCacheAtlasTest.class.getSimpleName();
+
+    private static final int BPP = CachingPolicy.BMP_BPP_ARGB_8888;
+
+    private static final int CACHE_COUNT = 3000;
+
+    /**
+     * 同时存活的缓存数
+     */
+    private static final int LIVE_COUNT = 200;
+
+    /**
+     * 每释放多少个缓存整理一次, 与缓存线程清理过期缓存的频率相近
+     */
+    private static final int COMPACT_INTERVAL = 50;
+
+    private static class Result {
+        int bitmapCount;
+        long peakBytes;
+        long time;
+        int allocCount;
+    }
+
+    public void testCompare() {
+        // 第一轮预热
+        simulate(null);
+        simulate(new DrawingCacheAtlas(DrawingCacheAtlas.DEFAULT_PAGE_SIZE, BPP));
+        Result bitmap = simulate(null);
+        DrawingCacheAtlas atlas = new DrawingCacheAtlas(DrawingCacheAtlas.DEFAULT_PAGE_SIZE, BPP);
+        Result result = simulate(atlas);
+
+        Assert.assertTrue(result.bitmapCount * 10 < bitmap.bitmapCount);
+        Assert.assertEquals(0, atlas.getRegionCount());
+        Assert.assertEquals(1, atlas.getPageCount());
+        Log.i(TAG, CACHE_COUNT + " caches, " + LIVE_COUNT + " alive\n"
+                + "bitmap: " + bitmap.bitmapCount + " bitmaps created, peak " + bitmap.peakBytes / 1024 + " KB, "
+                + bitmap.time / CACHE_COUNT + " ns/cache, " + bitmap.allocCount + " allocations\n"
+                + "atlas: " + result.bitmapCount + " pages created, " + atlas.getPageRecycleCount() + " recycled, "
+                + atlas.getMovedRegionCount() + " regions moved, peak " + result.peakBytes / 1024 + " KB, "
+                + result.time / CACHE_COUNT + " ns/cache, " + result.allocCount + " allocations");
+        atlas.clear();
+    }
+
+    /**
+     * 整理后区域内容不变
+     */
+    public void testCompact() {
+        DrawingCacheAtlas atlas = new DrawingCacheAtlas(256, BPP);
+        List<DrawingCache> caches = new ArrayList<>();
+        int firstPageCount = -1;
+        while (firstPageCount < 0 || caches.size() < firstPageCount + 5) {
+            DrawingCache cache = new AtlasDrawingCache(atlas);
+            cache.build(60, 20, 0, false, BPP);
+            cache.get().canvas.drawColor(color(caches.size()));
+            if (firstPageCount < 0 && atlas.getPageCount() == 2) {
+                firstPageCount = caches.size();
+            }
+            caches.add(cache);
+        }
+        // 第一页只保留两个区域, 整理后移到第二页
+        for (int i = 2; i < firstPageCount; i++) {
+            caches.get(i).destroy();
+        }
+        Assert.assertEquals(2, atlas.compact());
+        Assert.assertEquals(1, atlas.getPageCount());
+
+        Bitmap bitmap = Bitmap.createBitmap(60, 20, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < caches.size(); i++) {
+            DrawingCacheHolder holder = caches.get(i).get();
+            if (i >= 2 && i < firstPageCount) {
+                Assert.assertNull(holder);
+                continue;
+            }
+            bitmap.eraseColor(Color.TRANSPARENT);
+            Assert.assertTrue(holder.draw(canvas, 0, 0, null));
+            Assert.assertEquals(color(i), bitmap.getPixel(0, 0));
+            Assert.assertEquals(color(i), bitmap.getPixel(59, 19));
+        }
+        bitmap.recycle();
+        atlas.clear();
+    }
+
+    /**
+     * 一次整理所有低于阈值的页, 移出的页在绘制线程完成两帧后回收, 回收后页的内存随之减少
+     */
+    public void testCompactSparsePages() {
+        DrawingCacheAtlas atlas = new DrawingCacheAtlas(256, BPP);
+        List<DrawingCache> caches = new ArrayList<>();
+        List<Integer> pageStarts = new ArrayList<>();
+        while (atlas.getPageCount() < 3 || caches.size() < pageStarts.get(2) + 5) {
+            int pageCount = atlas.getPageCount();
+            DrawingCache cache = new AtlasDrawingCache(atlas);
+            cache.build(60, 20, 0, false, BPP);
+            if (atlas.getPageCount() > pageCount) {
+                pageStarts.add(caches.size());
+            }
+            caches.add(cache);
+        }
+        Assert.assertEquals(3L * 256 * 256 * BPP / 8, atlas.getPageBytes());
+        // 前两页各保留一个区域
+        for (int i = 1; i < pageStarts.get(2); i++) {
+            if (i != pageStarts.get(1)) {
+                caches.get(i).destroy();
+            }
+        }
+        Assert.assertEquals(2, atlas.compact());
+        Assert.assertEquals(1, atlas.getPageCount());
+        // 上一帧可能还在引用移出的页
+        Assert.assertEquals(2, atlas.getRetiredPageCount());
+        Assert.assertEquals(3L * 256 * 256 * BPP / 8, atlas.getPageBytes());
+        atlas.onFrameRendered();
+        Assert.assertEquals(0, atlas.compact());
+        Assert.assertEquals(2, atlas.getRetiredPageCount());
+        atlas.onFrameRendered();
+        Assert.assertEquals(0, atlas.compact());
+        Assert.assertEquals(0, atlas.getRetiredPageCount());
+        Assert.assertEquals(256L * 256 * BPP / 8, atlas.getPageBytes());
+        atlas.clear();
+    }
+
+    private static int color(int i) {
+        return Color.rgb(i * 37 % 256, i * 11 % 256, 255);
+    }
+
+    /**
+     * 按缓存管理的方式使用: 过期的缓存destroy后放回池中, 新弹幕从池中取出再build
+     *
+     * @param atlas 为null时每条弹幕单独创建bitmap
+     */
+    private Result simulate(DrawingCacheAtlas atlas) {
+        Random random = new Random(0);
+        Result result = new Result();
+        ArrayDeque<DrawingCache> alive = new ArrayDeque<>();
+        ArrayDeque<DrawingCache> pool = new ArrayDeque<>();
+        long bytes = 0;
+        int freed = 0;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < CACHE_COUNT; i++) {
+            if (alive.size() == LIVE_COUNT) {
+                DrawingCache cache = alive.poll();
+                if (atlas == null) {
+                    bytes -= cache.size();
+                }
+                cache.destroy();
+                pool.push(cache);
+                if (atlas != null && ++freed % COMPACT_INTERVAL == 0) {
+                    atlas.compact();
+                }
+            }
+            if (atlas != null) {
+                // 每构建一条缓存绘制一帧
+                atlas.onFrameRendered();
+            }
+            DrawingCache cache = pool.poll();
+            if (cache == null) {
+                cache = atlas != null ? new AtlasDrawingCache(atlas) : new DrawingCache();
+            }
+            int width = (2 + random.nextInt(20)) * 20;
+            int height = random.nextInt(4) == 0 ? 85 : 42;
+            cache.build(width, height, 0, false, BPP);
+            cache.get().canvas.drawColor(Color.WHITE);
+            alive.add(cache);
+            if (atlas == null) {
+                result.bitmapCount++;
+                bytes += cache.size();
+                result.peakBytes = Math.max(result.peakBytes, bytes);
+            } else {
+                result.peakBytes = Math.max(result.peakBytes, atlas.getPageBytes());
+            }
+        }
+        result.time = System.nanoTime() - startTime;
+        result.allocCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        if (atlas != null) {
+            result.bitmapCount = atlas.getPageCreateCount();
+        }
+        for (DrawingCache cache : alive) {
+            cache.destroy();
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,139 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+
+/**
+ * DrawingCacheIndex按内容共用缓存: 命中, 未命中, 以及文字/颜色/measure标记不同或hash相同时不会错用
+ */
+public class DrawingCacheIndexTest extends InstrumentationTestCase {
+
+    public void testHit() {
+        DrawingCacheIndex index = new DrawingCacheIndex();
+        TestCache cache = new TestCache(false);
+        index.put(createDanmaku("2333", Color.WHITE), cache);
+        Assert.assertEquals(1, index.getIndexedCount());
+
+        BaseDanmaku other = createDanmaku("2333", Color.WHITE);
+        Assert.assertSame(cache, index.find(other));
+        Assert.assertEquals(1, index.getSharedHitCount());
+        Assert.assertNotNull(index.getOwner(cache));
+    }
+
+    public void testMiss() {
+        DrawingCacheIndex index = new DrawingCacheIndex();
+        TestCache cache = new TestCache(false);
+        index.put(createDanmaku("2333", Color.WHITE), cache);
+
+        Assert.assertNull(index.find(createDanmaku("666", Color.WHITE)));
+        BaseDanmaku larger = createDanmaku("2333", Color.WHITE);
+        larger.textSize = 30;
+        Assert.assertNull(index.find(larger));
+        Assert.assertEquals(0, index.getSharedHitCount());
+
+        // 缓存销毁后不再命中, 并从索引中移除
+        cache.destroyed = true;
+        Assert.assertNull(index.find(createDanmaku("2333", Color.WHITE)));
+        Assert.assertEquals(0, index.getIndexedCount());
+    }
+
+    /**
+     * 文字相同颜色不同的弹幕只能共用只保存覆盖率的缓存
+     */
+    public void testColor() {
+        DrawingCacheIndex index = new DrawingCacheIndex();
+        index.put(createDanmaku("2333", Color.WHITE), new TestCache(false));
+        Assert.assertNull(index.find(createDanmaku("2333", Color.RED)));
+        Assert.assertNull(index.find(createDanmaku("2333", Color.WHITE), true));
+
+        TestCache alphaCache = new TestCache(true);
+        index.put(createDanmaku("前方高能", Color.WHITE), alphaCache);
+        Assert.assertSame(alphaCache, index.find(createDanmaku("前方高能", Color.RED), true));
+        // 按普通缓存查找时不使用覆盖率缓存
+        Assert.assertNull(index.find(createDanmaku("前方高能", Color.WHITE), false));
+    }
+
+    /**
+     * 字体等全局样式变化后measure标记改变, 旧缓存不再匹配
+     */
+    public void testMeasureResetFlag() {
+        DrawingCacheIndex index = new DrawingCacheIndex();
+        TestCache cache = new TestCache(false);
+        index.put(createDanmaku("2333", Color.WHITE), cache);
+
+        BaseDanmaku remeasured = createDanmaku("2333", Color.WHITE);
+        remeasured.measureResetFlag = 1;
+        Assert.assertNull(index.find(remeasured));
+
+        TestCache newCache = new TestCache(false);
+        index.put(remeasured, newCache);
+        Assert.assertEquals(2, index.getIndexedCount());
+        Assert.assertSame(newCache, index.find(createRemeasured()));
+        Assert.assertSame(cache, index.find(createDanmaku("2333", Color.WHITE)));
+    }
+
+    /**
+     * hash相同而内容不同的弹幕不共用缓存
+     */
+    public void testHashCollision() {
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        DrawingCacheIndex index = new DrawingCacheIndex();
+        TestCache cache = new TestCache(false);
+        index.put(createDanmaku("Aa", Color.WHITE), cache);
+        Assert.assertNull(index.find(createDanmaku("BB", Color.WHITE)));
+
+        TestCache other = new TestCache(false);
+        index.put(createDanmaku("BB", Color.WHITE), other);
+        Assert.assertSame(cache, index.find(createDanmaku("Aa", Color.WHITE)));
+        Assert.assertSame(other, index.find(createDanmaku("BB", Color.WHITE)));
+
+        index.remove(cache);
+        Assert.assertNull(index.find(createDanmaku("Aa", Color.WHITE)));
+        Assert.assertSame(other, index.find(createDanmaku("BB", Color.WHITE)));
+    }
+
+    private BaseDanmaku createRemeasured() {
+        BaseDanmaku danmaku = createDanmaku("2333", Color.WHITE);
+        danmaku.measureResetFlag = 1;
+        return danmaku;
+    }
+
+    private BaseDanmaku createDanmaku(String text, int color) {
+        Danmaku danmaku = new Danmaku(text);
+        danmaku.textSize = 25;
+        danmaku.textColor = color;
+        danmaku.paintWidth = text.length() * 25;
+        danmaku.paintHeight = 30;
+        return danmaku;
+    }
+
+    /**
+     * 不创建bitmap的缓存
+     */
+    private static class TestCache extends DrawingCache {
+
+        private final boolean mColorAgnostic;
+
+        boolean destroyed;
+
+        TestCache(boolean colorAgnostic) {
+            mColorAgnostic = colorAgnostic;
+        }
+
+        @Override
+        public boolean isColorAgnostic() {
+            return mColorAgnostic;
+        }
+
+        @Override
+        public DrawingCacheHolder get() {
+            return destroyed ? null : mHolder;
+        }
+    }
+
+}
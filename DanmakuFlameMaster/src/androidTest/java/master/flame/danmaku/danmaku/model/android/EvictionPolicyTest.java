@@ -0,0 +1,352 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.FTDanmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+
+/**
+ * 各淘汰策略的淘汰顺序, 以及按弹幕时间线回放时的命中率和内存占用
+ */
+public class EvictionPolicyTest extends InstrumentationTestCase {
+
+    private static final String TAG = EvictionPolicyTest.class.getSimpleName();
+
+    private static final long DURATION = 4000;
+
+    private static final int[] POLICIES = {CachingPolicy.EVICTION_TIME_ORDERED, CachingPolicy.EVICTION_LRU,
+            CachingPolicy.EVICTION_CLOCK, CachingPolicy.EVICTION_FREQUENCY, CachingPolicy.EVICTION_GENERATIONAL};
+
+    private static final String[] POLICY_NAMES = {"time-ordered", "lru", "clock", "frequency", "generational"};
+
+    private static final EvictionPolicy.Filter ALL = new EvictionPolicy.Filter() {
+        @Override
+        public boolean canEvict(BaseDanmaku danmaku) {
+            return true;
+        }
+    };
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    public void testVictimOrder() {
+        BaseDanmaku a = createDanmaku("a", 1000);
+        BaseDanmaku b = createDanmaku("b", 2000);
+        BaseDanmaku c = createDanmaku("c", 3000);
+
+        EvictionPolicy timeOrdered = EvictionPolicy.create(CachingPolicy.EVICTION_TIME_ORDERED);
+        timeOrdered.onAdd(c);
+        timeOrdered.onAdd(a);
+        timeOrdered.onAdd(b);
+        timeOrdered.onAccess(a);
+        Assert.assertSame(a, timeOrdered.selectVictim(ALL));
+        Assert.assertFalse(timeOrdered.retainOnTimeOut(a));
+
+        EvictionPolicy lru = EvictionPolicy.create(CachingPolicy.EVICTION_LRU);
+        lru.onAdd(a);
+        lru.onAdd(b);
+        lru.onAdd(c);
+        lru.onAccess(a);
+        Assert.assertSame(b, lru.selectVictim(ALL));
+        lru.onRemove(b);
+        Assert.assertSame(c, lru.selectVictim(ALL));
+
+        EvictionPolicy clock = EvictionPolicy.create(CachingPolicy.EVICTION_CLOCK);
+        clock.onAdd(a);
+        clock.onAdd(b);
+        clock.onAdd(c);
+        // 第一圈清除加入时的标记
+        Assert.assertSame(a, clock.selectVictim(ALL));
+        clock.onAccess(b);
+        Assert.assertSame(c, clock.selectVictim(ALL));
+
+        EvictionPolicy frequency = EvictionPolicy.create(CachingPolicy.EVICTION_FREQUENCY);
+        BaseDanmaku popular = createDanmaku("233", 1000);
+        frequency.onAdd(popular);
+        frequency.onAdd(createDanmaku("233", 1500));
+        frequency.onAdd(a);
+        Assert.assertSame(a, frequency.selectVictim(ALL));
+        frequency.onRemove(a);
+        Assert.assertSame(popular, frequency.selectVictim(ALL));
+    }
+
+    /**
+     * 按时间淘汰: 一轮中从上次的位置继续, 强制加入时遇到第一个不能释放的缓存即停止
+     */
+    public void testTimeOrderedEviction() {
+        final BaseDanmaku a = createDanmaku("a", 1000);
+        final BaseDanmaku b = createDanmaku("b", 2000);
+        BaseDanmaku c = createDanmaku("c", 3000);
+        BaseDanmaku d = createDanmaku("d", 4000);
+        EvictionPolicy policy = EvictionPolicy.create(CachingPolicy.EVICTION_TIME_ORDERED);
+        policy.onAdd(d);
+        policy.onAdd(c);
+        policy.onAdd(b);
+        policy.onAdd(a);
+        EvictionPolicy.Filter notB = new EvictionPolicy.Filter() {
+            @Override
+            public boolean canEvict(BaseDanmaku danmaku) {
+                return danmaku != b;
+            }
+        };
+
+        policy.beginEviction(true);
+        Assert.assertSame(a, policy.selectVictim(notB));
+        policy.onRemove(a);
+        Assert.assertNull(policy.selectVictim(notB));
+        Assert.assertEquals(3, policy.size());
+
+        policy.beginEviction(false);
+        Assert.assertSame(c, policy.selectVictim(notB));
+        // 没有释放时再次返回同一个
+        Assert.assertSame(c, policy.selectVictim(notB));
+        policy.onRemove(c);
+        Assert.assertSame(d, policy.selectVictim(notB));
+        policy.onRemove(d);
+        Assert.assertNull(policy.selectVictim(notB));
+        Assert.assertEquals(1, policy.size());
+    }
+
+    public void testGenerations() {
+        EvictionPolicy.Generational policy = (EvictionPolicy.Generational) EvictionPolicy.create(CachingPolicy.EVICTION_GENERATIONAL);
+        BaseDanmaku scroll1 = createDanmaku("a", 1000);
+        BaseDanmaku scroll2 = createDanmaku("b", 2000);
+        BaseDanmaku fixed = new FTDanmaku(new Duration(DURATION));
+        fixed.text = "c";
+        policy.onAdd(fixed);
+        policy.onAdd(scroll1);
+        policy.onAdd(scroll2);
+        Assert.assertEquals(2, policy.getYoungSize());
+        Assert.assertEquals(1, policy.getOldSize());
+        Assert.assertFalse(policy.retainOnTimeOut(scroll1));
+        Assert.assertTrue(policy.retainOnTimeOut(fixed));
+
+        // 被共用后晋升
+        policy.onAccess(scroll2);
+        policy.onAdd(createDanmaku("b", 2500));
+        Assert.assertTrue(policy.retainOnTimeOut(scroll2));
+        policy.onAccess(scroll2);
+        Assert.assertEquals(1, policy.getYoungHitCount());
+        Assert.assertEquals(1, policy.getOldHitCount());
+        Assert.assertEquals(1, policy.getPromotionCount());
+        Assert.assertEquals(4, policy.getLookupCount());
+
+        // 先淘汰新生代, 再按LRU淘汰老年代
+        Assert.assertSame(scroll1, policy.selectVictim(ALL));
+        policy.onRemove(scroll1);
+        policy.onRemove(policy.selectVictim(ALL));
+        Assert.assertSame(fixed, policy.selectVictim(ALL));
+    }
+
+    /**
+     * 新生代写满时整体清空, 仍未移除的缓存晋升到老年代
+     */
+    public void testYoungCollection() {
+        EvictionPolicy.Generational policy = new EvictionPolicy.Generational(4);
+        List<BaseDanmaku> items = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            BaseDanmaku danmaku = createDanmaku("t" + i, i * 100);
+            items.add(danmaku);
+            policy.onAdd(danmaku);
+        }
+        // 两条已消失并回收, 另外两条还在显示
+        policy.onRemove(items.get(0));
+        policy.onRemove(items.get(2));
+        Assert.assertEquals(2, policy.getYoungSize());
+        Assert.assertSame(items.get(1), policy.selectVictim(ALL));
+
+        BaseDanmaku next = createDanmaku("t4", 400);
+        policy.onAdd(next);
+        Assert.assertEquals(1, policy.getCollectionCount());
+        Assert.assertEquals(2, policy.getPromotionCount());
+        Assert.assertEquals(1, policy.getYoungSize());
+        Assert.assertEquals(2, policy.getOldSize());
+        Assert.assertTrue(policy.retainOnTimeOut(items.get(1)));
+        Assert.assertTrue(policy.retainOnTimeOut(items.get(3)));
+        Assert.assertFalse(policy.retainOnTimeOut(next));
+        // 新生代仍先于老年代淘汰
+        Assert.assertSame(next, policy.selectVictim(ALL));
+        policy.onRemove(next);
+        Assert.assertSame(items.get(1), policy.selectVictim(ALL));
+        Assert.assertEquals(2, policy.size());
+    }
+
+    private static class Content {
+        BaseDanmaku owner;
+        int size;
+        int holders;
+    }
+
+    private static class Result {
+        int hits;
+        int misses;
+        int dropped;
+        long totalSize;
+        long peakSize;
+        long time;
+    }
+
+    /**
+     * 按时间线回放: 弹幕开始显示时查找内容相同的缓存, 找到即命中并共用, 否则按淘汰策略腾出容量后新建;
+     * 显示中的缓存不能释放, 没有可释放的缓存时放弃. 不模拟空闲列表的按尺寸重绘
+     */
+    public void testReplay() {
+        List<BaseDanmaku> trace = createTrace(30000);
+        int budget = 4 * 1024 * 1024;
+        Result[] results = new Result[POLICIES.length];
+        StringBuilder sb = new StringBuilder();
+        sb.append(trace.size()).append(" danmakus, budget ").append(budget >> 20).append("MB");
+        for (int i = 0; i < POLICIES.length; i++) {
+            EvictionPolicy policy = EvictionPolicy.create(POLICIES[i]);
+            Result result = replay(trace, policy, budget);
+            results[i] = result;
+            Assert.assertTrue(result.peakSize <= budget);
+            sb.append("\n").append(POLICY_NAMES[i]).append(": hit rate ")
+                    .append(result.hits * 1000 / trace.size() / 10f).append("%, dropped ")
+                    .append(result.dropped).append(", memory avg ")
+                    .append(result.totalSize / trace.size() >> 10).append("KB, peak ")
+                    .append(result.peakSize >> 10).append("KB, ")
+                    .append(result.time / 1000000).append(" ms");
+            if (policy instanceof EvictionPolicy.Generational) {
+                EvictionPolicy.Generational generational = (EvictionPolicy.Generational) policy;
+                sb.append(", young hit rate ").append(generational.getYoungHitRate() * 100)
+                        .append("%, old hit rate ").append(generational.getOldHitRate() * 100)
+                        .append("%, promoted ").append(generational.getPromotionCount())
+                        .append(", young collections ").append(generational.getCollectionCount());
+            }
+        }
+        Log.i(TAG, sb.toString());
+        // 保留消失弹幕的缓存后, 重复的文字可以直接共用
+        for (int i = 1; i < POLICIES.length; i++) {
+            Assert.assertTrue(results[i].hits > results[0].hits);
+        }
+    }
+
+    private Result replay(List<BaseDanmaku> trace, EvictionPolicy policy, int budget) {
+        final Result result = new Result();
+        final IdentityHashMap<BaseDanmaku, Boolean> retained = new IdentityHashMap<>();
+        HashMap<String, Content> index = new HashMap<>();
+        IdentityHashMap<BaseDanmaku, Content> contents = new IdentityHashMap<>();
+        ArrayDeque<BaseDanmaku> showing = new ArrayDeque<>();
+        EvictionPolicy.Filter filter = new EvictionPolicy.Filter() {
+            @Override
+            public boolean canEvict(BaseDanmaku danmaku) {
+                return retained.containsKey(danmaku);
+            }
+        };
+        long usedSize = 0;
+        long startTime = System.nanoTime();
+        for (BaseDanmaku danmaku : trace) {
+            long time = danmaku.getActualTime();
+            while (!showing.isEmpty() && showing.peek().getActualTime() + DURATION <= time) {
+                BaseDanmaku timeOut = showing.poll();
+                if (policy.retainOnTimeOut(timeOut)) {
+                    retained.put(timeOut, Boolean.TRUE);
+                } else {
+                    usedSize -= remove(timeOut, policy, retained, index, contents);
+                }
+            }
+            String text = danmaku.text.toString();
+            Content content = index.get(text);
+            if (content != null) {
+                result.hits++;
+                policy.onAccess(content.owner);
+                content.holders++;
+            } else {
+                result.misses++;
+                int size = text.length() * 25 * 30 * 4;
+                BaseDanmaku victim;
+                policy.beginEviction(false);
+                while (usedSize + size > budget && (victim = policy.selectVictim(filter)) != null) {
+                    usedSize -= remove(victim, policy, retained, index, contents);
+                }
+                if (usedSize + size > budget) {
+                    result.dropped++;
+                    continue;
+                }
+                content = new Content();
+                content.owner = danmaku;
+                content.size = size;
+                content.holders = 1;
+                index.put(text, content);
+                usedSize += size;
+            }
+            contents.put(danmaku, content);
+            policy.onAdd(danmaku);
+            showing.add(danmaku);
+            result.totalSize += usedSize;
+            result.peakSize = Math.max(result.peakSize, usedSize);
+        }
+        result.time = System.nanoTime() - startTime;
+        return result;
+    }
+
+    /**
+     * @return 释放的内存, 共用的缓存在最后一个弹幕移除时释放
+     */
+    private static int remove(BaseDanmaku danmaku, EvictionPolicy policy, IdentityHashMap<BaseDanmaku, Boolean> retained,
+                              HashMap<String, Content> index, IdentityHashMap<BaseDanmaku, Content> contents) {
+        policy.onRemove(danmaku);
+        retained.remove(danmaku);
+        Content content = contents.remove(danmaku);
+        if (content == null || --content.holders > 0) {
+            return 0;
+        }
+        String text = danmaku.text.toString();
+        if (index.get(text) == content) {
+            index.remove(text);
+        }
+        return content.size;
+    }
+
+    /**
+     * 每秒10条, 一半来自按Zipf分布出现的常用弹幕, 一半是不重复的文字
+     */
+    private List<BaseDanmaku> createTrace(int count) {
+        Random random = new Random(20171019);
+        int vocabularySize = 2000;
+        double[] cumulative = new double[vocabularySize];
+        double sum = 0;
+        for (int i = 0; i < vocabularySize; i++) {
+            sum += 1 / Math.pow(i + 1, 0.9);
+            cumulative[i] = sum;
+        }
+        List<BaseDanmaku> trace = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String text;
+            if (random.nextBoolean()) {
+                double r = random.nextDouble() * sum;
+                int rank = 0;
+                while (cumulative[rank] < r) {
+                    rank++;
+                }
+                text = "popular-" + rank;
+            } else {
+                text = "unique-" + i + "-" + Long.toHexString(random.nextLong());
+            }
+            trace.add(createDanmaku(text, i * 100L));
+        }
+        return trace;
+    }
+
+    private BaseDanmaku createDanmaku(String text, long time) {
+        BaseDanmaku danmaku = new Danmaku(text);
+        danmaku.flags = mFlags;
+        danmaku.setTime(time);
+        danmaku.duration = new Duration(DURATION);
+        return danmaku;
+    }
+
+}
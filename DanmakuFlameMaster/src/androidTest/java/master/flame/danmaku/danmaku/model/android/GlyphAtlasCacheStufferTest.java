@@ -0,0 +1,165 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Danmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.util.DanmakuUtils;
+
+/**
+ * 字形图集与SimpleTextCacheStuffer逐条缓存的对比: 内存, 新弹幕的准备耗时和每帧绘制耗时
+ */
+public class GlyphAtlasCacheStufferTest extends InstrumentationTestCase {
+
+    private static final String TAG = GlyphAtlasCacheStufferTest.class.getSimpleName();
+
+    private static final int DANMAKU_COUNT = 2000;
+
+    private static final int BPP = CachingPolicy.BMP_BPP_ARGB_8888;
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789哈草前方高能弹幕护体";
+
+    private final AndroidDisplayer mDisp = new AndroidDisplayer();
+
+    private final AndroidDisplayer.DisplayerConfig mConfig = new AndroidDisplayer.DisplayerConfig();
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    public void testCompareWithSimpleText() {
+        List<BaseDanmaku> danmakus = createDanmakus(DANMAKU_COUNT);
+        Bitmap frame = Bitmap.createBitmap(1280, 720, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(frame);
+
+        // 逐条缓存: 每条弹幕绘制一张ARGB_8888的bitmap
+        SimpleTextCacheStuffer simple = new SimpleTextCacheStuffer();
+        long cacheBytes = 0;
+        long startTime = System.nanoTime();
+        for (BaseDanmaku danmaku : danmakus) {
+            danmaku.cache = DanmakuUtils.buildDanmakuDrawingCache(danmaku, mDisp, null, BPP);
+            cacheBytes += danmaku.cache.size();
+        }
+        long cacheBuildTime = System.nanoTime() - startTime;
+        long cacheDrawTime = drawAll(simple, danmakus, canvas);
+
+        // 字形图集: 第一次绘制时绘制新字符, 之后只拼字形
+        GlyphAtlasCacheStuffer glyphs = new GlyphAtlasCacheStuffer();
+        for (BaseDanmaku danmaku : danmakus) {
+            ((DrawingCache) danmaku.cache).destroy();
+            danmaku.cache = null;
+        }
+        long coldDrawTime = drawAll(glyphs, danmakus, canvas);
+        long warmDrawTime = drawAll(glyphs, danmakus, canvas);
+        GlyphAtlas atlas = glyphs.getAtlas();
+
+        Log.i(TAG, DANMAKU_COUNT + " danmakus\nsimple text: " + (cacheBytes >> 10) + " KB, build "
+                + cacheBuildTime / DANMAKU_COUNT / 1000 + " us/danmaku, draw "
+                + cacheDrawTime / DANMAKU_COUNT / 1000 + " us/danmaku"
+                + "\nglyph atlas: " + (atlas.getByteCount() >> 10) + " KB (" + atlas.getPageCount() + " pages, "
+                + atlas.getGlyphCount() + " glyphs), first draw " + coldDrawTime / DANMAKU_COUNT / 1000
+                + " us/danmaku, draw " + warmDrawTime / DANMAKU_COUNT / 1000 + " us/danmaku, glyph hits "
+                + atlas.getHitCount() + ", misses " + atlas.getMissCount() + ", resets " + atlas.getResetCount());
+        Assert.assertEquals(0, atlas.getResetCount());
+        Assert.assertTrue(atlas.getByteCount() < cacheBytes);
+        // 字符集有限, 第二遍不再绘制新字形
+        Assert.assertEquals(atlas.getGlyphCount(), atlas.getMissCount());
+        frame.recycle();
+        atlas.clear();
+    }
+
+    public void testGlyphSharing() {
+        GlyphAtlas atlas = new GlyphAtlas(128, 1);
+        GlyphAtlas.Face face = atlas.getFace(null, 25, false, GlyphAtlas.OUTLINE_NONE, 0);
+        Assert.assertSame(face, atlas.getFace(null, 25, false, GlyphAtlas.OUTLINE_NONE, 0));
+        Assert.assertNotSame(face, atlas.getFace(null, 25, false, GlyphAtlas.OUTLINE_STROKE, 3.5f));
+        GlyphAtlas.Glyph glyph = atlas.getGlyph(face, '弹');
+        Assert.assertSame(glyph, atlas.getGlyph(face, '弹'));
+        Assert.assertTrue(glyph.getAdvance() > 0);
+        Assert.assertEquals(1, atlas.getHitCount());
+        Assert.assertEquals(1, atlas.getMissCount());
+        // 页用满后换用新页, 旧页不擦除, 已取得的字形在之后两帧内仍可绘制
+        GlyphAtlas.Glyph last = null;
+        for (int c = 0x4E00; atlas.getResetCount() == 0; c++) {
+            last = atlas.getGlyph(face, c);
+        }
+        Assert.assertEquals(1, atlas.getPageCount());
+        Assert.assertEquals(1, atlas.getRetiredPageCount());
+        Assert.assertEquals(2 * 128 * 128, atlas.getByteCount());
+        Assert.assertNotSame(glyph.page, last.page);
+        Assert.assertFalse(glyph.page.isRecycled());
+        Assert.assertNotSame(glyph, atlas.getGlyph(face, '弹'));
+        atlas.onFrameRendered();
+        Assert.assertFalse(glyph.page.isRecycled());
+        atlas.onFrameRendered();
+        Assert.assertTrue(glyph.page.isRecycled());
+        Assert.assertEquals(128 * 128, atlas.getByteCount());
+
+        atlas.clear();
+        Assert.assertEquals(0, atlas.getPageCount());
+        Assert.assertFalse(last.page.isRecycled());
+        atlas.onFrameRendered();
+        atlas.onFrameRendered();
+        Assert.assertTrue(last.page.isRecycled());
+        Assert.assertEquals(0, atlas.getByteCount());
+    }
+
+    /**
+     * 缓存线程提前绘制字形后, 绘制时不再绘制新字形
+     */
+    public void testPrepareResource() {
+        GlyphAtlasCacheStuffer glyphs = new GlyphAtlasCacheStuffer();
+        List<BaseDanmaku> danmakus = createDanmakus(100);
+        for (BaseDanmaku danmaku : danmakus) {
+            glyphs.prepareResource(danmaku, mConfig);
+        }
+        GlyphAtlas atlas = glyphs.getAtlas();
+        int missCount = atlas.getMissCount();
+        Assert.assertTrue(missCount > 0);
+        Bitmap frame = Bitmap.createBitmap(1280, 720, Bitmap.Config.ARGB_8888);
+        drawAll(glyphs, danmakus, new Canvas(frame));
+        Assert.assertEquals(missCount, atlas.getMissCount());
+        frame.recycle();
+        atlas.clear();
+    }
+
+    private long drawAll(BaseCacheStuffer stuffer, List<BaseDanmaku> danmakus, Canvas canvas) {
+        Random random = new Random(0);
+        long startTime = System.nanoTime();
+        for (BaseDanmaku danmaku : danmakus) {
+            float left = random.nextInt(1000), top = random.nextInt(680);
+            Assert.assertTrue(stuffer.drawCache(danmaku, canvas, left, top, null, mConfig.PAINT, mConfig));
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private List<BaseDanmaku> createDanmakus(int count) {
+        Random random = new Random(20171019);
+        List<BaseDanmaku> danmakus = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 4 + random.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            Danmaku danmaku = new Danmaku(text.toString());
+            danmaku.flags = mFlags;
+            danmaku.textSize = 25 + random.nextInt(3) * 10;
+            danmaku.textColor = Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            danmaku.textShadowColor = Color.BLACK;
+            danmaku.measure(mDisp, true);
+            danmakus.add(danmaku);
+        }
+        return danmakus;
+    }
+
+}
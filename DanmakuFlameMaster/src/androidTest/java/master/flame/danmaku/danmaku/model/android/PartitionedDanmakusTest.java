@@ -0,0 +1,218 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.FBDanmaku;
+import master.flame.danmaku.danmaku.model.FTDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.model.SpecialDanmaku;
+
+/**
+ * PartitionedDanmakus按类型分区保存, 遍历、删除和sub视图与按时间排序的Danmakus一致
+ */
+public class PartitionedDanmakusTest extends InstrumentationTestCase {
+
+    private static final int COUNT = 30;
+
+    public void testForEach() {
+        PartitionedDanmakus danmakus = createDanmakus();
+        Assert.assertEquals(COUNT, danmakus.size());
+        Assert.assertEquals(COUNT / 2, danmakus.getPartition(PartitionedDanmakus.PARTITION_SCROLL).size());
+        Assert.assertEquals(COUNT / 3, danmakus.getPartition(PartitionedDanmakus.PARTITION_FIXED).size());
+        Assert.assertEquals(COUNT / 6, danmakus.getPartition(PartitionedDanmakus.PARTITION_SPECIAL).size());
+        Assert.assertEquals(0, danmakus.first().getTime());
+        Assert.assertEquals((COUNT - 1) * 100, danmakus.last().getTime());
+
+        // 三个分区按时间合并
+        List<BaseDanmaku> items = collect(danmakus);
+        Assert.assertEquals(COUNT, items.size());
+        for (int i = 0; i < COUNT; i++) {
+            Assert.assertEquals(i * 100, items.get(i).getTime());
+        }
+        Assert.assertEquals(items, new ArrayList<>(danmakus.getCollection()));
+
+        final int[] count = new int[1];
+        danmakus.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                return ++count[0] == 10 ? ACTION_BREAK : ACTION_CONTINUE;
+            }
+        });
+        Assert.assertEquals(10, count[0]);
+    }
+
+    /**
+     * getCollection是不复制的只读视图; 嵌套遍历互不影响
+     */
+    public void testCollectionViewAndNestedForEach() {
+        final PartitionedDanmakus danmakus = createDanmakus();
+        Collection<BaseDanmaku> view = danmakus.getCollection();
+        Assert.assertSame(view, danmakus.getCollection());
+        try {
+            view.iterator().remove();
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        BaseDanmaku first = danmakus.first();
+        danmakus.removeItem(first);
+        Assert.assertEquals(COUNT - 1, view.size());
+        Assert.assertFalse(view.contains(first));
+
+        final int[] count = new int[1];
+        danmakus.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                count[0] += collect(danmakus).size();
+                return ACTION_CONTINUE;
+            }
+        });
+        Assert.assertEquals((COUNT - 1) * (COUNT - 1), count[0]);
+        Assert.assertEquals(COUNT - 1, collect(danmakus).size());
+    }
+
+    public void testRemove() {
+        PartitionedDanmakus danmakus = createDanmakus();
+        // 删除所有固定弹幕和时间在2000之后的弹幕
+        danmakus.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                boolean fixed = danmaku.getType() == BaseDanmaku.TYPE_FIX_TOP
+                        || danmaku.getType() == BaseDanmaku.TYPE_FIX_BOTTOM;
+                return fixed || danmaku.getTime() >= 2000 ? ACTION_REMOVE : ACTION_CONTINUE;
+            }
+        });
+        Assert.assertTrue(danmakus.getPartition(PartitionedDanmakus.PARTITION_FIXED).isEmpty());
+        List<BaseDanmaku> items = collect(danmakus);
+        Assert.assertEquals(items.size(), danmakus.size());
+        for (BaseDanmaku item : items) {
+            Assert.assertTrue(item.getTime() < 2000);
+            Assert.assertTrue(danmakus.contains(item));
+        }
+        Assert.assertEquals(14, items.size());
+
+        // 删除第一个特殊弹幕后停止
+        danmakus.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                return danmaku.getType() == BaseDanmaku.TYPE_SPECIAL ? ACTION_REMOVE_AND_BREAK : ACTION_CONTINUE;
+            }
+        });
+        Assert.assertEquals(13, danmakus.size());
+        Assert.assertEquals(2, danmakus.getPartition(PartitionedDanmakus.PARTITION_SPECIAL).size());
+        Assert.assertFalse(danmakus.contains(items.get(3)));
+
+        Assert.assertTrue(danmakus.removeItem(items.get(0)));
+        Assert.assertFalse(danmakus.removeItem(items.get(0)));
+        Assert.assertEquals(12, danmakus.size());
+    }
+
+    public void testSub() {
+        PartitionedDanmakus danmakus = createDanmakus();
+        IDanmakus sub = danmakus.sub(1000, 1600);
+        Assert.assertTrue(sub instanceof PartitionedDanmakus);
+        List<BaseDanmaku> items = collect(sub);
+        Assert.assertEquals(6, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            Assert.assertEquals(1000 + i * 100, items.get(i).getTime());
+        }
+        PartitionedDanmakus partitioned = (PartitionedDanmakus) sub;
+        Assert.assertEquals(3, partitioned.getPartition(PartitionedDanmakus.PARTITION_SCROLL).size());
+        Assert.assertEquals(2, partitioned.getPartition(PartitionedDanmakus.PARTITION_FIXED).size());
+        Assert.assertEquals(1, partitioned.getPartition(PartitionedDanmakus.PARTITION_SPECIAL).size());
+
+        // 没有特殊弹幕的区间, 对应分区为空
+        sub = danmakus.sub(1800, 2300);
+        partitioned = (PartitionedDanmakus) sub;
+        Assert.assertEquals(5, sub.size());
+        Assert.assertEquals(3, partitioned.getPartition(PartitionedDanmakus.PARTITION_SCROLL).size());
+        Assert.assertTrue(partitioned.getPartition(PartitionedDanmakus.PARTITION_SPECIAL).isEmpty());
+
+        IDanmakus copy = danmakus.subnew(1000, 1600);
+        Assert.assertEquals(collect(danmakus.sub(1000, 1600)), collect(copy));
+    }
+
+    public void testDuplicateMergingMode() {
+        Danmakus source = new Danmakus(IDanmakus.ST_BY_TIME, true);
+        source.addItem(createDanmaku(BaseDanmaku.TYPE_SCROLL_RL, 100, 0));
+        Assert.assertTrue(new PartitionedDanmakus(source).isDuplicateMergingEnabled());
+        Assert.assertTrue(new PartitionedDanmakus(new PartitionedDanmakus(source)).isDuplicateMergingEnabled());
+        Assert.assertFalse(new PartitionedDanmakus(new Danmakus()).isDuplicateMergingEnabled());
+
+        PartitionedDanmakus danmakus = new PartitionedDanmakus(source);
+        Assert.assertEquals(1, danmakus.size());
+        Assert.assertTrue(((Danmakus) danmakus.getPartition(PartitionedDanmakus.PARTITION_SCROLL)).isDuplicateMergingEnabled());
+    }
+
+    /**
+     * 每6条: 3条滚动, 2条固定(顶部和底部), 1条特殊弹幕
+     */
+    private PartitionedDanmakus createDanmakus() {
+        Danmakus source = new Danmakus();
+        for (int i = 0; i < COUNT; i++) {
+            int type;
+            switch (i % 6) {
+                case 3:
+                    type = BaseDanmaku.TYPE_FIX_TOP;
+                    break;
+                case 4:
+                    type = BaseDanmaku.TYPE_FIX_BOTTOM;
+                    break;
+                case 5:
+                    type = BaseDanmaku.TYPE_SPECIAL;
+                    break;
+                default:
+                    type = BaseDanmaku.TYPE_SCROLL_RL;
+                    break;
+            }
+            source.addItem(createDanmaku(type, i * 100, i));
+        }
+        return new PartitionedDanmakus(source);
+    }
+
+    private BaseDanmaku createDanmaku(int type, long time, int index) {
+        Duration duration = new Duration(3000);
+        BaseDanmaku danmaku;
+        switch (type) {
+            case BaseDanmaku.TYPE_FIX_TOP:
+                danmaku = new FTDanmaku(duration);
+                break;
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                danmaku = new FBDanmaku(duration);
+                break;
+            case BaseDanmaku.TYPE_SPECIAL:
+                danmaku = new SpecialDanmaku();
+                danmaku.duration = duration;
+                break;
+            default:
+                danmaku = new R2LDanmaku(duration);
+                break;
+        }
+        danmaku.text = "text" + index;
+        danmaku.setTime(time);
+        danmaku.index = index;
+        return danmaku;
+    }
+
+    private static List<BaseDanmaku> collect(IDanmakus danmakus) {
+        final List<BaseDanmaku> items = new ArrayList<>();
+        danmakus.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                items.add(danmaku);
+                return ACTION_CONTINUE;
+            }
+        });
+        return items;
+    }
+
+}
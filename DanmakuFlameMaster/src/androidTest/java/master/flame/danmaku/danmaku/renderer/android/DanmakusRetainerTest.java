@@ -0,0 +1,376 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.FBDanmaku;
+import master.flame.danmaku.danmaku.model.FTDanmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.model.IDisplayer;
+import master.flame.danmaku.danmaku.model.L2RDanmaku;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.model.TestDisplayer;
+import master.flame.danmaku.danmaku.model.android.Danmakus;
+
+/**
+ * 按行分配(LaneRetainer), 按top排序的数组和原有TreeSet三种方式的布局结果对比, 以及预热后不再扩容
+ */
+public class DanmakusRetainerTest extends InstrumentationTestCase {
+
+    private static final String TAG = DanmakusRetainerTest.class.getSimpleName();
+
+    private static final int WIDTH = 1280;
+
+    private static final int HEIGHT = 720;
+
+    private static final int MARGIN = 4;
+
+    private static final long SCROLL_DURATION = 4000;
+
+    private static final long FIXED_DURATION = 3000;
+
+    private static final long PLAY_TIME = 60000;
+
+    private static final long FRAME_TIME = 16;
+
+    private static final long WARM_UP_TIME = 5000;
+
+    public void testScrollR2L() {
+        checkEquivalence(BaseDanmaku.TYPE_SCROLL_RL, false, 10);
+        checkEquivalence(BaseDanmaku.TYPE_SCROLL_RL, false, 60);
+    }
+
+    public void testScrollR2LAlignBottom() {
+        checkEquivalence(BaseDanmaku.TYPE_SCROLL_RL, true, 10);
+        checkEquivalence(BaseDanmaku.TYPE_SCROLL_RL, true, 60);
+    }
+
+    public void testScrollL2R() {
+        checkEquivalence(BaseDanmaku.TYPE_SCROLL_LR, false, 10);
+        checkEquivalence(BaseDanmaku.TYPE_SCROLL_LR, false, 60);
+    }
+
+    public void testFixTop() {
+        checkEquivalence(BaseDanmaku.TYPE_FIX_TOP, false, 5);
+        checkEquivalence(BaseDanmaku.TYPE_FIX_TOP, false, 20);
+    }
+
+    public void testFixBottom() {
+        checkEquivalence(BaseDanmaku.TYPE_FIX_BOTTOM, false, 5);
+        checkEquivalence(BaseDanmaku.TYPE_FIX_BOTTOM, false, 20);
+    }
+
+    /**
+     * 按top排序的方式改用数组后, 布局结果与原有的TreeSet(Danmakus.ST_BY_YPOS/ST_BY_YPOS_DESC)相同
+     */
+    public void testTreeSetBaseline() {
+        int[] types = {BaseDanmaku.TYPE_SCROLL_RL, BaseDanmaku.TYPE_SCROLL_LR, BaseDanmaku.TYPE_FIX_TOP, BaseDanmaku.TYPE_FIX_BOTTOM};
+        for (int type : types) {
+            for (int i = 0; i < 2; i++) {
+                boolean alignBottom = i == 1;
+                checkEquivalence(new TreeSetRetainer(alignBottom), new DanmakusRetainer(alignBottom), type, alignBottom, 10);
+                checkEquivalence(new TreeSetRetainer(alignBottom), new DanmakusRetainer(alignBottom), type, alignBottom, 60);
+            }
+        }
+    }
+
+    /**
+     * 按行分配的行数组在预热后不再扩容, 之后每帧不分配对象
+     */
+    public void testLaneLayoutStorage() {
+        int[] types = {BaseDanmaku.TYPE_SCROLL_RL, BaseDanmaku.TYPE_SCROLL_LR, BaseDanmaku.TYPE_FIX_TOP, BaseDanmaku.TYPE_FIX_BOTTOM};
+        for (int type : types) {
+            for (int i = 0; i < 2; i++) {
+                StorageRecordingRetainer retainer = new StorageRecordingRetainer(i == 1);
+                retainer.setLaneLayoutEnabled(type, true);
+                checkStorage(retainer, type);
+                Assert.assertNotNull(retainer.laneAllocators);
+            }
+        }
+    }
+
+    /**
+     * 按top排序的方式复用RetainerState, 排序数组在预热后不再扩容, 之后每帧不分配对象
+     */
+    public void testRetainerStorage() {
+        int[] types = {BaseDanmaku.TYPE_SCROLL_RL, BaseDanmaku.TYPE_SCROLL_LR, BaseDanmaku.TYPE_FIX_TOP, BaseDanmaku.TYPE_FIX_BOTTOM};
+        for (int type : types) {
+            for (int i = 0; i < 2; i++) {
+                StorageRecordingRetainer retainer = new StorageRecordingRetainer(i == 1);
+                checkStorage(retainer, type);
+                Assert.assertNotNull(retainer.visibleDanmakus);
+            }
+        }
+    }
+
+    /**
+     * 密集弹幕逐帧布局, 跳过前几秒的预热后retainer使用的数组容量不变
+     */
+    private void checkStorage(StorageRecordingRetainer retainer, int type) {
+        DanmakuTimer timer = new DanmakuTimer();
+        GlobalFlagValues flags = new GlobalFlagValues();
+        TestDisplayer disp = new TestDisplayer(WIDTH, HEIGHT, MARGIN);
+        Random random = new Random(type);
+        int count = (int) (PLAY_TIME / 1000 * 60);
+        BaseDanmaku[] danmakus = new BaseDanmaku[count];
+        long time = 1;
+        for (int i = 0; i < count; i++) {
+            time += 2 * random.nextInt(2000 / 60);
+            float height = random.nextInt(4) == 0 ? 45 : 30;
+            danmakus[i] = createDanmaku(type, time, 2 + random.nextInt(20), height, timer, flags, disp);
+        }
+
+        int layoutCount = 0;
+        int warmUpCapacity = -1;
+        int start = 0;
+        for (long currTime = 0; currTime < time; currTime += FRAME_TIME) {
+            timer.update(currTime);
+            while (start < count && danmakus[start].isTimeOut()) {
+                start++;
+            }
+            for (int i = start; i < count && !danmakus[i].isLate(); i++) {
+                if (!danmakus[i].isShown()) {
+                    layoutCount++;
+                }
+                retainer.fix(danmakus[i], disp, null);
+            }
+            if (currTime < WARM_UP_TIME) {
+                continue;
+            }
+            if (warmUpCapacity < 0) {
+                warmUpCapacity = retainer.capacity();
+            }
+            Assert.assertEquals("type " + type + " at " + currTime, warmUpCapacity, retainer.capacity());
+        }
+        Log.i(TAG, "type " + type + (retainer.isLaneLayoutEnabled(type) ? " lane" : "") + ", " + layoutCount
+                + " layouts, capacity " + warmUpCapacity);
+    }
+
+    /**
+     * 按行分配和按top排序的方式对比
+     */
+    private void checkEquivalence(int type, boolean alignBottom, int countPerSecond) {
+        DanmakusRetainer actualRetainer = new DanmakusRetainer(alignBottom);
+        actualRetainer.setLaneLayoutEnabled(type, true);
+        checkEquivalence(new DanmakusRetainer(alignBottom), actualRetainer, type, alignBottom, countPerSecond);
+    }
+
+    /**
+     * 同一组弹幕分别用两种方式逐帧布局, 每次布局后的位置和传给Verifier的参数都应相同
+     *
+     * @param countPerSecond 每秒弹幕数, 较大时会排满屏幕触发重新从第一行开始的情况
+     */
+    private void checkEquivalence(DanmakusRetainer expectedRetainer, DanmakusRetainer actualRetainer,
+                                  int type, boolean alignBottom, int countPerSecond) {
+        DanmakuTimer timer = new DanmakuTimer();
+        GlobalFlagValues flags = new GlobalFlagValues();
+        TestDisplayer disp = new TestDisplayer(WIDTH, HEIGHT, MARGIN);
+        Random random = new Random(type * 1000 + countPerSecond);
+        List<BaseDanmaku> expected = new ArrayList<>();
+        List<BaseDanmaku> actual = new ArrayList<>();
+        int count = (int) (PLAY_TIME / 1000 * countPerSecond);
+        long time = 1;
+        for (int i = 0; i < count; i++) {
+            // 奇数时间, 不会和帧时间重合
+            time += 2 * random.nextInt((int) (2000 / countPerSecond));
+            int length = 2 + random.nextInt(20);
+            float height = random.nextInt(4) == 0 ? 45 : 30;
+            expected.add(createDanmaku(type, time, length, height, timer, flags, disp));
+            actual.add(createDanmaku(type, time, length, height, timer, flags, disp));
+        }
+
+        RecordingVerifier expectedVerifier = new RecordingVerifier();
+        RecordingVerifier actualVerifier = new RecordingVerifier();
+        long expectedTime = 0, actualTime = 0;
+        int fixCount = 0, resetCount = 0;
+        int start = 0;
+        for (long currTime = 0; currTime < time + SCROLL_DURATION; currTime += FRAME_TIME) {
+            timer.update(currTime);
+            while (start < count && expected.get(start).isTimeOut()) {
+                start++;
+            }
+            for (int i = start; i < count && !expected.get(i).isLate(); i++) {
+                BaseDanmaku expectedItem = expected.get(i);
+                BaseDanmaku actualItem = actual.get(i);
+                long startTime = System.nanoTime();
+                expectedRetainer.fix(expectedItem, disp, expectedVerifier);
+                expectedTime += System.nanoTime() - startTime;
+                startTime = System.nanoTime();
+                actualRetainer.fix(actualItem, disp, actualVerifier);
+                actualTime += System.nanoTime() - startTime;
+                fixCount++;
+
+                String message = "type " + type + ", danmaku " + i + " at " + currTime;
+                Assert.assertEquals(message, expectedItem.isShown(), actualItem.isShown());
+                Assert.assertEquals(message, expectedItem.getTop(), actualItem.getTop());
+                Assert.assertEquals(message, expectedVerifier.top, actualVerifier.top);
+                Assert.assertEquals(message, expectedVerifier.lines, actualVerifier.lines);
+                Assert.assertEquals(message, expectedVerifier.willHit, actualVerifier.willHit);
+                if (expectedVerifier.willHit && expectedVerifier.lines == 1) {
+                    resetCount++;
+                }
+            }
+        }
+        Log.i(TAG, "type " + type + (alignBottom ? " align bottom" : "") + ", " + countPerSecond + "/s, "
+                + fixCount + " fixes, " + resetCount + " resets, retainer " + expectedTime / fixCount
+                + " ns/fix, compared " + actualTime / fixCount + " ns/fix");
+    }
+
+    private BaseDanmaku createDanmaku(int type, long time, int length, float height, DanmakuTimer timer,
+                                      GlobalFlagValues flags, IDisplayer disp) {
+        BaseDanmaku danmaku;
+        switch (type) {
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                danmaku = new L2RDanmaku(new Duration(SCROLL_DURATION));
+                break;
+            case BaseDanmaku.TYPE_FIX_TOP:
+                danmaku = new FTDanmaku(new Duration(FIXED_DURATION));
+                break;
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                danmaku = new FBDanmaku(new Duration(FIXED_DURATION));
+                break;
+            default:
+                danmaku = new R2LDanmaku(new Duration(SCROLL_DURATION));
+                break;
+        }
+        danmaku.flags = flags;
+        danmaku.setTime(time);
+        danmaku.setTimer(timer);
+        danmaku.paintWidth = length * 25;
+        danmaku.paintHeight = height;
+        danmaku.measure(disp, false);
+        return danmaku;
+    }
+
+    /**
+     * 按top排序的方式使用原有的TreeSet
+     */
+    private static class TreeSetRetainer extends DanmakusRetainer {
+
+        TreeSetRetainer(boolean alignBottom) {
+            super(alignBottom);
+        }
+
+        @Override
+        YPosDanmakus createVisibleDanmakus(boolean descending) {
+            return new TreeSetYPosDanmakus(descending);
+        }
+    }
+
+    private static class TreeSetYPosDanmakus extends YPosDanmakus {
+
+        private final Danmakus mDanmakus;
+
+        TreeSetYPosDanmakus(boolean descending) {
+            super(descending);
+            mDanmakus = new Danmakus(descending ? Danmakus.ST_BY_YPOS_DESC : Danmakus.ST_BY_YPOS);
+        }
+
+        @Override
+        boolean isEmpty() {
+            return mDanmakus.isEmpty();
+        }
+
+        @Override
+        int size() {
+            return mDanmakus.size();
+        }
+
+        @Override
+        boolean addItem(BaseDanmaku item) {
+            return mDanmakus.addItem(item);
+        }
+
+        @Override
+        boolean removeItem(BaseDanmaku item) {
+            return mDanmakus.removeItem(item);
+        }
+
+        @Override
+        void forEach(IDanmakus.Consumer<? super BaseDanmaku, ?> consumer) {
+            mDanmakus.forEachSync(consumer);
+        }
+
+        @Override
+        void clear() {
+            mDanmakus.clear();
+        }
+    }
+
+    /**
+     * 记录创建的数组, 用于检查容量; 父类构造时就会创建, 列表不能在字段声明处初始化
+     */
+    private static class StorageRecordingRetainer extends DanmakusRetainer {
+
+        List<YPosDanmakus> visibleDanmakus;
+
+        List<LaneAllocator> laneAllocators;
+
+        StorageRecordingRetainer(boolean alignBottom) {
+            super(alignBottom);
+        }
+
+        @Override
+        YPosDanmakus createVisibleDanmakus(boolean descending) {
+            YPosDanmakus danmakus = super.createVisibleDanmakus(descending);
+            if (visibleDanmakus == null) {
+                visibleDanmakus = new ArrayList<>();
+            }
+            visibleDanmakus.add(danmakus);
+            return danmakus;
+        }
+
+        @Override
+        LaneAllocator createLaneAllocator(boolean alignBottom) {
+            LaneAllocator allocator = super.createLaneAllocator(alignBottom);
+            if (laneAllocators == null) {
+                laneAllocators = new ArrayList<>();
+            }
+            laneAllocators.add(allocator);
+            return allocator;
+        }
+
+        int capacity() {
+            int capacity = 0;
+            if (visibleDanmakus != null) {
+                for (YPosDanmakus danmakus : visibleDanmakus) {
+                    capacity += danmakus.capacity();
+                }
+            }
+            if (laneAllocators != null) {
+                for (LaneAllocator allocator : laneAllocators) {
+                    capacity += allocator.capacity();
+                }
+            }
+            return capacity;
+        }
+    }
+
+    private static class RecordingVerifier implements DanmakusRetainer.Verifier {
+
+        float top;
+
+        int lines;
+
+        boolean willHit;
+
+        @Override
+        public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+            this.top = fixedTop;
+            this.lines = lines;
+            this.willHit = willHit;
+            return false;
+        }
+    }
+
+}
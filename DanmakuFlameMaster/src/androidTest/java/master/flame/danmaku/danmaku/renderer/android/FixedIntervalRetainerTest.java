@@ -0,0 +1,158 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.FBDanmaku;
+import master.flame.danmaku.danmaku.model.FTDanmaku;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.TestDisplayer;
+
+/**
+ * 固定弹幕按竖直区间分配(FixedIntervalRetainer)和原有方式的对比: 高度不同时是否重叠, 同屏50条以上时的耗时
+ */
+public class FixedIntervalRetainerTest extends InstrumentationTestCase {
+
+    private static final String TAG = FixedIntervalRetainerTest.class.getSimpleName();
+
+    private static final int WIDTH = 1920;
+
+    private static final int HEIGHT = 2000;
+
+    private static final int MARGIN = 2;
+
+    private static final long DURATION = 3000;
+
+    private static final long PLAY_TIME = 60000;
+
+    private static final long FRAME_TIME = 16;
+
+    /**
+     * 每秒弹幕数, 同屏约50条
+     */
+    private static final int COUNT_PER_SECOND = 17;
+
+    public void testFixTop() {
+        // 第一轮预热
+        layout(BaseDanmaku.TYPE_FIX_TOP, true);
+        layout(BaseDanmaku.TYPE_FIX_TOP, false);
+        Result interval = layout(BaseDanmaku.TYPE_FIX_TOP, true);
+        Result retainer = layout(BaseDanmaku.TYPE_FIX_TOP, false);
+        check(interval, retainer);
+    }
+
+    public void testFixBottom() {
+        // 第一轮预热
+        layout(BaseDanmaku.TYPE_FIX_BOTTOM, true);
+        layout(BaseDanmaku.TYPE_FIX_BOTTOM, false);
+        Result interval = layout(BaseDanmaku.TYPE_FIX_BOTTOM, true);
+        Result retainer = layout(BaseDanmaku.TYPE_FIX_BOTTOM, false);
+        check(interval, retainer);
+    }
+
+    private void check(Result interval, Result retainer) {
+        Assert.assertTrue(interval.maxShown >= 50);
+        Assert.assertEquals(0, interval.resetCount);
+        Assert.assertEquals(0, interval.overlapCount);
+        Assert.assertEquals(interval.layoutCount, retainer.layoutCount);
+        Log.i(TAG, "type " + interval.type + ", max " + interval.maxShown + " shown, " + interval.layoutCount
+                + " layouts\n"
+                + "retainer: " + retainer.layoutTime / retainer.layoutCount + " ns/layout, " + retainer.overlapCount
+                + " overlapping pairs, " + retainer.resetCount + " resets\n"
+                + "interval: " + interval.layoutTime / interval.layoutCount + " ns/layout, " + interval.overlapCount
+                + " overlapping pairs, " + interval.resetCount + " resets");
+    }
+
+    private static class Result {
+        int type;
+        int maxShown, layoutCount, resetCount;
+        long layoutTime;
+        /**
+         * 同时显示且竖直方向重叠的弹幕对数, 同一对只计一次
+         */
+        int overlapCount;
+    }
+
+    /**
+     * 四分之一的弹幕为两行, 高度为单行的两倍多
+     */
+    private Result layout(int type, boolean interval) {
+        DanmakuTimer timer = new DanmakuTimer();
+        GlobalFlagValues flags = new GlobalFlagValues();
+        TestDisplayer disp = new TestDisplayer(WIDTH, HEIGHT, MARGIN);
+        Random random = new Random(type);
+        int count = (int) (PLAY_TIME / 1000 * COUNT_PER_SECOND);
+        BaseDanmaku[] danmakus = new BaseDanmaku[count];
+        long time = 1;
+        for (int i = 0; i < count; i++) {
+            time += 2 * random.nextInt(1000 / COUNT_PER_SECOND);
+            BaseDanmaku danmaku = type == BaseDanmaku.TYPE_FIX_TOP ? new FTDanmaku(new Duration(DURATION))
+                    : new FBDanmaku(new Duration(DURATION));
+            danmaku.flags = flags;
+            danmaku.index = i;
+            danmaku.setTime(time);
+            danmaku.setTimer(timer);
+            danmaku.paintWidth = (2 + random.nextInt(20)) * 20;
+            danmaku.paintHeight = random.nextInt(4) == 0 ? 42 : 20;
+            danmaku.measure(disp, false);
+            danmakus[i] = danmaku;
+        }
+
+        DanmakusRetainer retainer = new DanmakusRetainer(false);
+        retainer.setIntervalLayoutEnabled(interval);
+        final Result result = new Result();
+        result.type = type;
+        DanmakusRetainer.Verifier verifier = new DanmakusRetainer.Verifier() {
+            @Override
+            public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+                if (!danmaku.isShown() && willHit) {
+                    result.resetCount++;
+                }
+                return false;
+            }
+        };
+        List<BaseDanmaku> shown = new ArrayList<>();
+        int start = 0;
+        for (long currTime = 0; currTime < time + DURATION; currTime += FRAME_TIME) {
+            timer.update(currTime);
+            while (start < count && danmakus[start].isTimeOut()) {
+                start++;
+            }
+            shown.clear();
+            for (int i = start; i < count && !danmakus[i].isLate(); i++) {
+                BaseDanmaku danmaku = danmakus[i];
+                boolean wasShown = danmaku.isShown();
+                long startTime = System.nanoTime();
+                retainer.fix(danmaku, disp, verifier);
+                if (!wasShown) {
+                    // 只统计新弹幕的布局耗时, 已显示的弹幕只是按原位置layout
+                    result.layoutTime += System.nanoTime() - startTime;
+                }
+                if (!danmaku.isShown()) {
+                    continue;
+                }
+                if (!wasShown) {
+                    result.layoutCount++;
+                    for (BaseDanmaku other : shown) {
+                        if (danmaku.getTop() < other.getBottom() && other.getTop() < danmaku.getBottom()) {
+                            result.overlapCount++;
+                        }
+                    }
+                }
+                shown.add(danmaku);
+            }
+            result.maxShown = Math.max(result.maxShown, shown.size());
+        }
+        return result;
+    }
+
+}
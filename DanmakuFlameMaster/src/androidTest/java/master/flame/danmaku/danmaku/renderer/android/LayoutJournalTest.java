@@ -0,0 +1,153 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.model.TestDisplayer;
+
+/**
+ * LayoutJournal: 按index二分查找恢复记录的位置, 段数超过上限时淘汰最久未访问的段,
+ * 布局条件, measure标记或过滤标记变化后旧记录不再使用
+ */
+public class LayoutJournalTest extends InstrumentationTestCase {
+
+    private static final long DURATION = 4000;
+
+    /**
+     * 与LayoutJournal.SEGMENT_DURATION相同
+     */
+    private static final long SEGMENT_DURATION = 10000;
+
+    private final DanmakuTimer mTimer = new DanmakuTimer();
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    private final TestDisplayer mDisp = new TestDisplayer(1280, 720, 0);
+
+    private BaseDanmaku createDanmaku(int index, long time) {
+        BaseDanmaku danmaku = new R2LDanmaku(new Duration(DURATION));
+        danmaku.flags = mFlags;
+        danmaku.setTime(time);
+        danmaku.setTimer(mTimer);
+        danmaku.paintWidth = 300;
+        danmaku.paintHeight = 30;
+        danmaku.index = index;
+        danmaku.measure(mDisp, false);
+        return danmaku;
+    }
+
+    private boolean restore(LayoutJournal journal, BaseDanmaku danmaku) {
+        mTimer.update(danmaku.getActualTime() + 100);
+        return journal.restore(danmaku, mDisp, null);
+    }
+
+    /**
+     * 乱序记录后每条都恢复到自己的位置, index相同而时间不同的弹幕不会错用
+     */
+    public void testRestore() {
+        LayoutJournal journal = new LayoutJournal();
+        journal.validate(mDisp, false, 0, 0);
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            indexes.add(i * 3);
+        }
+        Collections.shuffle(indexes, new Random(37));
+        for (int index : indexes) {
+            journal.record(createDanmaku(index, 1000 + index), index % 20 * 30f, index % 20, false);
+        }
+        Assert.assertEquals(200, journal.getEntryCount());
+
+        for (int i = 0; i < 200; i++) {
+            int index = i * 3;
+            BaseDanmaku danmaku = createDanmaku(index, 1000 + index);
+            Assert.assertTrue(restore(journal, danmaku));
+            Assert.assertEquals(index % 20 * 30f, danmaku.getTop());
+        }
+        Assert.assertFalse(restore(journal, createDanmaku(1, 1001)));
+        Assert.assertFalse(restore(journal, createDanmaku(3, 1004)));
+
+        // 同一条弹幕再次记录时覆盖
+        journal.record(createDanmaku(3, 1003), 600f, 20, true);
+        Assert.assertEquals(200, journal.getEntryCount());
+        BaseDanmaku danmaku = createDanmaku(3, 1003);
+        Assert.assertTrue(restore(journal, danmaku));
+        Assert.assertEquals(600f, danmaku.getTop());
+    }
+
+    /**
+     * 恢复时按记录的lines/willHit交给verifier判断
+     */
+    public void testVerifier() {
+        LayoutJournal journal = new LayoutJournal();
+        journal.validate(mDisp, false, 0, 0);
+        journal.record(createDanmaku(0, 1000), 0f, 1, false);
+        journal.record(createDanmaku(1, 1000), 30f, 6, true);
+        DanmakusRetainer.Verifier verifier = new DanmakusRetainer.Verifier() {
+            @Override
+            public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+                return lines > 5 && willHit;
+            }
+        };
+        BaseDanmaku danmaku = createDanmaku(0, 1000);
+        mTimer.update(1100);
+        Assert.assertTrue(journal.restore(danmaku, mDisp, verifier));
+        Assert.assertFalse(journal.restore(createDanmaku(1, 1000), mDisp, verifier));
+    }
+
+    public void testSegmentEviction() {
+        LayoutJournal journal = new LayoutJournal(2);
+        journal.validate(mDisp, false, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            journal.record(createDanmaku(i, 1000 + i), i * 30f, i, false);
+            journal.record(createDanmaku(100 + i, SEGMENT_DURATION + 1000 + i), i * 30f, i, false);
+        }
+        Assert.assertEquals(6, journal.getEntryCount());
+
+        // 访问第一段后第二段成为最久未访问的段
+        Assert.assertTrue(restore(journal, createDanmaku(0, 1000)));
+        journal.record(createDanmaku(200, SEGMENT_DURATION * 2 + 1000), 0f, 0, false);
+        Assert.assertEquals(4, journal.getEntryCount());
+        Assert.assertTrue(restore(journal, createDanmaku(1, 1001)));
+        Assert.assertFalse(restore(journal, createDanmaku(101, SEGMENT_DURATION + 1001)));
+        Assert.assertTrue(restore(journal, createDanmaku(200, SEGMENT_DURATION * 2 + 1000)));
+    }
+
+    public void testInvalidate() {
+        LayoutJournal journal = new LayoutJournal();
+        journal.validate(mDisp, false, 0, 0);
+        journal.record(createDanmaku(0, 1000), 90f, 3, false);
+        journal.validate(mDisp, false, 0, 0);
+        Assert.assertTrue(restore(journal, createDanmaku(0, 1000)));
+
+        // measure标记变化(字号, 字体等)
+        journal.validate(mDisp, false, 1, 0);
+        Assert.assertEquals(0, journal.getEntryCount());
+        Assert.assertFalse(restore(journal, createDanmaku(0, 1000)));
+
+        // 过滤标记变化(屏蔽名单, 同屏数量等)
+        journal.record(createDanmaku(0, 1000), 90f, 3, false);
+        journal.validate(mDisp, false, 1, 1);
+        Assert.assertEquals(0, journal.getEntryCount());
+        Assert.assertFalse(restore(journal, createDanmaku(0, 1000)));
+
+        // 对齐方式和显示区域变化
+        journal.record(createDanmaku(0, 1000), 90f, 3, false);
+        journal.validate(mDisp, true, 1, 1);
+        Assert.assertEquals(0, journal.getEntryCount());
+        journal.record(createDanmaku(0, 1000), 90f, 3, false);
+        journal.validate(new TestDisplayer(1920, 1080, 0), true, 1, 1);
+        Assert.assertEquals(0, journal.getEntryCount());
+    }
+
+}
@@ -0,0 +1,204 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import android.test.InstrumentationTestCase;
+
+import junit.framework.Assert;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import master.flame.danmaku.controller.DanmakuFilters;
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.DanmakuTimer;
+import master.flame.danmaku.danmaku.model.Duration;
+import master.flame.danmaku.danmaku.model.GlobalFlagValues;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.model.TestDisplayer;
+import master.flame.danmaku.danmaku.model.android.Danmakus;
+
+/**
+ * LayoutPlanner: 计划换入后按计划布局, 计划期间失效时丢弃结果, 失效后的旧计划不再使用;
+ * 缓存线程上的判断不修改弹幕的过滤状态
+ */
+public class LayoutPlannerTest extends InstrumentationTestCase {
+
+    private static final int WIDTH = 1280;
+
+    private static final int HEIGHT = 720;
+
+    private static final long DURATION = 4000;
+
+    private static final int COUNT = 20;
+
+    private final DanmakuTimer mTimer = new DanmakuTimer();
+
+    private final GlobalFlagValues mFlags = new GlobalFlagValues();
+
+    private final TestDisplayer mDisp = new TestDisplayer(WIDTH, HEIGHT, 0);
+
+    /**
+     * 同时出现, 每条占一行
+     */
+    private Danmakus createDanmakus() {
+        Danmakus danmakus = new Danmakus();
+        for (int i = 0; i < COUNT; i++) {
+            BaseDanmaku danmaku = new R2LDanmaku(new Duration(DURATION));
+            danmaku.flags = mFlags;
+            danmaku.setTime(1001 + i);
+            danmaku.setTimer(mTimer);
+            danmaku.paintWidth = 600;
+            danmaku.paintHeight = 30;
+            danmaku.index = i;
+            danmaku.measure(mDisp, false);
+            danmakus.addItem(danmaku);
+        }
+        return danmakus;
+    }
+
+    public void testCommit() {
+        LayoutPlanner planner = new LayoutPlanner(false);
+        Danmakus danmakus = createDanmakus();
+        // 绘制线程完成一帧之前不计划
+        planner.plan(danmakus, mDisp);
+        Assert.assertEquals(0, danmakus.first().planFlag);
+
+        planner.onFrameRendered(1000);
+        planner.plan(danmakus, mDisp);
+        mTimer.update(1100);
+        for (int i = 0; i < COUNT; i++) {
+            BaseDanmaku item = get(danmakus, i);
+            Assert.assertFalse(planner.fix(item, mDisp, null));
+            Assert.assertTrue(item.isShown());
+            Assert.assertEquals(item.plannedTop, item.getTop());
+            Assert.assertEquals(i * 30f, item.getTop());
+        }
+    }
+
+    public void testDiscardWhenInvalidatedDuringPlan() {
+        final LayoutPlanner planner = new LayoutPlanner(false);
+        Danmakus danmakus = createDanmakus();
+        planner.onFrameRendered(1000);
+        planner.setVerifier(new DanmakusRetainer.Verifier() {
+
+            private boolean mInvalidated;
+
+            @Override
+            public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+                if (!mInvalidated) {
+                    // 模拟计划期间seek
+                    mInvalidated = true;
+                    planner.invalidate();
+                }
+                return false;
+            }
+        });
+        planner.plan(danmakus, mDisp);
+        for (int i = 0; i < COUNT; i++) {
+            Assert.assertEquals(0, get(danmakus, i).planFlag);
+        }
+        planner.setVerifier(null);
+
+        // 没有计划时在绘制线程上计划, 结果与提前计划相同
+        mTimer.update(1100);
+        for (int i = 0; i < COUNT; i++) {
+            BaseDanmaku item = get(danmakus, i);
+            Assert.assertTrue(planner.fix(item, mDisp, null));
+            Assert.assertEquals(i * 30f, item.getTop());
+        }
+    }
+
+    public void testStalePlan() {
+        LayoutPlanner planner = new LayoutPlanner(false);
+        Danmakus danmakus = createDanmakus();
+        planner.onFrameRendered(1000);
+        planner.plan(danmakus, mDisp);
+        int planFlag = get(danmakus, 0).planFlag;
+        Assert.assertTrue(planFlag != 0);
+
+        // 计划换入后失效, 旧计划不再使用, 失效后完成一帧之前也不提前计划
+        planner.invalidate();
+        planner.plan(danmakus, mDisp);
+        Assert.assertEquals(planFlag, get(danmakus, 0).planFlag);
+
+        mTimer.update(1100);
+        RecordingVerifier verifier = new RecordingVerifier();
+        for (int i = 0; i < COUNT; i++) {
+            BaseDanmaku item = get(danmakus, i);
+            Assert.assertTrue(planner.fix(item, mDisp, verifier));
+            Assert.assertTrue(item.isShown());
+            Assert.assertTrue(item.planFlag != planFlag);
+        }
+        Assert.assertEquals(COUNT, verifier.count);
+    }
+
+    /**
+     * 计划时被二级过滤的弹幕不占用位置, 但过滤状态和可见性只在绘制线程的fix中设置
+     */
+    public void testPlanVerifierHasNoSideEffects() {
+        final DanmakuFilters filters = new DanmakuFilters();
+        DanmakuFilters.MaximumLinesFilter maximumLines = (DanmakuFilters.MaximumLinesFilter) filters
+                .registerFilter(DanmakuFilters.TAG_MAXIMUN_LINES_FILTER, false);
+        Map<Integer, Integer> maxLines = new HashMap<>();
+        maxLines.put(BaseDanmaku.TYPE_SCROLL_RL, 5);
+        maximumLines.setData(maxLines);
+
+        LayoutPlanner planner = new LayoutPlanner(false);
+        Danmakus danmakus = createDanmakus();
+        planner.setVerifier(new DanmakusRetainer.Verifier() {
+            @Override
+            public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+                return filters.checkSecondary(danmaku, lines, willHit);
+            }
+        });
+        planner.onFrameRendered(1000);
+        planner.plan(danmakus, mDisp);
+        for (int i = 0; i < COUNT; i++) {
+            BaseDanmaku item = get(danmakus, i);
+            Assert.assertEquals(0, item.mFilterParam);
+            Assert.assertFalse(item.isFiltered());
+        }
+
+        // 计划生效时由绘制线程设置过滤状态
+        mTimer.update(1100);
+        RecordingVerifier verifier = new RecordingVerifier();
+        verifier.maxLines = 5;
+        for (int i = 0; i < COUNT; i++) {
+            BaseDanmaku item = get(danmakus, i);
+            Assert.assertFalse(planner.fix(item, mDisp, verifier));
+            Assert.assertEquals(i >= 5, item.isFilteredBy(DanmakuFilters.FILTER_TYPE_MAXIMUM_LINES));
+            Assert.assertEquals(i < 5, item.isShown());
+        }
+    }
+
+    private static BaseDanmaku get(Danmakus danmakus, int index) {
+        for (BaseDanmaku item : danmakus.getCollection()) {
+            if (item.index == index) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 模拟绘制线程的verifier: 超过最大行数时设置过滤状态并隐藏
+     */
+    private class RecordingVerifier implements DanmakusRetainer.Verifier {
+
+        int count;
+
+        int maxLines = Integer.MAX_VALUE;
+
+        @Override
+        public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+            count++;
+            if (lines >= maxLines) {
+                danmaku.mFilterParam |= DanmakuFilters.FILTER_TYPE_MAXIMUM_LINES;
+                danmaku.filterResetFlag = mFlags.FILTER_RESET_FLAG;
+                danmaku.setVisibility(false);
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
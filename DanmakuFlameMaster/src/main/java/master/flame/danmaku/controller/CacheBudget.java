@@ -0,0 +1,124 @@
+package master.flame.danmaku.controller;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * 缓存容量预算: 收到宿主转发的内存紧张通知(onTrimMemory)或观察到堆占用过高时缩小,
+ * 压力解除一段时间后每次恢复初始容量的1/8, 直到初始容量
+ *
+ * onTrimMemory和onHeapUsage只在缓存线程调用, getBudget可在任意线程读取
+ */
+public class CacheBudget {
+
+    /**
+     * 缩小后至少经过这么久(毫秒)才开始恢复
+     */
+    public static final long GROW_DELAY = 10000;
+
+    private static final int GROW_STEPS = 8;
+
+    private final int mMaxBudget;
+
+    private final int mMinBudget;
+
+    private final float mMaxHeapUsage;
+
+    private volatile int mBudget;
+
+    private long mLastShrinkTime = Long.MIN_VALUE / 2;
+
+    private int mShrinkCount;
+
+    private int mGrowCount;
+
+    /**
+     * @param maxBudget    初始容量, 恢复的上限
+     * @param minBudget    缩小的下限
+     * @param maxHeapUsage 堆占用超过maxMemory的这个比例时缩小, 0为不按堆占用调整
+     */
+    public CacheBudget(int maxBudget, int minBudget, float maxHeapUsage) {
+        mMaxBudget = maxBudget;
+        mMinBudget = Math.min(minBudget, maxBudget);
+        mMaxHeapUsage = maxHeapUsage;
+        mBudget = maxBudget;
+    }
+
+    /**
+     * @param level ComponentCallbacks2.TRIM_MEMORY_*
+     * @return 预算缩小时返回true
+     */
+    public boolean onTrimMemory(int level, long time) {
+        int target;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            target = mMinBudget;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            // RUNNING_LOW, UI_HIDDEN
+            target = mMaxBudget / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            target = mMaxBudget / 4 * 3;
+        } else {
+            return false;
+        }
+        return shrinkTo(target, time);
+    }
+
+    /**
+     * 定期传入堆的占用: 超过阈值时缩小1/4, 否则在缩小GROW_DELAY之后逐步恢复
+     *
+     * @return 预算变化时返回true
+     */
+    public boolean onHeapUsage(long usedBytes, long maxBytes, long time) {
+        long limit = mMaxHeapUsage > 0 ? (long) (maxBytes * mMaxHeapUsage) : Long.MAX_VALUE;
+        if (usedBytes > limit) {
+            return shrinkTo(mBudget / 4 * 3, time);
+        }
+        int budget = mBudget;
+        if (budget >= mMaxBudget || time - mLastShrinkTime < GROW_DELAY) {
+            return false;
+        }
+        int step = Math.max(1, mMaxBudget / GROW_STEPS);
+        if (usedBytes + step > limit) {
+            // 恢复后可能超过阈值
+            return false;
+        }
+        mBudget = Math.min(mMaxBudget, budget + step);
+        mGrowCount++;
+        return true;
+    }
+
+    private boolean shrinkTo(int target, long time) {
+        // 压力持续时推迟恢复
+        mLastShrinkTime = time;
+        target = Math.max(mMinBudget, target);
+        if (target >= mBudget) {
+            return false;
+        }
+        mBudget = target;
+        mShrinkCount++;
+        return true;
+    }
+
+    /**
+     * @return 当前的缓存容量(字节)
+     */
+    public int getBudget() {
+        return mBudget;
+    }
+
+    public int getMaxBudget() {
+        return mMaxBudget;
+    }
+
+    public int getMinBudget() {
+        return mMinBudget;
+    }
+
+    public int getShrinkCount() {
+        return mShrinkCount;
+    }
+
+    public int getGrowCount() {
+        return mGrowCount;
+    }
+
+}
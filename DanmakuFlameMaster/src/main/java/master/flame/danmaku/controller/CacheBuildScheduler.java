@@ -0,0 +1,163 @@
+package master.flame.danmaku.controller;
+
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDrawingCache;
+
+/**
+ * 缓存构建调度: 按截止时间从早到晚构建缓存(EDF), 与弹幕类型和加入顺序无关;
+ * 截止时间是弹幕进入屏幕的时间, 加入时已在屏幕上的弹幕截止时间为当前时间, 截止时间相同时优先级高,
+ * 剩余显示时间长的先构建; 一轮没有构建完的弹幕留在队列中, 下一轮优先构建
+ *
+ * 取出时丢弃已从屏幕消失(错过截止时间)或已被过滤的弹幕, 开始显示后才构建的计为迟到
+ *
+ * 只在缓存线程使用
+ */
+public class CacheBuildScheduler {
+
+    private static class Entry {
+
+        final BaseDanmaku danmaku;
+
+        final long deadline;
+
+        final long expireTime;
+
+        Entry(BaseDanmaku danmaku, long currTime) {
+            this.danmaku = danmaku;
+            this.deadline = Math.max(danmaku.getActualTime(), currTime);
+            this.expireTime = danmaku.getActualTime() + danmaku.getDuration();
+        }
+
+    }
+
+    private static final Comparator<Entry> DEADLINE_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.deadline != rhs.deadline) {
+                return lhs.deadline < rhs.deadline ? -1 : 1;
+            }
+            if (lhs.danmaku.priority != rhs.danmaku.priority) {
+                return rhs.danmaku.priority - lhs.danmaku.priority;
+            }
+            if (lhs.expireTime != rhs.expireTime) {
+                return lhs.expireTime > rhs.expireTime ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<>(64, DEADLINE_COMPARATOR);
+
+    private final IdentityHashMap<BaseDanmaku, Boolean> mScheduled = new IdentityHashMap<>();
+
+    private volatile int mBuiltCount;
+
+    private volatile int mLateCount;
+
+    private volatile int mExpiredCount;
+
+    private volatile int mFilteredCount;
+
+    /**
+     * @param currTime 当前的弹幕时间, 用于计算截止时间
+     * @return danmaku已在队列中时返回false
+     */
+    public boolean schedule(BaseDanmaku danmaku, long currTime) {
+        if (mScheduled.put(danmaku, Boolean.TRUE) != null) {
+            return false;
+        }
+        mQueue.add(new Entry(danmaku, currTime));
+        return true;
+    }
+
+    /**
+     * 取出截止时间最早的需要构建缓存的弹幕, 丢弃已消失, 已被过滤或已有缓存的弹幕
+     *
+     * @return 队列为空时返回null
+     */
+    public BaseDanmaku poll(long currTime) {
+        Entry entry;
+        while ((entry = mQueue.poll()) != null) {
+            BaseDanmaku danmaku = entry.danmaku;
+            mScheduled.remove(danmaku);
+            IDrawingCache<?> cache = danmaku.getDrawingCache();
+            if (cache != null && cache.get() != null) {
+                continue;
+            }
+            if (danmaku.isTimeOut(currTime)) {
+                mExpiredCount++;
+                continue;
+            }
+            if (danmaku.priority == 0 && danmaku.isFiltered()) {
+                mFilteredCount++;
+                continue;
+            }
+            return danmaku;
+        }
+        return null;
+    }
+
+    /**
+     * @return 距下一个弹幕的截止时间还有多久, 已过截止时间时为负数, 队列为空时返回Long.MAX_VALUE
+     */
+    public long getSlack(long currTime) {
+        Entry entry = mQueue.peek();
+        return entry != null ? entry.deadline - currTime : Long.MAX_VALUE;
+    }
+
+    /**
+     * 开始构建poll取出的弹幕时调用
+     */
+    public void onBuild(BaseDanmaku danmaku, long currTime) {
+        mBuiltCount++;
+        if (currTime > danmaku.getActualTime()) {
+            mLateCount++;
+        }
+    }
+
+    public void clear() {
+        mQueue.clear();
+        mScheduled.clear();
+    }
+
+    public int size() {
+        return mQueue.size();
+    }
+
+    public int getBuiltCount() {
+        return mBuiltCount;
+    }
+
+    /**
+     * @return 开始显示后才构建的次数
+     */
+    public int getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * @return 消失前没有构建而被丢弃的次数
+     */
+    public int getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    /**
+     * @return 等待期间被过滤而丢弃的次数
+     */
+    public int getFilteredCount() {
+        return mFilteredCount;
+    }
+
+    /**
+     * @return 错过截止时间的次数: 迟到和丢弃之和
+     */
+    public int getDeadlineMissCount() {
+        return mLateCount + mExpiredCount;
+    }
+
+}
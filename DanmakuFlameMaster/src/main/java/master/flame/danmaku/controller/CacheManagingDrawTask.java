@@ -20,21 +20,31 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 
+import java.util.IdentityHashMap;
+import java.util.List;
+
 import master.flame.danmaku.danmaku.model.AbsDisplayer;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.DanmakuTimer;
 import master.flame.danmaku.danmaku.model.ICacheManager;
 import master.flame.danmaku.danmaku.model.IDanmakus;
 import master.flame.danmaku.danmaku.model.IDrawingCache;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.model.android.AtlasDrawingCache;
+import master.flame.danmaku.danmaku.model.android.BitmapSlabPool;
 import master.flame.danmaku.danmaku.model.android.CachingPolicy;
 import master.flame.danmaku.danmaku.model.android.DanmakuContext;
 import master.flame.danmaku.danmaku.model.android.DanmakuContext.DanmakuConfigTag;
 import master.flame.danmaku.danmaku.model.android.Danmakus;
 import master.flame.danmaku.danmaku.model.android.DrawingCache;
+import master.flame.danmaku.danmaku.model.android.DrawingCacheAtlas;
+import master.flame.danmaku.danmaku.model.android.DrawingCacheIndex;
 import master.flame.danmaku.danmaku.model.android.DrawingCachePoolManager;
+import master.flame.danmaku.danmaku.model.android.EvictionPolicy;
 import master.flame.danmaku.danmaku.model.objectpool.Pool;
 import master.flame.danmaku.danmaku.model.objectpool.Pools;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
+import master.flame.danmaku.danmaku.renderer.android.LayoutPlanner;
 import master.flame.danmaku.danmaku.util.DanmakuUtils;
 import master.flame.danmaku.danmaku.util.SystemClock;
 import tv.cjump.jni.NativeBitmapFactory;
@@ -43,6 +53,16 @@ public class CacheManagingDrawTask extends DrawTask {
 
     private static final int MAX_CACHE_SCREEN_SIZE = 3;
 
+    /**
+     * 绘制线程每帧的时间(毫秒)
+     */
+    private static final long FRAME_TIME = 16;
+
+    /**
+     * 每帧至少留给缓存线程连续构建的时间(毫秒)
+     */
+    private static final long MIN_BUILD_SLICE = 4;
+
     private int mMaxCacheSize = 2;
 
     private CacheManager mCacheManager;
@@ -52,6 +72,11 @@ public class CacheManagingDrawTask extends DrawTask {
     private final Object mDrawingNotify = new Object();
     private int mRemaininCacheCount;
 
+    /**
+     * 绘制线程最近一帧的耗时, 一帧中剩下的时间留给缓存线程构建
+     */
+    private volatile long mLastRenderingTime;
+
     public CacheManagingDrawTask(DanmakuTimer timer, DanmakuContext config, TaskListener taskListener) {
         super(timer, config, taskListener);
         NativeBitmapFactory.loadLibs();
@@ -84,6 +109,27 @@ public class CacheManagingDrawTask extends DrawTask {
         mCacheManager.invalidateDanmaku(item, remeasure);
     }
 
+    @Override
+    protected void refilter(final String tag, final List<BaseDanmaku> danmakus) {
+        final CacheManager cacheManager = mCacheManager;
+        if (cacheManager == null) {
+            super.refilter(tag, danmakus);
+            return;
+        }
+        cacheManager.post(new Runnable() {
+            @Override
+            public void run() {
+                if (refilterByTag(tag, danmakus)) {
+                    // 重新显示的弹幕由缓存线程按实际序号完整过滤并建立缓存
+                    cacheManager.requestBuild(0l);
+                }
+                if (mTaskListener != null) {
+                    mTaskListener.onDanmakuConfigChanged();
+                }
+            }
+        });
+    }
+
     @Override
     public void removeAllDanmakus(boolean isClearDanmakusOnScreen) {
         super.removeAllDanmakus(isClearDanmakusOnScreen);
@@ -116,10 +162,19 @@ public class CacheManagingDrawTask extends DrawTask {
     @Override
     public RenderingState draw(AbsDisplayer displayer) {
         RenderingState result = super.draw(displayer);
+        if (result != null) {
+            mLastRenderingTime = result.consumingTime;
+        }
+        DrawingCacheAtlas atlas = mContext.getDrawingCacheAtlas();
+        if (atlas != null) {
+            atlas.onFrameRendered();
+        }
         synchronized (mDrawingNotify) {
             mDrawingNotify.notify();
         }
         if (result != null && mCacheManager != null) {
+            result.cacheDeadlineMissCount = mCacheManager.getBuildScheduler().getDeadlineMissCount();
+            result.cacheBudget = mCacheManager.getBudget().getBudget();
             if (result.totalDanmakuCount - result.lastTotalDanmakuCount < -20) {
                 mCacheManager.requestClearTimeout();
                 mCacheManager.requestBuild(-mContext.mDanmakuFactory.MAX_DANMAKU_DURATION);
@@ -203,8 +258,96 @@ public class CacheManagingDrawTask extends DrawTask {
 
         Pool<DrawingCache> mCachePool = Pools.finitePool(mCachePoolManager, 800);
 
+        /**
+         * 空闲缓存最多占缓存总容量的比例
+         */
+        private static final float MAX_FREE_CACHE_PERCENT = 0.25f;
+
+        /**
+         * 每次最多清空的归还bitmap数, 避免长时间占用缓存线程
+         */
+        private static final int MAX_ERASE_BITMAP_COUNT = 50;
+
+        /**
+         * 内存紧张时缓存容量的下限
+         */
+        private static final int MIN_CACHE_SIZE = 1024 * 1024 * 2;
+
+        /**
+         * cachingPolicy.rasterizerThreadCount大于0时由工作线程绘制缓存, 只在缓存线程访问
+         */
+        private CacheRasterizer mRasterizer;
+
+        /**
+         * 已交给工作线程但还未交付的缓存预留的内存
+         */
+        private int mPendingSize;
+
+        private final CacheRasterizer.Callback mRasterizerCallback = new CacheRasterizer.Callback() {
+
+            @Override
+            public void onRasterized() {
+                CacheHandler handler = mHandler;
+                if (handler != null) {
+                    handler.sendEmptyMessage(CacheHandler.HAND_OFF_CACHES);
+                }
+            }
+
+            @Override
+            public void onHandOff(CacheRasterizer.Job job, boolean success) {
+                mPendingSize -= job.reservedSize;
+                BaseDanmaku item = job.danmaku;
+                DrawingCache cache = job.cache;
+                if (!success || item.cache != null) {
+                    // 失败, 已取消或期间已在缓存线程直接构建
+                    cache.destroy();
+                    mCachePool.release(cache);
+                    return;
+                }
+                item.cache = cache;
+                mCacheIndex.put(item, cache);
+                push(item, sizeOf(item), job.forceInsert);
+            }
+
+        };
+
+        private final DrawingCacheIndex mCacheIndex = new DrawingCacheIndex();
+
+        /**
+         * 缓存淘汰策略, 记录mCaches和mRetained中所有弹幕, 只在缓存线程访问
+         */
+        private final EvictionPolicy mEvictionPolicy;
+
+        /**
+         * 已消失但按淘汰策略保留缓存的弹幕, 缓存仍在mCacheIndex中供内容相同的弹幕共用; 值为计入的内存
+         */
+        private final IdentityHashMap<BaseDanmaku, Integer> mRetained = new IdentityHashMap<>();
+
+        private int mRetainedSize;
+
+        private final EvictionPolicy.Filter mEvictableFilter = new EvictionPolicy.Filter() {
+            @Override
+            public boolean canEvict(BaseDanmaku danmaku) {
+                if (mRetained.containsKey(danmaku)) {
+                    // seek后保留的弹幕可能重新显示
+                    return danmaku.isOutside();
+                }
+                return danmaku.isTimeOut() || danmaku.isFiltered();
+            }
+        };
+
+        /**
+         * 按开始显示的时间排列待构建的弹幕, 只在缓存线程访问
+         */
+        private final CacheBuildScheduler mScheduler = new CacheBuildScheduler();
+
+        /**
+         * 当前的缓存容量, 由mBudget按内存压力调整
+         */
         private int mMaxSize;
 
+        private final CacheBudget mBudget;
+
         private int mRealSize;
 
         private int mScreenSize = 3;
@@ -218,6 +361,8 @@ public class CacheManagingDrawTask extends DrawTask {
             mRealSize = 0;
             mMaxSize = maxSize;
             mScreenSize = screenSize;
+            mBudget = new CacheBudget(maxSize, MIN_CACHE_SIZE, mContext.cachingPolicy.maxHeapUsagePercentage);
+            mEvictionPolicy = EvictionPolicy.create(mContext.cachingPolicy.evictionPolicy);
         }
 
         public void seek(long mills) {
@@ -252,6 +397,11 @@ public class CacheManagingDrawTask extends DrawTask {
 
         public void begin() {
             mEndFlag = false;
+            int rasterizerThreadCount = mContext.cachingPolicy.rasterizerThreadCount;
+            if (mRasterizer == null && rasterizerThreadCount > 0) {
+                mRasterizer = new CacheRasterizer(rasterizerThreadCount, mDisp, mContext.cachingPolicy.bitsPerPixelOfCache,
+                        mContext.cachingPolicy.alphaOnlyCache, mRasterizerCallback);
+            }
             if (mThread == null) {
                 mThread = new HandlerThread("DFM Cache-Building Thread");
                 mThread.start();
@@ -296,15 +446,55 @@ public class CacheManagingDrawTask extends DrawTask {
             }
         }
 
+        /**
+         * @return 缓存构建调度器, 可用于查看错过截止时间的次数
+         */
+        public CacheBuildScheduler getBuildScheduler() {
+            return mScheduler;
+        }
+
+        /**
+         * @return 缓存容量预算, 可用于查看当前容量和调整次数
+         */
+        public CacheBudget getBudget() {
+            return mBudget;
+        }
+
+        public EvictionPolicy getEvictionPolicy() {
+            return mEvictionPolicy;
+        }
+
+        /**
+         * @param level ComponentCallbacks2.TRIM_MEMORY_*
+         */
+        public void onTrimMemory(int level) {
+            if (mHandler != null) {
+                mHandler.sendMessageAtFrontOfQueue(mHandler.obtainMessage(CacheHandler.TRIM_MEMORY, level, 0));
+            }
+        }
+
         public float getPoolPercent() {
             if (mMaxSize == 0) {
                 return 0;
             }
-            return mRealSize / (float) mMaxSize;
+            // 空闲缓存和保留的缓存随时可以释放, 不计入水位
+            return (getUsedSize() - mCacheIndex.getFreeSize() - mRetainedSize) / (float) mMaxSize;
         }
 
         public boolean isPoolFull() {
-            return mRealSize + 5120 >= mMaxSize;
+            return getUsedSize() + 5120 >= mMaxSize;
+        }
+
+        /**
+         * @return 缓存占用的内存: 各缓存的size之和, 加上图集页中没有分配给缓存的部分和stuffer自己持有的绘制资源
+         */
+        private int getUsedSize() {
+            int usedSize = mRealSize + (int) mDisp.getCacheStuffer().getResourceBytes();
+            DrawingCacheAtlas atlas = mContext.getDrawingCacheAtlas();
+            if (atlas == null) {
+                return usedSize;
+            }
+            return usedSize + (int) Math.max(0, atlas.getPageBytes() - atlas.getLiveBytes());
         }
 
         private void evictAll() {
@@ -318,7 +508,20 @@ public class CacheManagingDrawTask extends DrawTask {
                 });
                 mCaches.clear();
             }
+            for (BaseDanmaku danmaku : mRetained.keySet()) {
+                entryRemoved(true, danmaku, null);
+            }
+            mRetained.clear();
+            mRetainedSize = 0;
+            mEvictionPolicy.clear();
+            trimFreeCaches(0);
+            mCacheIndex.clear();
+            mScheduler.clear();
             mRealSize = 0;
+            if (mRasterizer != null) {
+                // 结果在交付时释放
+                mRasterizer.cancelAll();
+            }
         }
 
         private void evictAllNotInScreen() {
@@ -333,10 +536,13 @@ public class CacheManagingDrawTask extends DrawTask {
                         return ACTION_CONTINUE;
                     }
                 });
+                compactAtlas();
+                eraseReleasedBitmaps();
             }
         }
 
         protected void entryRemoved(boolean evicted, BaseDanmaku oldValue, BaseDanmaku newValue) {
+            mEvictionPolicy.onRemove(oldValue);
             IDrawingCache<?> cache = oldValue.getDrawingCache();
             if (cache != null) {
                 long releasedSize = clearCache(oldValue);
@@ -360,11 +566,47 @@ public class CacheManagingDrawTask extends DrawTask {
                 return 0;
             }
             long size = sizeOf(oldValue);
+            mCacheIndex.remove((DrawingCache) cache);
             cache.destroy();
             oldValue.cache = null;
             return size;
         }
 
+        /**
+         * 过期弹幕的缓存没有其他引用时放入空闲列表, 留给尺寸相近的新弹幕重绘, 不释放bitmap
+         */
+        private void recycleCache(BaseDanmaku oldValue) {
+            IDrawingCache<?> cache = oldValue.getDrawingCache();
+            if (cache == null || cache.hasReferences() || cache.get() == null) {
+                entryRemoved(false, oldValue, null);
+                return;
+            }
+            mEvictionPolicy.onRemove(oldValue);
+            oldValue.cache = null;
+            mContext.getDisplayer().getCacheStuffer().releaseResource(oldValue);
+            mCacheIndex.release((DrawingCache) cache);
+            trimFreeCaches((long) (mMaxSize * MAX_FREE_CACHE_PERCENT));
+        }
+
+        private void trimFreeCaches(long maxFreeSize) {
+            while (mCacheIndex.getFreeSize() > maxFreeSize && releaseFreeCache()) {
+            }
+        }
+
+        /**
+         * @return 空闲列表为空时返回false
+         */
+        private boolean releaseFreeCache() {
+            DrawingCache cache = mCacheIndex.pollFree();
+            if (cache == null) {
+                return false;
+            }
+            mRealSize -= cache.size();
+            cache.destroy();
+            mCachePool.release(cache);
+            return true;
+        }
+
         protected int sizeOf(BaseDanmaku value) {
             if (value.cache != null && !value.cache.hasReferences()) {
                 return value.cache.size();
@@ -379,6 +621,99 @@ public class CacheManagingDrawTask extends DrawTask {
             }
         }
 
+        /**
+         * 从缓存池取出与当前存储方式一致的缓存, 没有时新建
+         */
+        private DrawingCache acquireCache() {
+            DrawingCache cache = mCachePool.acquire();
+            DrawingCacheAtlas atlas = mContext.getDrawingCacheAtlas();
+            boolean matches = cache instanceof AtlasDrawingCache ? ((AtlasDrawingCache) cache).getAtlas() == atlas : atlas == null;
+            if (cache == null || !matches) {
+                return newCache();
+            }
+            cache.setBitmapPool(mContext.getBitmapPool());
+            return cache;
+        }
+
+        private DrawingCache newCache() {
+            DrawingCacheAtlas atlas = mContext.getDrawingCacheAtlas();
+            DrawingCache cache = atlas != null ? new AtlasDrawingCache(atlas) : new DrawingCache();
+            cache.setBitmapPool(mContext.getBitmapPool());
+            return cache;
+        }
+
+        private void prepareResource(BaseDanmaku item) {
+            if (mDisp instanceof AndroidDisplayer) {
+                ((AndroidDisplayer) mDisp).prepareResource(item);
+            }
+        }
+
+        /**
+         * 回收缓存后整理图集, 释放区域很少的页
+         */
+        private void compactAtlas() {
+            DrawingCacheAtlas atlas = mContext.getDrawingCacheAtlas();
+            // 工作线程可能正在向图集区域绘制
+            if (atlas != null && (mRasterizer == null || !mRasterizer.hasPending())) {
+                atlas.compact();
+            }
+        }
+
+        /**
+         * 回收缓存后在缓存线程清空归还到池中的bitmap, 构建缓存时取出即可使用
+         */
+        private void eraseReleasedBitmaps() {
+            BitmapSlabPool pool = mContext.getBitmapPool();
+            if (pool != null) {
+                pool.eraseReleased(MAX_ERASE_BITMAP_COUNT);
+            }
+        }
+
+        /**
+         * 按堆的占用调整缓存容量, 在DISPATCH_ACTIONS时定期调用
+         */
+        private void checkHeapUsage() {
+            Runtime runtime = Runtime.getRuntime();
+            long usedBytes = runtime.totalMemory() - runtime.freeMemory();
+            if (mBudget.onHeapUsage(usedBytes, runtime.maxMemory(), SystemClock.uptimeMillis())) {
+                applyBudget();
+            }
+        }
+
+        /**
+         * 使用mBudget的当前容量, 缩小时立即释放超出的缓存
+         */
+        private void applyBudget() {
+            int budget = mBudget.getBudget();
+            boolean shrunk = budget < mMaxSize;
+            mMaxSize = budget;
+            BitmapSlabPool pool = mContext.getBitmapPool();
+            if (pool != null) {
+                pool.setMaxFreeBytes((long) (budget * mContext.cachingPolicy.bitmapPoolFreeSizePercentage));
+            }
+            if (shrunk) {
+                evictOverBudget();
+            }
+        }
+
+        /**
+         * 按优先级释放缓存直到不超过容量: 空闲缓存, 已消失或被过滤的弹幕的缓存, 还未显示的弹幕中最晚显示的缓存;
+         * 屏幕上的弹幕的缓存不释放, 避免重绘造成卡顿
+         */
+        private void evictOverBudget() {
+            trimFreeCaches((long) (mMaxSize * MAX_FREE_CACHE_PERCENT));
+            clearTimeOutAndFilteredCaches(0, false);
+            BaseDanmaku last;
+            while (getUsedSize() + mPendingSize > mMaxSize && (last = mCaches.last()) != null && last.isLate()) {
+                entryRemoved(true, last, null);
+                mCaches.removeItem(last);
+                // 图集中的缓存释放后页才能回收
+                compactAtlas();
+            }
+            compactAtlas();
+            eraseReleasedBitmaps();
+        }
+
         private boolean push(BaseDanmaku item, int itemSize, boolean forcePush) {
             int size = itemSize; //sizeOf(item);
             if (size > 0) {
@@ -386,6 +721,7 @@ public class CacheManagingDrawTask extends DrawTask {
                 // may be a risk of OOM if (mRealSize + size) is still larger than mMaxSize
             }
             this.mCaches.addItem(item);
+            mEvictionPolicy.onAdd(item);
             mRealSize += size;
 //Log.i("DFM CACHE", "realsize:"+mRealSize + ",size" + size);
             return true;
@@ -398,11 +734,17 @@ public class CacheManagingDrawTask extends DrawTask {
                     if (val.isTimeOut()) {
                         IDrawingCache<?> cache = val.cache;
                         if (mContext.cachingPolicy.periodOfRecycle == CachingPolicy.CACHE_PERIOD_NOT_RECYCLE && cache != null && !cache.hasReferences()) {
-                            if (cache.size() / (float) mMaxCacheSize < mContext.cachingPolicy.forceRecyleThreshold) {
+                            // 按当前的缓存容量判断, 内存紧张时更多的缓存属于尺寸过大
+                            if (cache.size() / (float) mMaxSize < mContext.cachingPolicy.forceRecyleThreshold) {
                                 return ACTION_CONTINUE;
                             }
                             //else 回收尺寸过大的cache
                         }
+                        if (cache != null && cache.get() != null && mEvictionPolicy.retainOnTimeOut(val)) {
+                            // 保留给内容相同的新弹幕共用, 容量不足时按淘汰策略释放
+                            retain(val);
+                            return ACTION_REMOVE;
+                        }
                         if (!mEndFlag) {
                             synchronized (mDrawingNotify) {
                                 try {
@@ -413,72 +755,34 @@ public class CacheManagingDrawTask extends DrawTask {
                                 }
                             }
                         }
-                        entryRemoved(false, val, null);
+                        recycleCache(val);
                         return ACTION_REMOVE;
                     } else {
                         return ACTION_BREAK;
                     }
                 }
             });
+            compactAtlas();
+            eraseReleasedBitmaps();
         }
 
-        private BaseDanmaku findReusableCache(final BaseDanmaku refDanmaku,
-                                              final boolean strictMode,
-                                              final int maximumTimes) {
-            int slopPixel = 0;
-            if (!strictMode) {
-                slopPixel = mDisp.getSlopPixel() * 2;
-            }
-            final int finalSlopPixel = slopPixel + mContext.cachingPolicy.reusableOffsetPixel;
-            IDanmakus.Consumer<BaseDanmaku, BaseDanmaku> consumer = new IDanmakus.Consumer<BaseDanmaku, BaseDanmaku>() {
-                int count = 0;
-                BaseDanmaku mResult;
-
-                @Override
-                public BaseDanmaku result() {
-                    return mResult;
-                }
+        private void retain(BaseDanmaku danmaku) {
+            int size = sizeOf(danmaku);
+            mRetained.put(danmaku, size);
+            mRetainedSize += size;
+        }
 
-                @Override
-                public int accept(BaseDanmaku danmaku) {
-                    if (count++ >= maximumTimes) {
-                        return ACTION_BREAK;
-                    }
-                    IDrawingCache<?> cache = danmaku.getDrawingCache();
-                    if (cache == null || cache.get() == null) {
-                        return ACTION_CONTINUE;
-                    }
-                    if (danmaku.paintWidth == refDanmaku.paintWidth
-                            && danmaku.paintHeight == refDanmaku.paintHeight
-                            && danmaku.underlineColor == refDanmaku.underlineColor
-                            && danmaku.borderColor == refDanmaku.borderColor
-                            && danmaku.textColor == refDanmaku.textColor
-                            && danmaku.text.equals(refDanmaku.text)
-                            && danmaku.tag == refDanmaku.tag) {
-                        mResult = danmaku;
-                        return ACTION_BREAK;
-                    }
-                    if (strictMode) {
-                        return ACTION_CONTINUE;
-                    }
-                    if (!danmaku.isTimeOut()) {
-                        return ACTION_BREAK;
-                    }
-                    if (cache.hasReferences()) {
-                        return ACTION_CONTINUE;
-                    }
-                    float widthGap = cache.width() - refDanmaku.paintWidth;
-                    float heightGap = cache.height() - refDanmaku.paintHeight;
-                    if (widthGap >= 0 && widthGap <= finalSlopPixel &&
-                            heightGap >= 0 && heightGap <= finalSlopPixel) {
-                        mResult = danmaku;
-                        return ACTION_BREAK;
-                    }
-                    return ACTION_CONTINUE;
-                }
-            };
-            mCaches.forEach(consumer);
-            return consumer.result();
+        /**
+         * 释放淘汰策略选出的弹幕的缓存
+         */
+        private void evict(BaseDanmaku victim) {
+            Integer retainedSize = mRetained.remove(victim);
+            if (retainedSize != null) {
+                mRetainedSize -= retainedSize;
+            } else {
+                mCaches.removeItem(victim);
+            }
+            entryRemoved(false, victim, null);
         }
 
         public class CacheHandler extends Handler {
@@ -507,6 +811,12 @@ public class CacheManagingDrawTask extends DrawTask {
 
             public static final int DISABLE_CANCEL_FLAG = 0x12;
 
+            public static final int PREFILTER = 0x13;
+
+            public static final int HAND_OFF_CACHES = 0x14;
+
+            public static final int TRIM_MEMORY = 0x15;
+
             private boolean mPause;
 
             private boolean mIsPlayerPause;
@@ -530,10 +840,11 @@ public class CacheManagingDrawTask extends DrawTask {
                     case PREPARE:
                         evictAllNotInScreen();
                         for (int i = 0; i < 300; i++) {
-                            mCachePool.release(new DrawingCache());
+                            mCachePool.release(newCache());
                         }
                     case DISPATCH_ACTIONS:
 //Log.e(TAG,"dispatch_actions:"+mCacheTimer.currMillisecond+":"+mTimer.currMillisecond);
+                        checkHeapUsage();
                         long delayed = dispatchAction();
                         if (delayed <= 0) {
                             delayed = mContext.mDanmakuFactory.MAX_DANMAKU_DURATION / 2;
@@ -559,11 +870,20 @@ public class CacheManagingDrawTask extends DrawTask {
                     case REBUILD_CACHE:
                         BaseDanmaku cacheitem = (BaseDanmaku) msg.obj;
                         if (cacheitem != null) {
+                            Integer retainedSize = mRetained.remove(cacheitem);
+                            if (retainedSize != null) {
+                                mRetainedSize -= retainedSize;
+                            }
+                            if (mRasterizer != null) {
+                                mRasterizer.cancel(cacheitem);
+                            }
                             IDrawingCache<?> cache = cacheitem.getDrawingCache();
                             boolean requestRemeasure = 0 != (cacheitem.requestFlags & BaseDanmaku.FLAG_REQUEST_REMEASURE);
                             if (!requestRemeasure && cache != null && cache.get() !=null && !cache.hasReferences()) {
-                                cache = DanmakuUtils.buildDanmakuDrawingCache(cacheitem, mDisp, (DrawingCache) cacheitem.cache, mContext.cachingPolicy.bitsPerPixelOfCache);
+                                mCacheIndex.remove((DrawingCache) cache);
+                                cache = DanmakuUtils.buildDanmakuDrawingCache(cacheitem, mDisp, (DrawingCache) cacheitem.cache, mContext.cachingPolicy.bitsPerPixelOfCache, mContext.cachingPolicy.alphaOnlyCache);
                                 cacheitem.cache = cache;
+                                mCacheIndex.put(cacheitem, (DrawingCache) cache);
                                 push(cacheitem, 0, true);
                                 return;
                             }
@@ -572,6 +892,7 @@ public class CacheManagingDrawTask extends DrawTask {
                                 createCache(cacheitem);
                             } else {
                                 if (cache != null && cache.hasReferences()) {
+                                    mCacheIndex.remove((DrawingCache) cache);
                                     cache.destroy();
                                 }
                                 entryRemoved(true, cacheitem, null);
@@ -589,6 +910,7 @@ public class CacheManagingDrawTask extends DrawTask {
                             long oldCacheTime = mCacheTimer.currMillisecond;
                             mCacheTimer.update(seekCacheTime);
                             mSeekedFlag = true;
+                            mScheduler.clear();
                             long firstCacheTime = getFirstCacheTime();
                             if (seekCacheTime > oldCacheTime || firstCacheTime - seekCacheTime > mContext.mDanmakuFactory.MAX_DANMAKU_DURATION) {
                                 evictAllNotInScreen();
@@ -602,8 +924,20 @@ public class CacheManagingDrawTask extends DrawTask {
                     case QUIT:
                         removeCallbacksAndMessages(null);
                         mPause = true;
+                        if (mRasterizer != null) {
+                            mRasterizer.quit();
+                            mRasterizer = null;
+                        }
                         evictAll();
                         clearCachePool();
+                        DrawingCacheAtlas atlas = mContext.getDrawingCacheAtlas();
+                        if (atlas != null) {
+                            atlas.clear();
+                        }
+                        BitmapSlabPool bitmapPool = mContext.getBitmapPool();
+                        if (bitmapPool != null) {
+                            bitmapPool.clear();
+                        }
                         this.getLooper().quit();
                         break;
                     case CLEAR_ALL_CACHES:
@@ -623,6 +957,20 @@ public class CacheManagingDrawTask extends DrawTask {
                     case DISABLE_CANCEL_FLAG:
                         mCancelFlag = false;
                         break;
+                    case PREFILTER:
+                        prefilter();
+                        break;
+                    case HAND_OFF_CACHES:
+                        handOffCaches();
+                        break;
+                    case TRIM_MEMORY:
+                        if (mBudget.onTrimMemory(msg.arg1, SystemClock.uptimeMillis())) {
+                            applyBudget();
+                        } else if (getUsedSize() + mPendingSize > mMaxSize) {
+                            // 容量已是下限, 图集页等仍可能超出
+                            evictOverBudget();
+                        }
+                        break;
                 }
             }
 
@@ -671,6 +1019,15 @@ public class CacheManagingDrawTask extends DrawTask {
                 return 0;
             }
 
+            /**
+             * 把工作线程已绘制完成的缓存按提交顺序交给弹幕
+             */
+            private void handOffCaches() {
+                if (mRasterizer != null) {
+                    mRasterizer.handOff();
+                }
+            }
+
             private void releaseDanmakuCache(BaseDanmaku item, DrawingCache cache) {
                 if (cache == null) {
                     cache = (DrawingCache) item.cache;
@@ -679,10 +1036,40 @@ public class CacheManagingDrawTask extends DrawTask {
                 if (cache == null) {
                     return;
                 }
+                mCacheIndex.remove(cache);
                 cache.destroy(); //fixme: consider hasReferences?
                 mCachePool.release(cache);
             }
 
+            /**
+             * 过滤条件变化后尽快为屏幕附近的弹幕重新算好过滤结果, 避免在绘制线程上过滤
+             */
+            private void prefilter() {
+                IDanmakus danmakus = null;
+                try {
+                    long begin = mTimer.currMillisecond;
+                    danmakus = danmakuList.subnew(begin - mContext.mDanmakuFactory.MAX_DANMAKU_DURATION,
+                            begin + mContext.mDanmakuFactory.MAX_DANMAKU_DURATION * 2);
+                } catch (Exception e) {
+
+                }
+                if (danmakus == null || danmakus.isEmpty()) {
+                    return;
+                }
+                danmakus.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+                    @Override
+                    public int accept(BaseDanmaku item) {
+                        if (mPause) {
+                            return ACTION_BREAK;
+                        }
+                        if (!item.isTimeOut() && !item.hasPassedFilter()) {
+                            mContext.mDanmakuFilters.filter(item, 0, 0, null, true, mContext);
+                        }
+                        return ACTION_CONTINUE;
+                    }
+                });
+            }
+
             private void preMeasure() {
                 // pre measure
                 IDanmakus danmakus = null;
@@ -717,6 +1104,11 @@ public class CacheManagingDrawTask extends DrawTask {
                         return ACTION_CONTINUE;
                     }
                 });
+                LayoutPlanner layoutPlanner = mContext.getLayoutPlanner();
+                if (layoutPlanner != null && !mPause && !mCancelFlag) {
+                    // 宽度已知, 提前算好位置
+                    layoutPlanner.plan(danmakus, mDisp);
+                }
             }
 
             private long prepareCaches(final boolean repositioned) {
@@ -763,6 +1155,7 @@ public class CacheManagingDrawTask extends DrawTask {
                 final int sizeInScreen = danmakus.size();
 //                String message = "";
 
+                // 先选出需要构建的弹幕, 再按开始显示的时间构建
                 danmakus.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
                     int orderInScreen = 0;
                     int currScreenIndex = 0;
@@ -804,29 +1197,56 @@ public class CacheManagingDrawTask extends DrawTask {
                             }
                         }
 
-                        if (!repositioned && !mIsPlayerPause) {
+                        mScheduler.schedule(item, mTimer.currMillisecond);
+                        return ACTION_CONTINUE;
+                    }
+                });
+
+                long sliceStartTime = startTime;
+                while (!mPause && !mCancelFlag && mScheduler.size() > 0) {
+                    handOffCaches();
+                    long currTime = mTimer.currMillisecond;
+                    if (!repositioned && !mIsPlayerPause) {
+                        // 距开始显示还早时让出时间给绘制线程; 否则连续构建超过一帧中绘制线程剩下的时间后,
+                        // 等绘制线程画完下一帧再继续; 已过截止时间的弹幕直接构建
+                        long slack = mScheduler.getSlack(currTime);
+                        long waitTime = 0;
+                        if (slack >= mContext.mDanmakuFactory.MAX_DANMAKU_DURATION) {
+                            waitTime = finalSleepTime;
+                        } else if (slack > 0 && SystemClock.uptimeMillis() - sliceStartTime
+                                >= Math.max(MIN_BUILD_SLICE, FRAME_TIME - mLastRenderingTime)) {
+                            waitTime = FRAME_TIME;
+                        }
+                        if (waitTime > 0) {
                             try {
                                 synchronized (mDrawingNotify) {
-                                    mDrawingNotify.wait(finalSleepTime);
+                                    mDrawingNotify.wait(waitTime);
                                 }
                             } catch (InterruptedException e) {
                                 e.printStackTrace();
-                                return ACTION_BREAK;
+                                break;
                             }
+                            currTime = mTimer.currMillisecond;
+                            sliceStartTime = SystemClock.uptimeMillis();
                         }
+                    }
+                    BaseDanmaku next = mScheduler.poll(currTime);
+                    if (next == null) {
+                        break;
+                    }
 
-                        // build cache
-                        buildCache(item, false);
-                        if (!repositioned) {
-                            long consumingTime = SystemClock.uptimeMillis() - startTime;
-                            if (consumingTime >= mContext.mDanmakuFactory.COMMON_DANMAKU_DURATION * mScreenSize) {
-//                            message = "break at consumingTime out:" + consumingTime;
-                                return ACTION_BREAK;
-                            }
+                    // build cache
+                    mScheduler.onBuild(next, currTime);
+                    buildCache(next, false);
+                    if (!repositioned) {
+                        long elapsed = SystemClock.uptimeMillis() - startTime;
+                        if (elapsed >= mContext.mDanmakuFactory.COMMON_DANMAKU_DURATION * mScreenSize) {
+//                            message = "break at consumingTime out:" + elapsed;
+                            break;
                         }
-                        return ACTION_CONTINUE;
                     }
-                });
+                }
+                handOffCaches();
                 consumingTime = SystemClock.uptimeMillis() - startTime;
                 if (item != null) {
                     mCacheTimer.update(item.getTime());
@@ -842,10 +1262,14 @@ public class CacheManagingDrawTask extends DrawTask {
                 if (!item.isMeasured()) {
                     item.measure(mDisp, true);
                 }
+                if (!mDisp.getCacheStuffer().needsDrawingCache(item)) {
+                    prepareResource(item);
+                    return false;
+                }
                 DrawingCache cache = null;
                 try {
-                    cache = mCachePool.acquire();
-                    cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache, mContext.cachingPolicy.bitsPerPixelOfCache);
+                    cache = acquireCache();
+                    cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache, mContext.cachingPolicy.bitsPerPixelOfCache, mContext.cachingPolicy.alphaOnlyCache);
                     item.cache = cache;
                 } catch (OutOfMemoryError e) {
 //Log.e("cache", "break at error: oom");
@@ -867,55 +1291,77 @@ public class CacheManagingDrawTask extends DrawTask {
 
             private byte buildCache(BaseDanmaku item, boolean forceInsert) {
 
+                if (mRasterizer != null && mRasterizer.isPending(item)) {
+                    return RESULT_SUCCESS;
+                }
+
                 // measure
                 if (!item.isMeasured()) {
                     item.measure(mDisp, true);
                 }
 
+                if (!mDisp.getCacheStuffer().needsDrawingCache(item)) {
+                    // stuffer直接绘制, 不需要缓存, 在缓存线程上准备好绘制资源
+                    prepareResource(item);
+                    return RESULT_SUCCESS;
+                }
+
                 DrawingCache cache = null;
                 try {
-                    // try to find reuseable cache
-                    BaseDanmaku danmaku = findReusableCache(item, true, mContext.cachingPolicy.maxTimesOfStrictReusableFinds);
-                    if (danmaku != null) {
-                        cache = (DrawingCache) danmaku.cache;
-                    }
+                    // 内容相同的弹幕共用缓存, 只保存覆盖率的缓存不区分颜色
+                    boolean colorAgnostic = mContext.cachingPolicy.alphaOnlyCache && DanmakuUtils.isColorAgnostic(item, mDisp);
+                    cache = mCacheIndex.find(item, colorAgnostic);
                     if (cache != null) {
+                        BaseDanmaku owner = mCacheIndex.getOwner(cache);
+                        if (owner != null) {
+                            mEvictionPolicy.onAccess(owner);
+                        }
                         cache.increaseReference();
                         item.cache = cache;
-//Log.w("cache", danmaku.text + "DrawingCache hit!!:" + item.paintWidth + "," + danmaku.paintWidth);
                         mCacheManager.push(item, 0, forceInsert);
                         return RESULT_SUCCESS;
                     }
 
-                    // try to find reuseable cache from timeout || no-refrerence caches
-                    danmaku = findReusableCache(item, false, mContext.cachingPolicy.maxTimesOfReusableFinds);
-                    if (danmaku != null) {
-                        cache = (DrawingCache) danmaku.cache;
-                    }
+                    // 尺寸相近的空闲缓存重绘后使用
+                    int slopPixel = mDisp.getSlopPixel() * 2 + mContext.cachingPolicy.reusableOffsetPixel;
+                    cache = mCacheIndex.acquireFree(item.paintWidth, item.paintHeight, slopPixel);
                     if (cache != null) {
-                        danmaku.cache = null;
-//Log.e("cache", danmaku.text + "DrawingCache hit!!:" + item.paintWidth + "," + danmaku.paintWidth);
-                        cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache, mContext.cachingPolicy.bitsPerPixelOfCache);  //redraw
+                        mRealSize -= cache.size();
+                        if (mRasterizer != null) {
+                            mPendingSize += cache.size();
+                            mRasterizer.submit(item, cache, cache.size(), forceInsert);
+                            return RESULT_SUCCESS;
+                        }
+                        cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache, mContext.cachingPolicy.bitsPerPixelOfCache, mContext.cachingPolicy.alphaOnlyCache);  //redraw
                         item.cache = cache;
-                        mCacheManager.push(item, 0, forceInsert);
+                        mCacheIndex.put(item, cache);
+                        mCacheManager.push(item, sizeOf(item), forceInsert);
                         return RESULT_SUCCESS;
                     }
 
                     // guess cache size
-                    int cacheSize = DanmakuUtils.getCacheSize((int) item.paintWidth, (int) item.paintHeight, mContext.cachingPolicy.bitsPerPixelOfCache / 8);
-                    if (cacheSize * 2 > mMaxCacheSize) {  // block large-size cache
+                    // 只保存覆盖率时文字层和描边层各1字节
+                    int bytesPerPixel = colorAgnostic ? 2 : mContext.cachingPolicy.bitsPerPixelOfCache / 8;
+                    int cacheSize = DanmakuUtils.getCacheSize((int) item.paintWidth, (int) item.paintHeight, bytesPerPixel);
+                    if (cacheSize * 2 > mMaxSize) {  // block large-size cache, 按当前的缓存容量
 //                        Log.d("cache", "cache is too large:"+cacheSize);
                         return RESULT_FAILED;
                     }
-                    if (!forceInsert && (mRealSize + cacheSize > mMaxSize)) {
+                    if (!forceInsert && (getUsedSize() + mPendingSize + cacheSize > mMaxSize)) {
 //                        Log.d("cache", "break at MaxSize:"+mMaxSize);
-                        mCacheManager.clearTimeOutAndFilteredCaches(cacheSize, false);
+                        mCacheManager.clearTimeOutAndFilteredCaches(mPendingSize + cacheSize, false);
                         return RESULT_FAILED;
                     }
 
-                    cache = mCachePool.acquire();
-                    cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache, mContext.cachingPolicy.bitsPerPixelOfCache);
+                    cache = acquireCache();
+                    if (mRasterizer != null) {
+                        mPendingSize += cacheSize;
+                        mRasterizer.submit(item, cache, cacheSize, forceInsert);
+                        return RESULT_SUCCESS;
+                    }
+                    cache = DanmakuUtils.buildDanmakuDrawingCache(item, mDisp, cache, mContext.cachingPolicy.bitsPerPixelOfCache, mContext.cachingPolicy.alphaOnlyCache);
                     item.cache = cache;
+                    mCacheIndex.put(item, cache);
                     boolean pushed = mCacheManager.push(item, sizeOf(item), forceInsert);
                     if (!pushed) {
                         releaseDanmakuCache(item, cache);
@@ -980,29 +1426,29 @@ public class CacheManagingDrawTask extends DrawTask {
             public void onPlayStateChanged(boolean isPlaying) {
                 mIsPlayerPause = !isPlaying;
             }
+
+            public void requestPrefilter() {
+                removeMessages(PREFILTER);
+                sendMessageAtFrontOfQueue(obtainMessage(PREFILTER));
+            }
         }
 
-        private void clearTimeOutAndFilteredCaches(int expectedFreeSize, final boolean forcePush) {
-            final int fexpectedFreeSize = expectedFreeSize;
-            mCaches.forEach(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
-                @Override
-                public int accept(BaseDanmaku oldValue) {
-                    if (mEndFlag) {
-                        return IDanmakus.Consumer.ACTION_BREAK;
-                    }
-                    if (mRealSize + fexpectedFreeSize > mMaxSize) {
-                        if (oldValue.isTimeOut() || oldValue.isFiltered()) {
-                            entryRemoved(false, oldValue, null);
-                            return IDanmakus.Consumer.ACTION_REMOVE;
-                        } else if (forcePush) {
-                            return IDanmakus.Consumer.ACTION_BREAK;
-                        }
-                    } else {
-                        return IDanmakus.Consumer.ACTION_BREAK;
-                    }
-                    return IDanmakus.Consumer.ACTION_CONTINUE;
-                }
-            });
+        /**
+         * @param forcePush 为强制加入的缓存腾出容量, 按时间淘汰时遇到第一个不能释放的缓存即停止
+         */
+        private void clearTimeOutAndFilteredCaches(int expectedFreeSize, boolean forcePush) {
+            // 先释放空闲缓存
+            while (getUsedSize() + expectedFreeSize > mMaxSize && releaseFreeCache()) {
+                compactAtlas();
+            }
+            // 再按淘汰策略释放已消失, 已被过滤或保留的缓存
+            BaseDanmaku victim;
+            mEvictionPolicy.beginEviction(forcePush);
+            while (!mEndFlag && getUsedSize() + expectedFreeSize > mMaxSize
+                    && (victim = mEvictionPolicy.selectVictim(mEvictableFilter)) != null) {
+                evict(victim);
+                compactAtlas();
+            }
         }
 
         public long getFirstCacheTime() {
@@ -1032,6 +1478,12 @@ public class CacheManagingDrawTask extends DrawTask {
             mHandler.sendEmptyMessage(CacheHandler.CLEAR_ALL_CACHES);
         }
 
+        public void requestPrefilter() {
+            if (mHandler != null) {
+                mHandler.requestPrefilter();
+            }
+        }
+
         public void requestClearUnused() {
             if (mHandler == null) {
                 return;
@@ -1057,9 +1509,19 @@ public class CacheManagingDrawTask extends DrawTask {
 
     }
 
+    @Override
+    protected void onTrimMemory(int level) {
+        if (mCacheManager != null) {
+            mCacheManager.onTrimMemory(level);
+        }
+    }
+
     @Override
     public boolean onDanmakuConfigChanged(DanmakuContext config, DanmakuConfigTag tag,
                                           Object... values) {
+        if (mCacheManager != null) {
+            mCacheManager.requestPrefilter();
+        }
         if (super.handleOnDanmakuConfigChanged(config, tag, values)) {
             // do nothing
         } else if (DanmakuConfigTag.SCROLL_SPEED_FACTOR.equals(tag)) {
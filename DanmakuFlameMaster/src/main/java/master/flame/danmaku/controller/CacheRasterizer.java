@@ -0,0 +1,350 @@
+package master.flame.danmaku.controller;
+
+import android.os.Process;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDisplayer;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
+import master.flame.danmaku.danmaku.model.android.DrawingCache;
+import master.flame.danmaku.danmaku.util.DanmakuUtils;
+
+/**
+ * 缓存绘制线程池: 缓存线程负责测量, 查找可共用的缓存和内存计算, 只把bitmap的创建和绘制交给工作线程
+ * 每个工作线程使用自己的画笔(见{@link AndroidDisplayer#attachWorkerThread()}), cacheStuffer线程安全(isThreadSafe)时绘制不需要互斥,
+ * 否则工作线程逐个加锁绘制
+ *
+ * 完成的缓存由缓存线程调用handOff按提交顺序交付, 交付顺序与各工作线程完成的先后无关;
+ * submit, isPending和handOff只在缓存线程调用
+ */
+public class CacheRasterizer {
+
+    public interface Callback {
+
+        /**
+         * 在工作线程调用, 有任务完成且上次handOff之后还未通知过
+         */
+        void onRasterized();
+
+        /**
+         * 在handOff的线程按提交顺序调用
+         *
+         * @param success 为false时缓存绘制失败或任务已取消, cache需要释放
+         */
+        void onHandOff(Job job, boolean success);
+
+    }
+
+    public static class Job {
+
+        private static final int STATE_QUEUED = 0;
+
+        private static final int STATE_DONE = 1;
+
+        private static final int STATE_FAILED = 2;
+
+        /**
+         * 已取消, 工作线程没有绘制
+         */
+        private static final int STATE_SKIPPED = 3;
+
+        public final BaseDanmaku danmaku;
+
+        public final DrawingCache cache;
+
+        /**
+         * 提交时预留的内存, 交付时由调用方扣除
+         */
+        public final int reservedSize;
+
+        public final boolean forceInsert;
+
+        final long submitTime;
+
+        private volatile int mState = STATE_QUEUED;
+
+        private volatile boolean mCancelled;
+
+        Job(BaseDanmaku danmaku, DrawingCache cache, int reservedSize, boolean forceInsert) {
+            this.danmaku = danmaku;
+            this.cache = cache;
+            this.reservedSize = reservedSize;
+            this.forceInsert = forceInsert;
+            this.submitTime = System.nanoTime();
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private boolean isFinished() {
+            return mState != STATE_QUEUED;
+        }
+
+        /**
+         * 未开始绘制时工作线程直接跳过, 正在绘制时等绘制结束后以失败交付
+         */
+        private void cancel() {
+            mCancelled = true;
+        }
+
+    }
+
+    private final Job mQuitJob = new Job(null, null, 0, false);
+
+    private final LinkedBlockingQueue<Job> mQueue = new LinkedBlockingQueue<>();
+
+    /**
+     * 按提交顺序排列的未交付任务
+     */
+    private final ArrayDeque<Job> mSubmitted = new ArrayDeque<>();
+
+    private final IdentityHashMap<BaseDanmaku, Job> mPending = new IdentityHashMap<>();
+
+    /**
+     * 正在绘制的任务数, 工作线程完成后减少, 用于quit时等待
+     */
+    private final Object mRunningLock = new Object();
+
+    private int mRunningCount;
+
+    private final AtomicBoolean mNotified = new AtomicBoolean();
+
+    private final Worker[] mWorkers;
+
+    private final IDisplayer mDisp;
+
+    private final int mBitsPerPixel;
+
+    private final boolean mAlphaOnly;
+
+    private final Callback mCallback;
+
+    private volatile boolean mQuited;
+
+    private int mHandOffCount;
+
+    private int mFailedCount;
+
+    private long mTotalLatency;
+
+    private long mMaxLatency;
+
+    private class Worker extends Thread {
+
+        Worker(int index) {
+            super("DFM Cache-Rasterizer-" + index);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            if (mDisp instanceof AndroidDisplayer) {
+                ((AndroidDisplayer) mDisp).attachWorkerThread();
+            }
+            try {
+                while (!mQuited) {
+                    Job job;
+                    try {
+                        job = mQueue.take();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (job == mQuitJob) {
+                        break;
+                    }
+                    rasterize(job);
+                }
+            } finally {
+                if (mDisp instanceof AndroidDisplayer) {
+                    ((AndroidDisplayer) mDisp).detachWorkerThread();
+                }
+            }
+        }
+
+    }
+
+    public CacheRasterizer(int threadCount, IDisplayer disp, int bitsPerPixel, Callback callback) {
+        this(threadCount, disp, bitsPerPixel, false, callback);
+    }
+
+    /**
+     * @param threadCount 工作线程数
+     * @param disp        为AndroidDisplayer时各线程使用自己的画笔并行绘制, 否则绘制时仍互斥
+     * @param alphaOnly   支持的弹幕只缓存覆盖率, 见{@link master.flame.danmaku.danmaku.model.android.CachingPolicy#alphaOnlyCache}
+     */
+    public CacheRasterizer(int threadCount, IDisplayer disp, int bitsPerPixel, boolean alphaOnly, Callback callback) {
+        mDisp = disp;
+        mBitsPerPixel = bitsPerPixel;
+        mAlphaOnly = alphaOnly;
+        mCallback = callback;
+        mWorkers = new Worker[Math.max(1, threadCount)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].start();
+        }
+    }
+
+    public int getThreadCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * 交给工作线程为danmaku绘制cache, danmaku应已测量
+     */
+    public Job submit(BaseDanmaku danmaku, DrawingCache cache, int reservedSize, boolean forceInsert) {
+        Job job = new Job(danmaku, cache, reservedSize, forceInsert);
+        mSubmitted.add(job);
+        mPending.put(danmaku, job);
+        mQueue.add(job);
+        return job;
+    }
+
+    /**
+     * @return danmaku的缓存正在绘制或等待交付
+     */
+    public boolean isPending(BaseDanmaku danmaku) {
+        Job job = mPending.get(danmaku);
+        return job != null && !job.mCancelled;
+    }
+
+    /**
+     * @return 有未交付的任务
+     */
+    public boolean hasPending() {
+        return !mSubmitted.isEmpty();
+    }
+
+    /**
+     * 取消danmaku未交付的任务
+     */
+    public void cancel(BaseDanmaku danmaku) {
+        Job job = mPending.get(danmaku);
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    public void cancelAll() {
+        for (Job job : mSubmitted) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * 按提交顺序交付已完成的任务, 遇到未完成的任务即停止
+     *
+     * @return 交付的任务数
+     */
+    public int handOff() {
+        mNotified.set(false);
+        int count = 0;
+        Job job;
+        while ((job = mSubmitted.peek()) != null && job.isFinished()) {
+            mSubmitted.poll();
+            if (mPending.get(job.danmaku) == job) {
+                mPending.remove(job.danmaku);
+            }
+            boolean success = job.mState == Job.STATE_DONE && !job.mCancelled;
+            if (success) {
+                long latency = System.nanoTime() - job.submitTime;
+                mTotalLatency += latency;
+                mMaxLatency = Math.max(mMaxLatency, latency);
+                mHandOffCount++;
+            } else if (job.mState == Job.STATE_FAILED) {
+                mFailedCount++;
+            }
+            mCallback.onHandOff(job, success);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 取消所有任务, 等待正在绘制的任务结束后交付(全部以失败交付)并结束工作线程
+     */
+    public void quit() {
+        mQuited = true;
+        cancelAll();
+        mQueue.clear();
+        for (int i = 0; i < mWorkers.length; i++) {
+            mQueue.add(mQuitJob);
+        }
+        synchronized (mRunningLock) {
+            while (mRunningCount > 0) {
+                try {
+                    mRunningLock.wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        // 留在队列中或工作线程取出后未绘制的任务
+        for (Job job : mSubmitted) {
+            if (!job.isFinished()) {
+                job.mState = Job.STATE_SKIPPED;
+            }
+        }
+        handOff();
+    }
+
+    /**
+     * @return 交付的任务数
+     */
+    public int getHandOffCount() {
+        return mHandOffCount;
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return 从提交到交付的平均时间(纳秒)
+     */
+    public long getAverageLatency() {
+        return mHandOffCount > 0 ? mTotalLatency / mHandOffCount : 0;
+    }
+
+    public long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    private void rasterize(Job job) {
+        synchronized (mRunningLock) {
+            if (mQuited) {
+                return;
+            }
+            mRunningCount++;
+        }
+        try {
+            BaseDanmaku danmaku = job.danmaku;
+            if (job.mCancelled || danmaku.isTimeOut() || (danmaku.priority == 0 && danmaku.isFiltered())) {
+                // 已取消, 等待期间已消失或被过滤
+                job.mState = Job.STATE_SKIPPED;
+            } else {
+                try {
+                    DanmakuUtils.buildDanmakuDrawingCache(job.danmaku, mDisp, job.cache, mBitsPerPixel, mAlphaOnly);
+                    job.mState = Job.STATE_DONE;
+                } catch (OutOfMemoryError e) {
+                    job.mState = Job.STATE_FAILED;
+                } catch (Exception e) {
+                    job.mState = Job.STATE_FAILED;
+                }
+            }
+            if (mNotified.compareAndSet(false, true)) {
+                mCallback.onRasterized();
+            }
+        } finally {
+            synchronized (mRunningLock) {
+                mRunningCount--;
+                mRunningLock.notifyAll();
+            }
+        }
+    }
+
+}
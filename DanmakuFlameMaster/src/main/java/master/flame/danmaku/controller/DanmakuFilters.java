@@ -4,20 +4,32 @@ package master.flame.danmaku.controller;
 import master.flame.danmaku.danmaku.model.Duration;
 import master.flame.danmaku.danmaku.util.SystemClock;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.DanmakuTimer;
-import master.flame.danmaku.danmaku.model.IDanmakus;
 import master.flame.danmaku.danmaku.model.android.DanmakuContext;
-import master.flame.danmaku.danmaku.model.android.Danmakus;
+import master.flame.danmaku.danmaku.util.BloomFilter;
+import master.flame.danmaku.danmaku.util.IntHashSet;
+import master.flame.danmaku.danmaku.util.KeywordAutomaton;
+import master.flame.danmaku.danmaku.util.MinHash;
 
 public class DanmakuFilters {
 
@@ -31,6 +43,20 @@ public class DanmakuFilters {
     public static final int FILTER_TYPE_DUPLICATE_MERGE = 128;
     public static final int FILTER_TYPE_MAXIMUM_LINES = 256;
     public static final int FILTER_TYPE_OVERLAPPING = 512;
+    public static final int FILTER_TYPE_KEYWORD = 1024;
+    public static final int FILTER_TYPE_NEAR_DUPLICATE_MERGE = 2048;
+
+    /**
+     * 过滤结果所依赖的弹幕属性, 用于配置变化时只让受影响的弹幕重新过滤
+     */
+    public static final int DEPENDENCY_TYPE = 1;
+    public static final int DEPENDENCY_TEXT_COLOR = 1 << 1;
+    public static final int DEPENDENCY_USER = 1 << 2;
+    public static final int DEPENDENCY_TEXT = 1 << 3;
+    /**
+     * 依赖播放进度、同屏数量或过滤历史等, 只能全局失效
+     */
+    public static final int DEPENDENCY_ALL = 0xFFFFFFFF;
 
 
     public interface IDanmakuFilter<T> {
@@ -55,6 +81,21 @@ public class DanmakuFilters {
 
         }
 
+        /**
+         * 过滤结果是否只取决于弹幕自身属性(不依赖过滤器内部状态与调用顺序)
+         * 返回true的过滤器会被过滤管线按耗时和过滤率重新排序
+         */
+        public boolean isReorderable() {
+            return false;
+        }
+
+        /**
+         * @return 过滤结果所依赖的弹幕属性(DEPENDENCY_*), 默认DEPENDENCY_ALL
+         */
+        public int getDependencies() {
+            return DEPENDENCY_ALL;
+        }
+
     }
 
     /**
@@ -101,6 +142,16 @@ public class DanmakuFilters {
             mFilterTypes.clear();
         }
 
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+
+        @Override
+        public int getDependencies() {
+            return DEPENDENCY_TYPE;
+        }
+
     }
 
     /**
@@ -110,10 +161,19 @@ public class DanmakuFilters {
      */
     public static class QuantityDanmakuFilter extends BaseDanmakuFilter<Integer> {
 
-        protected int mMaximumSize = -1;
+        protected volatile int mMaximumSize = -1;
 
+        /**
+         * 绘制线程上一个通过的弹幕
+         */
         protected BaseDanmaku mLastSkipped = null;
-        private float mFilterFactor = 1f;
+
+        /**
+         * 缓存线程上一个通过的弹幕, 与绘制线程分开记录以避免加锁
+         */
+        protected BaseDanmaku mLastSkippedInCachingTask = null;
+
+        private volatile float mFilterFactor = 1f;
 
         private boolean needFilter(BaseDanmaku danmaku, int orderInScreen,
                                  int totalSizeInScreen, DanmakuTimer timer, boolean fromCachingTask, DanmakuContext context) {
@@ -122,12 +182,13 @@ public class DanmakuFilters {
                 return false;
             }
 
-            if (mLastSkipped == null || mLastSkipped.isTimeOut()) {
-                mLastSkipped = danmaku;
+            BaseDanmaku lastSkipped = fromCachingTask ? mLastSkippedInCachingTask : mLastSkipped;
+            if (lastSkipped == null || lastSkipped.isTimeOut()) {
+                setLastSkipped(danmaku, fromCachingTask);
                 return false;
             }
 
-            long gapTime = danmaku.getActualTime() - mLastSkipped.getActualTime();
+            long gapTime = danmaku.getActualTime() - lastSkipped.getActualTime();
             Duration maximumScrollDuration = context.mDanmakuFactory.MAX_Duration_Scroll_Danmaku;
             if (gapTime >= 0 && maximumScrollDuration != null && gapTime < (maximumScrollDuration.value * mFilterFactor)) {
                 return true;
@@ -136,12 +197,20 @@ public class DanmakuFilters {
             if (orderInScreen > mMaximumSize) {
                 return true;
             }
-            mLastSkipped = danmaku;
+            setLastSkipped(danmaku, fromCachingTask);
             return false;
         }
 
+        private void setLastSkipped(BaseDanmaku danmaku, boolean fromCachingTask) {
+            if (fromCachingTask) {
+                mLastSkippedInCachingTask = danmaku;
+            } else {
+                mLastSkipped = danmaku;
+            }
+        }
+
         @Override
-        public synchronized boolean filter(BaseDanmaku danmaku, int orderInScreen,
+        public boolean filter(BaseDanmaku danmaku, int orderInScreen,
                                            int totalsizeInScreen, DanmakuTimer timer, boolean fromCachingTask, DanmakuContext config) {
             boolean filtered = needFilter(danmaku, orderInScreen, totalsizeInScreen, timer, fromCachingTask, config);
             if (filtered) {
@@ -156,14 +225,26 @@ public class DanmakuFilters {
             if (data == null)
                 return;
             if (data != mMaximumSize) {
-                mMaximumSize = data + data / 5;
-                mFilterFactor = 1f / (float) mMaximumSize;
+                setMaximumSize(data);
+            }
+        }
+
+        /**
+         * 调整同屏数量上限, 与setData不同不会重置状态, 只影响之后过滤的弹幕
+         */
+        public void setMaximumSize(int size) {
+            if (size <= 0) {
+                return;
             }
+            int maximumSize = size + size / 5;
+            mFilterFactor = 1f / (float) maximumSize;
+            mMaximumSize = maximumSize;
         }
 
         @Override
-        public synchronized void reset() {
+        public void reset() {
             mLastSkipped = null;
+            mLastSkippedInCachingTask = null;
         }
 
         @Override
@@ -181,7 +262,7 @@ public class DanmakuFilters {
 
         long mMaxTime = 20; // 绘制超过20ms就跳过 ，默认保持接近50fps
 
-        private synchronized boolean needFilter(BaseDanmaku danmaku, int orderInScreen,
+        private boolean needFilter(BaseDanmaku danmaku, int orderInScreen,
                                    int totalsizeInScreen, DanmakuTimer timer, boolean fromCachingTask) {
             if (timer == null || !danmaku.isOutside()) {
                 return false;
@@ -210,7 +291,7 @@ public class DanmakuFilters {
         }
 
         @Override
-        public synchronized void reset() {
+        public void reset() {
 
         }
 
@@ -261,21 +342,143 @@ public class DanmakuFilters {
             mWhiteList.clear();
         }
 
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+
+        @Override
+        public int getDependencies() {
+            return DEPENDENCY_TEXT_COLOR;
+        }
+
     }
 
     /**
      * 根据用户标识黑名单过滤
+     * 黑名单修改时(持有mLock)重建只读的查询集合和布隆过滤器并整体发布, 过滤时不加锁;
+     * 绝大部分不在黑名单中的弹幕只需查布隆过滤器
      * 
      * @author ch
      */
     public static abstract class UserFilter<T> extends BaseDanmakuFilter<List<T>> {
 
-        public List<T> mBlackList = new ArrayList<T>();
+        private static final int MIN_BLOOM_FILTER_CAPACITY = 256;
+
+        protected final Object mLock = new Object();
+
+        /**
+         * 黑名单的只读快照, 与查询集合同时发布
+         *
+         * @deprecated 修改请使用addToBlackList/removeFromBlackList/setData, 查询请使用isFiltered
+         */
+        @Deprecated
+        public volatile List<T> mBlackList = Collections.emptyList();
+
+        /**
+         * 按加入顺序保存的黑名单, 只在持有mLock时访问
+         */
+        private final Set<T> mIds = new LinkedHashSet<T>();
+
+        private volatile BloomFilter mBloomFilter;
+
+        private boolean mBloomFilterEnabled = true;
+
+        /**
+         * 用黑名单的快照建立并发布查询用的集合, 在持有mLock时调用
+         */
+        protected abstract void publishIndex(List<T> ids);
+
+        protected abstract int hash(T id);
+
+        /**
+         * 不修改弹幕过滤状态的判断
+         */
+        public abstract boolean isFiltered(BaseDanmaku danmaku);
+
+        /**
+         * @return 拦截时设置的FILTER_TYPE_*
+         */
+        public abstract int getFilterType();
+
+        /**
+         * @return 是否可能在黑名单中, false表示一定不在
+         */
+        protected final boolean mightContain(int hash) {
+            BloomFilter bloomFilter = mBloomFilter;
+            return bloomFilter == null || bloomFilter.mightContain(hash);
+        }
+
+        /**
+         * 增量添加黑名单
+         */
+        public void addToBlackList(Collection<T> ids) {
+            if (ids == null) {
+                return;
+            }
+            synchronized (mLock) {
+                boolean added = false;
+                for (T id : ids) {
+                    if (id != null && mIds.add(id)) {
+                        added = true;
+                    }
+                }
+                if (added) {
+                    publish();
+                }
+            }
+        }
+
+        /**
+         * 增量移除黑名单
+         */
+        public void removeFromBlackList(Collection<T> ids) {
+            if (ids == null) {
+                return;
+            }
+            synchronized (mLock) {
+                boolean removed = false;
+                for (T id : ids) {
+                    if (id != null && mIds.remove(id)) {
+                        removed = true;
+                    }
+                }
+                if (removed) {
+                    publish();
+                }
+            }
+        }
+
+        public void setBloomFilterEnabled(boolean enabled) {
+            synchronized (mLock) {
+                if (mBloomFilterEnabled != enabled) {
+                    mBloomFilterEnabled = enabled;
+                    publish();
+                }
+            }
+        }
+
+        public int size() {
+            return mBlackList.size();
+        }
 
-        private void addToBlackList(T id) {
-            if (!mBlackList.contains(id)) {
-                mBlackList.add(id);
+        /**
+         * 修改黑名单的复杂度为O(n), 换取过滤时不加锁
+         * 先发布查询集合再发布布隆过滤器: 移除时不会漏判, 添加时在发布完成前可能短暂放过新加入的用户,
+         * 由之后的定向失效重新过滤
+         */
+        private void publish() {
+            List<T> ids = Collections.unmodifiableList(new ArrayList<T>(mIds));
+            publishIndex(ids);
+            BloomFilter bloomFilter = null;
+            if (mBloomFilterEnabled) {
+                bloomFilter = new BloomFilter(Math.max(MIN_BLOOM_FILTER_CAPACITY, ids.size() * 2));
+                for (T id : ids) {
+                    bloomFilter.put(hash(id));
+                }
             }
+            mBloomFilter = bloomFilter;
+            mBlackList = ids;
         }
 
         @Override
@@ -284,17 +487,35 @@ public class DanmakuFilters {
 
         @Override
         public void setData(List<T> data) {
-            reset();
-            if (data != null) {
-                for (T i : data) {
-                    addToBlackList(i);
+            synchronized (mLock) {
+                mIds.clear();
+                if (data != null) {
+                    for (T id : data) {
+                        if (id != null) {
+                            mIds.add(id);
+                        }
+                    }
                 }
+                publish();
             }
         }
 
         @Override
         public void reset() {
-            mBlackList.clear();
+            synchronized (mLock) {
+                mIds.clear();
+                publish();
+            }
+        }
+
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+
+        @Override
+        public int getDependencies() {
+            return DEPENDENCY_USER;
         }
 
     }
@@ -306,16 +527,42 @@ public class DanmakuFilters {
      */
     public static class UserIdFilter extends UserFilter<Integer> {
 
+        private volatile IntHashSet mIndex = new IntHashSet();
+
         @Override
         public boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
                               DanmakuTimer timer, boolean fromCachingTask, DanmakuContext config) {
-            boolean filtered = danmaku != null && mBlackList.contains(danmaku.userId);
+            boolean filtered = isFiltered(danmaku);
             if (filtered) {
                 danmaku.mFilterParam |= FILTER_TYPE_USER_ID;
             }
             return filtered;
         }
 
+        @Override
+        public boolean isFiltered(BaseDanmaku danmaku) {
+            return danmaku != null && mightContain(danmaku.userId) && mIndex.contains(danmaku.userId);
+        }
+
+        @Override
+        public int getFilterType() {
+            return FILTER_TYPE_USER_ID;
+        }
+
+        @Override
+        protected void publishIndex(List<Integer> ids) {
+            IntHashSet index = new IntHashSet(ids.size());
+            for (Integer id : ids) {
+                index.add(id);
+            }
+            mIndex = index;
+        }
+
+        @Override
+        protected int hash(Integer id) {
+            return id;
+        }
+
     }
 
     /**
@@ -325,16 +572,39 @@ public class DanmakuFilters {
      */
     public static class UserHashFilter extends UserFilter<String> {
 
+        private volatile Set<String> mIndex = Collections.emptySet();
+
         @Override
         public boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
                               DanmakuTimer timer, boolean fromCachingTask, DanmakuContext config) {
-            boolean filtered = danmaku != null && mBlackList.contains(danmaku.userHash);
+            boolean filtered = isFiltered(danmaku);
             if (filtered) {
                 danmaku.mFilterParam |= FILTER_TYPE_USER_HASH;
             }
             return filtered;
         }
 
+        @Override
+        public boolean isFiltered(BaseDanmaku danmaku) {
+            return danmaku != null && danmaku.userHash != null
+                    && mightContain(danmaku.userHash.hashCode()) && mIndex.contains(danmaku.userHash);
+        }
+
+        @Override
+        public int getFilterType() {
+            return FILTER_TYPE_USER_HASH;
+        }
+
+        @Override
+        protected void publishIndex(List<String> ids) {
+            mIndex = new HashSet<String>(ids);
+        }
+
+        @Override
+        protected int hash(String id) {
+            return id.hashCode();
+        }
+
     }
 
     /**
@@ -366,79 +636,262 @@ public class DanmakuFilters {
             mBlock = false;
         }
 
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+
+        @Override
+        public int getDependencies() {
+            return DEPENDENCY_USER;
+        }
+
     }
 
-    public static class DuplicateMergingFilter extends BaseDanmakuFilter<Void> {
+    /**
+     * 按超时时间(弹幕实际时间+时长)分桶的时间轮, 每个桶1 << SLOT_SHIFT毫秒, 加入和取出均摊O(1)
+     * 桶中只放游标之后WHEEL_SIZE个桶内超时的弹幕, 更晚超时的放在溢出表, 游标接近时再放入桶中
+     * 回退seek后加入的弹幕会让游标后退, 时长很长的弹幕在溢出表中, 都不会挡住其他弹幕的清理
+     * 同一个桶内不排序, 弹幕最多比实际超时晚一个桶取出, 取出的弹幕都已超时
+     */
+    static class ExpiryQueue<T> {
 
-        protected final IDanmakus blockedDanmakus = new Danmakus(Danmakus.ST_BY_LIST);
-        protected final LinkedHashMap<String, BaseDanmaku> currentDanmakus = new LinkedHashMap<String, BaseDanmaku>();
-        private final IDanmakus passedDanmakus = new Danmakus(Danmakus.ST_BY_LIST);
-
-        private final void removeTimeoutDanmakus(final IDanmakus danmakus, final long limitTime) {
-            danmakus.forEachSync(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
-                long startTime = SystemClock.uptimeMillis();
-                @Override
-                public int accept(BaseDanmaku item) {
-                    try {
-                        if (SystemClock.uptimeMillis() - startTime > limitTime) {
-                            return ACTION_BREAK;
-                        }
-                        if (item.isTimeOut()) {
-                            return ACTION_REMOVE;
-                        } else {
-                            return ACTION_BREAK;
-                        }
-                    } catch (Exception e) {
-                        return ACTION_BREAK;
+        private static final int SLOT_SHIFT = 8;
+
+        private static final int WHEEL_SIZE = 64;
+
+        private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+        private static class Node<T> {
+
+            final BaseDanmaku danmaku;
+
+            final T value;
+
+            final long tick;
+
+            Node(BaseDanmaku danmaku, T value, long tick) {
+                this.danmaku = danmaku;
+                this.value = value;
+                this.tick = tick;
+            }
+
+        }
+
+        private final ArrayList<ArrayDeque<Node<T>>> mBuckets = new ArrayList<>(WHEEL_SIZE);
+
+        private final ArrayList<Node<T>> mOverflow = new ArrayList<>();
+
+        private long mOverflowMinTick = Long.MAX_VALUE;
+
+        /**
+         * 桶中弹幕的超时桶号都在[mCursor, mCursor + WHEEL_SIZE)内, 每个桶只有一个桶号
+         */
+        private long mCursor;
+
+        private int mSize;
+
+        private DanmakuTimer mTimer;
+
+        ExpiryQueue() {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                mBuckets.add(new ArrayDeque<Node<T>>());
+            }
+        }
+
+        void add(BaseDanmaku danmaku, T value) {
+            long tick = (danmaku.getActualTime() + danmaku.getDuration()) >> SLOT_SHIFT;
+            if (mSize == 0) {
+                mCursor = tick;
+            } else if (tick < mCursor) {
+                rewind(tick);
+            }
+            mTimer = danmaku.getTimer();
+            insert(new Node<>(danmaku, value, tick));
+            mSize++;
+        }
+
+        /**
+         * @return 一条已经超时的弹幕对应的value, 没有则返回null
+         */
+        T pollTimeOut() {
+            if (mSize == 0) {
+                return null;
+            }
+            long currTick = mTimer == null ? Long.MAX_VALUE : mTimer.currMillisecond >> SLOT_SHIFT;
+            while (true) {
+                ArrayDeque<Node<T>> bucket = mBuckets.get((int) (mCursor & WHEEL_MASK));
+                Node<T> head = bucket.peek();
+                if (head != null) {
+                    if (!head.danmaku.isTimeOut()) {
+                        return null;
                     }
+                    bucket.poll();
+                    mSize--;
+                    return head.value;
+                }
+                if (mCursor >= currTick) {
+                    return null;
                 }
-            });
+                if (mSize == mOverflow.size()) {
+                    // 桶都是空的, 直接跳到溢出表中最早超时的
+                    mCursor = Math.min(currTick, mOverflowMinTick);
+                } else {
+                    mCursor++;
+                }
+                if (!mOverflow.isEmpty() && mOverflowMinTick - mCursor < WHEEL_SIZE) {
+                    drainOverflow();
+                }
+            }
         }
 
-        private void removeTimeoutDanmakus(LinkedHashMap<String, BaseDanmaku> danmakus,
-                int limitTime) {
-            Iterator<Entry<String, BaseDanmaku>> it = danmakus.entrySet().iterator();
-            long startTime = SystemClock.uptimeMillis();
-            while (it.hasNext()) {
-                try {
-                    Entry<String, BaseDanmaku> entry = it.next();
-                    BaseDanmaku item = entry.getValue();
-                    if (item.isTimeOut()) {
-                        it.remove();
-                    } else {
-                        break;
-                    }
-                } catch (Exception e) {
-                    break;
+        int size() {
+            return mSize;
+        }
+
+        void clear() {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                mBuckets.get(i).clear();
+            }
+            mOverflow.clear();
+            mOverflowMinTick = Long.MAX_VALUE;
+            mSize = 0;
+            mTimer = null;
+        }
+
+        private void insert(Node<T> node) {
+            if (node.tick - mCursor < WHEEL_SIZE) {
+                mBuckets.get((int) (node.tick & WHEEL_MASK)).add(node);
+            } else {
+                mOverflow.add(node);
+                mOverflowMinTick = Math.min(mOverflowMinTick, node.tick);
+            }
+        }
+
+        /**
+         * 游标后退到tick, 超出新范围的桶移到溢出表
+         */
+        private void rewind(long tick) {
+            long end = mCursor + WHEEL_SIZE;
+            for (long t = Math.max(tick + WHEEL_SIZE, mCursor); t < end; t++) {
+                ArrayDeque<Node<T>> bucket = mBuckets.get((int) (t & WHEEL_MASK));
+                if (!bucket.isEmpty()) {
+                    mOverflow.addAll(bucket);
+                    mOverflowMinTick = Math.min(mOverflowMinTick, t);
+                    bucket.clear();
+                }
+            }
+            mCursor = tick;
+        }
+
+        private void drainOverflow() {
+            long minTick = Long.MAX_VALUE;
+            for (int i = mOverflow.size() - 1; i >= 0; i--) {
+                Node<T> node = mOverflow.get(i);
+                if (node.tick - mCursor < WHEEL_SIZE) {
+                    mBuckets.get((int) (node.tick & WHEEL_MASK)).add(node);
+                    int last = mOverflow.size() - 1;
+                    mOverflow.set(i, mOverflow.get(last));
+                    mOverflow.remove(last);
+                } else {
+                    minTick = Math.min(minTick, node.tick);
                 }
-                if (SystemClock.uptimeMillis() - startTime > limitTime) {
+            }
+            mOverflowMinTick = minTick;
+        }
+
+    }
+
+    /**
+     * 合并重复弹幕: 相同文本的弹幕在前一条超时前只显示第一条
+     * 按文本索引到MergedEntry, 成员判断与超时清理均为均摊O(1)
+     */
+    public static class DuplicateMergingFilter extends BaseDanmakuFilter<Void> {
+
+        /**
+         * 每次过滤最多清理的超时弹幕数量
+         */
+        private static final int MAX_EXPIRE_COUNT_PER_FILTER = 8;
+
+        public static class MergedEntry {
+
+            /**
+             * 显示出来的那条弹幕
+             */
+            public final BaseDanmaku passed;
+
+            /**
+             * 最近一条被合并的弹幕, 它超时后entry失效
+             */
+            BaseDanmaku last;
+
+            int mergedCount = 1;
+
+            MergedEntry(BaseDanmaku passed) {
+                this.passed = passed;
+                this.last = passed;
+            }
+
+            boolean isExpired() {
+                return last.isTimeOut();
+            }
+
+            /**
+             * @return 合并后的总条数(包括显示出来的那条)
+             */
+            public int getMergedCount() {
+                return mergedCount;
+            }
+
+        }
+
+        protected final HashMap<String, MergedEntry> currentDanmakus = new HashMap<>();
+
+        /**
+         * 被合并(屏蔽)的弹幕, BaseDanmaku未重写equals, 按引用判断
+         */
+        protected final HashSet<BaseDanmaku> blockedDanmakus = new HashSet<>();
+
+        private final ExpiryQueue<BaseDanmaku> mExpiryQueue = new ExpiryQueue<>();
+
+        private void removeTimeoutDanmakus() {
+            for (int i = 0; i < MAX_EXPIRE_COUNT_PER_FILTER; i++) {
+                BaseDanmaku item = mExpiryQueue.pollTimeOut();
+                if (item == null) {
                     break;
                 }
+                blockedDanmakus.remove(item);
+                String key = String.valueOf(item.text);
+                MergedEntry entry = currentDanmakus.get(key);
+                if (entry != null && entry.last == item) {
+                    currentDanmakus.remove(key);
+                }
             }
         }
 
         public synchronized boolean needFilter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
                 DanmakuTimer timer, boolean fromCachingTask) {
-            removeTimeoutDanmakus(blockedDanmakus, 2);
-            removeTimeoutDanmakus(passedDanmakus, 2);
-            removeTimeoutDanmakus(currentDanmakus, 3);
+            removeTimeoutDanmakus();
             if (blockedDanmakus.contains(danmaku) && !danmaku.isOutside()) {
                 return true;
             }
-            if (passedDanmakus.contains(danmaku)) {
+            String key = String.valueOf(danmaku.text);
+            MergedEntry entry = currentDanmakus.get(key);
+            if (entry != null && entry.passed == danmaku) {
                 return false;
             }
-            if (currentDanmakus.containsKey(danmaku.text)) {
-                currentDanmakus.put(String.valueOf(danmaku.text), danmaku);
-                blockedDanmakus.removeItem(danmaku);
-                blockedDanmakus.addItem(danmaku);
-                return true;
-            } else {
-                currentDanmakus.put(String.valueOf(danmaku.text), danmaku);
-                passedDanmakus.addItem(danmaku);
+            if (entry == null || entry.isExpired()) {
+                // 每次最多清理MAX_EXPIRE_COUNT_PER_FILTER条, 已超时的entry可能还留在表中, 这里直接覆盖
+                currentDanmakus.put(key, new MergedEntry(danmaku));
+                mExpiryQueue.add(danmaku, danmaku);
                 return false;
             }
-
+            if (blockedDanmakus.add(danmaku)) {
+                entry.mergedCount++;
+                entry.last = danmaku;
+                mExpiryQueue.add(danmaku, danmaku);
+            }
+            return true;
         }
 
         @Override
@@ -451,6 +904,22 @@ public class DanmakuFilters {
             return filtered;
         }
 
+        /**
+         * @return 与danmaku文本相同且仍在合并窗口内的弹幕总条数, 没有则返回0
+         */
+        public synchronized int getMergedCount(CharSequence text) {
+            MergedEntry entry = currentDanmakus.get(String.valueOf(text));
+            return entry == null || entry.isExpired() ? 0 : entry.mergedCount;
+        }
+
+        /**
+         * @return danmaku为显示出来的那条时, 返回合并后的总条数, 用于显示"x N"之类的标记; 否则返回0
+         */
+        public synchronized int getMergedCount(BaseDanmaku danmaku) {
+            MergedEntry entry = currentDanmakus.get(String.valueOf(danmaku.text));
+            return entry == null || entry.passed != danmaku ? 0 : entry.mergedCount;
+        }
+
         @Override
         public void setData(Void data) {
 
@@ -458,9 +927,9 @@ public class DanmakuFilters {
 
         @Override
         public synchronized void reset() {
-            passedDanmakus.clear();
             blockedDanmakus.clear();
             currentDanmakus.clear();
+            mExpiryQueue.clear();
         }
 
         @Override
@@ -470,55 +939,293 @@ public class DanmakuFilters {
 
     }
 
-    public static class MaximumLinesFilter extends BaseDanmakuFilter<Map<Integer, Integer>> {
+    /**
+     * 合并相似弹幕: "2333333"和"233333!!"、"前方高能"和"前方高能预警"这类归一化后
+     * 字符二元组Jaccard相似度(MinHash估计)不低于阈值的弹幕, 在前一条超时前只显示第一条
+     * 签名分成BAND_COUNT段建哈希表, 只与至少一段完全相同的少量候选比较
+     */
+    public static class NearDuplicateMergingFilter extends BaseDanmakuFilter<Float> {
 
-        private Map<Integer, Integer> mMaximumLinesPairs;
+        public static final float DEFAULT_MIN_SIMILARITY = 0.6f;
 
-        @Override
-        public boolean filter(BaseDanmaku danmaku, int lines, int totalsizeInScreen, DanmakuTimer timer, boolean willHit, DanmakuContext config) {
-            boolean filtered = false;
-            if (mMaximumLinesPairs != null) {
-                Integer maxLines = mMaximumLinesPairs.get(danmaku.getType());
-                filtered = (maxLines != null && lines >= maxLines);
-                if (filtered) {
-                    danmaku.mFilterParam |= FILTER_TYPE_MAXIMUM_LINES;
-                }
-            }
-            return filtered;
-        }
+        private static final int BAND_COUNT = 8;
 
-        @Override
-        public void setData(Map<Integer, Integer> data) {
-            mMaximumLinesPairs = data;
-        }
+        private static final int ROWS_PER_BAND = MinHash.SIZE / BAND_COUNT;
 
-        @Override
-        public void reset() {
-            mMaximumLinesPairs = null;
-        }
-    }
+        private static final int MAX_EXPIRE_COUNT_PER_FILTER = 8;
 
-    public static class OverlappingFilter extends BaseDanmakuFilter<Map<Integer, Boolean>> {
+        public static class MergedEntry {
 
-        private Map<Integer, Boolean> mEnabledPairs;
+            public final BaseDanmaku passed;
 
-        @Override
-        public boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen, DanmakuTimer timer, boolean willHit, DanmakuContext config) {
-            boolean filtered = false;
-            if (mEnabledPairs != null) {
-                Boolean enabledValue = mEnabledPairs.get(danmaku.getType());
-                filtered = enabledValue != null && enabledValue && willHit;
-                if (filtered) {
-                    danmaku.mFilterParam |= FILTER_TYPE_OVERLAPPING;
-                }
-            }
-            return filtered;
-        }
+            final int[] signature;
 
-        @Override
-        public void setData(Map<Integer, Boolean> data) {
-            mEnabledPairs = data;
-        }
+            BaseDanmaku last;
+
+            int mergedCount = 1;
+
+            MergedEntry(BaseDanmaku passed, int[] signature) {
+                this.passed = passed;
+                this.signature = signature;
+                this.last = passed;
+            }
+
+            boolean isExpired() {
+                return last.isTimeOut();
+            }
+
+            public int getMergedCount() {
+                return mergedCount;
+            }
+
+        }
+
+        private static class Expiry {
+
+            final BaseDanmaku danmaku;
+
+            final MergedEntry entry;
+
+            Expiry(BaseDanmaku danmaku, MergedEntry entry) {
+                this.danmaku = danmaku;
+                this.entry = entry;
+            }
+
+        }
+
+        /**
+         * 签名中至少有这么多位置相等才合并
+         */
+        private int mMinMatches;
+
+        private final ArrayList<HashMap<Long, ArrayList<MergedEntry>>> mBands = new ArrayList<>(BAND_COUNT);
+
+        /**
+         * 显示出来的弹幕到所在entry, 查询合并条数时不用重新计算签名
+         */
+        private final HashMap<BaseDanmaku, MergedEntry> mPassedDanmakus = new HashMap<>();
+
+        private final HashMap<BaseDanmaku, MergedEntry> mBlockedDanmakus = new HashMap<>();
+
+        private final ExpiryQueue<Expiry> mExpiryQueue = new ExpiryQueue<>();
+
+        private final int[] mSignature = new int[MinHash.SIZE];
+
+        public NearDuplicateMergingFilter() {
+            for (int i = 0; i < BAND_COUNT; i++) {
+                mBands.add(new HashMap<Long, ArrayList<MergedEntry>>());
+            }
+            setData(null);
+        }
+
+        private static long bandKey(int[] signature, int band) {
+            int offset = band * ROWS_PER_BAND;
+            return ((long) signature[offset] << 32) | (signature[offset + 1] & 0xFFFFFFFFL);
+        }
+
+        private MergedEntry findEntry(int[] signature) {
+            for (int band = 0; band < BAND_COUNT; band++) {
+                ArrayList<MergedEntry> candidates = mBands.get(band).get(bandKey(signature, band));
+                if (candidates == null) {
+                    continue;
+                }
+                for (int i = 0, size = candidates.size(); i < size; i++) {
+                    MergedEntry entry = candidates.get(i);
+                    if (!entry.isExpired() && MinHash.matches(entry.signature, signature) >= mMinMatches) {
+                        return entry;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void addEntry(MergedEntry entry) {
+            for (int band = 0; band < BAND_COUNT; band++) {
+                long key = bandKey(entry.signature, band);
+                ArrayList<MergedEntry> candidates = mBands.get(band).get(key);
+                if (candidates == null) {
+                    candidates = new ArrayList<>(2);
+                    mBands.get(band).put(key, candidates);
+                }
+                candidates.add(entry);
+            }
+            mPassedDanmakus.put(entry.passed, entry);
+            mExpiryQueue.add(entry.passed, new Expiry(entry.passed, entry));
+        }
+
+        private void removeEntry(MergedEntry entry) {
+            if (mPassedDanmakus.get(entry.passed) == entry) {
+                // 超时后再次通过的弹幕已指向新的entry
+                mPassedDanmakus.remove(entry.passed);
+            }
+            for (int band = 0; band < BAND_COUNT; band++) {
+                long key = bandKey(entry.signature, band);
+                ArrayList<MergedEntry> candidates = mBands.get(band).get(key);
+                if (candidates != null) {
+                    candidates.remove(entry);
+                    if (candidates.isEmpty()) {
+                        mBands.get(band).remove(key);
+                    }
+                }
+            }
+        }
+
+        private void removeTimeoutEntries() {
+            for (int i = 0; i < MAX_EXPIRE_COUNT_PER_FILTER; i++) {
+                Expiry expiry = mExpiryQueue.pollTimeOut();
+                if (expiry == null) {
+                    break;
+                }
+                mBlockedDanmakus.remove(expiry.danmaku);
+                if (expiry.entry.last == expiry.danmaku) {
+                    removeEntry(expiry.entry);
+                }
+            }
+        }
+
+        public synchronized boolean needFilter(BaseDanmaku danmaku) {
+            removeTimeoutEntries();
+            MergedEntry blockedBy = mBlockedDanmakus.get(danmaku);
+            if (blockedBy != null && !danmaku.isOutside()) {
+                return true;
+            }
+            MergedEntry passedIn = mPassedDanmakus.get(danmaku);
+            if (passedIn != null && !passedIn.isExpired()) {
+                return false;
+            }
+            String normalized = MinHash.normalize(danmaku.text);
+            if (!MinHash.isMergeable(normalized)) {
+                // 纯标点或单个字符的弹幕特征太少, 不做相似合并
+                return false;
+            }
+            MinHash.signature(normalized, mSignature);
+            MergedEntry entry = findEntry(mSignature);
+            if (entry == null) {
+                addEntry(new MergedEntry(danmaku, mSignature.clone()));
+                return false;
+            }
+            if (entry.passed == danmaku) {
+                return false;
+            }
+            if (blockedBy == null) {
+                mBlockedDanmakus.put(danmaku, entry);
+                entry.mergedCount++;
+                entry.last = danmaku;
+                mExpiryQueue.add(danmaku, new Expiry(danmaku, entry));
+            }
+            return true;
+        }
+
+        @Override
+        public boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
+                              DanmakuTimer timer, boolean fromCachingTask, DanmakuContext config) {
+            boolean filtered = needFilter(danmaku);
+            if (filtered) {
+                danmaku.mFilterParam |= FILTER_TYPE_NEAR_DUPLICATE_MERGE;
+            }
+            return filtered;
+        }
+
+        /**
+         * @return danmaku为显示出来的那条时, 返回合并后的总条数; 否则返回0
+         */
+        public synchronized int getMergedCount(BaseDanmaku danmaku) {
+            MergedEntry entry = mPassedDanmakus.get(danmaku);
+            return entry == null || entry.isExpired() ? 0 : entry.mergedCount;
+        }
+
+        /**
+         * @param data 合并所需的最小相似度(0, 1], null为DEFAULT_MIN_SIMILARITY
+         */
+        @Override
+        public synchronized void setData(Float data) {
+            float similarity = data == null ? DEFAULT_MIN_SIMILARITY : Math.max(0.01f, Math.min(data, 1f));
+            mMinMatches = (int) Math.ceil(similarity * MinHash.SIZE);
+            reset();
+        }
+
+        @Override
+        public synchronized void reset() {
+            for (int i = 0; i < BAND_COUNT; i++) {
+                mBands.get(i).clear();
+            }
+            mPassedDanmakus.clear();
+            mBlockedDanmakus.clear();
+            mExpiryQueue.clear();
+        }
+
+        @Override
+        public void clear() {
+            reset();
+        }
+
+    }
+
+    public static class MaximumLinesFilter extends BaseDanmakuFilter<Map<Integer, Integer>> {
+
+        private Map<Integer, Integer> mMaximumLinesPairs;
+
+        @Override
+        public boolean filter(BaseDanmaku danmaku, int lines, int totalsizeInScreen, DanmakuTimer timer, boolean willHit, DanmakuContext config) {
+            boolean filtered = isFiltered(danmaku, lines);
+            if (filtered) {
+                danmaku.mFilterParam |= FILTER_TYPE_MAXIMUM_LINES;
+            }
+            return filtered;
+        }
+
+        /**
+         * 只判断, 不修改弹幕
+         */
+        public boolean isFiltered(BaseDanmaku danmaku, int lines) {
+            Map<Integer, Integer> pairs = mMaximumLinesPairs;
+            if (pairs == null) {
+                return false;
+            }
+            Integer maxLines = pairs.get(danmaku.getType());
+            return maxLines != null && lines >= maxLines;
+        }
+
+        @Override
+        public void setData(Map<Integer, Integer> data) {
+            mMaximumLinesPairs = data;
+        }
+
+        @Override
+        public void reset() {
+            mMaximumLinesPairs = null;
+        }
+    }
+
+    public static class OverlappingFilter extends BaseDanmakuFilter<Map<Integer, Boolean>> {
+
+        private Map<Integer, Boolean> mEnabledPairs;
+
+        @Override
+        public boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen, DanmakuTimer timer, boolean willHit, DanmakuContext config) {
+            boolean filtered = isFiltered(danmaku, willHit);
+            if (filtered) {
+                danmaku.mFilterParam |= FILTER_TYPE_OVERLAPPING;
+            }
+            return filtered;
+        }
+
+        /**
+         * 只判断, 不修改弹幕
+         */
+        public boolean isFiltered(BaseDanmaku danmaku, boolean willHit) {
+            Map<Integer, Boolean> pairs = mEnabledPairs;
+            if (pairs == null || !willHit) {
+                return false;
+            }
+            Boolean enabledValue = pairs.get(danmaku.getType());
+            return enabledValue != null && enabledValue;
+        }
+
+        @Override
+        public void setData(Map<Integer, Boolean> data) {
+            mEnabledPairs = data;
+        }
 
         @Override
         public void reset() {
@@ -526,6 +1233,200 @@ public class DanmakuFilters {
         }
     }
 
+    /**
+     * 根据关键词/正则黑名单过滤
+     * 关键词编译成Aho-Corasick自动机, 单条弹幕的匹配耗时与关键词数量无关;
+     * 更新列表时在调用线程上重新编译, 完成后整体替换, 绘制线程的过滤过程不加锁
+     */
+    public static class KeywordFilter extends BaseDanmakuFilter<List<String>> {
+
+        private static class Rules {
+
+            final KeywordAutomaton automaton;
+
+            /**
+             * 合并后的正则在前, 之后是含反向引用需要单独编译的正则
+             */
+            final Pattern[] patterns;
+
+            // Matcher非线程安全, 绘制线程与缓存线程各用一组
+            private final Matcher[] mMatchers;
+
+            private final Matcher[] mMatchersInCachingTask;
+
+            Rules(KeywordAutomaton automaton, Pattern[] patterns) {
+                this.automaton = automaton;
+                this.patterns = patterns;
+                mMatchers = new Matcher[patterns.length];
+                mMatchersInCachingTask = new Matcher[patterns.length];
+            }
+
+            boolean matches(CharSequence text, boolean fromCachingTask) {
+                if (automaton.matches(text)) {
+                    return true;
+                }
+                Matcher[] matchers = fromCachingTask ? mMatchersInCachingTask : mMatchers;
+                for (int i = 0; i < patterns.length; i++) {
+                    Matcher matcher = matchers[i];
+                    if (matcher == null) {
+                        matcher = matchers[i] = patterns[i].matcher("");
+                    }
+                    if (matcher.reset(text).find()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        private final List<String> mKeywords = new ArrayList<String>();
+
+        private final List<String> mRegexPatterns = new ArrayList<String>();
+
+        private boolean mIgnoreCase = true;
+
+        private volatile Rules mRules = new Rules(KeywordAutomaton.compile(null, true), new Pattern[0]);
+
+        @Override
+        public boolean filter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
+                              DanmakuTimer timer, boolean fromCachingTask, DanmakuContext config) {
+            boolean filtered = danmaku != null && danmaku.text != null
+                    && mRules.matches(danmaku.text, fromCachingTask);
+            if (filtered) {
+                danmaku.mFilterParam |= FILTER_TYPE_KEYWORD;
+            }
+            return filtered;
+        }
+
+        @Override
+        public void setData(List<String> data) {
+            setKeywords(data);
+        }
+
+        public synchronized void setKeywords(Collection<String> keywords) {
+            mKeywords.clear();
+            if (keywords != null) {
+                mKeywords.addAll(keywords);
+            }
+            compile();
+        }
+
+        /**
+         * 同时替换关键词和正则黑名单, 只编译一次
+         */
+        public synchronized void setBlackList(Collection<String> keywords, Collection<String> patterns) {
+            mKeywords.clear();
+            mRegexPatterns.clear();
+            if (keywords != null) {
+                mKeywords.addAll(keywords);
+            }
+            if (patterns != null) {
+                mRegexPatterns.addAll(patterns);
+            }
+            compile();
+        }
+
+        /**
+         * 设置正则黑名单, 无法编译的正则会被忽略
+         */
+        public synchronized void setRegexPatterns(Collection<String> patterns) {
+            mRegexPatterns.clear();
+            if (patterns != null) {
+                mRegexPatterns.addAll(patterns);
+            }
+            compile();
+        }
+
+        public synchronized void setIgnoreCase(boolean ignoreCase) {
+            if (mIgnoreCase != ignoreCase) {
+                mIgnoreCase = ignoreCase;
+                compile();
+            }
+        }
+
+        private void compile() {
+            KeywordAutomaton automaton = KeywordAutomaton.compile(mKeywords, mIgnoreCase);
+            int flags = mIgnoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0;
+            StringBuilder regex = null;
+            List<Pattern> patterns = new ArrayList<Pattern>();
+            for (String p : mRegexPatterns) {
+                if (p == null || p.length() == 0) {
+                    continue;
+                }
+                Pattern pattern;
+                try {
+                    pattern = Pattern.compile(p, flags);
+                } catch (PatternSyntaxException e) {
+                    continue;
+                }
+                if (hasGroupReference(p)) {
+                    // 合并后分组编号会变化, 反向引用会指向其他正则的分组
+                    patterns.add(pattern);
+                    continue;
+                }
+                if (regex == null) {
+                    regex = new StringBuilder();
+                } else {
+                    regex.append('|');
+                }
+                regex.append("(?:").append(p).append(')');
+            }
+            if (regex != null) {
+                patterns.add(0, Pattern.compile(regex.toString(), flags));
+            }
+            mRules = new Rules(automaton, patterns.toArray(new Pattern[patterns.size()]));
+        }
+
+        /**
+         * 是否含有反向引用(\1, \k<name>)或命名分组, 这些正则不能和其他正则合并
+         */
+        static boolean hasGroupReference(String regex) {
+            int length = regex.length();
+            boolean inClass = false;
+            for (int i = 0; i < length; i++) {
+                char c = regex.charAt(i);
+                if (c == '\\' && i + 1 < length) {
+                    char next = regex.charAt(++i);
+                    if (next == 'Q') {
+                        int end = regex.indexOf("\\E", i + 1);
+                        if (end < 0) {
+                            return false;
+                        }
+                        i = end + 1;
+                    } else if (!inClass && ((next >= '1' && next <= '9') || next == 'k')) {
+                        return true;
+                    }
+                } else if (c == '[') {
+                    inClass = true;
+                } else if (c == ']') {
+                    inClass = false;
+                } else if (!inClass && c == '(' && regex.startsWith("?<", i + 1) && i + 3 < length
+                        && regex.charAt(i + 3) != '=' && regex.charAt(i + 3) != '!') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized void reset() {
+            mKeywords.clear();
+            mRegexPatterns.clear();
+            compile();
+        }
+
+        @Override
+        public boolean isReorderable() {
+            return true;
+        }
+
+        @Override
+        public int getDependencies() {
+            return DEPENDENCY_TEXT;
+        }
+
+    }
+
     public final static String TAG_TYPE_DANMAKU_FILTER = "1010_Filter";
 
     public final static String TAG_QUANTITY_DANMAKU_FILTER = "1011_Filter";
@@ -546,20 +1447,177 @@ public class DanmakuFilters {
 
     public final static String TAG_OVERLAPPING_FILTER = "1019_Filter";
 
+    public final static String TAG_KEYWORD_FILTER = "1020_Filter";
+
+    public final static String TAG_NEAR_DUPLICATE_FILTER = "1021_Filter";
+
     public final static String TAG_PRIMARY_CUSTOM_FILTER = "2000_Primary_Custom_Filter";
 
     public final Exception filterException = new Exception("not suuport this filter tag");
 
+    /**
+     * 过滤管线中单个过滤器的统计数据
+     * 计数在绘制线程和缓存线程上无锁累加, 仅用于排序和调优, 不保证精确
+     */
+    public static class FilterStat {
+
+        public final String tag;
+
+        final IDanmakuFilter<?> filter;
+
+        final boolean reorderable;
+
+        int registeredOrder;
+
+        public long invocations;
+
+        public long rejections;
+
+        public long sampledCount;
+
+        public long sampledNanos;
+
+        FilterStat(String tag, IDanmakuFilter<?> filter, int registeredOrder) {
+            this.tag = tag;
+            this.filter = filter;
+            this.reorderable = filter instanceof BaseDanmakuFilter && ((BaseDanmakuFilter<?>) filter).isReorderable();
+            this.registeredOrder = registeredOrder;
+        }
+
+        /**
+         * @return 采样得到的平均单次耗时(纳秒)
+         */
+        public float getAverageNanos() {
+            return sampledCount == 0 ? 0 : sampledNanos / (float) sampledCount;
+        }
+
+        /**
+         * @return 过滤率 0.0~1.0
+         */
+        public float getRejectionRate() {
+            return invocations == 0 ? 0 : rejections / (float) invocations;
+        }
+
+        float rank() {
+            // 每次过滤掉一条弹幕的期望耗时, 越小越靠前
+            return (getAverageNanos() + 1) / Math.max(getRejectionRate(), 0.001f);
+        }
+
+        void reset() {
+            invocations = rejections = sampledCount = sampledNanos = 0;
+        }
+
+    }
+
+    private static final Comparator<FilterStat> PIPELINE_COMPARATOR = new Comparator<FilterStat>() {
+        @Override
+        public int compare(FilterStat lhs, FilterStat rhs) {
+            // 有状态的过滤器保持注册顺序并排在无状态过滤器之后
+            if (lhs.reorderable != rhs.reorderable) {
+                return lhs.reorderable ? -1 : 1;
+            }
+            if (lhs.reorderable) {
+                int r = Float.compare(lhs.rank(), rhs.rank());
+                if (r != 0) {
+                    return r;
+                }
+            }
+            return lhs.registeredOrder - rhs.registeredOrder;
+        }
+    };
+
+    /**
+     * 每隔(SAMPLE_INTERVAL_MASK + 1)次过滤采样一次耗时
+     */
+    private static final int SAMPLE_INTERVAL_MASK = 0x3F;
+
+    /**
+     * 每隔(REORDER_INTERVAL_MASK + 1)次过滤按统计数据重新排序一次管线
+     */
+    private static final int REORDER_INTERVAL_MASK = 0x1FFF;
+
+    private volatile FilterStat[] mPipeline = new FilterStat[0];
+
+    /**
+     * 绘制线程和缓存线程都会调用filter, 原子计数保证每个采样和重排间隔只触发一次
+     */
+    private final AtomicInteger mFilterCount = new AtomicInteger();
+
     public void filter(BaseDanmaku danmaku, int index, int totalsizeInScreen,
                        DanmakuTimer timer, boolean fromCachingTask, DanmakuContext context) {
-        for (IDanmakuFilter<?> f : mFilterArray) {
-            if (f != null) {
-                boolean filtered = f.filter(danmaku, index, totalsizeInScreen, timer, fromCachingTask, context);
-                danmaku.filterResetFlag = context.mGlobalFlagValues.FILTER_RESET_FLAG;
-                if (filtered) {
-                    break;
+        final FilterStat[] pipeline = mPipeline;
+        final int count = mFilterCount.incrementAndGet();
+        final boolean sampling = (count & SAMPLE_INTERVAL_MASK) == 0;
+        for (FilterStat stat : pipeline) {
+            boolean filtered;
+            if (sampling) {
+                long startTime = System.nanoTime();
+                filtered = stat.filter.filter(danmaku, index, totalsizeInScreen, timer, fromCachingTask, context);
+                stat.sampledNanos += System.nanoTime() - startTime;
+                stat.sampledCount++;
+            } else {
+                filtered = stat.filter.filter(danmaku, index, totalsizeInScreen, timer, fromCachingTask, context);
+            }
+            stat.invocations++;
+            if (filtered) {
+                stat.rejections++;
+                break;
+            }
+        }
+        danmaku.filterResetFlag = context.mGlobalFlagValues.FILTER_RESET_FLAG;
+        if ((count & REORDER_INTERVAL_MASK) == 0) {
+            reorderPipeline(pipeline);
+        }
+    }
+
+    private void reorderPipeline(FilterStat[] pipeline) {
+        if (pipeline.length < 2) {
+            return;
+        }
+        FilterStat[] sorted = pipeline.clone();
+        Arrays.sort(sorted, PIPELINE_COMPARATOR);
+        synchronized (filters) {
+            if (mPipeline == pipeline) {  // skip if recompiled meanwhile
+                mPipeline = sorted;
+            }
+        }
+    }
+
+    private void compilePipeline() {
+        synchronized (filters) {
+            FilterStat[] oldPipeline = mPipeline;
+            FilterStat[] pipeline = new FilterStat[filters.size()];
+            int i = 0;
+            for (Entry<String, IDanmakuFilter<?>> entry : filters.entrySet()) {
+                FilterStat stat = null;
+                for (FilterStat old : oldPipeline) {
+                    if (old.filter == entry.getValue()) {
+                        stat = old;
+                        break;
+                    }
+                }
+                if (stat == null) {
+                    stat = new FilterStat(entry.getKey(), entry.getValue(), i);
+                } else {
+                    stat.registeredOrder = i;
                 }
+                pipeline[i++] = stat;
             }
+            Arrays.sort(pipeline, PIPELINE_COMPARATOR);
+            mPipeline = pipeline;
+        }
+    }
+
+    /**
+     * @return 按当前执行顺序排列的过滤器统计数据
+     */
+    public FilterStat[] getFilterStats() {
+        return mPipeline.clone();
+    }
+
+    public void resetFilterStats() {
+        for (FilterStat stat : mPipeline) {
+            stat.reset();
         }
     }
 
@@ -577,6 +1635,95 @@ public class DanmakuFilters {
         return false;
     }
 
+    /**
+     * 与filterSecondary的结果相同, 但不修改弹幕的过滤状态, 供缓存线程提前布局时使用;
+     * 只判断最大行数和防重叠, 其他二级过滤器留到绘制线程上判断
+     */
+    public boolean checkSecondary(BaseDanmaku danmaku, int lines, boolean willHit) {
+        IDanmakuFilter<?>[] filters = mFilterArraySecondary;
+        for (IDanmakuFilter<?> f : filters) {
+            if (f instanceof MaximumLinesFilter) {
+                if (((MaximumLinesFilter) f).isFiltered(danmaku, lines)) {
+                    return true;
+                }
+            } else if (f instanceof OverlappingFilter) {
+                if (((OverlappingFilter) f).isFiltered(danmaku, willHit)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 过滤器配置局部变化时的失效回调, 由持有弹幕列表的一方实现
+     */
+    public interface InvalidationListener {
+
+        /**
+         * @param tag 发生变化的过滤器
+         * @param dependencies 发生变化的过滤器所依赖的属性(DEPENDENCY_*)
+         * @param keys 受影响的属性值, 如新增或移除的用户id/hash
+         * @return 是否已让受影响的弹幕重新过滤, 返回false时调用方需要全局失效
+         */
+        boolean onFilterInvalidated(String tag, int dependencies, Collection<?> keys);
+
+    }
+
+    private volatile InvalidationListener mInvalidationListener;
+
+    public void setInvalidationListener(InvalidationListener listener) {
+        mInvalidationListener = listener;
+    }
+
+    public InvalidationListener getInvalidationListener() {
+        return mInvalidationListener;
+    }
+
+    /**
+     * 只让与keys相关的弹幕重新过滤, 代替GlobalFlagValues.updateFilterFlag;
+     * 成功时由InvalidationListener负责重绘, 调用方不需要再通知配置变化(会触发全量预过滤和重建缓存)
+     *
+     * @return false表示无法定向失效(过滤器依赖DEPENDENCY_ALL或没有InvalidationListener), 需要updateFilterFlag
+     */
+    public boolean invalidate(String tag, Collection<?> keys) {
+        InvalidationListener listener = mInvalidationListener;
+        IDanmakuFilter<?> filter = filters.get(tag);
+        if (listener == null || keys == null || !(filter instanceof BaseDanmakuFilter)) {
+            return false;
+        }
+        int dependencies = ((BaseDanmakuFilter<?>) filter).getDependencies();
+        if (dependencies == DEPENDENCY_ALL) {
+            return false;
+        }
+        return listener.onFilterInvalidated(tag, dependencies, keys);
+    }
+
+    /**
+     * 只用tag对应的屏蔽名单重新判断弹幕, 其他过滤器(包括有状态的数量/合并过滤器)的结果保持不变
+     *
+     * @return false表示不能只判断这一个过滤器, 需要完整重新过滤: 弹幕没有当前的过滤结果,
+     * 或者原本被该过滤器拦截而现在不再拦截(管线在拦截处中断, 之后的过滤器没有执行过)
+     */
+    public boolean refilter(BaseDanmaku danmaku, String tag, DanmakuContext context) {
+        IDanmakuFilter<?> filter = filters.get(tag);
+        if (!(filter instanceof UserFilter)
+                || danmaku.filterResetFlag != context.mGlobalFlagValues.FILTER_RESET_FLAG) {
+            return false;
+        }
+        UserFilter<?> userFilter = (UserFilter<?>) filter;
+        int filterType = userFilter.getFilterType();
+        boolean filtered = userFilter.isFiltered(danmaku);
+        int param = danmaku.mFilterParam;
+        if (filtered) {
+            if ((param & filterType) == 0) {
+                danmaku.mFilterParam = param | filterType;
+            }
+            return true;
+        }
+        return (param & filterType) == 0;
+    }
+
     private final Map<String, IDanmakuFilter<?>> filters = Collections
             .synchronizedSortedMap(new TreeMap<String, IDanmakuFilter<?>>());
     private final Map<String, IDanmakuFilter<?>> filtersSecondary = Collections
@@ -627,6 +1774,10 @@ public class DanmakuFilters {
                 filter = new MaximumLinesFilter();
             } else if (TAG_OVERLAPPING_FILTER.equals(tag)) {
                 filter = new OverlappingFilter();
+            } else if (TAG_NEAR_DUPLICATE_FILTER.equals(tag)) {
+                filter = new NearDuplicateMergingFilter();
+            } else if (TAG_KEYWORD_FILTER.equals(tag)) {
+                filter = new KeywordFilter();
             }
         }
         if (filter == null) {
@@ -637,6 +1788,7 @@ public class DanmakuFilters {
         if (primary) {
             filters.put(tag, filter);
             mFilterArray = filters.values().toArray(mFilterArray);
+            compilePipeline();
         } else {
             filtersSecondary.put(tag, filter);
             mFilterArraySecondary = filtersSecondary.values().toArray(mFilterArraySecondary);
@@ -647,6 +1799,7 @@ public class DanmakuFilters {
     public void registerFilter(BaseDanmakuFilter filter) {
         filters.put(TAG_PRIMARY_CUSTOM_FILTER + "_" + filter.hashCode(), filter);
         mFilterArray = filters.values().toArray(mFilterArray);
+        compilePipeline();
     }
 
     public void unregisterFilter(String tag) {
@@ -659,6 +1812,7 @@ public class DanmakuFilters {
             f.clear();
             if (primary) {
                 mFilterArray = filters.values().toArray(mFilterArray);
+                compilePipeline();
             } else {
                 mFilterArraySecondary = filtersSecondary.values().toArray(mFilterArraySecondary);
             }
@@ -668,6 +1822,7 @@ public class DanmakuFilters {
     public void unregisterFilter(BaseDanmakuFilter filter) {
         filters.remove(TAG_PRIMARY_CUSTOM_FILTER + "_" + filter.hashCode());
         mFilterArray = filters.values().toArray(mFilterArray);
+        compilePipeline();
     }
 
     public void clear() {
@@ -696,6 +1851,7 @@ public class DanmakuFilters {
         clear();
         filters.clear();
         mFilterArray = new IDanmakuFilter[0];
+        compilePipeline();
         filtersSecondary.clear();
         mFilterArraySecondary = new IDanmakuFilter[0];
     }
@@ -0,0 +1,223 @@
+package master.flame.danmaku.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import master.flame.danmaku.danmaku.model.android.DanmakuContext;
+import master.flame.danmaku.danmaku.util.SystemClock;
+
+/**
+ * 闭环同屏弹幕密度控制
+ * 根据每帧实际绘制耗时(RenderingState.consumingTime)以AIMD方式调整QuantityDanmakuFilter的同屏数量上限:
+ * 平滑后的耗时持续超出预算时乘性减小, 持续明显低于预算时加性增大, 两个阈值之间不做调整(滞回)
+ * 上限变化后更新过滤标记, 预过滤的结果失效, 弹幕按新的上限重新过滤
+ */
+public class DensityController {
+
+    public static final long DEFAULT_TARGET_FRAME_TIME = 12;
+
+    /**
+     * 调用setSizeRange之前允许调整到的最大值
+     */
+    public static final int DEFAULT_MAX_SIZE = 100;
+
+    public static final int DEFAULT_MIN_SIZE = 5;
+
+    public static final int REASON_OVER_BUDGET = 1;
+
+    public static final int REASON_UNDER_BUDGET = 2;
+
+    /**
+     * 平滑耗时超过 预算 * OVER_BUDGET_RATIO 才算超出预算
+     */
+    private static final float OVER_BUDGET_RATIO = 1.15f;
+
+    /**
+     * 平滑耗时低于 预算 * UNDER_BUDGET_RATIO 才算低于预算
+     */
+    private static final float UNDER_BUDGET_RATIO = 0.7f;
+
+    /**
+     * 连续超出预算的帧数达到后减小上限
+     */
+    private static final int OVER_BUDGET_FRAMES = 3;
+
+    /**
+     * 连续低于预算的帧数达到后增大上限
+     */
+    private static final int UNDER_BUDGET_FRAMES = 20;
+
+    private static final float DECREASE_FACTOR = 0.75f;
+
+    private static final int INCREASE_STEP = 1;
+
+    /**
+     * 减小上限后等待屏幕上的弹幕逐渐减少, 这段时间内不再减小
+     */
+    private static final long DECREASE_COOLDOWN = 1000;
+
+    private static final int TRACE_CAPACITY = 64;
+
+    /**
+     * 一次调整决策, 用于调参
+     */
+    public static class Decision {
+
+        public long time;
+
+        public long frameTime;
+
+        public float smoothedFrameTime;
+
+        public int oldSize;
+
+        public int newSize;
+
+        public int reason;
+
+        @Override
+        public String toString() {
+            return "Decision{time=" + time + ", frameTime=" + frameTime + ", smoothed=" + smoothedFrameTime
+                    + ", " + oldSize + " -> " + newSize + ", reason=" + (reason == REASON_OVER_BUDGET ? "over" : "under") + "}";
+        }
+    }
+
+    public interface Listener {
+
+        void onDecision(Decision decision);
+
+    }
+
+    private final DanmakuContext mContext;
+
+    private final long mTargetFrameTime;
+
+    private volatile int mMinSize = DEFAULT_MIN_SIZE;
+
+    private volatile int mMaxSize = DEFAULT_MAX_SIZE;
+
+    private int mCurrentSize;
+
+    private float mSmoothedFrameTime = -1;
+
+    private int mOverBudgetFrames;
+
+    private int mUnderBudgetFrames;
+
+    private long mLastDecreaseTime;
+
+    private final Decision[] mTrace = new Decision[TRACE_CAPACITY];
+
+    private int mTraceCount;
+
+    private Listener mListener;
+
+    public DensityController(DanmakuContext context, long targetFrameTime) {
+        mContext = context;
+        mTargetFrameTime = targetFrameTime > 0 ? targetFrameTime : DEFAULT_TARGET_FRAME_TIME;
+    }
+
+    /**
+     * 设置上限的调整范围并从最大值开始
+     */
+    public synchronized void setSizeRange(int minSize, int maxSize) {
+        mMaxSize = Math.max(1, maxSize);
+        mMinSize = Math.max(1, Math.min(minSize, mMaxSize));
+        mSmoothedFrameTime = -1;
+        mOverBudgetFrames = mUnderBudgetFrames = 0;
+        mCurrentSize = mMaxSize;
+        apply(mMaxSize);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public long getTargetFrameTime() {
+        return mTargetFrameTime;
+    }
+
+    public synchronized int getCurrentSize() {
+        return mCurrentSize;
+    }
+
+    public synchronized float getSmoothedFrameTime() {
+        return mSmoothedFrameTime;
+    }
+
+    public void onFrameRendered(long frameTime) {
+        onFrameRendered(frameTime, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * 每绘制一帧调用一次
+     *
+     * @param frameTime 本帧绘制耗时
+     * @param now 当前时间
+     */
+    public synchronized void onFrameRendered(long frameTime, long now) {
+        if (mSmoothedFrameTime < 0) {
+            mSmoothedFrameTime = frameTime;
+        } else {
+            mSmoothedFrameTime += (frameTime - mSmoothedFrameTime) / 8f;
+        }
+        if (mSmoothedFrameTime > mTargetFrameTime * OVER_BUDGET_RATIO) {
+            mUnderBudgetFrames = 0;
+            if (++mOverBudgetFrames >= OVER_BUDGET_FRAMES && mCurrentSize > mMinSize
+                    && now - mLastDecreaseTime >= DECREASE_COOLDOWN) {
+                mOverBudgetFrames = 0;
+                mLastDecreaseTime = now;
+                decide(Math.max(mMinSize, (int) (mCurrentSize * DECREASE_FACTOR)), frameTime, now, REASON_OVER_BUDGET);
+            }
+        } else if (mSmoothedFrameTime < mTargetFrameTime * UNDER_BUDGET_RATIO) {
+            mOverBudgetFrames = 0;
+            if (++mUnderBudgetFrames >= UNDER_BUDGET_FRAMES && mCurrentSize < mMaxSize) {
+                mUnderBudgetFrames = 0;
+                decide(Math.min(mMaxSize, mCurrentSize + INCREASE_STEP), frameTime, now, REASON_UNDER_BUDGET);
+            }
+        } else {
+            mOverBudgetFrames = mUnderBudgetFrames = 0;
+        }
+    }
+
+    /**
+     * @return 最近的调整决策, 按时间先后排列
+     */
+    public synchronized List<Decision> getTrace() {
+        int size = Math.min(mTraceCount, TRACE_CAPACITY);
+        List<Decision> trace = new ArrayList<>(size);
+        for (int i = mTraceCount - size; i < mTraceCount; i++) {
+            trace.add(mTrace[i % TRACE_CAPACITY]);
+        }
+        return trace;
+    }
+
+    private void decide(int newSize, long frameTime, long now, int reason) {
+        Decision decision = new Decision();
+        decision.time = now;
+        decision.frameTime = frameTime;
+        decision.smoothedFrameTime = mSmoothedFrameTime;
+        decision.oldSize = mCurrentSize;
+        decision.newSize = newSize;
+        decision.reason = reason;
+        mTrace[mTraceCount % TRACE_CAPACITY] = decision;
+        mTraceCount++;
+        mCurrentSize = newSize;
+        apply(newSize);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onDecision(decision);
+        }
+    }
+
+    /**
+     * 把上限交给QuantityDanmakuFilter并使过滤结果失效, 测试时可覆盖
+     */
+    void apply(int size) {
+        DanmakuFilters.QuantityDanmakuFilter filter = (DanmakuFilters.QuantityDanmakuFilter) mContext.mDanmakuFilters
+                .get(DanmakuFilters.TAG_QUANTITY_DANMAKU_FILTER);
+        filter.setMaximumSize(size);
+        mContext.onMaximumSizeAdjusted(size);
+    }
+
+}
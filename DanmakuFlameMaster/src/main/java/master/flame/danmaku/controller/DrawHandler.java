@@ -747,6 +747,10 @@ public class DrawHandler extends Handler {
         mDisp.setExtraData(canvas);
         mRenderingState.set(drawTask.draw(mDisp));
         recordRenderingTime();
+        DensityController densityController = mContext.getDensityController();
+        if (densityController != null && !mRenderingState.nothingRendered) {
+            densityController.onFrameRendered(mRenderingState.consumingTime);
+        }
         return mRenderingState;
     }
 
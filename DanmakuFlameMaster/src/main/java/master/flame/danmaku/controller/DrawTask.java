@@ -18,18 +18,24 @@ package master.flame.danmaku.controller;
 
 import android.graphics.Canvas;
 
+import java.util.Collection;
+import java.util.List;
+
 import master.flame.danmaku.danmaku.model.AbsDisplayer;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.DanmakuTimer;
 import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.model.android.BaseCacheStuffer;
 import master.flame.danmaku.danmaku.model.android.DanmakuContext;
 import master.flame.danmaku.danmaku.model.android.DanmakuContext.ConfigChangedCallback;
 import master.flame.danmaku.danmaku.model.android.DanmakuContext.DanmakuConfigTag;
 import master.flame.danmaku.danmaku.model.android.Danmakus;
+import master.flame.danmaku.danmaku.model.android.PartitionedDanmakus;
 import master.flame.danmaku.danmaku.parser.BaseDanmakuParser;
 import master.flame.danmaku.danmaku.renderer.IRenderer;
 import master.flame.danmaku.danmaku.renderer.IRenderer.RenderingState;
 import master.flame.danmaku.danmaku.renderer.android.DanmakuRenderer;
+import master.flame.danmaku.danmaku.renderer.android.LayoutPlanner;
 import master.flame.danmaku.danmaku.util.SystemClock;
 
 public class DrawTask implements IDrawTask {
@@ -74,6 +80,22 @@ public class DrawTask implements IDrawTask {
 
     private boolean mRequestRender;
 
+    private final UserDanmakuIndex mUserIndex = new UserDanmakuIndex();
+
+    private final DanmakuFilters.InvalidationListener mInvalidationListener = new DanmakuFilters.InvalidationListener() {
+        @Override
+        public boolean onFilterInvalidated(String tag, int dependencies, Collection<?> keys) {
+            return DrawTask.this.onFilterInvalidated(tag, dependencies, keys);
+        }
+    };
+
+    private final DanmakuContext.TrimMemoryListener mTrimMemoryListener = new DanmakuContext.TrimMemoryListener() {
+        @Override
+        public void onTrimMemory(int level) {
+            DrawTask.this.onTrimMemory(level);
+        }
+    };
+
     private ConfigChangedCallback mConfigChangedCallback = new ConfigChangedCallback() {
         @Override
         public boolean onDanmakuConfigChanged(DanmakuContext config, DanmakuConfigTag tag, Object... values) {
@@ -136,6 +158,9 @@ public class DrawTask implements IDrawTask {
         synchronized (danmakuList) {
             added = danmakuList.addItem(item);
         }
+        if (added) {
+            mUserIndex.add(item);
+        }
         if (!subAdded || !added) {
             mLastBeginMills = mLastEndMills = 0;
         }
@@ -173,6 +198,7 @@ public class DrawTask implements IDrawTask {
             }
             danmakuList.clear();
         }
+        mUserIndex.reset();
     }
 
     protected void onDanmakuRemoved(BaseDanmaku danmaku) {
@@ -188,6 +214,7 @@ public class DrawTask implements IDrawTask {
                 @Override
                 public int accept(BaseDanmaku danmaku) {
                     if (danmaku.isLive) {
+                        mUserIndex.remove(danmaku);
                         onDanmakuRemoved(danmaku);
                         return ACTION_REMOVE;
                     }
@@ -211,6 +238,7 @@ public class DrawTask implements IDrawTask {
                 }
                 if (isTimeout) {
                     danmakuList.removeItem(danmaku);
+                    mUserIndex.remove(danmaku);
                     onDanmakuRemoved(danmaku);
                     return ACTION_REMOVE;
                 } else {
@@ -253,7 +281,12 @@ public class DrawTask implements IDrawTask {
 
     @Override
     public synchronized RenderingState draw(AbsDisplayer displayer) {
-        return drawDanmakus(displayer,mTimer);
+        RenderingState renderingState = drawDanmakus(displayer,mTimer);
+        BaseCacheStuffer stuffer = displayer.getCacheStuffer();
+        if (stuffer != null) {
+            stuffer.onFrameRendered();
+        }
+        return renderingState;
     }
 
     @Override
@@ -296,11 +329,19 @@ public class DrawTask implements IDrawTask {
     @Override
     public void start() {
         mContext.registerConfigChangedCallback(mConfigChangedCallback);
+        mContext.mDanmakuFilters.setInvalidationListener(mInvalidationListener);
+        mContext.setTrimMemoryListener(mTrimMemoryListener);
     }
 
     @Override
     public void quit() {
         mContext.unregisterAllConfigChangedCallbacks();
+        if (mContext.mDanmakuFilters.getInvalidationListener() == mInvalidationListener) {
+            mContext.mDanmakuFilters.setInvalidationListener(null);
+        }
+        if (mContext.getTrimMemoryListener() == mTrimMemoryListener) {
+            mContext.setTrimMemoryListener(null);
+        }
         if (mRenderer != null)
             mRenderer.release();
     }
@@ -331,12 +372,76 @@ public class DrawTask implements IDrawTask {
                 }
             }
         }).getDanmakus();
+        if (danmakuList != null && mContext.isPartitionedTimelineEnabled()) {
+            danmakuList = new PartitionedDanmakus(danmakuList);
+        }
+        mUserIndex.reset();
         mContext.mGlobalFlagValues.resetAll();
         if(danmakuList != null) {
             mLastDanmaku = danmakuList.last();
         }
     }
 
+    /**
+     * 屏蔽名单等局部变化时只让相关用户的弹幕重新过滤, 其余弹幕的过滤结果保持不变
+     */
+    protected boolean onFilterInvalidated(String tag, int dependencies, Collection<?> keys) {
+        if (dependencies != DanmakuFilters.DEPENDENCY_USER) {
+            return false;
+        }
+        IDanmakus list = danmakuList;
+        if (list == null) {
+            return false;
+        }
+        if (!mUserIndex.isBuilt()) {
+            synchronized (list) {
+                mUserIndex.build(list);
+            }
+        }
+        List<BaseDanmaku> affected = mUserIndex.get(keys);
+        if (affected == null) {
+            return false;
+        }
+        if (affected.isEmpty()) {
+            return true;
+        }
+        LayoutPlanner layoutPlanner = mContext.getLayoutPlanner();
+        if (layoutPlanner != null) {
+            // 重新显示的弹幕不在原有计划中
+            layoutPlanner.invalidate();
+        }
+        refilter(tag, affected);
+        return true;
+    }
+
+    /**
+     * 只用发生变化的过滤器重新判断受影响的弹幕, 并在暂停时重绘
+     */
+    protected void refilter(String tag, List<BaseDanmaku> danmakus) {
+        refilterByTag(tag, danmakus);
+        if (mTaskListener != null) {
+            mTaskListener.onDanmakuConfigChanged();
+        }
+    }
+
+    /**
+     * 不能只判断该过滤器的弹幕(如被移出屏蔽名单)标记为失效, 由用到时按实际序号完整重新过滤,
+     * 不会用错误的序号执行数量/合并等有状态的过滤器
+     *
+     * @return 是否有弹幕需要完整重新过滤
+     */
+    protected boolean refilterByTag(String tag, List<BaseDanmaku> danmakus) {
+        DanmakuFilters filters = mContext.mDanmakuFilters;
+        boolean reset = false;
+        for (BaseDanmaku danmaku : danmakus) {
+            if (!filters.refilter(danmaku, tag, mContext)) {
+                danmaku.filterResetFlag = -1;
+                reset = true;
+            }
+        }
+        return reset;
+    }
+
     public void setParser(BaseDanmakuParser parser) {
         mParser = parser;
         mReadyState = false;
@@ -452,6 +557,14 @@ public class DrawTask implements IDrawTask {
         return handled;
     }
 
+    /**
+     * 宿主转发的内存紧张通知, 没有缓存时不需要处理
+     *
+     * @param level {@link android.content.ComponentCallbacks2}.TRIM_MEMORY_*
+     */
+    protected void onTrimMemory(int level) {
+    }
+
     protected boolean handleOnDanmakuConfigChanged(DanmakuContext config, DanmakuConfigTag tag, Object[] values) {
         boolean handled = false;
         if (tag == null || DanmakuConfigTag.MAXIMUM_NUMS_IN_SCREEN.equals(tag)) {
@@ -482,6 +595,23 @@ public class DrawTask implements IDrawTask {
                 }
                 handled = true;
             }
+        } else if (DanmakuConfigTag.LANE_LAYOUT_ENABLED.equals(tag)) {
+            Integer type = (Integer) values[0];
+            Boolean enable = (Boolean) values[1];
+            if (type != null && enable != null) {
+                if (mRenderer != null) {
+                    mRenderer.setLaneLayoutEnabled(type, enable);
+                }
+                handled = true;
+            }
+        } else if (DanmakuConfigTag.INTERVAL_LAYOUT_ENABLED.equals(tag)) {
+            Boolean enable = (Boolean) values[0];
+            if (enable != null) {
+                if (mRenderer != null) {
+                    mRenderer.setIntervalLayoutEnabled(enable);
+                }
+                handled = true;
+            }
         }
         return handled;
     }
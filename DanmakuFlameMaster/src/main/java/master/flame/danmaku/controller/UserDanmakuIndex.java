@@ -0,0 +1,127 @@
+package master.flame.danmaku.controller;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+
+/**
+ * 按用户id/hash索引弹幕, 屏蔽名单变化时只需重新过滤相关用户的弹幕
+ * 第一次使用时才从弹幕列表构建
+ * 大部分弹幕没有用户id(默认值0), 不建索引, 屏蔽名单涉及0时由调用方整体重新过滤
+ */
+public class UserDanmakuIndex {
+
+    public static final int UNKNOWN_USER_ID = 0;
+
+    private final SparseArray<Set<BaseDanmaku>> mByUserId = new SparseArray<>();
+
+    private final HashMap<String, Set<BaseDanmaku>> mByUserHash = new HashMap<>();
+
+    private boolean mBuilt;
+
+    public synchronized boolean isBuilt() {
+        return mBuilt;
+    }
+
+    public synchronized void build(IDanmakus danmakus) {
+        reset();
+        danmakus.forEachSync(new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                put(danmaku);
+                return ACTION_CONTINUE;
+            }
+        });
+        mBuilt = true;
+    }
+
+    /**
+     * 尚未构建时忽略, 构建时会从弹幕列表中取到
+     */
+    public synchronized void add(BaseDanmaku danmaku) {
+        if (mBuilt) {
+            put(danmaku);
+        }
+    }
+
+    public synchronized void remove(BaseDanmaku danmaku) {
+        if (!mBuilt) {
+            return;
+        }
+        if (danmaku.userId != UNKNOWN_USER_ID) {
+            Set<BaseDanmaku> set = mByUserId.get(danmaku.userId);
+            if (set != null) {
+                set.remove(danmaku);
+                if (set.isEmpty()) {
+                    mByUserId.remove(danmaku.userId);
+                }
+            }
+        }
+        if (danmaku.userHash != null) {
+            Set<BaseDanmaku> set = mByUserHash.get(danmaku.userHash);
+            if (set != null) {
+                set.remove(danmaku);
+                if (set.isEmpty()) {
+                    mByUserHash.remove(danmaku.userHash);
+                }
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        mByUserId.clear();
+        mByUserHash.clear();
+        mBuilt = false;
+    }
+
+    /**
+     * @param keys Integer为用户id, String为用户hash
+     * @return 这些用户发送的弹幕; keys包含UNKNOWN_USER_ID时返回null
+     */
+    public synchronized List<BaseDanmaku> get(Collection<?> keys) {
+        List<BaseDanmaku> result = new ArrayList<>();
+        for (Object key : keys) {
+            Set<BaseDanmaku> set = null;
+            if (key instanceof Integer) {
+                if ((Integer) key == UNKNOWN_USER_ID) {
+                    return null;
+                }
+                set = mByUserId.get((Integer) key);
+            } else if (key instanceof String) {
+                set = mByUserHash.get(key);
+            }
+            if (set != null) {
+                result.addAll(set);
+            }
+        }
+        return result;
+    }
+
+    private void put(BaseDanmaku danmaku) {
+        if (danmaku.userId != UNKNOWN_USER_ID) {
+            Set<BaseDanmaku> set = mByUserId.get(danmaku.userId);
+            if (set == null) {
+                set = new HashSet<>();
+                mByUserId.put(danmaku.userId, set);
+            }
+            set.add(danmaku);
+        }
+        if (danmaku.userHash != null) {
+            Set<BaseDanmaku> set = mByUserHash.get(danmaku.userHash);
+            if (set == null) {
+                set = new HashSet<>();
+                mByUserHash.put(danmaku.userHash, set);
+            }
+            set.add(danmaku);
+        }
+    }
+
+}
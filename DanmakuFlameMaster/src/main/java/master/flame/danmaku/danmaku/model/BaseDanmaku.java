@@ -203,10 +203,37 @@ public abstract class BaseDanmaku {
      */
     protected int alpha = AlphaValue.MAX;
 
+    /**
+     * 主过滤器的过滤结果, DanmakuFilters.FILTER_TYPE_*的组合, 0为通过
+     * 通常由缓存线程提前算好, 绘制线程只读取
+     */
     public int mFilterParam = 0;
 
+    /**
+     * mFilterParam对应的GlobalFlagValues.FILTER_RESET_FLAG, 不相等时过滤结果已失效
+     */
     public int filterResetFlag = -1;
 
+    /**
+     * 提前布局(LayoutPlanner)的版本, 与计划器当前版本不相等时planned*已失效
+     */
+    public int planFlag = 0;
+
+    /**
+     * 计划的top
+     */
+    public float plannedTop;
+
+    /**
+     * 计划时的行号, 用于二级过滤
+     */
+    public int plannedLines;
+
+    /**
+     * 计划时是否会与其他弹幕重叠
+     */
+    public boolean plannedWillHit;
+
     public GlobalFlagValues flags = null;
 
     public int requestFlags = 0;
@@ -34,6 +34,11 @@ public class R2LDanmaku extends BaseDanmaku {
 
     protected float mStepX;
 
+    /**
+     * 完全进入屏幕所需的时间, measure时算出
+     */
+    protected float mEnterDuration;
+
     protected long mLastTime;
 
     public R2LDanmaku(Duration duration) {
@@ -107,12 +112,60 @@ public class R2LDanmaku extends BaseDanmaku {
     public int getType() {
         return TYPE_SCROLL_RL;
     }
+
+    /**
+     * @return 每毫秒移动的距离, measure之后有效
+     */
+    public float getStepX() {
+        return mStepX;
+    }
+
+    /**
+     * @return time时的右边界, 不修改RECT
+     */
+    public float getRightAtTime(IDisplayer displayer, long time) {
+        return getAccurateLeft(displayer, time) + paintWidth;
+    }
+
+    /**
+     * @return 弹幕尾部离开入场边缘的时间, 之后同一行才能进入新的弹幕
+     */
+    public float getFullyEnteredTime() {
+        return getActualTime() + mEnterDuration;
+    }
+
+    /**
+     * 速度为followerStep的弹幕跟在本弹幕后面, 最早在什么时间出现才不会碰撞:
+     * 出现时本弹幕已完全进入屏幕, 并且本弹幕离开屏幕前它不会到达屏幕另一边
+     */
+    public float getEarliestFollowTime(float followerStep, int screenWidth) {
+        return Math.max(getFullyEnteredTime(), getActualTime() + duration.value - screenWidth / followerStep);
+    }
+
+    /**
+     * 与DanmakuUtils.willHitInDuration中按currTime和本弹幕结束时间取两次矩形比较的结果相同, 不调用getRectAtTime
+     * 左右滚动的位置互为镜像, L2RDanmaku的结果也相同
+     *
+     * @param follower 晚于本弹幕出现的同类型弹幕, 两个弹幕都已measure且在currTime时未超时
+     */
+    public boolean willHit(R2LDanmaku follower, long currTime, int screenWidth) {
+        long followerTime = follower.getActualTime();
+        long followerDuration = follower.duration.value;
+        // currTime时后者头部已追上前者尾部
+        if ((currTime - followerTime) * follower.mStepX > (currTime - getFullyEnteredTime()) * mStepX) {
+            return true;
+        }
+        // 前者离开屏幕时后者头部已到达屏幕另一边
+        long elapsed = getActualTime() + duration.value - followerTime;
+        return elapsed >= followerDuration || elapsed * follower.mStepX > screenWidth;
+    }
     
     @Override
     public void measure(IDisplayer displayer, boolean fromWorkerThread) {
         super.measure(displayer, fromWorkerThread);
         mDistance = (int) (displayer.getWidth() + paintWidth);
         mStepX = mDistance / (float) duration.value;
+        mEnterDuration = paintWidth / mStepX;
     }
 
 }
@@ -105,6 +105,23 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
         private int margin = 0;
         private int allMarginTop = 0;
 
+        /**
+         * 缓存绘制工作线程各自的画笔, 见{@link #attachWorkerThread()}
+         */
+        private static class WorkerPaints {
+            TextPaint paint;
+            Paint underlinePaint;
+            Paint borderPaint;
+            int paintVersion = -1;
+        }
+
+        private final ThreadLocal<WorkerPaints> mWorkerPaints = new ThreadLocal<>();
+
+        /**
+         * PAINT的字体, 描边宽度和粗体设置变化时增加, 工作线程据此重新复制PAINT
+         */
+        private volatile int mPaintVersion;
+
         public DisplayerConfig() {
             PAINT = new TextPaint();
             PAINT.setStrokeWidth(STROKE_WIDTH);
@@ -120,15 +137,21 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
 
         public void setTypeface(Typeface typeface) {
             this.PAINT.setTypeface(typeface);
+            mPaintVersion++;
         }
 
         public void setShadowRadius(float shadowRadius) {
             SHADOW_RADIUS = shadowRadius;
         }
 
+        public float getShadowRadius() {
+            return SHADOW_RADIUS;
+        }
+
         public void setStrokeWidth(float s) {
             PAINT.setStrokeWidth(s);
             STROKE_WIDTH = s;
+            mPaintVersion++;
         }
 
         public void setProjectionConfig(float offsetX, float offsetY, int alpha) {
@@ -141,6 +164,40 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
 
         public void setFakeBoldText(boolean fakeBoldText) {
             PAINT.setFakeBoldText(fakeBoldText);
+            mPaintVersion++;
+        }
+
+        /**
+         * 当前线程之后通过getPaint(danmaku, true), getUnderlinePaint和getBorderPaint取得线程自己的画笔,
+         * 多个线程可以同时绘制缓存
+         */
+        public void attachWorkerThread() {
+            WorkerPaints worker = new WorkerPaints();
+            worker.paint = new TextPaint();
+            worker.underlinePaint = new Paint(UNDERLINE_PAINT);
+            worker.borderPaint = new Paint(BORDER_PAINT);
+            mWorkerPaints.set(worker);
+        }
+
+        public void detachWorkerThread() {
+            mWorkerPaints.remove();
+        }
+
+        public boolean isWorkerThreadAttached() {
+            return mWorkerPaints.get() != null;
+        }
+
+        /**
+         * PAINT的设置变化后复制到当前工作线程的画笔, 由AndroidDisplayer持锁调用;
+         * 之后getPaint(danmaku, true)不再读取PAINT
+         */
+        void syncWorkerPaint() {
+            WorkerPaints worker = mWorkerPaints.get();
+            int version = mPaintVersion;
+            if (worker != null && worker.paintVersion != version) {
+                worker.paint.set(PAINT);
+                worker.paintVersion = version;
+            }
         }
 
         public void setTransparency(int newTransparency) {
@@ -153,10 +210,15 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
             scaleTextSize = factor;
         }
 
-        private void applyTextScaleConfig(BaseDanmaku danmaku, Paint paint) {
+        private void applyTextScaleConfig(BaseDanmaku danmaku, Paint paint, boolean shared) {
             if (!isTextScaled) {
                 return;
             }
+            if (!shared) {
+                // 工作线程不访问共用的尺寸缓存
+                paint.setTextSize(danmaku.textSize * scaleTextSize);
+                return;
+            }
             Float size = sCachedScaleSize.get(danmaku.textSize);
             if (size == null || sLastScaleTextSize != scaleTextSize) {
                 sLastScaleTextSize = scaleTextSize;
@@ -170,29 +232,51 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
             return (HAS_STROKE || HAS_PROJECTION) && STROKE_WIDTH > 0 && danmaku.textShadowColor != 0;
         }
 
+        public boolean hasShadow(BaseDanmaku danmaku) {
+            return HAS_SHADOW && SHADOW_RADIUS > 0 && danmaku.textShadowColor != 0;
+        }
+
+        /**
+         * 按CONFIG_*判断是否会绘制描边/投影/阴影, 可在definePaintParams之前调用
+         */
+        public boolean hasOutline(BaseDanmaku danmaku) {
+            if (danmaku.textShadowColor == 0) {
+                return false;
+            }
+            return (CONFIG_HAS_STROKE || CONFIG_HAS_PROJECTION) && STROKE_WIDTH > 0 || CONFIG_HAS_SHADOW && SHADOW_RADIUS > 0;
+        }
+
         public Paint getBorderPaint(BaseDanmaku danmaku) {
-            BORDER_PAINT.setColor(danmaku.borderColor);
-            return BORDER_PAINT;
+            WorkerPaints worker = mWorkerPaints.get();
+            Paint paint = worker != null ? worker.borderPaint : BORDER_PAINT;
+            paint.setColor(danmaku.borderColor);
+            return paint;
         }
 
         public Paint getUnderlinePaint(BaseDanmaku danmaku) {
-            UNDERLINE_PAINT.setColor(danmaku.underlineColor);
-            return UNDERLINE_PAINT;
+            WorkerPaints worker = mWorkerPaints.get();
+            Paint paint = worker != null ? worker.underlinePaint : UNDERLINE_PAINT;
+            paint.setColor(danmaku.underlineColor);
+            return paint;
         }
 
         public TextPaint getPaint(BaseDanmaku danmaku, boolean fromWorkerThread) {
             TextPaint paint;
-            if (fromWorkerThread) {
+            WorkerPaints worker = fromWorkerThread ? mWorkerPaints.get() : null;
+            if (worker != null) {
+                // PAINT的设置已由syncWorkerPaint复制
+                paint = worker.paint;
+            } else if (fromWorkerThread) {
                 paint = PAINT;
             } else {
                 paint = PAINT_DUPLICATE;
                 paint.set(PAINT);
             }
             paint.setTextSize(danmaku.textSize);
-            applyTextScaleConfig(danmaku, paint);
+            applyTextScaleConfig(danmaku, paint, worker == null);
 
             //ignore the transparent textShadowColor
-            if (!HAS_SHADOW || SHADOW_RADIUS <= 0 || danmaku.textShadowColor == 0) {
+            if (!hasShadow(danmaku)) {
                 paint.clearShadowLayer();
             } else {
                 paint.setShadowLayer(SHADOW_RADIUS, 0, 0, danmaku.textShadowColor);
@@ -289,7 +373,7 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
         }
     }
 
-    public void setTypeFace(Typeface font) {
+    public synchronized void setTypeFace(Typeface font) {
         mDisplayConfig.setTypeface(font);
     }
 
@@ -297,7 +381,7 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
         mDisplayConfig.setShadowRadius(s);
     }
 
-    public void setPaintStorkeWidth(float s) {
+    public synchronized void setPaintStorkeWidth(float s) {
         mDisplayConfig.setStrokeWidth(s);
     }
 
@@ -305,7 +389,7 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
         mDisplayConfig.setProjectionConfig(offsetX, offsetY, alpha);
     }
 
-    public void setFakeBoldText(boolean fakeBoldText) {
+    public synchronized void setFakeBoldText(boolean fakeBoldText) {
         mDisplayConfig.setFakeBoldText(fakeBoldText);
     }
 
@@ -435,7 +519,7 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
             }
 
             // drawing cache
-            boolean cacheDrawn = sStuffer.drawCache(danmaku, canvas, left, top, alphaPaint, mDisplayConfig.PAINT);
+            boolean cacheDrawn = sStuffer.drawCache(danmaku, canvas, left, top, alphaPaint, mDisplayConfig.PAINT, mDisplayConfig);
             int result = IRenderer.CACHE_RENDERING;
             if (!cacheDrawn) {
                 if (alphaPaint != null) {
@@ -492,17 +576,93 @@ public class AndroidDisplayer extends AbsDisplayer<Canvas, Typeface> {
     }
 
     @Override
-    public synchronized void drawDanmaku(BaseDanmaku danmaku, Canvas canvas, float left, float top,
-                                         boolean fromWorkerThread) {
-        if (sStuffer != null) {
-            sStuffer.drawDanmaku(danmaku, canvas, left, top, fromWorkerThread, mDisplayConfig);
+    public void drawDanmaku(BaseDanmaku danmaku, Canvas canvas, float left, float top,
+                            boolean fromWorkerThread) {
+        BaseCacheStuffer stuffer = sStuffer;
+        if (fromWorkerThread && stuffer != null && stuffer.isThreadSafe() && mDisplayConfig.isWorkerThreadAttached()) {
+            // 工作线程使用自己的画笔, 只在复制PAINT时互斥
+            synchronized (this) {
+                mDisplayConfig.syncWorkerPaint();
+            }
+            stuffer.drawDanmaku(danmaku, canvas, left, top, true, mDisplayConfig);
+            return;
+        }
+        synchronized (this) {
+            if (sStuffer != null) {
+                if (fromWorkerThread) {
+                    mDisplayConfig.syncWorkerPaint();
+                }
+                sStuffer.drawDanmaku(danmaku, canvas, left, top, fromWorkerThread, mDisplayConfig);
+            }
         }
     }
 
+    /**
+     * 分层绘制只保存覆盖率的缓存, 线程规则同drawDanmaku(danmaku, canvas, left, top, true)
+     *
+     * @param strokeCanvas 描边/投影/阴影层, 没有时为null
+     * @param fillCanvas   文字层
+     */
+    public void drawDanmakuLayers(BaseDanmaku danmaku, Canvas strokeCanvas, Canvas fillCanvas) {
+        BaseCacheStuffer stuffer = sStuffer;
+        if (stuffer != null && stuffer.isThreadSafe() && mDisplayConfig.isWorkerThreadAttached()) {
+            synchronized (this) {
+                mDisplayConfig.syncWorkerPaint();
+            }
+            stuffer.drawDanmakuLayers(danmaku, strokeCanvas, fillCanvas, true, mDisplayConfig);
+            return;
+        }
+        synchronized (this) {
+            if (sStuffer != null) {
+                mDisplayConfig.syncWorkerPaint();
+                sStuffer.drawDanmakuLayers(danmaku, strokeCanvas, fillCanvas, true, mDisplayConfig);
+            }
+        }
+    }
+
+    /**
+     * @return 当前的cacheStuffer能否为danmaku绘制只保存覆盖率的缓存
+     */
+    public boolean isColorAgnostic(BaseDanmaku danmaku) {
+        BaseCacheStuffer stuffer = sStuffer;
+        return stuffer != null && stuffer.isColorAgnostic(danmaku);
+    }
+
+    /**
+     * @return 缓存是否需要描边层
+     */
+    public boolean hasOutline(BaseDanmaku danmaku) {
+        return mDisplayConfig.hasOutline(danmaku);
+    }
+
+    /**
+     * 当前线程作为缓存绘制工作线程, 之后drawDanmaku(danmaku, canvas, left, top, true)使用线程自己的画笔
+     */
+    public void attachWorkerThread() {
+        mDisplayConfig.attachWorkerThread();
+    }
+
+    public void detachWorkerThread() {
+        mDisplayConfig.detachWorkerThread();
+    }
+
     private synchronized TextPaint getPaint(BaseDanmaku danmaku, boolean fromWorkerThread) {
+        if (fromWorkerThread) {
+            mDisplayConfig.syncWorkerPaint();
+        }
         return mDisplayConfig.getPaint(danmaku, fromWorkerThread);
     }
 
+    /**
+     * 在缓存线程为不需要绘制缓存的弹幕准备stuffer的绘制资源, 见{@link BaseCacheStuffer#prepareResource}
+     */
+    public synchronized void prepareResource(BaseDanmaku danmaku) {
+        if (sStuffer != null) {
+            mDisplayConfig.syncWorkerPaint();
+            sStuffer.prepareResource(danmaku, mDisplayConfig);
+        }
+    }
+
     @Override
     public void prepare(BaseDanmaku danmaku, boolean fromWorkerThread) {
         if (sStuffer != null) {
@@ -0,0 +1,71 @@
+package master.flame.danmaku.danmaku.model.android;
+
+/**
+ * 使用{@link DrawingCacheAtlas}中区域的缓存, 绘制时从图集页中截取
+ * 超出图集限制的缓存(过大, 或格式与图集不同)和只保存覆盖率的缓存仍单独创建bitmap
+ */
+public class AtlasDrawingCache extends DrawingCache {
+
+    private final DrawingCacheAtlas mAtlas;
+
+    private final DrawingCacheAtlas.Region mRegion;
+
+    public AtlasDrawingCache(DrawingCacheAtlas atlas) {
+        mAtlas = atlas;
+        mRegion = new DrawingCacheAtlas.Region(mHolder);
+    }
+
+    public DrawingCacheAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    @Override
+    public void build(int w, int h, int density, boolean checkSizeEquals, int bitsPerPixel) {
+        if (bitsPerPixel != mAtlas.getBitsPerPixel() || !mAtlas.canFit(w, h)) {
+            releaseRegion();
+            super.build(w, h, density, checkSizeEquals, bitsPerPixel);
+            return;
+        }
+        if (mRegion.isAllocated()) {
+            int width = mRegion.getWidth(), height = mRegion.getHeight();
+            boolean reuse = checkSizeEquals ? (w == width && h == height) : (w <= width && h <= height);
+            if (reuse) {
+                mHolder.erase();
+                return;
+            }
+            releaseRegion();
+        }
+        mAtlas.allocate(mRegion, w, h, density);
+    }
+
+    @Override
+    public void buildAlpha(int w, int h, int density, boolean checkSizeEquals, boolean strokeLayer) {
+        releaseRegion();
+        super.buildAlpha(w, h, density, checkSizeEquals, strokeLayer);
+    }
+
+    @Override
+    public void destroy() {
+        super.destroy();
+        mAtlas.free(mRegion);
+    }
+
+    /**
+     * 只计区域的像素, 图集页中未分配的部分由缓存管理另外计入容量
+     */
+    @Override
+    public int size() {
+        if (mRegion.isAllocated()) {
+            return mRegion.getWidth() * mRegion.getHeight() * mAtlas.getBitsPerPixel() / 8;
+        }
+        return super.size();
+    }
+
+    private void releaseRegion() {
+        if (mRegion.isAllocated()) {
+            mHolder.recycle();
+            mAtlas.free(mRegion);
+        }
+    }
+
+}
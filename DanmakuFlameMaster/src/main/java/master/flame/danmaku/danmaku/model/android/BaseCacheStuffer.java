@@ -4,6 +4,7 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.text.TextPaint;
 
+import master.flame.danmaku.danmaku.model.AlphaValue;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.IDrawingCache;
 
@@ -27,6 +28,11 @@ public abstract class BaseCacheStuffer {
 
     protected Proxy mProxy;
 
+    /**
+     * 为只保存覆盖率的缓存着色, 只在绘制线程使用
+     */
+    private final Paint mTintPaint = new Paint();
+
     public void prepare(BaseDanmaku danmaku, boolean fromWorkerThread) {
         if (mProxy != null) {
             mProxy.prepareDrawing(danmaku, fromWorkerThread);
@@ -47,17 +53,82 @@ public abstract class BaseCacheStuffer {
 
     public abstract void drawDanmaku(BaseDanmaku danmaku, Canvas canvas, float left, float top, boolean fromWorkerThread, AndroidDisplayer.DisplayerConfig displayerConfig);
 
+    /**
+     * drawDanmaku/drawDanmakuLayers能否在多个缓存绘制工作线程上同时调用, 见{@link AndroidDisplayer#attachWorkerThread()}
+     * 只使用displayerConfig提供的画笔且不修改共用状态时才能返回true, 否则由AndroidDisplayer加锁调用
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * 缓存线程是否需要为danmaku构建绘制缓存; 在drawCache中不用缓存直接绘制的stuffer返回false
+     */
+    public boolean needsDrawingCache(BaseDanmaku danmaku) {
+        return true;
+    }
+
+    /**
+     * 缓存线程为不需要绘制缓存的弹幕提前准备绘制资源(如绘制字形), 避免在绘制线程上准备;
+     * 由AndroidDisplayer持锁调用, 线程规则同drawDanmaku(fromWorkerThread = true)
+     */
+    public void prepareResource(BaseDanmaku danmaku, AndroidDisplayer.DisplayerConfig displayerConfig) {
+
+    }
+
+    /**
+     * 绘制线程每完成一帧调用一次, 可在此回收上一帧之前的绘制还可能引用的资源
+     */
+    public void onFrameRendered() {
+
+    }
+
+    /**
+     * @return stuffer自己持有的绘制资源(如字形图集)占用的内存, 计入缓存容量
+     */
+    public long getResourceBytes() {
+        return 0;
+    }
+
+    /**
+     * 能否只缓存danmaku的覆盖率(ALPHA_8), 绘制时用textColor和textShadowColor着色, 见{@link CachingPolicy#alphaOnlyCache}
+     * 返回true时需实现drawDanmakuLayers; 绘制内容的颜色不只来自这两个颜色时(背景, 下划线, 边框, Span等)应返回false
+     */
+    public boolean isColorAgnostic(BaseDanmaku danmaku) {
+        return false;
+    }
+
+    /**
+     * 分层绘制覆盖率: 描边/投影/阴影画到strokeCanvas, 文字画到fillCanvas, 都以(0, 0)为左上角
+     *
+     * @param strokeCanvas 没有描边层时为null
+     */
+    public void drawDanmakuLayers(BaseDanmaku danmaku, Canvas strokeCanvas, Canvas fillCanvas, boolean fromWorkerThread, AndroidDisplayer.DisplayerConfig displayerConfig) {
+
+    }
+
     public boolean drawCache(BaseDanmaku danmaku, Canvas canvas, float left, float top, Paint alphaPaint, TextPaint paint) {
         IDrawingCache<?> cache = danmaku.getDrawingCache();
         if (cache != null) {
             DrawingCacheHolder holder = (DrawingCacheHolder) cache.get();
             if (holder != null) {
+                if (holder.isAlphaOnly()) {
+                    int alpha = alphaPaint != null ? alphaPaint.getAlpha() : AlphaValue.MAX;
+                    return holder.drawTinted(canvas, left, top, mTintPaint, danmaku.textShadowColor, danmaku.textColor, alpha);
+                }
                 return holder.draw(canvas, left, top, alphaPaint);
             }
         }
         return false;
     }
 
+    /**
+     * 需要当前绘制参数(样式, 透明度等)的stuffer重写这个方法, 默认同drawCache(danmaku, canvas, left, top, alphaPaint, paint)
+     */
+    public boolean drawCache(BaseDanmaku danmaku, Canvas canvas, float left, float top, Paint alphaPaint, TextPaint paint, AndroidDisplayer.DisplayerConfig displayerConfig) {
+        return drawCache(danmaku, canvas, left, top, alphaPaint, paint);
+    }
+
     public void clearCache(BaseDanmaku danmaku) {
 
     }
@@ -0,0 +1,362 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import tv.cjump.jni.NativeBitmapFactory;
+
+/**
+ * 缓存bitmap的分级池: 宽高分别向上取整到尺寸级别(16, 24, 32, 48, 64, 96...每级1.5倍或4/3倍),
+ * 同一级别的bitmap可以直接复用; 该级别没有空闲bitmap时, 4.4以上用Bitmap.reconfigure改造内存足够的其他空闲bitmap
+ *
+ * 归还的bitmap先放入待清空队列, 由缓存线程空闲时调用eraseReleased清空, 取出时不用再清空
+ * 空闲bitmap总大小超过上限时回收最早归还的
+ *
+ * 各方法线程安全
+ */
+public class BitmapSlabPool {
+
+    private static final int MIN_CLASS_SIZE = 16;
+
+    /**
+     * 一个尺寸级别
+     */
+    public static class SizeClass {
+
+        public final int width;
+
+        public final int height;
+
+        /**
+         * 已清空的空闲bitmap
+         */
+        final ArrayDeque<Bitmap> clean = new ArrayDeque<>();
+
+        /**
+         * 待清空的空闲bitmap
+         */
+        final ArrayDeque<Bitmap> dirty = new ArrayDeque<>();
+
+        /**
+         * 正在使用的bitmap数
+         */
+        public int inUse;
+
+        /**
+         * 直接复用的次数
+         */
+        public int hits;
+
+        /**
+         * 新建或reconfigure的次数
+         */
+        public int misses;
+
+        SizeClass(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getFreeCount() {
+            return clean.size() + dirty.size();
+        }
+
+    }
+
+    private final Bitmap.Config mConfig;
+
+    private long mMaxFreeBytes;
+
+    /**
+     * key: 宽度级别 << 16 | 高度级别
+     */
+    private final SparseArray<SizeClass> mClasses = new SparseArray<>();
+
+    /**
+     * 所有空闲bitmap按归还顺序排列, 用于超出上限时回收最早的; 取出时按对象O(1)删除
+     */
+    private final LinkedHashSet<Bitmap> mFreeOrder = new LinkedHashSet<>();
+
+    private long mFreeBytes;
+
+    private int mAllocationCount;
+
+    private int mReconfigureCount;
+
+    private int mRecycleCount;
+
+    /**
+     * @param bitsPerPixel CachingPolicy.BMP_BPP_ARGB_4444 或 BMP_BPP_ARGB_8888
+     * @param maxFreeBytes 空闲bitmap总大小上限
+     */
+    public BitmapSlabPool(int bitsPerPixel, long maxFreeBytes) {
+        mConfig = bitsPerPixel == CachingPolicy.BMP_BPP_ARGB_8888 ? Bitmap.Config.ARGB_8888 : Bitmap.Config.ARGB_4444;
+        mMaxFreeBytes = maxFreeBytes;
+    }
+
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * 尺寸向上取整到级别: 16, 24, 32, 48, 64, 96, 128...
+     */
+    public static int roundUp(int size) {
+        int classSize = MIN_CLASS_SIZE;
+        while (classSize < size) {
+            // 2^n -> 1.5*2^n -> 2^(n+1)
+            classSize = Integer.bitCount(classSize) == 1 ? classSize * 3 / 2 : classSize * 4 / 3;
+        }
+        return classSize;
+    }
+
+    /**
+     * @return 宽高为所在级别尺寸的已清空的bitmap
+     * @throws OutOfMemoryError 新建bitmap失败
+     */
+    public synchronized Bitmap acquire(int w, int h) {
+        SizeClass sizeClass = getSizeClass(roundUp(w), roundUp(h));
+        sizeClass.inUse++;
+        Bitmap bitmap = pollFree(sizeClass);
+        if (bitmap != null) {
+            sizeClass.hits++;
+            return bitmap;
+        }
+        sizeClass.misses++;
+        if (Build.VERSION.SDK_INT >= 19) {
+            bitmap = reconfigureFree(sizeClass);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        try {
+            bitmap = NativeBitmapFactory.createBitmap(sizeClass.width, sizeClass.height, mConfig);
+        } catch (OutOfMemoryError e) {
+            sizeClass.inUse--;
+            throw e;
+        }
+        mAllocationCount++;
+        return bitmap;
+    }
+
+    /**
+     * bitmap是否可以直接用于w*h的缓存
+     */
+    public static boolean fits(Bitmap bitmap, int w, int h) {
+        return bitmap.getWidth() == roundUp(w) && bitmap.getHeight() == roundUp(h);
+    }
+
+    /**
+     * 归还acquire得到的bitmap, 内容在eraseReleased或再次取出时清空
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        SizeClass sizeClass = getSizeClass(bitmap.getWidth(), bitmap.getHeight());
+        sizeClass.inUse--;
+        sizeClass.dirty.add(bitmap);
+        mFreeOrder.add(bitmap);
+        mFreeBytes += getBytes(bitmap);
+        trim(mMaxFreeBytes);
+    }
+
+    /**
+     * 清空最多maxCount个待清空的bitmap, 在缓存线程空闲时调用
+     *
+     * @return 清空的个数
+     */
+    public int eraseReleased(int maxCount) {
+        int count = 0;
+        while (count < maxCount) {
+            Bitmap bitmap;
+            SizeClass sizeClass = null;
+            synchronized (this) {
+                bitmap = null;
+                for (int i = 0; i < mClasses.size(); i++) {
+                    sizeClass = mClasses.valueAt(i);
+                    bitmap = sizeClass.dirty.poll();
+                    if (bitmap != null) {
+                        mFreeOrder.remove(bitmap);
+                        break;
+                    }
+                }
+                if (bitmap == null) {
+                    break;
+                }
+                mFreeBytes -= getBytes(bitmap);
+            }
+            // 清空时不持有锁
+            bitmap.eraseColor(Color.TRANSPARENT);
+            synchronized (this) {
+                sizeClass.clean.add(bitmap);
+                mFreeOrder.add(bitmap);
+                mFreeBytes += getBytes(bitmap);
+                trim(mMaxFreeBytes);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 调整空闲bitmap的内存上限, 超出的立即回收
+     */
+    public synchronized void setMaxFreeBytes(long maxFreeBytes) {
+        mMaxFreeBytes = maxFreeBytes;
+        trim(maxFreeBytes);
+    }
+
+    /**
+     * 回收所有空闲bitmap
+     */
+    public synchronized void clear() {
+        trim(0);
+    }
+
+    /**
+     * @return 各尺寸级别的快照
+     */
+    public synchronized List<SizeClass> getSizeClasses() {
+        List<SizeClass> classes = new ArrayList<>(mClasses.size());
+        for (int i = 0; i < mClasses.size(); i++) {
+            SizeClass sizeClass = mClasses.valueAt(i);
+            SizeClass copy = new SizeClass(sizeClass.width, sizeClass.height);
+            copy.inUse = sizeClass.inUse;
+            copy.hits = sizeClass.hits;
+            copy.misses = sizeClass.misses;
+            copy.clean.addAll(sizeClass.clean);
+            copy.dirty.addAll(sizeClass.dirty);
+            classes.add(copy);
+        }
+        return classes;
+    }
+
+    /**
+     * @return 累计新建的bitmap数
+     */
+    public synchronized int getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    public synchronized int getReconfigureCount() {
+        return mReconfigureCount;
+    }
+
+    /**
+     * @return 超出上限被回收的bitmap数
+     */
+    public synchronized int getRecycleCount() {
+        return mRecycleCount;
+    }
+
+    public synchronized long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    private SizeClass getSizeClass(int width, int height) {
+        int key = width << 16 | height;
+        SizeClass sizeClass = mClasses.get(key);
+        if (sizeClass == null) {
+            sizeClass = new SizeClass(width, height);
+            mClasses.put(key, sizeClass);
+        }
+        return sizeClass;
+    }
+
+    private Bitmap pollFree(SizeClass sizeClass) {
+        Bitmap bitmap = sizeClass.clean.poll();
+        if (bitmap == null) {
+            bitmap = sizeClass.dirty.poll();
+            if (bitmap == null) {
+                return null;
+            }
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        mFreeOrder.remove(bitmap);
+        mFreeBytes -= getBytes(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 把其他级别中内存足够的空闲bitmap改为sizeClass的尺寸, 优先用内存最小的
+     */
+    @TargetApi(19)
+    private Bitmap reconfigureFree(SizeClass sizeClass) {
+        long needed = (long) sizeClass.width * sizeClass.height * getBytesPerPixel();
+        SizeClass source = null;
+        long sourceBytes = Long.MAX_VALUE;
+        for (int i = 0; i < mClasses.size(); i++) {
+            SizeClass other = mClasses.valueAt(i);
+            if (other == sizeClass || other.getFreeCount() == 0) {
+                continue;
+            }
+            long bytes = (long) other.width * other.height * getBytesPerPixel();
+            if (bytes >= needed && bytes < sourceBytes) {
+                source = other;
+                sourceBytes = bytes;
+            }
+        }
+        if (source == null) {
+            return null;
+        }
+        Bitmap bitmap = source.dirty.poll();
+        if (bitmap == null) {
+            bitmap = source.clean.poll();
+        }
+        mFreeOrder.remove(bitmap);
+        mFreeBytes -= getBytes(bitmap);
+        try {
+            bitmap.reconfigure(sizeClass.width, sizeClass.height, mConfig);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // 不支持reconfigure的bitmap(不可变, native创建或内存不足)直接回收
+            bitmap.recycle();
+            mRecycleCount++;
+            return null;
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        mReconfigureCount++;
+        return bitmap;
+    }
+
+    private void trim(long maxFreeBytes) {
+        while (mFreeBytes > maxFreeBytes) {
+            Iterator<Bitmap> iterator = mFreeOrder.iterator();
+            if (!iterator.hasNext()) {
+                break;
+            }
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            SizeClass sizeClass = getSizeClass(bitmap.getWidth(), bitmap.getHeight());
+            // clean和dirty与mFreeOrder的加入顺序一致, 最早归还的bitmap在所在队列的队首, 从队首查找是O(1)
+            if (!sizeClass.clean.removeFirstOccurrence(bitmap)) {
+                sizeClass.dirty.removeFirstOccurrence(bitmap);
+            }
+            mFreeBytes -= getBytes(bitmap);
+            bitmap.recycle();
+            mRecycleCount++;
+        }
+    }
+
+    private int getBytesPerPixel() {
+        return mConfig == Bitmap.Config.ARGB_8888 ? 4 : 2;
+    }
+
+    private long getBytes(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= 19) {
+            // reconfigure改变宽高, 占用的内存不变
+            return bitmap.getAllocationByteCount();
+        }
+        return (long) bitmap.getWidth() * bitmap.getHeight() * getBytesPerPixel();
+    }
+
+}
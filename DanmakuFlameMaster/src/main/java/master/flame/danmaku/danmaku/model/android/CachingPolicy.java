@@ -8,7 +8,11 @@ package master.flame.danmaku.danmaku.model.android;
  * 2.缓存池总容量大小百分比系数(0.0~1.0) <br/>
  * 3.过期缓存回收频率 <br/>
  * 4.缓存回收条件内存占比阈值 <br/>
- * 5.可复用缓存尺寸调节
+ * 5.可复用缓存尺寸调节 <br/>
+ * 6.缓存存储方式: 每条弹幕单独的bitmap或共享图集 <br/>
+ * 7.按内存压力调整缓存容量 <br/>
+ * 8.缓存淘汰策略 <br/>
+ * 9.只缓存覆盖率(ALPHA_8), 绘制时着色
  */
 
 public class CachingPolicy {
@@ -17,6 +21,14 @@ public class CachingPolicy {
     public final static int BMP_BPP_ARGB_8888 = 32;
     public final static int CACHE_PERIOD_AUTO = 0;
     public final static int CACHE_PERIOD_NOT_RECYCLE = -1;
+    public final static int CACHE_STORAGE_BITMAP = 0;
+    public final static int CACHE_STORAGE_ATLAS = 1;
+    public final static int CACHE_STORAGE_BITMAP_POOL = 2;
+    public final static int EVICTION_TIME_ORDERED = 0;
+    public final static int EVICTION_LRU = 1;
+    public final static int EVICTION_CLOCK = 2;
+    public final static int EVICTION_FREQUENCY = 3;
+    public final static int EVICTION_GENERATIONAL = 4;
 
     public final static CachingPolicy POLICY_LAZY = new CachingPolicy(BMP_BPP_ARGB_4444, 0.3f, CACHE_PERIOD_AUTO, 50, 0.01f);
     public final static CachingPolicy POLICY_GREEDY = new CachingPolicy(BMP_BPP_ARGB_4444, 0.5f, CACHE_PERIOD_NOT_RECYCLE, 50, 0.005f);
@@ -68,12 +80,71 @@ public class CachingPolicy {
     public float forceRecyleThreshold = 0.01f;
 
     /**
-     * @see master.flame.danmaku.controller.CacheManagingDrawTask.CacheManager#findReusableCache
+     * 复用空闲缓存时允许的额外尺寸
+     * @see DrawingCacheIndex#acquireFree
      */
     public int reusableOffsetPixel = 0;
 
+    /**
+     * @deprecated 可复用缓存改为按内容索引查找, 不再逐条比较
+     */
+    @Deprecated
     public int maxTimesOfStrictReusableFinds = 20;
 
+    /**
+     * @deprecated 可复用缓存改为按尺寸分桶的空闲列表查找, 不再逐条比较
+     */
+    @Deprecated
     public int maxTimesOfReusableFinds = 150;
 
+    /**
+     * 缓存存储方式, 通过{@link DanmakuContext#setCachingPolicy}生效
+     *
+     * @see CACHE_STORAGE_BITMAP 0: 默认, 每条弹幕单独创建bitmap
+     * @see CACHE_STORAGE_ATLAS 1: 弹幕缓存打包到少量共享的大bitmap(图集页)中, 见{@link DrawingCacheAtlas}
+     * @see CACHE_STORAGE_BITMAP_POOL 2: 每条弹幕单独使用bitmap, bitmap按尺寸级别从池中取出和归还, 见{@link BitmapSlabPool}
+     */
+    public int cacheStorage = CACHE_STORAGE_BITMAP;
+
+    /**
+     * 图集页的边长(像素)
+     */
+    public int atlasPageSize = DrawingCacheAtlas.DEFAULT_PAGE_SIZE;
+
+    /**
+     * bitmap池中空闲bitmap占缓存容量的比例上限
+     */
+    public float bitmapPoolFreeSizePercentage = 0.25f;
+
+    /**
+     * 绘制缓存的工作线程数, 在缓存管理开始时生效
+     * 0: 默认, 在缓存线程上绘制; 大于0时缓存线程只负责测量和内存管理, bitmap的绘制交给工作线程并行进行
+     */
+    public int rasterizerThreadCount = 0;
+
+    /**
+     * 堆占用超过maxMemory的这个比例时缩小缓存容量, 占用回落后逐步恢复, 见{@link master.flame.danmaku.controller.CacheBudget}
+     * 0: 只响应{@link DanmakuContext#onTrimMemory}
+     */
+    public float maxHeapUsagePercentage = 0.85f;
+
+    /**
+     * 缓存淘汰策略, 在缓存管理器创建时生效, 见{@link EvictionPolicy}
+     *
+     * @see EVICTION_TIME_ORDERED 0: 默认, 弹幕消失后回收缓存, 容量不足时按开始显示的时间释放
+     * @see EVICTION_LRU 1: 弹幕消失后保留缓存供内容相同的弹幕共用, 容量不足时释放最久没有被共用的
+     * @see EVICTION_CLOCK 2: 同LRU, 用访问标记近似
+     * @see EVICTION_FREQUENCY 3: 同LRU, 优先保留近期出现次数多的文字
+     * @see EVICTION_GENERATIONAL 4: 新缓存进入固定大小的新生代, 被共用, 长时间显示或新生代写满时仍存活的晋升到老年代;
+     * 新生代的缓存在弹幕消失后回收并优先淘汰, 老年代的缓存保留并按LRU淘汰
+     */
+    public int evictionPolicy = EVICTION_TIME_ORDERED;
+
+    /**
+     * 支持的弹幕只缓存文字和描边/投影/阴影的覆盖率(各一张ALPHA_8的bitmap), 颜色在绘制时通过画笔着色,
+     * 内存约为ARGB_8888的1/4(有描边层时1/2), 颜色不同的相同内容弹幕共用一份缓存;
+     * 不支持的弹幕(见{@link BaseCacheStuffer#isColorAgnostic})仍按bitsPerPixelOfCache和cacheStorage缓存
+     */
+    public boolean alphaOnlyCache = false;
+
 }
@@ -5,18 +5,23 @@ import android.graphics.Typeface;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 import master.flame.danmaku.controller.DanmakuFilters;
 import master.flame.danmaku.controller.DanmakuFilters.IDanmakuFilter;
+import master.flame.danmaku.controller.DensityController;
 import master.flame.danmaku.danmaku.model.AbsDanmakuSync;
 import master.flame.danmaku.danmaku.model.AbsDisplayer;
 import master.flame.danmaku.danmaku.model.AlphaValue;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.GlobalFlagValues;
 import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.renderer.android.LayoutJournal;
+import master.flame.danmaku.danmaku.renderer.android.LayoutPlanner;
 
 public class DanmakuContext implements Cloneable {
 
@@ -25,13 +30,13 @@ public class DanmakuContext implements Cloneable {
     }
 
     public enum DanmakuConfigTag {
-        FT_DANMAKU_VISIBILITY, FB_DANMAKU_VISIBILITY, L2R_DANMAKU_VISIBILITY, R2L_DANMAKU_VISIBILIY, SPECIAL_DANMAKU_VISIBILITY, TYPEFACE, TRANSPARENCY, SCALE_TEXTSIZE, MAXIMUM_NUMS_IN_SCREEN, DANMAKU_STYLE, DANMAKU_BOLD, COLOR_VALUE_WHITE_LIST, USER_ID_BLACK_LIST, USER_HASH_BLACK_LIST, SCROLL_SPEED_FACTOR, BLOCK_GUEST_DANMAKU, DUPLICATE_MERGING_ENABLED, MAXIMUN_LINES, OVERLAPPING_ENABLE, ALIGN_BOTTOM, DANMAKU_MARGIN, DANMAKU_SYNC;
+        FT_DANMAKU_VISIBILITY, FB_DANMAKU_VISIBILITY, L2R_DANMAKU_VISIBILITY, R2L_DANMAKU_VISIBILIY, SPECIAL_DANMAKU_VISIBILITY, TYPEFACE, TRANSPARENCY, SCALE_TEXTSIZE, MAXIMUM_NUMS_IN_SCREEN, DANMAKU_STYLE, DANMAKU_BOLD, COLOR_VALUE_WHITE_LIST, USER_ID_BLACK_LIST, USER_HASH_BLACK_LIST, SCROLL_SPEED_FACTOR, BLOCK_GUEST_DANMAKU, DUPLICATE_MERGING_ENABLED, MAXIMUN_LINES, OVERLAPPING_ENABLE, ALIGN_BOTTOM, DANMAKU_MARGIN, DANMAKU_SYNC, KEYWORD_BLACK_LIST, NEAR_DUPLICATE_MERGING_ENABLED, LANE_LAYOUT_ENABLED, LAYOUT_PLANNING_ENABLED, LAYOUT_JOURNAL_ENABLED, INTERVAL_LAYOUT_ENABLED;
 
         public boolean isVisibilityRelatedTag() {
             return this.equals(FT_DANMAKU_VISIBILITY) || this.equals(FB_DANMAKU_VISIBILITY)
                     || this.equals(L2R_DANMAKU_VISIBILITY) || this.equals(R2L_DANMAKU_VISIBILIY)
                     || this.equals(SPECIAL_DANMAKU_VISIBILITY) || this.equals(COLOR_VALUE_WHITE_LIST)
-                    || this.equals(USER_ID_BLACK_LIST);
+                    || this.equals(USER_ID_BLACK_LIST) || this.equals(KEYWORD_BLACK_LIST);
         }
     }
 
@@ -82,14 +87,42 @@ public class DanmakuContext implements Cloneable {
     
     List<String> mUserHashBlackList = new ArrayList<String>();
 
+    List<String> mKeywordBlackList = new ArrayList<String>();
+
+    List<String> mRegexBlackList = new ArrayList<String>();
+
     private List<WeakReference<ConfigChangedCallback>> mCallbackList;
 
+    private volatile TrimMemoryListener mTrimMemoryListener;
+
     private boolean mBlockGuestDanmaku = false;
 
     private boolean mDuplicateMergingEnable = false;
 
+    private boolean mNearDuplicateMergingEnable = false;
+
+    private volatile DensityController mDensityController;
+
+    private boolean mDensityControlEnabled;
+
+    private long mDensityTargetFrameTime = DensityController.DEFAULT_TARGET_FRAME_TIME;
+
     private boolean mIsAlignBottom = false;
 
+    private int mLaneLayoutTypes = 0;
+
+    private boolean mIntervalLayoutEnabled = false;
+
+    private boolean mPartitionedTimelineEnabled = false;
+
+    private volatile LayoutPlanner mLayoutPlanner;
+
+    private volatile LayoutJournal mLayoutJournal;
+
+    private volatile DrawingCacheAtlas mDrawingCacheAtlas;
+
+    private volatile BitmapSlabPool mBitmapPool;
+
     private BaseCacheStuffer mCacheStuffer;
 
     private boolean mIsMaxLinesLimited;
@@ -215,6 +248,11 @@ public class DanmakuContext implements Cloneable {
         filter.setData(data);
     }
 
+    @SuppressWarnings("unchecked")
+    private <T> DanmakuFilters.UserFilter<T> getUserFilter(String tag) {
+        return (DanmakuFilters.UserFilter<T>) mDanmakuFilters.get(tag);
+    }
+
     private void setDanmakuVisible(boolean visible, int type) {
         if (visible) {
             mFilterTypes.remove(Integer.valueOf(type));
@@ -323,6 +361,18 @@ public class DanmakuContext implements Cloneable {
      */
     public DanmakuContext setMaximumVisibleSizeInScreen(int maxSize) {
         maximumNumsInScreen = maxSize;
+        // 自动控制密度时只作为上限, 0(无限制)和-1(自动)保持原意, 不做闭环控制
+        if (mDensityControlEnabled && maxSize > 0) {
+            DensityController densityController = mDensityController;
+            if (densityController == null) {
+                densityController = new DensityController(this, mDensityTargetFrameTime);
+            }
+            mDensityController = densityController;
+            // 由onMaximumSizeAdjusted更新过滤标记并通知
+            densityController.setSizeRange(DensityController.DEFAULT_MIN_SIZE, maxSize);
+            return this;
+        }
+        mDensityController = null;
         // 无限制
         if (maxSize == 0) {
             mDanmakuFilters.unregisterFilter(DanmakuFilters.TAG_QUANTITY_DANMAKU_FILTER);
@@ -343,6 +393,50 @@ public class DanmakuContext implements Cloneable {
         return this;
     }
 
+    /**
+     * 设置是否按每帧绘制耗时自动调整同屏弹幕密度
+     * 启用后setMaximumVisibleSizeInScreen设置的正数作为上限, 设置为0或-1时不做闭环控制
+     *
+     * @param enable
+     * @return
+     */
+    public DanmakuContext setDensityControlEnabled(boolean enable) {
+        return setDensityControlEnabled(enable, DensityController.DEFAULT_TARGET_FRAME_TIME);
+    }
+
+    /**
+     * 设置是否按每帧绘制耗时自动调整同屏弹幕密度
+     *
+     * @param enable
+     * @param targetFrameTime 每帧绘制耗时预算(ms)
+     * @return
+     */
+    public DanmakuContext setDensityControlEnabled(boolean enable, long targetFrameTime) {
+        if (enable == mDensityControlEnabled && (!enable || targetFrameTime == mDensityTargetFrameTime)) {
+            return this;
+        }
+        mDensityControlEnabled = enable;
+        mDensityTargetFrameTime = targetFrameTime;
+        mDensityController = null;
+        setMaximumVisibleSizeInScreen(maximumNumsInScreen);
+        return this;
+    }
+
+    /**
+     * 自动控制密度调整了同屏数量上限, 之前的过滤结果失效, 由缓存线程重新预过滤
+     */
+    public void onMaximumSizeAdjusted(int size) {
+        mGlobalFlagValues.updateFilterFlag();
+        notifyConfigureChanged(DanmakuConfigTag.MAXIMUM_NUMS_IN_SCREEN, size);
+    }
+
+    /**
+     * @return 未启用自动控制密度或同屏数量不是正数时返回null
+     */
+    public DensityController getDensityController() {
+        return mDensityController;
+    }
+
     /**
      * 设置描边样式
      * 
@@ -419,12 +513,13 @@ public class DanmakuContext implements Cloneable {
         if(hashes == null || hashes.length == 0) {
             return this;
         }
-        for (String hash : hashes) {
-            mUserHashBlackList.remove(hash);
+        List<String> removed = Arrays.asList(hashes);
+        mUserHashBlackList.removeAll(new HashSet<String>(removed));
+        this.<String>getUserFilter(DanmakuFilters.TAG_USER_HASH_FILTER).removeFromBlackList(removed);
+        if (!mDanmakuFilters.invalidate(DanmakuFilters.TAG_USER_HASH_FILTER, removed)) {
+            mGlobalFlagValues.updateFilterFlag();
+            notifyConfigureChanged(DanmakuConfigTag.USER_HASH_BLACK_LIST, mUserHashBlackList);
         }
-        setFilterData(DanmakuFilters.TAG_USER_HASH_FILTER, mUserHashBlackList);
-        mGlobalFlagValues.updateFilterFlag();
-        notifyConfigureChanged(DanmakuConfigTag.USER_HASH_BLACK_LIST, mUserHashBlackList);
         return this;
     }
     
@@ -437,10 +532,13 @@ public class DanmakuContext implements Cloneable {
         if(hashes == null || hashes.length == 0) {
             return this;
         }
-        Collections.addAll(mUserHashBlackList, hashes);
-        setFilterData(DanmakuFilters.TAG_USER_HASH_FILTER, mUserHashBlackList);
-        mGlobalFlagValues.updateFilterFlag();
-        notifyConfigureChanged(DanmakuConfigTag.USER_HASH_BLACK_LIST, mUserHashBlackList);
+        List<String> added = Arrays.asList(hashes);
+        mUserHashBlackList.addAll(added);
+        this.<String>getUserFilter(DanmakuFilters.TAG_USER_HASH_FILTER).addToBlackList(added);
+        if (!mDanmakuFilters.invalidate(DanmakuFilters.TAG_USER_HASH_FILTER, added)) {
+            mGlobalFlagValues.updateFilterFlag();
+            notifyConfigureChanged(DanmakuConfigTag.USER_HASH_BLACK_LIST, mUserHashBlackList);
+        }
         return this;
     }
     
@@ -471,12 +569,13 @@ public class DanmakuContext implements Cloneable {
         if(ids == null || ids.length == 0) {
             return this;
         }
-        for (Integer id : ids) {
-            mUserIdBlackList.remove(id);
+        List<Integer> removed = Arrays.asList(ids);
+        mUserIdBlackList.removeAll(new HashSet<Integer>(removed));
+        this.<Integer>getUserFilter(DanmakuFilters.TAG_USER_ID_FILTER).removeFromBlackList(removed);
+        if (!mDanmakuFilters.invalidate(DanmakuFilters.TAG_USER_ID_FILTER, removed)) {
+            mGlobalFlagValues.updateFilterFlag();
+            notifyConfigureChanged(DanmakuConfigTag.USER_ID_BLACK_LIST, mUserIdBlackList);
         }
-        setFilterData(DanmakuFilters.TAG_USER_ID_FILTER, mUserIdBlackList);
-        mGlobalFlagValues.updateFilterFlag();
-        notifyConfigureChanged(DanmakuConfigTag.USER_ID_BLACK_LIST, mUserIdBlackList);
         return this;
     }
     
@@ -489,10 +588,13 @@ public class DanmakuContext implements Cloneable {
         if(ids == null || ids.length == 0) {
             return this;
         }
-        Collections.addAll(mUserIdBlackList, ids);
-        setFilterData(DanmakuFilters.TAG_USER_ID_FILTER, mUserIdBlackList);
-        mGlobalFlagValues.updateFilterFlag();
-        notifyConfigureChanged(DanmakuConfigTag.USER_ID_BLACK_LIST, mUserIdBlackList);
+        List<Integer> added = Arrays.asList(ids);
+        mUserIdBlackList.addAll(added);
+        this.<Integer>getUserFilter(DanmakuFilters.TAG_USER_ID_FILTER).addToBlackList(added);
+        if (!mDanmakuFilters.invalidate(DanmakuFilters.TAG_USER_ID_FILTER, added)) {
+            mGlobalFlagValues.updateFilterFlag();
+            notifyConfigureChanged(DanmakuConfigTag.USER_ID_BLACK_LIST, mUserIdBlackList);
+        }
         return this;
     }
     
@@ -500,6 +602,78 @@ public class DanmakuContext implements Cloneable {
         return mUserIdBlackList;
     }
     
+    /**
+     * 设置屏蔽关键词, 包含任意关键词的弹幕将被过滤(忽略大小写)
+     * @param keywords
+     * @return
+     */
+    public DanmakuContext setKeywordBlackList(String... keywords) {
+        mKeywordBlackList.clear();
+        if (keywords != null) {
+            Collections.addAll(mKeywordBlackList, keywords);
+        }
+        updateKeywordFilter();
+        return this;
+    }
+
+    public DanmakuContext removeKeywordBlackList(String... keywords) {
+        if (keywords == null || keywords.length == 0) {
+            return this;
+        }
+        for (String keyword : keywords) {
+            mKeywordBlackList.remove(keyword);
+        }
+        updateKeywordFilter();
+        return this;
+    }
+
+    /**
+     * 添加屏蔽关键词
+     * @param keywords
+     * @return
+     */
+    public DanmakuContext addKeywordBlackList(String... keywords) {
+        if (keywords == null || keywords.length == 0) {
+            return this;
+        }
+        Collections.addAll(mKeywordBlackList, keywords);
+        updateKeywordFilter();
+        return this;
+    }
+
+    public List<String> getKeywordBlackList() {
+        return mKeywordBlackList;
+    }
+
+    /**
+     * 设置屏蔽正则, 匹配任意正则的弹幕将被过滤, 无效的正则会被忽略
+     * @param patterns
+     * @return
+     */
+    public DanmakuContext setRegexBlackList(String... patterns) {
+        mRegexBlackList.clear();
+        if (patterns != null) {
+            Collections.addAll(mRegexBlackList, patterns);
+        }
+        updateKeywordFilter();
+        return this;
+    }
+
+    public List<String> getRegexBlackList() {
+        return mRegexBlackList;
+    }
+
+    private void updateKeywordFilter() {
+        if (mKeywordBlackList.isEmpty() && mRegexBlackList.isEmpty()) {
+            mDanmakuFilters.unregisterFilter(DanmakuFilters.TAG_KEYWORD_FILTER);
+        } else {
+            DanmakuFilters.KeywordFilter filter = (DanmakuFilters.KeywordFilter) mDanmakuFilters.get(DanmakuFilters.TAG_KEYWORD_FILTER);
+            filter.setBlackList(mKeywordBlackList, mRegexBlackList);
+        }
+        mGlobalFlagValues.updateFilterFlag();
+        notifyConfigureChanged(DanmakuConfigTag.KEYWORD_BLACK_LIST, mKeywordBlackList, mRegexBlackList);
+    }
+
     /**
      * 设置是否屏蔽游客弹幕
      * @param block true屏蔽，false不屏蔽
@@ -553,6 +727,37 @@ public class DanmakuContext implements Cloneable {
         return mDuplicateMergingEnable;
     }
 
+    /**
+     * 设置是否启用合并相似弹幕, 如"2333333"和"233333!!"
+     * @param enable
+     * @return
+     */
+    public DanmakuContext setNearDuplicateMergingEnabled(boolean enable) {
+        return setNearDuplicateMergingEnabled(enable, DanmakuFilters.NearDuplicateMergingFilter.DEFAULT_MIN_SIMILARITY);
+    }
+
+    /**
+     * 设置是否启用合并相似弹幕
+     * @param enable
+     * @param minSimilarity 合并所需的最小文本相似度 (0...1], 越小合并越激进
+     * @return
+     */
+    public DanmakuContext setNearDuplicateMergingEnabled(boolean enable, float minSimilarity) {
+        if (enable) {
+            setFilterData(DanmakuFilters.TAG_NEAR_DUPLICATE_FILTER, minSimilarity);
+        } else {
+            mDanmakuFilters.unregisterFilter(DanmakuFilters.TAG_NEAR_DUPLICATE_FILTER);
+        }
+        mNearDuplicateMergingEnable = enable;
+        mGlobalFlagValues.updateFilterFlag();
+        notifyConfigureChanged(DanmakuConfigTag.NEAR_DUPLICATE_MERGING_ENABLED, enable);
+        return this;
+    }
+
+    public boolean isNearDuplicateMergingEnabled() {
+        return mNearDuplicateMergingEnable;
+    }
+
     public DanmakuContext alignBottom(boolean enable) {
         if (mIsAlignBottom != enable) {
             mIsAlignBottom = enable;
@@ -566,6 +771,103 @@ public class DanmakuContext implements Cloneable {
         return mIsAlignBottom;
     }
 
+    /**
+     * 设置某种弹幕是否按行(泳道)分配位置, 每行只记录行尾弹幕, 新弹幕不需要和屏幕上所有弹幕比较
+     * @param type BaseDanmaku.TYPE_SCROLL_RL|BaseDanmaku.TYPE_SCROLL_LR|BaseDanmaku.TYPE_FIX_TOP|BaseDanmaku.TYPE_FIX_BOTTOM
+     * @param enable
+     * @return
+     */
+    public DanmakuContext setLaneLayoutEnabled(int type, boolean enable) {
+        if (isLaneLayoutEnabled(type) != enable) {
+            mLaneLayoutTypes = enable ? (mLaneLayoutTypes | (1 << type)) : (mLaneLayoutTypes & ~(1 << type));
+            notifyConfigureChanged(DanmakuConfigTag.LANE_LAYOUT_ENABLED, type, enable);
+            mGlobalFlagValues.updateVisibleFlag();
+        }
+        return this;
+    }
+
+    public boolean isLaneLayoutEnabled(int type) {
+        return (mLaneLayoutTypes & (1 << type)) != 0;
+    }
+
+    /**
+     * 设置固定弹幕(顶部/底部)是否按竖直区间分配位置: 不同高度(多行)的弹幕不会重叠, 优先于setLaneLayoutEnabled的设置
+     * @param enable
+     * @return
+     */
+    public DanmakuContext setIntervalLayoutEnabled(boolean enable) {
+        if (mIntervalLayoutEnabled != enable) {
+            mIntervalLayoutEnabled = enable;
+            notifyConfigureChanged(DanmakuConfigTag.INTERVAL_LAYOUT_ENABLED, enable);
+            mGlobalFlagValues.updateVisibleFlag();
+        }
+        return this;
+    }
+
+    public boolean isIntervalLayoutEnabled() {
+        return mIntervalLayoutEnabled;
+    }
+
+    /**
+     * 设置是否按类型分区保存弹幕(PartitionedDanmakus), 绘制时滚动, 固定和特殊弹幕分别遍历
+     * 在加载弹幕(prepare)时生效
+     * @param enable
+     * @return
+     */
+    public DanmakuContext setPartitionedTimelineEnabled(boolean enable) {
+        mPartitionedTimelineEnabled = enable;
+        return this;
+    }
+
+    public boolean isPartitionedTimelineEnabled() {
+        return mPartitionedTimelineEnabled;
+    }
+
+    /**
+     * 设置是否提前布局: 缓存线程提前算好即将出现的弹幕的位置, 绘制线程直接使用
+     * 开启后按行分配位置, 不使用setLaneLayoutEnabled的设置
+     * @param enable
+     * @return
+     */
+    public DanmakuContext setLayoutPlanningEnabled(boolean enable) {
+        if (isLayoutPlanningEnabled() != enable) {
+            mLayoutPlanner = enable ? new LayoutPlanner(mIsAlignBottom) : null;
+            notifyConfigureChanged(DanmakuConfigTag.LAYOUT_PLANNING_ENABLED, enable);
+            mGlobalFlagValues.updateVisibleFlag();
+        }
+        return this;
+    }
+
+    public boolean isLayoutPlanningEnabled() {
+        return mLayoutPlanner != null;
+    }
+
+    public LayoutPlanner getLayoutPlanner() {
+        return mLayoutPlanner;
+    }
+
+    /**
+     * 设置是否记录弹幕的布局位置: seek回看或重播时弹幕按记录恢复到原来的行, 不重新做碰撞检查
+     * 开启提前布局时不使用
+     * @param enable
+     * @return
+     */
+    public DanmakuContext setLayoutJournalEnabled(boolean enable) {
+        if (isLayoutJournalEnabled() != enable) {
+            mLayoutJournal = enable ? new LayoutJournal() : null;
+            notifyConfigureChanged(DanmakuConfigTag.LAYOUT_JOURNAL_ENABLED, enable);
+        }
+        return this;
+    }
+
+    public boolean isLayoutJournalEnabled() {
+        return mLayoutJournal != null;
+    }
+
+    public LayoutJournal getLayoutJournal() {
+        return mLayoutJournal;
+    }
+
     /**
      * 设置最大显示行数
      * @param pairs map<K,V> 设置null取消行数限制
@@ -639,9 +941,71 @@ public class DanmakuContext implements Cloneable {
 
     public DanmakuContext setCachingPolicy(CachingPolicy cachingPolicy) {
         this.cachingPolicy = cachingPolicy;
+        DrawingCacheAtlas oldAtlas = mDrawingCacheAtlas;
+        if (cachingPolicy.cacheStorage == CachingPolicy.CACHE_STORAGE_ATLAS) {
+            mDrawingCacheAtlas = new DrawingCacheAtlas(cachingPolicy.atlasPageSize, cachingPolicy.bitsPerPixelOfCache);
+        } else {
+            mDrawingCacheAtlas = null;
+        }
+        if (oldAtlas != null) {
+            // 旧图集中的缓存不再复用, 回收其所有页
+            oldAtlas.clear();
+        }
+        if (cachingPolicy.cacheStorage == CachingPolicy.CACHE_STORAGE_BITMAP_POOL) {
+            long maxCacheSize = (long) Math.max(1024 * 1024 * 4, Runtime.getRuntime().maxMemory() * cachingPolicy.maxCachePoolSizeFactorPercentage);
+            mBitmapPool = new BitmapSlabPool(cachingPolicy.bitsPerPixelOfCache, (long) (maxCacheSize * cachingPolicy.bitmapPoolFreeSizePercentage));
+        } else {
+            mBitmapPool = null;
+        }
         return this;
     }
+
+    /**
+     * @return cachingPolicy使用图集时的共享图集, 可用于查看页数和内存占用; 否则返回null
+     */
+    public DrawingCacheAtlas getDrawingCacheAtlas() {
+        return mDrawingCacheAtlas;
+    }
+
+    /**
+     * @return cachingPolicy使用bitmap池时的共享池, 可用于查看各尺寸级别的占用; 否则返回null
+     */
+    public BitmapSlabPool getBitmapPool() {
+        return mBitmapPool;
+    }
     
+    /**
+     * 转发宿主收到的内存紧张通知, 缓存线程按level缩小缓存容量并释放超出的缓存, 之后逐步恢复
+     *
+     * @param level {@link android.content.ComponentCallbacks2}.TRIM_MEMORY_*
+     */
+    public void onTrimMemory(int level) {
+        TrimMemoryListener listener = mTrimMemoryListener;
+        if (listener != null) {
+            listener.onTrimMemory(level);
+        }
+    }
+
+    /**
+     * 内存紧张通知的回调, 与配置变化分开, 由持有缓存的一方实现
+     */
+    public interface TrimMemoryListener {
+
+        /**
+         * @param level {@link android.content.ComponentCallbacks2}.TRIM_MEMORY_*
+         */
+        void onTrimMemory(int level);
+
+    }
+
+    public void setTrimMemoryListener(TrimMemoryListener listener) {
+        mTrimMemoryListener = listener;
+    }
+
+    public TrimMemoryListener getTrimMemoryListener() {
+        return mTrimMemoryListener;
+    }
+
     public interface ConfigChangedCallback {
         public boolean onDanmakuConfigChanged(DanmakuContext config, DanmakuConfigTag tag,
                 Object... value);
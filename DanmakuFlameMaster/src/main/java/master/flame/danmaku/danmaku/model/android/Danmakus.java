@@ -267,6 +267,10 @@ public class Danmakus implements IDanmakus {
         return this.items == null || this.items.isEmpty();
     }
 
+    public boolean isDuplicateMergingEnabled() {
+        return mDuplicateMergingEnabled;
+    }
+
     private void setDuplicateMergingEnabled(boolean enable) {
         mComparator.setDuplicateMergingEnabled(enable);
         mDuplicateMergingEnabled = enable;
@@ -324,4 +328,19 @@ public class Danmakus implements IDanmakus {
         return mLockObject;
     }
 
+    /**
+     * 多个Danmakus共用一个锁, 需要在sub之前调用
+     */
+    void setLockObject(Object lockObject) {
+        mLockObject = lockObject;
+    }
+
+    /**
+     * 通过遍历items的迭代器删除当前弹幕
+     */
+    void removeByIterator(Iterator<BaseDanmaku> iterator) {
+        iterator.remove();
+        mSize.decrementAndGet();
+    }
+
 }
\ No newline at end of file
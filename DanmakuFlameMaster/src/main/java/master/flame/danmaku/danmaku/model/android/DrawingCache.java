@@ -1,12 +1,13 @@
 
 package master.flame.danmaku.danmaku.model.android;
 
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.IDrawingCache;
 import master.flame.danmaku.danmaku.model.objectpool.Poolable;
 
 public class DrawingCache implements IDrawingCache<DrawingCacheHolder>, Poolable<DrawingCache> {
 
-    private final DrawingCacheHolder mHolder;
+    protected final DrawingCacheHolder mHolder;
 
     private int mSize = 0;
 
@@ -16,6 +17,16 @@ public class DrawingCache implements IDrawingCache<DrawingCacheHolder>, Poolable
 
     private int referenceCount = 0;
 
+    /**
+     * 在DrawingCacheIndex中的key, 销毁后失效
+     */
+    DrawingCacheIndex.Key mIndexKey;
+
+    /**
+     * 在DrawingCacheIndex中登记这份缓存的弹幕
+     */
+    BaseDanmaku mIndexOwner;
+
     public DrawingCache() {
         mHolder = new DrawingCacheHolder();
     }
@@ -27,6 +38,28 @@ public class DrawingCache implements IDrawingCache<DrawingCacheHolder>, Poolable
         mSize = mHolder.bitmap.getRowBytes() * mHolder.bitmap.getHeight();
     }
 
+    /**
+     * 只缓存覆盖率, 见{@link DrawingCacheHolder#buildAlphaCache}
+     */
+    public void buildAlpha(int w, int h, int density, boolean checkSizeEquals, boolean strokeLayer) {
+        mHolder.buildAlphaCache(w, h, density, checkSizeEquals, strokeLayer);
+        mSize = mHolder.getByteCount();
+    }
+
+    /**
+     * @return 是否只保存覆盖率, 颜色不同的弹幕可以共用
+     */
+    public boolean isColorAgnostic() {
+        return mHolder.isAlphaOnly();
+    }
+
+    /**
+     * 设置后build从pool中取bitmap, destroy时归还
+     */
+    public void setBitmapPool(BitmapSlabPool pool) {
+        mHolder.setBitmapPool(pool);
+    }
+
     @Override
     public void erase() {
         mHolder.erase();
@@ -48,6 +81,8 @@ public class DrawingCache implements IDrawingCache<DrawingCacheHolder>, Poolable
         }
         mSize = 0;
         referenceCount = 0;
+        mIndexKey = null;
+        mIndexOwner = null;
     }
 
     @Override
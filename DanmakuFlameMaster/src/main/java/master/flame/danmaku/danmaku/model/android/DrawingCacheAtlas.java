@@ -0,0 +1,415 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+
+import tv.cjump.jni.NativeBitmapFactory;
+
+/**
+ * 弹幕缓存图集: 把弹幕缓存打包到少量共享的大bitmap(页)中, 避免每条弹幕单独创建和回收bitmap
+ *
+ * 页内用{@link SkylinePacker}分配区域, 区域之间留1像素间隔, 避免绘制时采样到相邻区域;
+ * 区域释放后空间不能单独复用, 页中区域全部释放时整页重置(只剩一页时保留)或回收;
+ * compact把存活区域很少的页中的区域复制到其他页后回收该页;
+ * 页中没有分配给区域的部分不计入缓存的size, 缓存管理按getPageBytes - getLiveBytes另外计入容量
+ *
+ * 硬件加速时上一帧记录的绘制可能还引用被移出或清空的页, 这些页先停用,
+ * 绘制线程再完成RETIRE_FRAMES帧(onFrameRendered)后才回收;
+ * 向页中写入(分配时清空区域, 整理时复制区域)会让整页在下次绘制时重新上传为纹理,
+ * 整理在一次compact中集中完成, 每个目标页每次整理只重新上传一次, 因此只在释放缓存后整理
+ *
+ * 分配, 释放和整理在缓存线程调用
+ */
+public class DrawingCacheAtlas {
+
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+
+    /**
+     * 页中存活区域面积低于该比例时整理
+     */
+    private static final float COMPACT_THRESHOLD = 0.25f;
+
+    private static final int PADDING = 1;
+
+    /**
+     * 停用的页在绘制线程完成该帧数后回收
+     */
+    private static final int RETIRE_FRAMES = 2;
+
+    /**
+     * 图集中的一块区域, 对应一个DrawingCacheHolder
+     */
+    public static class Region {
+
+        final DrawingCacheHolder holder;
+
+        Page page;
+
+        int left, top, width, height;
+
+        public Region(DrawingCacheHolder holder) {
+            this.holder = holder;
+        }
+
+        public boolean isAllocated() {
+            return page != null;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+    }
+
+    static class Page {
+
+        Bitmap bitmap;
+
+        Canvas canvas;
+
+        SkylinePacker packer;
+
+        final ArrayList<Region> regions = new ArrayList<>();
+
+        long liveArea;
+
+        /**
+         * 停用时绘制线程已完成的帧数
+         */
+        int retiredFrame;
+
+    }
+
+    private final int mPageSize;
+
+    private final int mBitsPerPixel;
+
+    private final ArrayList<Page> mPages = new ArrayList<>();
+
+    private final ArrayList<Page> mRetiredPages = new ArrayList<>();
+
+    /**
+     * 绘制线程已完成的帧数, 只由绘制线程写入
+     */
+    private volatile int mRenderedFrameCount;
+
+    private final Rect mSrcRect = new Rect();
+
+    private final Rect mDstRect = new Rect();
+
+    private final Paint mCopyPaint = new Paint();
+
+    private int mRegionCount;
+
+    private long mLiveBytes;
+
+    private int mPageCreateCount;
+
+    private int mPageRecycleCount;
+
+    private int mMovedRegionCount;
+
+    public DrawingCacheAtlas() {
+        this(DEFAULT_PAGE_SIZE, CachingPolicy.BMP_BPP_ARGB_8888);
+    }
+
+    /**
+     * @param pageSize     页的边长
+     * @param bitsPerPixel CachingPolicy.BMP_BPP_ARGB_4444 或 BMP_BPP_ARGB_8888
+     */
+    public DrawingCacheAtlas(int pageSize, int bitsPerPixel) {
+        mPageSize = pageSize;
+        mBitsPerPixel = bitsPerPixel;
+        mCopyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    public int getBitsPerPixel() {
+        return mBitsPerPixel;
+    }
+
+    /**
+     * 高度超过半页的缓存不放入图集, 避免一条弹幕占用大半页
+     */
+    public boolean canFit(int w, int h) {
+        return w > 0 && h > 0 && w + PADDING <= mPageSize && h + PADDING <= mPageSize / 2;
+    }
+
+    /**
+     * 为region分配w*h的区域并清空, 然后设置到region.holder
+     *
+     * @throws OutOfMemoryError 创建新页失败
+     */
+    public synchronized void allocate(Region region, int w, int h, int density) {
+        if (region.page != null) {
+            free(region);
+        }
+        Page page = null;
+        for (int i = 0; i < mPages.size(); i++) {
+            if (mPages.get(i).packer.insert(w + PADDING, h + PADDING)) {
+                page = mPages.get(i);
+                break;
+            }
+        }
+        if (page == null) {
+            page = createPage();
+            page.packer.insert(w + PADDING, h + PADDING);
+        }
+        int left = page.packer.x;
+        int top = page.packer.y;
+        clearRect(page, left, top, w + PADDING, h + PADDING);
+        region.page = page;
+        region.left = left;
+        region.top = top;
+        region.width = w;
+        region.height = h;
+        page.regions.add(region);
+        page.liveArea += w * h;
+        mRegionCount++;
+        mLiveBytes += getBytes(w, h);
+        region.holder.buildCacheInAtlas(page.bitmap, left, top, w, h, density);
+    }
+
+    /**
+     * 释放region, 调用前region.holder应已不再使用该区域
+     */
+    public synchronized void free(Region region) {
+        Page page = region.page;
+        if (page == null) {
+            return;
+        }
+        region.page = null;
+        page.regions.remove(region);
+        page.liveArea -= region.width * region.height;
+        mRegionCount--;
+        mLiveBytes -= getBytes(region.width, region.height);
+        if (page.regions.isEmpty()) {
+            if (mPages.size() > 1) {
+                retirePage(page);
+            } else {
+                page.packer.reset();
+            }
+        }
+    }
+
+    /**
+     * 依次选出存活面积最小且低于阈值的页, 把其中的区域复制到其他页, 全部移出后回收该页;
+     * 其他页放不下时停止
+     *
+     * @return 移动的区域数
+     */
+    public synchronized int compact() {
+        recycleRetiredPages();
+        int moved = 0;
+        Page source;
+        while ((source = findSparsePage()) != null) {
+            moved += moveRegions(source);
+            if (!source.regions.isEmpty()) {
+                break;
+            }
+            retirePage(source);
+        }
+        mMovedRegionCount += moved;
+        return moved;
+    }
+
+    /**
+     * @return 存活面积最小且低于阈值的页, 只有一页时返回null
+     */
+    private Page findSparsePage() {
+        if (mPages.size() < 2) {
+            return null;
+        }
+        Page source = null;
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            if (source == null || page.liveArea < source.liveArea) {
+                source = page;
+            }
+        }
+        if (source.liveArea >= (long) mPageSize * mPageSize * COMPACT_THRESHOLD) {
+            return null;
+        }
+        return source;
+    }
+
+    private int moveRegions(Page source) {
+        int moved = 0;
+        for (int i = source.regions.size() - 1; i >= 0; i--) {
+            Region region = source.regions.get(i);
+            Page target = null;
+            for (int j = 0; j < mPages.size(); j++) {
+                Page page = mPages.get(j);
+                if (page != source && page.packer.insert(region.width + PADDING, region.height + PADDING)) {
+                    target = page;
+                    break;
+                }
+            }
+            if (target == null) {
+                break;
+            }
+            int left = target.packer.x;
+            int top = target.packer.y;
+            clearRect(target, left, top, region.width + PADDING, region.height + PADDING);
+            mSrcRect.set(region.left, region.top, region.left + region.width, region.top + region.height);
+            mDstRect.set(left, top, left + region.width, top + region.height);
+            target.canvas.drawBitmap(source.bitmap, mSrcRect, mDstRect, mCopyPaint);
+            region.holder.moveInAtlas(target.bitmap, left, top);
+
+            source.regions.remove(i);
+            source.liveArea -= region.width * region.height;
+            region.page = target;
+            region.left = left;
+            region.top = top;
+            target.regions.add(region);
+            target.liveArea += region.width * region.height;
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * 绘制线程每完成一帧调用一次, 不加锁
+     */
+    public void onFrameRendered() {
+        mRenderedFrameCount++;
+    }
+
+    /**
+     * 回收所有页(包括停用的页), 未释放的区域对应的缓存失效, 调用时不应有正在进行的绘制
+     */
+    public synchronized void clear() {
+        for (int i = mPages.size() - 1; i >= 0; i--) {
+            Page page = mPages.get(i);
+            for (int j = 0; j < page.regions.size(); j++) {
+                Region region = page.regions.get(j);
+                region.holder.recycle();
+                region.page = null;
+            }
+            mPages.remove(page);
+            recyclePage(page);
+        }
+        for (int i = 0; i < mRetiredPages.size(); i++) {
+            recyclePage(mRetiredPages.get(i));
+        }
+        mRetiredPages.clear();
+        mRegionCount = 0;
+        mLiveBytes = 0;
+    }
+
+    public synchronized int getPageCount() {
+        return mPages.size();
+    }
+
+    public synchronized int getRegionCount() {
+        return mRegionCount;
+    }
+
+    /**
+     * @return 停用但还未回收的页数
+     */
+    public synchronized int getRetiredPageCount() {
+        return mRetiredPages.size();
+    }
+
+    /**
+     * @return 所有页(包括停用但还未回收的页)占用的内存
+     */
+    public synchronized long getPageBytes() {
+        return (mPages.size() + mRetiredPages.size()) * getBytes(mPageSize, mPageSize);
+    }
+
+    /**
+     * @return 存活区域的像素占用的内存, 与getPageBytes的比值为图集的利用率
+     */
+    public synchronized long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    /**
+     * @return 累计创建的页(bitmap)数
+     */
+    public synchronized int getPageCreateCount() {
+        return mPageCreateCount;
+    }
+
+    public synchronized int getPageRecycleCount() {
+        return mPageRecycleCount;
+    }
+
+    /**
+     * @return 整理时累计移动的区域数
+     */
+    public synchronized int getMovedRegionCount() {
+        return mMovedRegionCount;
+    }
+
+    private Page createPage() {
+        Bitmap.Config config = mBitsPerPixel == CachingPolicy.BMP_BPP_ARGB_8888 ? Bitmap.Config.ARGB_8888
+                : Bitmap.Config.ARGB_4444;
+        recycleRetiredPages();
+        Page page = new Page();
+        page.bitmap = NativeBitmapFactory.createBitmap(mPageSize, mPageSize, config);
+        page.canvas = new Canvas(page.bitmap);
+        page.packer = new SkylinePacker(mPageSize, mPageSize);
+        mPages.add(page);
+        mPageCreateCount++;
+        return page;
+    }
+
+    /**
+     * 停用页, 上一帧的绘制可能还在引用, 暂不回收
+     */
+    private void retirePage(Page page) {
+        mPages.remove(page);
+        page.regions.clear();
+        page.retiredFrame = mRenderedFrameCount;
+        mRetiredPages.add(page);
+    }
+
+    private void recycleRetiredPages() {
+        int frame = mRenderedFrameCount;
+        for (int i = mRetiredPages.size() - 1; i >= 0; i--) {
+            Page page = mRetiredPages.get(i);
+            if (frame - page.retiredFrame >= RETIRE_FRAMES) {
+                mRetiredPages.remove(i);
+                recyclePage(page);
+            }
+        }
+    }
+
+    private void recyclePage(Page page) {
+        page.regions.clear();
+        page.canvas.setBitmap(null);
+        page.bitmap.recycle();
+        page.bitmap = null;
+        mPageRecycleCount++;
+    }
+
+    private void clearRect(Page page, int left, int top, int w, int h) {
+        Canvas canvas = page.canvas;
+        canvas.save();
+        canvas.clipRect(left, top, left + w, top + h);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        canvas.restore();
+    }
+
+    private long getBytes(int w, int h) {
+        return (long) w * h * mBitsPerPixel / 8;
+    }
+
+}
@@ -6,7 +6,9 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.PorterDuff;
 import android.graphics.Rect;
+import android.graphics.RectF;
 
 import tv.cjump.jni.NativeBitmapFactory;
 
@@ -18,6 +20,13 @@ public class DrawingCacheHolder {
     
     public Bitmap[][] bitmapArray;
 
+    /**
+     * 只缓存覆盖率时描边/投影/阴影所在的ALPHA_8层, 与bitmap尺寸相同, 没有描边层时为null
+     */
+    public Bitmap strokeBitmap;
+
+    public Canvas strokeCanvas;
+
     public Object extra;
 
     public int width;
@@ -28,11 +37,50 @@ public class DrawingCacheHolder {
 
     private int mDensity;
 
+    /**
+     * 是否使用图集页中的区域, 此时bitmap为共享的图集页, 缓存内容在mAtlasRect中
+     */
+    private boolean mInAtlas;
+
+    private final Rect mAtlasRect = new Rect();
+
+    private final RectF mDstRect = new RectF();
+
+    /**
+     * 是否只保存覆盖率, 此时bitmap为文字层(ALPHA_8), 绘制时着色, 见{@link #drawTinted}
+     */
+    private boolean mAlphaOnly;
+
+    /**
+     * 设置后buildCache从池中取bitmap, recycle时归还
+     */
+    private BitmapSlabPool mBitmapPool;
+
+    /**
+     * 当前bitmap所属的池, bitmap不是从池中取出时为null
+     */
+    private BitmapSlabPool mBitmapOwner;
+
     public DrawingCacheHolder() {
 
     }
 
     public void buildCache(int w, int h, int density, boolean checkSizeEquals, int bitsPerPixel) {
+        if (mInAtlas || mAlphaOnly) {
+            recycle();
+        }
+        Bitmap.Config config = Bitmap.Config.ARGB_4444;
+        if (bitsPerPixel == 32) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        BitmapSlabPool pool = mBitmapPool;
+        if (pool != null && pool.getConfig() == config) {
+            buildCacheFromPool(pool, w, h, density, checkSizeEquals);
+            return;
+        }
+        if (mBitmapOwner != null) {
+            recycle();
+        }
         boolean reuse = checkSizeEquals ? (w == width && h == height) : (w <= width && h <= height);
         if (reuse && bitmap != null) {
 //            canvas.drawColor(Color.TRANSPARENT);
@@ -47,10 +95,6 @@ public class DrawingCacheHolder {
         }
         width = w;
         height = h;
-        Bitmap.Config config = Bitmap.Config.ARGB_4444;
-        if (bitsPerPixel == 32) {
-            config = Bitmap.Config.ARGB_8888;
-        }
         bitmap = NativeBitmapFactory.createBitmap(w, h, config);
         if (density > 0) {
             mDensity = density;
@@ -63,8 +107,183 @@ public class DrawingCacheHolder {
             canvas.setBitmap(bitmap);
     }
 
+    /**
+     * 只缓存覆盖率: 文字画到bitmap, 描边/投影/阴影画到strokeBitmap, 都是ALPHA_8, 不使用池和图集
+     *
+     * @param strokeLayer 是否需要描边层
+     */
+    public void buildAlphaCache(int w, int h, int density, boolean checkSizeEquals, boolean strokeLayer) {
+        if (bitmap != null && !mAlphaOnly) {
+            recycle();
+        }
+        boolean reuse = checkSizeEquals ? (w == width && h == height) : (w <= width && h <= height);
+        if (reuse && bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            canvas.setBitmap(bitmap);
+        } else {
+            if (bitmap != null) {
+                recycle();
+            }
+            Bitmap fill = NativeBitmapFactory.createBitmap(w, h, Bitmap.Config.ALPHA_8, true);
+            synchronized (this) {
+                bitmap = fill;
+                mAlphaOnly = true;
+                width = w;
+                height = h;
+            }
+            if (density > 0) {
+                mDensity = density;
+                bitmap.setDensity(density);
+            }
+            if (canvas == null) {
+                canvas = new Canvas(bitmap);
+                canvas.setDensity(density);
+            } else {
+                canvas.setBitmap(bitmap);
+            }
+        }
+        if (!strokeLayer) {
+            recycleStrokeLayer();
+            return;
+        }
+        if (strokeBitmap != null && strokeBitmap.getWidth() == bitmap.getWidth() && strokeBitmap.getHeight() == bitmap.getHeight()) {
+            strokeBitmap.eraseColor(Color.TRANSPARENT);
+            return;
+        }
+        recycleStrokeLayer();
+        Bitmap stroke = NativeBitmapFactory.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ALPHA_8, true);
+        if (mDensity > 0) {
+            stroke.setDensity(mDensity);
+        }
+        if (strokeCanvas == null) {
+            strokeCanvas = new Canvas(stroke);
+            strokeCanvas.setDensity(mDensity);
+        } else {
+            strokeCanvas.setBitmap(stroke);
+        }
+        synchronized (this) {
+            strokeBitmap = stroke;
+        }
+    }
+
+    public boolean isAlphaOnly() {
+        return mAlphaOnly;
+    }
+
+    /**
+     * @return 各层bitmap占用的内存
+     */
+    public int getByteCount() {
+        int size = 0;
+        if (bitmap != null) {
+            size += bitmap.getRowBytes() * bitmap.getHeight();
+        }
+        if (strokeBitmap != null) {
+            size += strokeBitmap.getRowBytes() * strokeBitmap.getHeight();
+        }
+        return size;
+    }
+
+    /**
+     * 从池中取尺寸级别合适的bitmap, bitmap可能比w*h大, 多出的部分保持透明
+     */
+    private void buildCacheFromPool(BitmapSlabPool pool, int w, int h, int density, boolean checkSizeEquals) {
+        if (bitmap != null && mBitmapOwner == pool) {
+            boolean reuse = checkSizeEquals ? BitmapSlabPool.fits(bitmap, w, h)
+                    : (w <= bitmap.getWidth() && h <= bitmap.getHeight());
+            if (reuse) {
+                bitmap.eraseColor(Color.TRANSPARENT);
+                canvas.setBitmap(bitmap);
+                recycleBitmapArray();
+                width = w;
+                height = h;
+                return;
+            }
+        }
+        if (bitmap != null) {
+            recycle();
+        }
+        Bitmap pooled = pool.acquire(w, h);
+        synchronized (this) {
+            bitmap = pooled;
+            mBitmapOwner = pool;
+            width = w;
+            height = h;
+        }
+        if (density > 0) {
+            mDensity = density;
+            bitmap.setDensity(density);
+        }
+        if (canvas == null) {
+            canvas = new Canvas(bitmap);
+            canvas.setDensity(density);
+        } else {
+            canvas.setBitmap(bitmap);
+        }
+    }
+
+    public void setBitmapPool(BitmapSlabPool pool) {
+        mBitmapPool = pool;
+    }
+
+    /**
+     * 使用图集页page中(left, top)处w*h的区域作为缓存, canvas绘制时以区域左上角为原点
+     * 区域由{@link DrawingCacheAtlas}分配和清空
+     */
+    public void buildCacheInAtlas(Bitmap page, int left, int top, int w, int h, int density) {
+        if (bitmap != null && !mInAtlas) {
+            recycle();
+        }
+        recycleBitmapArray();
+        synchronized (this) {
+            mInAtlas = true;
+            bitmap = page;
+            width = w;
+            height = h;
+            mAtlasRect.set(left, top, left + w, top + h);
+        }
+        if (density > 0) {
+            mDensity = density;
+        }
+        if (canvas == null) {
+            canvas = new Canvas();
+            if (mDensity > 0) {
+                canvas.setDensity(mDensity);
+            }
+        }
+        setupAtlasCanvas();
+    }
+
+    /**
+     * 图集整理时区域内容已复制到新位置
+     */
+    synchronized void moveInAtlas(Bitmap page, int left, int top) {
+        bitmap = page;
+        mAtlasRect.offsetTo(left, top);
+        setupAtlasCanvas();
+    }
+
+    public boolean isInAtlas() {
+        return mInAtlas;
+    }
+
+    private void setupAtlasCanvas() {
+        canvas.restoreToCount(1);
+        canvas.setBitmap(bitmap);
+        canvas.save();
+        canvas.translate(mAtlasRect.left, mAtlasRect.top);
+        canvas.clipRect(0, 0, width, height);
+    }
+
     public void erase() {
+        if (mInAtlas) {
+            if (bitmap != null) {
+                canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            }
+            return;
+        }
         eraseBitmap(bitmap);
+        eraseBitmap(strokeBitmap);
         eraseBitmapArray();
     }
 
@@ -72,17 +291,43 @@ public class DrawingCacheHolder {
         Bitmap bitmapReserve = bitmap;
         bitmap = null;
         width = height = 0;
-        if (bitmapReserve != null) {
+        if (mInAtlas) {
+            // 图集页由DrawingCacheAtlas回收
+            mInAtlas = false;
+            if (canvas != null) {
+                canvas.restoreToCount(1);
+            }
+        } else if (mBitmapOwner != null) {
+            // 归还后由池清空和复用
+            mBitmapOwner.release(bitmapReserve);
+            mBitmapOwner = null;
+        } else if (bitmapReserve != null) {
             bitmapReserve.recycle();
         }
+        mAlphaOnly = false;
+        recycleStrokeLayer();
         recycleBitmapArray();
         extra = null;
     }
 
+    private void recycleStrokeLayer() {
+        Bitmap strokeReserve;
+        synchronized (this) {
+            strokeReserve = strokeBitmap;
+            strokeBitmap = null;
+        }
+        if (strokeReserve != null) {
+            if (strokeCanvas != null) {
+                strokeCanvas.setBitmap(null);
+            }
+            strokeReserve.recycle();
+        }
+    }
+
     @SuppressLint("NewApi")
     public void splitWith(int dispWidth, int dispHeight, int maximumCacheWidth, int maximumCacheHeight) {
         recycleBitmapArray();
-        if (width <= 0 || height <= 0 || bitmap == null) {
+        if (width <= 0 || height <= 0 || bitmap == null || mInAtlas || mAlphaOnly) {
             return;
         }
         if (width <= maximumCacheWidth && height <= maximumCacheHeight) {
@@ -172,10 +417,35 @@ public class DrawingCacheHolder {
             }
             return true;
         } else if (bitmap != null) {
-            canvas.drawBitmap(bitmap, left, top, paint);
+            if (mInAtlas) {
+                mDstRect.set(left, top, left + width, top + height);
+                canvas.drawBitmap(bitmap, mAtlasRect, mDstRect, paint);
+            } else {
+                canvas.drawBitmap(bitmap, left, top, paint);
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * 绘制只保存覆盖率的缓存: 先用strokeColor画描边层, 再用fillColor画文字层
+     *
+     * @param paint 着色用的画笔, 颜色和透明度会被修改
+     */
+    public final synchronized boolean drawTinted(Canvas canvas, float left, float top, Paint paint, int strokeColor, int fillColor, int alpha) {
+        if (bitmap == null || !mAlphaOnly) {
+            return false;
+        }
+        if (strokeBitmap != null) {
+            paint.setColor(strokeColor);
+            paint.setAlpha(alpha);
+            canvas.drawBitmap(strokeBitmap, left, top, paint);
+        }
+        paint.setColor(fillColor);
+        paint.setAlpha(alpha);
+        canvas.drawBitmap(bitmap, left, top, paint);
+        return true;
+    }
+
 }
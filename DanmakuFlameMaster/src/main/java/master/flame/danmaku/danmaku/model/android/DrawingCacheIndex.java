@@ -0,0 +1,304 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+
+/**
+ * 弹幕缓存索引, 代替按时间顺序逐条比较的查找:
+ * 1. 按内容(文字, 字号, 颜色, 阴影/描边/下划线颜色, 尺寸, measure标记)索引已有的缓存, 内容相同的弹幕O(1)找到并共用同一份缓存,
+ * 共用时增加缓存的引用计数; 字体和描边等全局样式变化会更新measure标记, 旧缓存不再匹配;
+ * 只保存覆盖率的缓存不按颜色索引, 颜色不同的弹幕也能共用
+ * 2. 过期弹幕的缓存不立即销毁, 按高度分桶放入空闲列表, 新弹幕按尺寸(允许slop误差)取出重绘, 不用重新创建bitmap
+ *
+ * 只在缓存线程使用
+ */
+public class DrawingCacheIndex {
+
+    static final class Key {
+
+        CharSequence text;
+
+        float textSize;
+
+        int textColor, textShadowColor, underlineColor, borderColor, padding;
+
+        float paintWidth, paintHeight;
+
+        int measureResetFlag;
+
+        Object tag;
+
+        boolean colorAgnostic;
+
+        int hash;
+
+        Key set(BaseDanmaku danmaku, boolean colorAgnostic) {
+            text = danmaku.text;
+            textSize = danmaku.textSize;
+            this.colorAgnostic = colorAgnostic;
+            if (colorAgnostic) {
+                // 只保留影响覆盖率的部分: 是否有描边层, 阴影颜色的透明度
+                textColor = 0;
+                textShadowColor = danmaku.textShadowColor == 0 ? 0 : (danmaku.textShadowColor & 0xFF000000) | 1;
+            } else {
+                textColor = danmaku.textColor;
+                textShadowColor = danmaku.textShadowColor;
+            }
+            underlineColor = danmaku.underlineColor;
+            borderColor = danmaku.borderColor;
+            padding = danmaku.padding;
+            paintWidth = danmaku.paintWidth;
+            paintHeight = danmaku.paintHeight;
+            measureResetFlag = danmaku.measureResetFlag;
+            tag = danmaku.tag;
+            int h = text != null ? text.hashCode() : 0;
+            h = 31 * h + Float.floatToIntBits(textSize);
+            h = 31 * h + textColor;
+            h = 31 * h + textShadowColor;
+            h = 31 * h + underlineColor;
+            h = 31 * h + borderColor;
+            h = 31 * h + padding;
+            h = 31 * h + Float.floatToIntBits(paintWidth);
+            h = 31 * h + Float.floatToIntBits(paintHeight);
+            h = 31 * h + measureResetFlag;
+            h = 31 * h + (tag != null ? System.identityHashCode(tag) : 0);
+            h = 31 * h + (colorAgnostic ? 1 : 0);
+            hash = h;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash
+                    && textSize == key.textSize
+                    && textColor == key.textColor
+                    && textShadowColor == key.textShadowColor
+                    && underlineColor == key.underlineColor
+                    && borderColor == key.borderColor
+                    && padding == key.padding
+                    && paintWidth == key.paintWidth
+                    && paintHeight == key.paintHeight
+                    && measureResetFlag == key.measureResetFlag
+                    && tag == key.tag
+                    && colorAgnostic == key.colorAgnostic
+                    && (text == key.text || (text != null && text.equals(key.text)));
+        }
+    }
+
+    private final HashMap<Key, DrawingCache> mCaches = new HashMap<>();
+
+    private final Key mProbe = new Key();
+
+    /**
+     * 空闲缓存, 按缓存高度分桶
+     */
+    private final SparseArray<ArrayList<DrawingCache>> mFreeCaches = new SparseArray<>();
+
+    private int mFreeCount;
+
+    private long mFreeSize;
+
+    private int mSharedHitCount;
+
+    private int mFreeHitCount;
+
+    private int mMissCount;
+
+    /**
+     * @return 与danmaku内容相同的缓存, 没有时返回null
+     */
+    public DrawingCache find(BaseDanmaku danmaku) {
+        return find(danmaku, false);
+    }
+
+    /**
+     * @param colorAgnostic danmaku是否使用只保存覆盖率的缓存, 是时忽略颜色查找
+     * @return 与danmaku内容相同的缓存, 没有时返回null
+     */
+    public DrawingCache find(BaseDanmaku danmaku, boolean colorAgnostic) {
+        Key probe = mProbe.set(danmaku, colorAgnostic);
+        DrawingCache cache = mCaches.get(probe);
+        if (cache != null && (cache.get() == null || !probe.equals(cache.mIndexKey))) {
+            // 缓存已在别处销毁或重用
+            mCaches.remove(probe);
+            cache = null;
+        }
+        probe.text = null;
+        probe.tag = null;
+        if (cache != null) {
+            mSharedHitCount++;
+        }
+        return cache;
+    }
+
+    /**
+     * 记录为danmaku绘制的缓存
+     */
+    public void put(BaseDanmaku danmaku, DrawingCache cache) {
+        remove(cache);
+        Key key = new Key().set(danmaku, cache.isColorAgnostic());
+        DrawingCache old = mCaches.get(key);
+        if (old == null || old.get() == null || !key.equals(old.mIndexKey)) {
+            mCaches.put(key, cache);
+            cache.mIndexKey = key;
+            cache.mIndexOwner = danmaku;
+        }
+    }
+
+    /**
+     * @return 登记cache的弹幕, cache不在索引中时返回null
+     */
+    public BaseDanmaku getOwner(DrawingCache cache) {
+        return cache.mIndexKey != null ? cache.mIndexOwner : null;
+    }
+
+    /**
+     * 缓存销毁或内容改变前调用
+     */
+    public void remove(DrawingCache cache) {
+        Key key = cache.mIndexKey;
+        if (key == null) {
+            return;
+        }
+        cache.mIndexKey = null;
+        cache.mIndexOwner = null;
+        if (mCaches.get(key) == cache) {
+            mCaches.remove(key);
+        }
+    }
+
+    /**
+     * 没有引用的缓存放入空闲列表, 保留bitmap
+     */
+    public void release(DrawingCache cache) {
+        remove(cache);
+        int height = cache.height();
+        ArrayList<DrawingCache> bucket = mFreeCaches.get(height);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            mFreeCaches.put(height, bucket);
+        }
+        bucket.add(cache);
+        mFreeCount++;
+        mFreeSize += cache.size();
+    }
+
+    /**
+     * 取出宽高都不小于width/height且超出不多于slop的空闲缓存
+     *
+     * @return 没有时返回null
+     */
+    public DrawingCache acquireFree(float width, float height, int slop) {
+        for (int i = 0; i < mFreeCaches.size(); i++) {
+            int bucketHeight = mFreeCaches.keyAt(i);
+            float heightGap = bucketHeight - height;
+            if (heightGap < 0) {
+                continue;
+            }
+            if (heightGap > slop) {
+                break;
+            }
+            ArrayList<DrawingCache> bucket = mFreeCaches.valueAt(i);
+            for (int j = bucket.size() - 1; j >= 0; j--) {
+                DrawingCache cache = bucket.get(j);
+                float widthGap = cache.width() - width;
+                if (widthGap >= 0 && widthGap <= slop) {
+                    removeFree(bucket, j);
+                    mFreeHitCount++;
+                    return cache;
+                }
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * 取出最大的一个空闲缓存, 用于释放内存
+     *
+     * @return 空闲列表为空时返回null
+     */
+    public DrawingCache pollFree() {
+        for (int i = mFreeCaches.size() - 1; i >= 0; i--) {
+            ArrayList<DrawingCache> bucket = mFreeCaches.valueAt(i);
+            if (!bucket.isEmpty()) {
+                return removeFree(bucket, bucket.size() - 1);
+            }
+        }
+        return null;
+    }
+
+    private DrawingCache removeFree(ArrayList<DrawingCache> bucket, int index) {
+        DrawingCache cache = bucket.get(index);
+        int last = bucket.size() - 1;
+        bucket.set(index, bucket.get(last));
+        bucket.remove(last);
+        mFreeCount--;
+        mFreeSize -= cache.size();
+        return cache;
+    }
+
+    /**
+     * 清空索引, 空闲缓存由调用方先用pollFree取出销毁
+     */
+    public void clear() {
+        for (DrawingCache cache : mCaches.values()) {
+            cache.mIndexKey = null;
+            cache.mIndexOwner = null;
+        }
+        mCaches.clear();
+    }
+
+    public int getIndexedCount() {
+        return mCaches.size();
+    }
+
+    public int getFreeCount() {
+        return mFreeCount;
+    }
+
+    /**
+     * @return 空闲缓存占用的内存
+     */
+    public long getFreeSize() {
+        return mFreeSize;
+    }
+
+    /**
+     * @return 共用已有缓存的次数
+     */
+    public int getSharedHitCount() {
+        return mSharedHitCount;
+    }
+
+    /**
+     * @return 复用空闲缓存的次数
+     */
+    public int getFreeHitCount() {
+        return mFreeHitCount;
+    }
+
+    /**
+     * @return 既不能共用也没有合适空闲缓存的次数
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+}
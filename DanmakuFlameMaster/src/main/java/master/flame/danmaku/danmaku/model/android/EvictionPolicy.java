@@ -0,0 +1,637 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+
+/**
+ * 缓存淘汰策略: 决定弹幕消失后是否保留缓存供内容相同的新弹幕共用, 以及容量不足时先释放哪条弹幕的缓存
+ * 通过{@link CachingPolicy#evictionPolicy}选择, 每个缓存管理器使用各自的实例
+ *
+ * 只在缓存线程使用
+ */
+public abstract class EvictionPolicy {
+
+    public interface Filter {
+
+        /**
+         * @return danmaku的缓存当前可以释放(已消失, 已被过滤或已保留)
+         */
+        boolean canEvict(BaseDanmaku danmaku);
+
+    }
+
+    public static EvictionPolicy create(int type) {
+        switch (type) {
+            case CachingPolicy.EVICTION_LRU:
+                return new Lru();
+            case CachingPolicy.EVICTION_CLOCK:
+                return new Clock();
+            case CachingPolicy.EVICTION_FREQUENCY:
+                return new FrequencyAware();
+            case CachingPolicy.EVICTION_GENERATIONAL:
+                return new Generational();
+            default:
+                return new TimeOrdered();
+        }
+    }
+
+    /**
+     * 弹幕的缓存加入缓存池, 已加入时视为访问
+     */
+    public abstract void onAdd(BaseDanmaku danmaku);
+
+    /**
+     * 弹幕的缓存被内容相同的新弹幕共用
+     */
+    public abstract void onAccess(BaseDanmaku danmaku);
+
+    /**
+     * 弹幕的缓存移出缓存池
+     */
+    public abstract void onRemove(BaseDanmaku danmaku);
+
+    /**
+     * 开始一轮淘汰, 之后连续调用selectVictim直到腾出足够的容量
+     *
+     * @param forcePush 为强制加入的缓存腾出容量, 按顺序淘汰的策略遇到第一个不能释放的缓存即停止
+     */
+    public void beginEviction(boolean forcePush) {
+    }
+
+    /**
+     * @return 按淘汰顺序第一个可以释放的弹幕, 没有时返回null; 由调用方释放后调用onRemove
+     */
+    public abstract BaseDanmaku selectVictim(Filter filter);
+
+    /**
+     * @return 弹幕消失时保留缓存返回true, 否则缓存立即回收到空闲列表
+     */
+    public abstract boolean retainOnTimeOut(BaseDanmaku danmaku);
+
+    public abstract int size();
+
+    public abstract void clear();
+
+    /**
+     * 按开始显示的时间淘汰, 弹幕消失后立即回收缓存(默认)
+     * 一轮淘汰中从上次的位置继续查找, 前面的缓存在这一轮中仍不能释放
+     */
+    public static class TimeOrdered extends EvictionPolicy {
+
+        private final Danmakus mEntries = new Danmakus();
+
+        /**
+         * 本轮淘汰的位置, 加入或删除其他弹幕后失效
+         */
+        private Iterator<BaseDanmaku> mCursor;
+
+        /**
+         * 上次返回的弹幕, onRemove时通过mCursor删除
+         */
+        private BaseDanmaku mVictim;
+
+        private boolean mStopAtBusy;
+
+        private boolean mStopped;
+
+        @Override
+        public void beginEviction(boolean forcePush) {
+            mCursor = null;
+            mVictim = null;
+            mStopAtBusy = forcePush;
+            mStopped = false;
+        }
+
+        @Override
+        public void onAdd(BaseDanmaku danmaku) {
+            if (mEntries.addItem(danmaku)) {
+                mCursor = null;
+            }
+        }
+
+        @Override
+        public void onAccess(BaseDanmaku danmaku) {
+        }
+
+        @Override
+        public void onRemove(BaseDanmaku danmaku) {
+            if (danmaku == mVictim && mCursor != null) {
+                mEntries.removeByIterator(mCursor);
+                mVictim = null;
+                return;
+            }
+            if (mEntries.removeItem(danmaku)) {
+                mCursor = null;
+            }
+        }
+
+        @Override
+        public BaseDanmaku selectVictim(Filter filter) {
+            if (mStopped) {
+                return null;
+            }
+            if (mCursor == null || mVictim != null) {
+                // 上次返回的弹幕没有释放, 从头查找
+                mCursor = mEntries.items.iterator();
+                mVictim = null;
+            }
+            while (mCursor.hasNext()) {
+                BaseDanmaku danmaku = mCursor.next();
+                if (filter.canEvict(danmaku)) {
+                    mVictim = danmaku;
+                    return danmaku;
+                }
+                if (mStopAtBusy) {
+                    mStopped = true;
+                    break;
+                }
+            }
+            mCursor = null;
+            return null;
+        }
+
+        @Override
+        public boolean retainOnTimeOut(BaseDanmaku danmaku) {
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return mEntries.size();
+        }
+
+        @Override
+        public void clear() {
+            mEntries.clear();
+            beginEviction(false);
+        }
+
+    }
+
+    /**
+     * 淘汰最久没有被共用的缓存, 弹幕消失后保留
+     */
+    public static class Lru extends EvictionPolicy {
+
+        private final LinkedHashMap<BaseDanmaku, Boolean> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+
+        @Override
+        public void onAdd(BaseDanmaku danmaku) {
+            mEntries.put(danmaku, Boolean.TRUE);
+        }
+
+        @Override
+        public void onAccess(BaseDanmaku danmaku) {
+            mEntries.get(danmaku);
+        }
+
+        @Override
+        public void onRemove(BaseDanmaku danmaku) {
+            mEntries.remove(danmaku);
+        }
+
+        @Override
+        public BaseDanmaku selectVictim(Filter filter) {
+            for (BaseDanmaku danmaku : mEntries.keySet()) {
+                if (filter.canEvict(danmaku)) {
+                    return danmaku;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean retainOnTimeOut(BaseDanmaku danmaku) {
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return mEntries.size();
+        }
+
+        @Override
+        public void clear() {
+            mEntries.clear();
+        }
+
+    }
+
+    /**
+     * LRU的近似: 缓存被共用时只设置访问标记, 指针转过时清除标记, 淘汰第一个没有标记的缓存, 弹幕消失后保留
+     */
+    public static class Clock extends EvictionPolicy {
+
+        private static class Entry {
+
+            BaseDanmaku danmaku;
+
+            boolean referenced;
+
+        }
+
+        private final ArrayList<Entry> mRing = new ArrayList<>();
+
+        private final IdentityHashMap<BaseDanmaku, Entry> mEntries = new IdentityHashMap<>();
+
+        private int mHand;
+
+        @Override
+        public void onAdd(BaseDanmaku danmaku) {
+            Entry entry = mEntries.get(danmaku);
+            if (entry == null) {
+                entry = new Entry();
+                entry.danmaku = danmaku;
+                mEntries.put(danmaku, entry);
+                mRing.add(entry);
+            }
+            entry.referenced = true;
+        }
+
+        @Override
+        public void onAccess(BaseDanmaku danmaku) {
+            Entry entry = mEntries.get(danmaku);
+            if (entry != null) {
+                entry.referenced = true;
+            }
+        }
+
+        @Override
+        public void onRemove(BaseDanmaku danmaku) {
+            Entry entry = mEntries.remove(danmaku);
+            if (entry != null) {
+                entry.danmaku = null;
+                if (mRing.size() > mEntries.size() * 2 + 16) {
+                    compact();
+                }
+            }
+        }
+
+        @Override
+        public BaseDanmaku selectVictim(Filter filter) {
+            int count = mRing.size();
+            // 最多转两圈: 第一圈清除标记, 第二圈一定能找到可以释放的缓存
+            for (int i = 0; i < count * 2; i++) {
+                if (mHand >= mRing.size()) {
+                    mHand = 0;
+                }
+                Entry entry = mRing.get(mHand);
+                mHand++;
+                if (entry.danmaku == null || !filter.canEvict(entry.danmaku)) {
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    continue;
+                }
+                return entry.danmaku;
+            }
+            return null;
+        }
+
+        private void compact() {
+            int j = 0;
+            for (int i = 0; i < mRing.size(); i++) {
+                Entry entry = mRing.get(i);
+                if (entry.danmaku != null) {
+                    mRing.set(j++, entry);
+                } else if (i < mHand) {
+                    mHand--;
+                }
+            }
+            while (mRing.size() > j) {
+                mRing.remove(mRing.size() - 1);
+            }
+        }
+
+        @Override
+        public boolean retainOnTimeOut(BaseDanmaku danmaku) {
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return mEntries.size();
+        }
+
+        @Override
+        public void clear() {
+            mRing.clear();
+            mEntries.clear();
+            mHand = 0;
+        }
+
+    }
+
+    /**
+     * 保留热门文字的缓存: 按文字统计出现和共用的次数(定期减半), 从最早加入的SAMPLE_SIZE条可以释放的缓存中淘汰次数最少的,
+     * 弹幕消失后保留
+     */
+    public static class FrequencyAware extends EvictionPolicy {
+
+        static final int SAMPLE_SIZE = 16;
+
+        /**
+         * 计数总数达到这个值时所有计数减半, 让过去的热门文字逐渐冷却
+         */
+        static final int RESET_COUNT = 8192;
+
+        private final LinkedHashMap<BaseDanmaku, String> mEntries = new LinkedHashMap<>();
+
+        private final HashMap<String, Integer> mFrequencies = new HashMap<>();
+
+        private int mCount;
+
+        @Override
+        public void onAdd(BaseDanmaku danmaku) {
+            if (mEntries.containsKey(danmaku)) {
+                onAccess(danmaku);
+                return;
+            }
+            String text = String.valueOf(danmaku.text);
+            mEntries.put(danmaku, text);
+            increment(text);
+        }
+
+        @Override
+        public void onAccess(BaseDanmaku danmaku) {
+            String text = mEntries.get(danmaku);
+            if (text != null) {
+                increment(text);
+            }
+        }
+
+        @Override
+        public void onRemove(BaseDanmaku danmaku) {
+            mEntries.remove(danmaku);
+        }
+
+        @Override
+        public BaseDanmaku selectVictim(Filter filter) {
+            BaseDanmaku victim = null;
+            int victimFrequency = Integer.MAX_VALUE;
+            int sampled = 0;
+            Iterator<Map.Entry<BaseDanmaku, String>> iterator = mEntries.entrySet().iterator();
+            while (sampled < SAMPLE_SIZE && iterator.hasNext()) {
+                Map.Entry<BaseDanmaku, String> entry = iterator.next();
+                if (!filter.canEvict(entry.getKey())) {
+                    continue;
+                }
+                sampled++;
+                int frequency = getFrequency(entry.getValue());
+                if (frequency < victimFrequency) {
+                    victim = entry.getKey();
+                    victimFrequency = frequency;
+                }
+            }
+            return victim;
+        }
+
+        /**
+         * @return 文字近期出现和被共用的次数
+         */
+        public int getFrequency(String text) {
+            Integer frequency = mFrequencies.get(text);
+            return frequency != null ? frequency : 0;
+        }
+
+        private void increment(String text) {
+            mFrequencies.put(text, getFrequency(text) + 1);
+            if (++mCount >= RESET_COUNT) {
+                mCount = 0;
+                Iterator<Map.Entry<String, Integer>> iterator = mFrequencies.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<String, Integer> entry = iterator.next();
+                    int frequency = entry.getValue() / 2;
+                    if (frequency == 0) {
+                        iterator.remove();
+                    } else {
+                        entry.setValue(frequency);
+                        mCount += frequency;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean retainOnTimeOut(BaseDanmaku danmaku) {
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return mEntries.size();
+        }
+
+        @Override
+        public void clear() {
+            mEntries.clear();
+            mFrequencies.clear();
+            mCount = 0;
+        }
+
+    }
+
+    /**
+     * 分代: 新的缓存进入固定大小的新生代, 显示期间被共用的晋升到老年代, 固定/特殊弹幕和显示时间长的直接进入老年代;
+     * 新生代写满时整体清空, 其中仍未移除的缓存(还在显示)晋升到老年代;
+     * 新生代的缓存在弹幕消失后直接回收到空闲列表, 容量不足时按加入顺序先于老年代淘汰;
+     * 老年代的缓存在弹幕消失后保留, 按LRU淘汰
+     */
+    public static class Generational extends EvictionPolicy {
+
+        /**
+         * 显示时间不短于这个值(毫秒)的弹幕直接进入老年代
+         */
+        static final long LONG_LIVED_DURATION = 8000;
+
+        static final int DEFAULT_YOUNG_CAPACITY = 256;
+
+        /**
+         * 新生代按加入顺序依次占用, 移除后留空, 写满后整体清空
+         */
+        private final BaseDanmaku[] mYoung;
+
+        private final IdentityHashMap<BaseDanmaku, Integer> mYoungSlots = new IdentityHashMap<>();
+
+        private int mYoungTop;
+
+        private final LinkedHashMap<BaseDanmaku, Boolean> mOld = new LinkedHashMap<>(64, 0.75f, true);
+
+        private int mLookupCount;
+
+        private int mYoungHitCount;
+
+        private int mOldHitCount;
+
+        private int mPromotionCount;
+
+        private int mCollectionCount;
+
+        public Generational() {
+            this(DEFAULT_YOUNG_CAPACITY);
+        }
+
+        Generational(int youngCapacity) {
+            mYoung = new BaseDanmaku[youngCapacity];
+        }
+
+        @Override
+        public void onAdd(BaseDanmaku danmaku) {
+            if (mYoungSlots.containsKey(danmaku) || mOld.containsKey(danmaku)) {
+                return;
+            }
+            mLookupCount++;
+            if (isLongLived(danmaku)) {
+                mOld.put(danmaku, Boolean.TRUE);
+                return;
+            }
+            if (mYoungTop == mYoung.length) {
+                collectYoung();
+            }
+            mYoungSlots.put(danmaku, mYoungTop);
+            mYoung[mYoungTop++] = danmaku;
+        }
+
+        private static boolean isLongLived(BaseDanmaku danmaku) {
+            int type = danmaku.getType();
+            return type == BaseDanmaku.TYPE_FIX_TOP || type == BaseDanmaku.TYPE_FIX_BOTTOM || type == BaseDanmaku.TYPE_SPECIAL
+                    || danmaku.getDuration() >= LONG_LIVED_DURATION;
+        }
+
+        /**
+         * 新生代整体清空, 仍未移除的缓存晋升
+         */
+        private void collectYoung() {
+            for (int i = 0; i < mYoungTop; i++) {
+                BaseDanmaku survivor = mYoung[i];
+                if (survivor != null) {
+                    mPromotionCount++;
+                    mOld.put(survivor, Boolean.TRUE);
+                }
+            }
+            Arrays.fill(mYoung, 0, mYoungTop, null);
+            mYoungSlots.clear();
+            mYoungTop = 0;
+            mCollectionCount++;
+        }
+
+        private boolean removeYoung(BaseDanmaku danmaku) {
+            Integer slot = mYoungSlots.remove(danmaku);
+            if (slot == null) {
+                return false;
+            }
+            mYoung[slot] = null;
+            return true;
+        }
+
+        @Override
+        public void onAccess(BaseDanmaku danmaku) {
+            if (removeYoung(danmaku)) {
+                mYoungHitCount++;
+                mPromotionCount++;
+                mOld.put(danmaku, Boolean.TRUE);
+            } else if (mOld.get(danmaku) != null) {
+                mOldHitCount++;
+            }
+        }
+
+        @Override
+        public void onRemove(BaseDanmaku danmaku) {
+            if (!removeYoung(danmaku)) {
+                mOld.remove(danmaku);
+            }
+        }
+
+        @Override
+        public BaseDanmaku selectVictim(Filter filter) {
+            for (int i = 0; i < mYoungTop; i++) {
+                BaseDanmaku danmaku = mYoung[i];
+                if (danmaku != null && filter.canEvict(danmaku)) {
+                    return danmaku;
+                }
+            }
+            for (BaseDanmaku danmaku : mOld.keySet()) {
+                if (filter.canEvict(danmaku)) {
+                    return danmaku;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean retainOnTimeOut(BaseDanmaku danmaku) {
+            return mOld.containsKey(danmaku);
+        }
+
+        public int getYoungSize() {
+            return mYoungSlots.size();
+        }
+
+        public int getOldSize() {
+            return mOld.size();
+        }
+
+        /**
+         * @return 加入的弹幕数, 即查找缓存的次数
+         */
+        public int getLookupCount() {
+            return mLookupCount;
+        }
+
+        /**
+         * @return 共用新生代缓存的次数, 每次都使缓存晋升
+         */
+        public int getYoungHitCount() {
+            return mYoungHitCount;
+        }
+
+        public int getOldHitCount() {
+            return mOldHitCount;
+        }
+
+        /**
+         * @return 晋升次数, 包括被共用和新生代清空时仍存活的缓存
+         */
+        public int getPromotionCount() {
+            return mPromotionCount;
+        }
+
+        /**
+         * @return 新生代写满后整体清空的次数
+         */
+        public int getCollectionCount() {
+            return mCollectionCount;
+        }
+
+        public float getYoungHitRate() {
+            return mLookupCount > 0 ? mYoungHitCount / (float) mLookupCount : 0;
+        }
+
+        public float getOldHitRate() {
+            return mLookupCount > 0 ? mOldHitCount / (float) mLookupCount : 0;
+        }
+
+        @Override
+        public int size() {
+            return mYoungSlots.size() + mOld.size();
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(mYoung, 0, mYoungTop, null);
+            mYoungSlots.clear();
+            mYoungTop = 0;
+            mOld.clear();
+        }
+
+    }
+
+}
@@ -0,0 +1,389 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 字形图集: 每个字符按(字体, 字号级别, 轮廓样式)只绘制一次覆盖率(ALPHA_8), 打包到少量图集页中,
+ * 绘制弹幕时逐字从图集页中截取并用画笔着色, 内存只和出现过的字符数有关, 与弹幕数量无关
+ *
+ * 页内用{@link SkylinePacker}分配, 字形之间留1像素间隔; 页数达到上限且放不下时换用新的页重新绘制用到的字形,
+ * 旧页不擦除, 本帧已取得的字形和已记录的绘制仍然有效, 绘制线程再完成RETIRE_FRAMES帧(onFrameRendered)后回收
+ * 所有方法在this上同步
+ */
+public class GlyphAtlas {
+
+    public static final int DEFAULT_PAGE_SIZE = 512;
+
+    public static final int DEFAULT_MAX_PAGE_COUNT = 8;
+
+    public static final int OUTLINE_NONE = 0;
+
+    /**
+     * 描边, outlineWidth为描边宽度
+     */
+    public static final int OUTLINE_STROKE = 1;
+
+    /**
+     * 阴影, outlineWidth为阴影半径
+     */
+    public static final int OUTLINE_SHADOW = 2;
+
+    private static final int GAP = 1;
+
+    /**
+     * 停用的页在绘制线程完成该帧数后回收
+     */
+    private static final int RETIRE_FRAMES = 2;
+
+    public static class Glyph {
+
+        /**
+         * 所在的图集页, 空白字符或放不下时为null
+         */
+        Bitmap page;
+
+        final Rect src = new Rect();
+
+        /**
+         * 左上角相对于基线原点的位置
+         */
+        int left, top;
+
+        float advance;
+
+        public float getAdvance() {
+            return advance;
+        }
+    }
+
+    static final class FaceKey {
+
+        Typeface typeface;
+
+        int size;
+
+        boolean fakeBold;
+
+        int outline;
+
+        float outlineWidth;
+
+        int hash;
+
+        FaceKey set(Typeface typeface, int size, boolean fakeBold, int outline, float outlineWidth) {
+            this.typeface = typeface;
+            this.size = size;
+            this.fakeBold = fakeBold;
+            this.outline = outline;
+            this.outlineWidth = outlineWidth;
+            int h = typeface != null ? typeface.hashCode() : 0;
+            h = 31 * h + size;
+            h = 31 * h + (fakeBold ? 1 : 0);
+            h = 31 * h + outline;
+            h = 31 * h + Float.floatToIntBits(outlineWidth);
+            hash = h;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FaceKey)) {
+                return false;
+            }
+            FaceKey key = (FaceKey) o;
+            return hash == key.hash
+                    && size == key.size
+                    && fakeBold == key.fakeBold
+                    && outline == key.outline
+                    && outlineWidth == key.outlineWidth
+                    && (typeface == key.typeface || (typeface != null && typeface.equals(key.typeface)));
+        }
+    }
+
+    /**
+     * 一种字体, 字号和轮廓样式下已绘制的字形
+     */
+    public static class Face {
+
+        final TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+
+        final SparseArray<Glyph> glyphs = new SparseArray<>();
+
+        /**
+         * 字形四周为描边或阴影留出的空间
+         */
+        final int padding;
+
+        Face(FaceKey key) {
+            paint.setTypeface(key.typeface);
+            paint.setTextSize(key.size);
+            paint.setFakeBoldText(key.fakeBold);
+            paint.setColor(Color.BLACK);
+            if (key.outline == OUTLINE_STROKE) {
+                paint.setStyle(Paint.Style.FILL_AND_STROKE);
+                paint.setStrokeWidth(key.outlineWidth);
+            } else if (key.outline == OUTLINE_SHADOW) {
+                paint.setShadowLayer(key.outlineWidth, 0, 0, Color.BLACK);
+            }
+            padding = (int) Math.ceil(key.outlineWidth) + 1;
+        }
+    }
+
+    private static class Page {
+        Bitmap bitmap;
+        Canvas canvas;
+        SkylinePacker packer;
+        int retiredFrame;
+    }
+
+    private final int mPageSize;
+
+    private final int mMaxPageCount;
+
+    private final HashMap<FaceKey, Face> mFaces = new HashMap<>();
+
+    private final FaceKey mProbe = new FaceKey();
+
+    private final ArrayList<Page> mPages = new ArrayList<>();
+
+    private final ArrayList<Page> mRetiredPages = new ArrayList<>();
+
+    private int mRenderedFrameCount;
+
+    private final char[] mChars = new char[2];
+
+    private final Rect mBounds = new Rect();
+
+    private final RectF mDstRect = new RectF();
+
+    private int mGlyphCount;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    private int mResetCount;
+
+    /**
+     * 图集页(包括停用但还未回收的页)占用的内存, 缓存线程计算容量时不加锁读取
+     */
+    private volatile long mByteCount;
+
+    public GlyphAtlas() {
+        this(DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGE_COUNT);
+    }
+
+    public GlyphAtlas(int pageSize, int maxPageCount) {
+        mPageSize = pageSize;
+        mMaxPageCount = Math.max(1, maxPageCount);
+    }
+
+    public synchronized Face getFace(Typeface typeface, int size, boolean fakeBold, int outline, float outlineWidth) {
+        Face face = mFaces.get(mProbe.set(typeface, size, fakeBold, outline, outlineWidth));
+        mProbe.typeface = null;
+        if (face == null) {
+            FaceKey key = new FaceKey().set(typeface, size, fakeBold, outline, outlineWidth);
+            face = new Face(key);
+            mFaces.put(key, face);
+        }
+        return face;
+    }
+
+    /**
+     * @return 字号为size的字形能否放入图集页
+     */
+    public boolean canFit(float size, float outlineWidth) {
+        return size * 2 + 2 * ((int) Math.ceil(outlineWidth) + 1) + GAP <= mPageSize;
+    }
+
+    /**
+     * @return codePoint的字形, 第一次使用时绘制到图集页
+     */
+    public synchronized Glyph getGlyph(Face face, int codePoint) {
+        Glyph glyph = face.glyphs.get(codePoint);
+        if (glyph != null) {
+            mHitCount++;
+            return glyph;
+        }
+        mMissCount++;
+        glyph = new Glyph();
+        int count = Character.toChars(codePoint, mChars, 0);
+        TextPaint paint = face.paint;
+        glyph.advance = paint.measureText(mChars, 0, count);
+        paint.getTextBounds(mChars, 0, count, mBounds);
+        if (!mBounds.isEmpty()) {
+            int pad = face.padding;
+            int w = mBounds.width() + 2 * pad;
+            int h = mBounds.height() + 2 * pad;
+            Page page = allocate(w + GAP, h + GAP);
+            if (page != null) {
+                int x = page.packer.x, y = page.packer.y;
+                glyph.page = page.bitmap;
+                glyph.src.set(x, y, x + w, y + h);
+                glyph.left = mBounds.left - pad;
+                glyph.top = mBounds.top - pad;
+                page.canvas.drawText(mChars, 0, count, x - glyph.left, y - glyph.top, paint);
+            }
+        }
+        face.glyphs.put(codePoint, glyph);
+        mGlyphCount++;
+        return glyph;
+    }
+
+    /**
+     * 以(x, baseline)为基线原点, 按scale缩放绘制字形, 颜色和透明度取自paint
+     */
+    public synchronized void drawGlyph(Canvas canvas, Glyph glyph, float x, float baseline, float scale, Paint paint) {
+        if (glyph.page == null) {
+            return;
+        }
+        float left = x + glyph.left * scale;
+        float top = baseline + glyph.top * scale;
+        mDstRect.set(left, top, left + glyph.src.width() * scale, top + glyph.src.height() * scale);
+        canvas.drawBitmap(glyph.page, glyph.src, mDstRect, paint);
+    }
+
+    private Page allocate(int w, int h) {
+        if (w > mPageSize || h > mPageSize) {
+            return null;
+        }
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            if (page.packer.insert(w, h)) {
+                return page;
+            }
+        }
+        if (mPages.size() >= mMaxPageCount) {
+            // 页已用满, 丢弃旧页后在新页中重新绘制用到的字形
+            reset();
+        }
+        Page page = new Page();
+        page.bitmap = Bitmap.createBitmap(mPageSize, mPageSize, Bitmap.Config.ALPHA_8);
+        page.canvas = new Canvas(page.bitmap);
+        page.packer = new SkylinePacker(mPageSize, mPageSize);
+        mPages.add(page);
+        updateByteCount();
+        return page.packer.insert(w, h) ? page : null;
+    }
+
+    private void reset() {
+        // 保留Face, 正在绘制的弹幕可以继续使用
+        for (Face face : mFaces.values()) {
+            face.glyphs.clear();
+        }
+        retirePages();
+        mGlyphCount = 0;
+        mResetCount++;
+    }
+
+    /**
+     * 旧页可能还在本帧或上一帧记录的绘制中被引用, 不擦除, 等待绘制线程完成RETIRE_FRAMES帧后回收
+     */
+    private void retirePages() {
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            page.retiredFrame = mRenderedFrameCount;
+            mRetiredPages.add(page);
+        }
+        mPages.clear();
+        updateByteCount();
+    }
+
+    private void updateByteCount() {
+        mByteCount = (long) (mPages.size() + mRetiredPages.size()) * mPageSize * mPageSize;
+    }
+
+    /**
+     * 绘制线程每完成一帧调用一次, 回收已停用足够帧数的页
+     */
+    public synchronized void onFrameRendered() {
+        mRenderedFrameCount++;
+        if (mRetiredPages.isEmpty()) {
+            return;
+        }
+        for (int i = mRetiredPages.size() - 1; i >= 0; i--) {
+            Page page = mRetiredPages.get(i);
+            if (mRenderedFrameCount - page.retiredFrame >= RETIRE_FRAMES) {
+                mRetiredPages.remove(i);
+                page.canvas.setBitmap(null);
+                page.bitmap.recycle();
+            }
+        }
+        updateByteCount();
+    }
+
+    /**
+     * 清空字形并停用图集页, 可以在任意线程调用; 停用的页同样在之后的帧中回收, 不再绘制时由GC释放
+     */
+    public synchronized void clear() {
+        for (Face face : mFaces.values()) {
+            face.glyphs.clear();
+        }
+        mFaces.clear();
+        retirePages();
+        mGlyphCount = 0;
+    }
+
+    public synchronized int getGlyphCount() {
+        return mGlyphCount;
+    }
+
+    public synchronized int getPageCount() {
+        return mPages.size();
+    }
+
+    /**
+     * @return 停用但还未回收的页数
+     */
+    public synchronized int getRetiredPageCount() {
+        return mRetiredPages.size();
+    }
+
+    /**
+     * @return 图集页占用的内存, 包括停用但还未回收的页
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * @return 使用已绘制字形的次数
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return 新绘制字形的次数
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return 页用满后换用新页的次数
+     */
+    public synchronized int getResetCount() {
+        return mResetCount;
+    }
+
+}
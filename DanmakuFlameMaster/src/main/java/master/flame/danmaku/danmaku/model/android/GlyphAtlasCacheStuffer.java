@@ -0,0 +1,179 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.text.TextPaint;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+
+/**
+ * 用字形图集绘制弹幕: 每个字符按(字体, 字号, 轮廓样式)只绘制一次到{@link GlyphAtlas}, 弹幕绘制时逐字拼出并着色,
+ * 不需要为每条弹幕创建缓存bitmap, 新弹幕只在出现新字符时才有绘制开销
+ *
+ * 能用图集绘制的弹幕不构建绘制缓存, 由缓存线程通过prepareResource提前绘制字形, 图集页的内存计入缓存容量
+ * 逐字排版, 不处理字距调整和连字; Spanned文字, 下划线和边框仍按{@link SimpleTextCacheStuffer}绘制
+ */
+public class GlyphAtlasCacheStuffer extends SimpleTextCacheStuffer {
+
+    private final GlyphAtlas mAtlas;
+
+    /**
+     * 为字形着色, 只在持有mAtlas锁时使用
+     */
+    private final Paint mTintPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public GlyphAtlasCacheStuffer() {
+        this(new GlyphAtlas());
+    }
+
+    public GlyphAtlasCacheStuffer(GlyphAtlas atlas) {
+        mAtlas = atlas;
+    }
+
+    public GlyphAtlas getAtlas() {
+        return mAtlas;
+    }
+
+    /**
+     * 子类可能绘制背景等其他颜色, 需要自行确认后覆盖
+     */
+    @Override
+    public boolean isColorAgnostic(BaseDanmaku danmaku) {
+        return getClass() == GlyphAtlasCacheStuffer.class && isPlainText(danmaku);
+    }
+
+    @Override
+    public boolean needsDrawingCache(BaseDanmaku danmaku) {
+        return !isColorAgnostic(danmaku);
+    }
+
+    @Override
+    public long getResourceBytes() {
+        return mAtlas.getByteCount();
+    }
+
+    @Override
+    public boolean drawCache(BaseDanmaku danmaku, Canvas canvas, float left, float top, Paint alphaPaint, TextPaint paint, AndroidDisplayer.DisplayerConfig displayerConfig) {
+        if (danmaku.text != null && isColorAgnostic(danmaku) && drawGlyphs(danmaku, canvas, left, top, displayerConfig)) {
+            return true;
+        }
+        return super.drawCache(danmaku, canvas, left, top, alphaPaint, paint, displayerConfig);
+    }
+
+    /**
+     * 在缓存线程上绘制弹幕用到的字形, 绘制线程上通常只需从图集页中截取
+     */
+    @Override
+    public void prepareResource(BaseDanmaku danmaku, AndroidDisplayer.DisplayerConfig displayerConfig) {
+        if (danmaku.text != null && isColorAgnostic(danmaku)) {
+            drawGlyphs(danmaku, null, 0, 0, displayerConfig);
+        }
+    }
+
+    @Override
+    public void onFrameRendered() {
+        mAtlas.onFrameRendered();
+    }
+
+    /**
+     * 依次画描边/投影, 阴影和文字, 颜色和透明度与SimpleTextCacheStuffer直接绘制时相同
+     *
+     * @param canvas 为null时只在图集中准备字形, 在缓存线程调用
+     * @return 字号过大放不进图集页时返回false
+     */
+    private boolean drawGlyphs(BaseDanmaku danmaku, Canvas canvas, float left, float top, AndroidDisplayer.DisplayerConfig displayerConfig) {
+        boolean prepareOnly = canvas == null;
+        displayerConfig.definePaintParams(prepareOnly);
+        TextPaint paint = displayerConfig.getPaint(danmaku, prepareOnly);
+        float textSize = paint.getTextSize();
+        // 字号按整数像素分级, 其余按比例缩放
+        int size = Math.max(1, Math.round(textSize));
+        float scale = textSize / size;
+        boolean stroke = displayerConfig.hasStroke(danmaku);
+        boolean shadow = displayerConfig.hasShadow(danmaku);
+        float strokeWidth = stroke && !displayerConfig.HAS_PROJECTION ? paint.getStrokeWidth() / scale : 0;
+        float shadowRadius = shadow ? displayerConfig.getShadowRadius() / scale : 0;
+        if (!mAtlas.canFit(size, Math.max(strokeWidth, shadowRadius))) {
+            return false;
+        }
+        int lineCount = danmaku.lines != null ? danmaku.lines.length : 1;
+        float textHeight = lineCount > 1 ? (danmaku.paintHeight - 2 * danmaku.padding) / lineCount : 0;
+        left += danmaku.padding;
+        top += danmaku.padding - paint.ascent();
+
+        synchronized (mAtlas) {
+            if (stroke) {
+                if (!prepareOnly) {
+                    displayerConfig.applyPaintConfig(danmaku, paint, true);
+                    mTintPaint.setColor(paint.getColor());
+                }
+                if (displayerConfig.HAS_PROJECTION) {
+                    GlyphAtlas.Face face = mAtlas.getFace(paint.getTypeface(), size, paint.isFakeBoldText(), GlyphAtlas.OUTLINE_NONE, 0);
+                    drawLines(face, danmaku, canvas, left + displayerConfig.sProjectionOffsetX,
+                            top + displayerConfig.sProjectionOffsetY, textHeight, scale);
+                } else {
+                    GlyphAtlas.Face face = mAtlas.getFace(paint.getTypeface(), size, paint.isFakeBoldText(), GlyphAtlas.OUTLINE_STROKE, strokeWidth);
+                    drawLines(face, danmaku, canvas, left, top, textHeight, scale);
+                }
+            }
+            int fillColor = 0;
+            if (!prepareOnly) {
+                displayerConfig.applyPaintConfig(danmaku, paint, false);
+                fillColor = paint.getColor();
+            }
+            if (shadow) {
+                if (!prepareOnly) {
+                    int alpha = Color.alpha(danmaku.textShadowColor) * Color.alpha(fillColor) / 255;
+                    mTintPaint.setColor(danmaku.textShadowColor);
+                    mTintPaint.setAlpha(alpha);
+                }
+                GlyphAtlas.Face face = mAtlas.getFace(paint.getTypeface(), size, paint.isFakeBoldText(), GlyphAtlas.OUTLINE_SHADOW, shadowRadius);
+                drawLines(face, danmaku, canvas, left, top, textHeight, scale);
+            }
+            if (!prepareOnly) {
+                mTintPaint.setColor(fillColor);
+            }
+            GlyphAtlas.Face face = mAtlas.getFace(paint.getTypeface(), size, paint.isFakeBoldText(), GlyphAtlas.OUTLINE_NONE, 0);
+            drawLines(face, danmaku, canvas, left, top, textHeight, scale);
+        }
+        return true;
+    }
+
+    /**
+     * 单行弹幕直接遍历danmaku.text, 不为每帧创建行数组
+     */
+    private void drawLines(GlyphAtlas.Face face, BaseDanmaku danmaku, Canvas canvas, float left, float baseline, float textHeight, float scale) {
+        String[] lines = danmaku.lines;
+        if (lines == null) {
+            drawLine(face, danmaku.text, canvas, left, baseline, scale);
+            return;
+        }
+        for (int t = 0; t < lines.length; t++) {
+            drawLine(face, lines[t], canvas, left, baseline + t * textHeight, scale);
+        }
+    }
+
+    private void drawLine(GlyphAtlas.Face face, CharSequence line, Canvas canvas, float x, float y, float scale) {
+        if (line == null) {
+            return;
+        }
+        int length = line.length();
+        for (int i = 0; i < length; ) {
+            int codePoint = Character.codePointAt(line, i);
+            i += Character.charCount(codePoint);
+            GlyphAtlas.Glyph glyph = mAtlas.getGlyph(face, codePoint);
+            if (canvas != null) {
+                mAtlas.drawGlyph(canvas, glyph, x, y, scale, mTintPaint);
+                x += glyph.getAdvance() * scale;
+            }
+        }
+    }
+
+    @Override
+    public void clearCaches() {
+        super.clearCaches();
+        mAtlas.clear();
+    }
+
+}
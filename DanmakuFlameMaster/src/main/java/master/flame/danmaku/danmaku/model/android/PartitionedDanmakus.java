@@ -0,0 +1,398 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.util.DanmakuUtils;
+
+/**
+ * 按类型分区的弹幕时间轴: 滚动, 固定和特殊弹幕分别保存在按时间排序的Danmakus中,
+ * 只处理某一类弹幕的地方(布局, 同屏密度统计, 特殊弹幕绘制)通过getPartition只遍历自己的分区
+ *
+ * IDanmakus的其他方法提供按时间合并的视图, 原有调用方不需要修改, 遍历和绘制的顺序与不分区时相同;
+ * 所有分区共用一个锁
+ */
+public class PartitionedDanmakus implements IDanmakus {
+
+    public static final int PARTITION_SCROLL = 0;
+
+    public static final int PARTITION_FIXED = 1;
+
+    public static final int PARTITION_SPECIAL = 2;
+
+    public static final int PARTITION_COUNT = 3;
+
+    private final Danmakus[] mPartitions = new Danmakus[PARTITION_COUNT];
+
+    private final Object mLockObject;
+
+    private final boolean mDuplicateMergingEnabled;
+
+    /**
+     * sub返回的视图, 各分区为对应分区的sub
+     */
+    private PartitionedDanmakus mSubView;
+
+    /**
+     * 视图中没有弹幕的分区
+     */
+    private Danmakus[] mEmptyPartitions;
+
+    /**
+     * forEach复用的归并游标, 在mLockObject上同步取用, 嵌套遍历时另外创建
+     */
+    private MergeCursor mCursor = new MergeCursor();
+
+    private final Collection<BaseDanmaku> mCollectionView = new AbstractCollection<BaseDanmaku>() {
+
+        @Override
+        public Iterator<BaseDanmaku> iterator() {
+            final MergeCursor cursor = new MergeCursor();
+            for (int i = 0; i < PARTITION_COUNT; i++) {
+                cursor.start(i, mPartitions[i].items);
+            }
+            return new Iterator<BaseDanmaku>() {
+
+                @Override
+                public boolean hasNext() {
+                    return cursor.minIndex() >= 0;
+                }
+
+                @Override
+                public BaseDanmaku next() {
+                    int index = cursor.minIndex();
+                    if (index < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    BaseDanmaku next = cursor.heads[index];
+                    cursor.advance(index);
+                    return next;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return PartitionedDanmakus.this.size();
+        }
+    };
+
+    public PartitionedDanmakus() {
+        this(false);
+    }
+
+    public PartitionedDanmakus(boolean duplicateMergingEnabled) {
+        this(new Object(), duplicateMergingEnabled);
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            mPartitions[i] = new Danmakus(ST_BY_TIME, duplicateMergingEnabled);
+            mPartitions[i].setLockObject(mLockObject);
+        }
+    }
+
+    /**
+     * 按类型拆分已有的弹幕, 沿用danmakus的去重合并设置
+     */
+    public PartitionedDanmakus(IDanmakus danmakus) {
+        this(isDuplicateMergingEnabled(danmakus));
+        danmakus.forEachSync(new DefaultConsumer<BaseDanmaku>() {
+            @Override
+            public int accept(BaseDanmaku danmaku) {
+                addItem(danmaku);
+                return ACTION_CONTINUE;
+            }
+        });
+    }
+
+    private PartitionedDanmakus(Object lockObject, boolean duplicateMergingEnabled) {
+        mLockObject = lockObject;
+        mDuplicateMergingEnabled = duplicateMergingEnabled;
+    }
+
+    private static boolean isDuplicateMergingEnabled(IDanmakus danmakus) {
+        if (danmakus instanceof Danmakus) {
+            return ((Danmakus) danmakus).isDuplicateMergingEnabled();
+        }
+        return danmakus instanceof PartitionedDanmakus && ((PartitionedDanmakus) danmakus).isDuplicateMergingEnabled();
+    }
+
+    public static int getPartitionOf(int type) {
+        switch (type) {
+            case BaseDanmaku.TYPE_SCROLL_RL:
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                return PARTITION_SCROLL;
+            case BaseDanmaku.TYPE_FIX_TOP:
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                return PARTITION_FIXED;
+            default:
+                return PARTITION_SPECIAL;
+        }
+    }
+
+    /**
+     * @param partition PARTITION_SCROLL|PARTITION_FIXED|PARTITION_SPECIAL
+     * @return 该分区的弹幕, 不为null
+     */
+    public IDanmakus getPartition(int partition) {
+        return mPartitions[partition];
+    }
+
+    @Override
+    public boolean addItem(BaseDanmaku item) {
+        synchronized (mLockObject) {
+            return mPartitions[getPartitionOf(item.getType())].addItem(item);
+        }
+    }
+
+    @Override
+    public boolean removeItem(BaseDanmaku item) {
+        if (item == null) {
+            return false;
+        }
+        synchronized (mLockObject) {
+            return mPartitions[getPartitionOf(item.getType())].removeItem(item);
+        }
+    }
+
+    @Override
+    public IDanmakus subnew(long startTime, long endTime) {
+        LinkedList<BaseDanmaku> items = new LinkedList<>();
+        synchronized (mLockObject) {
+            MergeCursor cursor = new MergeCursor();
+            for (int i = 0; i < PARTITION_COUNT; i++) {
+                IDanmakus sub = mPartitions[i].subnew(startTime, endTime);
+                cursor.start(i, sub != null ? sub.getCollection() : null);
+            }
+            int index;
+            while ((index = cursor.minIndex()) >= 0) {
+                items.add(cursor.heads[index]);
+                cursor.advance(index);
+            }
+        }
+        if (items.isEmpty()) {
+            return null;
+        }
+        return new Danmakus(items);
+    }
+
+    @Override
+    public IDanmakus sub(long startTime, long endTime) {
+        if (isEmpty()) {
+            return null;
+        }
+        if (mSubView == null) {
+            mSubView = new PartitionedDanmakus(mLockObject, mDuplicateMergingEnabled);
+            mEmptyPartitions = new Danmakus[PARTITION_COUNT];
+            for (int i = 0; i < PARTITION_COUNT; i++) {
+                mEmptyPartitions[i] = new Danmakus(ST_BY_TIME, mDuplicateMergingEnabled);
+                mEmptyPartitions[i].setLockObject(mLockObject);
+            }
+        }
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            IDanmakus sub = mPartitions[i].sub(startTime, endTime);
+            if (sub == null) {
+                // 分区为空, 视图中加入的弹幕在下次sub时丢弃
+                mEmptyPartitions[i].clear();
+                sub = mEmptyPartitions[i];
+            }
+            mSubView.mPartitions[i] = (Danmakus) sub;
+        }
+        return mSubView;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            size += mPartitions[i].size();
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mLockObject) {
+            for (int i = 0; i < PARTITION_COUNT; i++) {
+                mPartitions[i].clear();
+            }
+        }
+    }
+
+    @Override
+    public BaseDanmaku first() {
+        BaseDanmaku first = null;
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            BaseDanmaku item = mPartitions[i].first();
+            if (item != null && (first == null || DanmakuUtils.compare(item, first) < 0)) {
+                first = item;
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public BaseDanmaku last() {
+        BaseDanmaku last = null;
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            BaseDanmaku item = mPartitions[i].last();
+            if (item != null && (last == null || DanmakuUtils.compare(item, last) > 0)) {
+                last = item;
+            }
+        }
+        return last;
+    }
+
+    @Override
+    public boolean contains(BaseDanmaku item) {
+        return item != null && mPartitions[getPartitionOf(item.getType())].contains(item);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            if (!mPartitions[i].isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isDuplicateMergingEnabled() {
+        return mDuplicateMergingEnabled;
+    }
+
+    @Override
+    public void setSubItemsDuplicateMergingEnabled(boolean enable) {
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            mPartitions[i].setSubItemsDuplicateMergingEnabled(enable);
+        }
+    }
+
+    /**
+     * @return 按时间合并的只读视图, 不复制; 和Danmakus.getCollection一样, 遍历时需持有obtainSynchronizer的锁
+     */
+    @Override
+    public Collection<BaseDanmaku> getCollection() {
+        return mCollectionView;
+    }
+
+    @Override
+    public void forEachSync(Consumer<? super BaseDanmaku, ?> consumer) {
+        synchronized (mLockObject) {
+            forEach(consumer);
+        }
+    }
+
+    /**
+     * 按时间顺序遍历所有分区
+     */
+    @Override
+    public void forEach(Consumer<? super BaseDanmaku, ?> consumer) {
+        MergeCursor cursor;
+        synchronized (mLockObject) {
+            cursor = mCursor;
+            mCursor = null;
+        }
+        if (cursor == null) {
+            cursor = new MergeCursor();
+        }
+        consumer.before();
+        for (int i = 0; i < PARTITION_COUNT; i++) {
+            cursor.start(i, mPartitions[i].items);
+        }
+        while (true) {
+            int index = cursor.minIndex();
+            if (index < 0) {
+                break;
+            }
+            int action = consumer.accept(cursor.heads[index]);
+            if (action == DefaultConsumer.ACTION_REMOVE || action == DefaultConsumer.ACTION_REMOVE_AND_BREAK) {
+                mPartitions[index].removeByIterator(cursor.iterators.get(index));
+            }
+            if (action == DefaultConsumer.ACTION_BREAK || action == DefaultConsumer.ACTION_REMOVE_AND_BREAK) {
+                break;
+            }
+            cursor.advance(index);
+        }
+        cursor.clear();
+        synchronized (mLockObject) {
+            mCursor = cursor;
+        }
+        consumer.after();
+    }
+
+    @Override
+    public Object obtainSynchronizer() {
+        return mLockObject;
+    }
+
+    /**
+     * 按时间归并各分区的遍历状态: 每个分区的迭代器和当前未消费的弹幕
+     */
+    private static class MergeCursor {
+
+        final ArrayList<Iterator<BaseDanmaku>> iterators = new ArrayList<>(PARTITION_COUNT);
+
+        final BaseDanmaku[] heads = new BaseDanmaku[PARTITION_COUNT];
+
+        MergeCursor() {
+            for (int i = 0; i < PARTITION_COUNT; i++) {
+                iterators.add(null);
+            }
+        }
+
+        void start(int partition, Collection<BaseDanmaku> items) {
+            Iterator<BaseDanmaku> iterator = items != null ? items.iterator() : null;
+            iterators.set(partition, iterator);
+            heads[partition] = iterator != null ? next(iterator) : null;
+        }
+
+        void advance(int partition) {
+            heads[partition] = next(iterators.get(partition));
+        }
+
+        /**
+         * @return 当前时间最早的弹幕所在的分区, 全部遍历完时返回-1
+         */
+        int minIndex() {
+            int index = -1;
+            for (int i = 0; i < PARTITION_COUNT; i++) {
+                if (heads[i] != null && (index < 0 || DanmakuUtils.compare(heads[i], heads[index]) < 0)) {
+                    index = i;
+                }
+            }
+            return index;
+        }
+
+        /**
+         * 放回前释放对弹幕和集合的引用
+         */
+        void clear() {
+            for (int i = 0; i < PARTITION_COUNT; i++) {
+                iterators.set(i, null);
+                heads[i] = null;
+            }
+        }
+
+        private static BaseDanmaku next(Iterator<BaseDanmaku> iterator) {
+            while (iterator.hasNext()) {
+                BaseDanmaku next = iterator.next();
+                if (next != null) {
+                    return next;
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package master.flame.danmaku.danmaku.model.android;
 
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.text.Spanned;
 import android.text.TextPaint;
 
 import java.util.HashMap;
@@ -82,8 +83,40 @@ public class SimpleTextCacheStuffer extends BaseCacheStuffer {
 
     }
 
+    /**
+     * 子类可能在绘制时使用自己的状态, 需要自行确认后覆盖
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return getClass() == SimpleTextCacheStuffer.class;
+    }
+
+    /**
+     * 只支持没有背景, 下划线和边框的纯文本; 子类可能绘制背景等其他颜色, 需要自行确认后覆盖
+     */
+    @Override
+    public boolean isColorAgnostic(BaseDanmaku danmaku) {
+        return getClass() == SimpleTextCacheStuffer.class && isPlainText(danmaku);
+    }
+
+    /**
+     * @return 没有Span, 下划线和边框, 子类覆盖isColorAgnostic时使用
+     */
+    protected static boolean isPlainText(BaseDanmaku danmaku) {
+        return !(danmaku.text instanceof Spanned) && danmaku.underlineColor == 0 && danmaku.borderColor == 0;
+    }
+
     @Override
     public void drawDanmaku(BaseDanmaku danmaku, Canvas canvas, float left, float top, boolean fromWorkerThread, AndroidDisplayer.DisplayerConfig displayerConfig) {
+        drawDanmaku(danmaku, canvas, canvas, left, top, fromWorkerThread, displayerConfig);
+    }
+
+    @Override
+    public void drawDanmakuLayers(BaseDanmaku danmaku, Canvas strokeCanvas, Canvas fillCanvas, boolean fromWorkerThread, AndroidDisplayer.DisplayerConfig displayerConfig) {
+        drawDanmaku(danmaku, strokeCanvas, fillCanvas, 0, 0, fromWorkerThread, displayerConfig);
+    }
+
+    private void drawDanmaku(BaseDanmaku danmaku, Canvas strokeCanvas, Canvas canvas, float left, float top, boolean fromWorkerThread, AndroidDisplayer.DisplayerConfig displayerConfig) {
         float _left = left;
         float _top = top;
         left += danmaku.padding;
@@ -96,57 +129,12 @@ public class SimpleTextCacheStuffer extends BaseCacheStuffer {
         displayerConfig.definePaintParams(fromWorkerThread);
         TextPaint paint = displayerConfig.getPaint(danmaku, fromWorkerThread);
         drawBackground(danmaku, canvas, _left, _top);
-        if (danmaku.lines != null) {
-            String[] lines = danmaku.lines;
-            if (lines.length == 1) {
-                if (displayerConfig.hasStroke(danmaku)) {
-                    displayerConfig.applyPaintConfig(danmaku, paint, true);
-                    float strokeLeft = left;
-                    float strokeTop = top - paint.ascent();
-                    if (displayerConfig.HAS_PROJECTION) {
-                        strokeLeft += displayerConfig.sProjectionOffsetX;
-                        strokeTop += displayerConfig.sProjectionOffsetY;
-                    }
-                    drawStroke(danmaku, lines[0], canvas, strokeLeft, strokeTop, paint);
-                }
-                displayerConfig.applyPaintConfig(danmaku, paint, false);
-                drawText(danmaku, lines[0], canvas, left, top - paint.ascent(), paint, fromWorkerThread);
-            } else {
-                float textHeight = (danmaku.paintHeight - 2 * danmaku.padding) / lines.length;
-                for (int t = 0; t < lines.length; t++) {
-                    if (lines[t] == null || lines[t].length() == 0) {
-                        continue;
-                    }
-                    if (displayerConfig.hasStroke(danmaku)) {
-                        displayerConfig.applyPaintConfig(danmaku, paint, true);
-                        float strokeLeft = left;
-                        float strokeTop = t * textHeight + top - paint.ascent();
-                        if (displayerConfig.HAS_PROJECTION) {
-                            strokeLeft += displayerConfig.sProjectionOffsetX;
-                            strokeTop += displayerConfig.sProjectionOffsetY;
-                        }
-                        drawStroke(danmaku, lines[t], canvas, strokeLeft, strokeTop, paint);
-                    }
-                    displayerConfig.applyPaintConfig(danmaku, paint, false);
-                    drawText(danmaku, lines[t], canvas, left, t * textHeight + top - paint.ascent(), paint, fromWorkerThread);
-                }
-            }
-        } else {
-            if (displayerConfig.hasStroke(danmaku)) {
-                displayerConfig.applyPaintConfig(danmaku, paint, true);
-                float strokeLeft = left;
-                float strokeTop = top - paint.ascent();
-
-                if (displayerConfig.HAS_PROJECTION) {
-                    strokeLeft += displayerConfig.sProjectionOffsetX;
-                    strokeTop += displayerConfig.sProjectionOffsetY;
-                }
-                drawStroke(danmaku, null, canvas, strokeLeft, strokeTop, paint);
-            }
-
-            displayerConfig.applyPaintConfig(danmaku, paint, false);
-            drawText(danmaku, null, canvas, left, top - paint.ascent(), paint, fromWorkerThread);
+        if (strokeCanvas != canvas && strokeCanvas != null && displayerConfig.hasShadow(danmaku)) {
+            // 分层时阴影单独画到描边层, 文字层不带阴影
+            drawLines(danmaku, null, strokeCanvas, left, top, fromWorkerThread, displayerConfig, paint);
+            paint.clearShadowLayer();
         }
+        drawLines(danmaku, strokeCanvas, canvas, left, top, fromWorkerThread, displayerConfig, paint);
 
         // draw underline
         if (danmaku.underlineColor != 0) {
@@ -164,4 +152,41 @@ public class SimpleTextCacheStuffer extends BaseCacheStuffer {
 
     }
 
+    /**
+     * @param strokeCanvas 为null时不画描边
+     */
+    private void drawLines(BaseDanmaku danmaku, Canvas strokeCanvas, Canvas canvas, float left, float top, boolean fromWorkerThread, AndroidDisplayer.DisplayerConfig displayerConfig, TextPaint paint) {
+        if (danmaku.lines != null) {
+            String[] lines = danmaku.lines;
+            if (lines.length == 1) {
+                drawLine(danmaku, lines[0], strokeCanvas, canvas, left, top - paint.ascent(), fromWorkerThread, displayerConfig, paint);
+            } else {
+                float textHeight = (danmaku.paintHeight - 2 * danmaku.padding) / lines.length;
+                for (int t = 0; t < lines.length; t++) {
+                    if (lines[t] == null || lines[t].length() == 0) {
+                        continue;
+                    }
+                    drawLine(danmaku, lines[t], strokeCanvas, canvas, left, t * textHeight + top - paint.ascent(), fromWorkerThread, displayerConfig, paint);
+                }
+            }
+        } else {
+            drawLine(danmaku, null, strokeCanvas, canvas, left, top - paint.ascent(), fromWorkerThread, displayerConfig, paint);
+        }
+    }
+
+    private void drawLine(BaseDanmaku danmaku, String lineText, Canvas strokeCanvas, Canvas canvas, float left, float baseline, boolean fromWorkerThread, AndroidDisplayer.DisplayerConfig displayerConfig, TextPaint paint) {
+        if (strokeCanvas != null && displayerConfig.hasStroke(danmaku)) {
+            displayerConfig.applyPaintConfig(danmaku, paint, true);
+            float strokeLeft = left;
+            float strokeTop = baseline;
+            if (displayerConfig.HAS_PROJECTION) {
+                strokeLeft += displayerConfig.sProjectionOffsetX;
+                strokeTop += displayerConfig.sProjectionOffsetY;
+            }
+            drawStroke(danmaku, lineText, strokeCanvas, strokeLeft, strokeTop, paint);
+        }
+        displayerConfig.applyPaintConfig(danmaku, paint, false);
+        drawText(danmaku, lineText, canvas, left, baseline, paint, fromWorkerThread);
+    }
+
 }
@@ -0,0 +1,134 @@
+package master.flame.danmaku.danmaku.model.android;
+
+import java.util.Arrays;
+
+/**
+ * 天际线(skyline)矩形打包: 用一组从左到右相接的水平线段记录页中已占用区域的上沿,
+ * 新矩形放在能放下它的最低位置(同高度时靠左)
+ *
+ * 只能整体重置, 不能释放单个矩形, 释放和整理由{@link DrawingCacheAtlas}按页处理
+ */
+class SkylinePacker {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    /**
+     * 线段数, 线段按x升序, 覆盖[0, mWidth)
+     */
+    private int mCount;
+
+    private int[] mX = new int[INITIAL_CAPACITY];
+
+    private int[] mY = new int[INITIAL_CAPACITY];
+
+    private int[] mW = new int[INITIAL_CAPACITY];
+
+    /**
+     * 最近一次insert成功时矩形的位置
+     */
+    int x, y;
+
+    SkylinePacker(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        reset();
+    }
+
+    void reset() {
+        mCount = 1;
+        mX[0] = 0;
+        mY[0] = 0;
+        mW[0] = mWidth;
+    }
+
+    /**
+     * @return 放不下时返回false
+     */
+    boolean insert(int w, int h) {
+        if (w <= 0 || h <= 0 || w > mWidth || h > mHeight) {
+            return false;
+        }
+        int bestIndex = -1;
+        int bestY = mHeight;
+        for (int i = 0; i < mCount && mX[i] + w <= mWidth; i++) {
+            int top = fitY(i, w);
+            if (top + h <= mHeight && top < bestY) {
+                bestIndex = i;
+                bestY = top;
+            }
+        }
+        if (bestIndex < 0) {
+            return false;
+        }
+        x = mX[bestIndex];
+        y = bestY;
+        addSegment(bestIndex, x, y + h, w);
+        return true;
+    }
+
+    /**
+     * 从第index段开始放宽为w的矩形时的y
+     */
+    private int fitY(int index, int w) {
+        int top = 0;
+        int widthLeft = w;
+        for (int i = index; widthLeft > 0; i++) {
+            top = Math.max(top, mY[i]);
+            widthLeft -= mW[i];
+        }
+        return top;
+    }
+
+    private void addSegment(int index, int x, int y, int w) {
+        if (mCount == mX.length) {
+            int capacity = mCount * 2;
+            mX = Arrays.copyOf(mX, capacity);
+            mY = Arrays.copyOf(mY, capacity);
+            mW = Arrays.copyOf(mW, capacity);
+        }
+        System.arraycopy(mX, index, mX, index + 1, mCount - index);
+        System.arraycopy(mY, index, mY, index + 1, mCount - index);
+        System.arraycopy(mW, index, mW, index + 1, mCount - index);
+        mX[index] = x;
+        mY[index] = y;
+        mW[index] = w;
+        mCount++;
+
+        // 被新线段盖住的部分截掉
+        int right = x + w;
+        int i = index + 1;
+        while (i < mCount && mX[i] < right) {
+            int shrink = right - mX[i];
+            if (shrink >= mW[i]) {
+                remove(i);
+                continue;
+            }
+            mX[i] += shrink;
+            mW[i] -= shrink;
+            break;
+        }
+
+        // 合并高度相同的相邻线段
+        for (i = 0; i < mCount - 1; ) {
+            if (mY[i] == mY[i + 1]) {
+                mW[i] += mW[i + 1];
+                remove(i + 1);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void remove(int index) {
+        int length = mCount - index - 1;
+        System.arraycopy(mX, index + 1, mX, index, length);
+        System.arraycopy(mY, index + 1, mY, index, length);
+        System.arraycopy(mW, index + 1, mW, index, length);
+        mCount--;
+    }
+
+}
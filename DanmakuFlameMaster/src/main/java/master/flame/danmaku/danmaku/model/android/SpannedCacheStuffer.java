@@ -31,6 +31,14 @@ public class SpannedCacheStuffer extends SimpleTextCacheStuffer {
         super.measure(danmaku, paint, fromWorkerThread);
     }
 
+    /**
+     * 子类可能绘制背景等其他颜色, 需要自行确认后覆盖
+     */
+    @Override
+    public boolean isColorAgnostic(BaseDanmaku danmaku) {
+        return getClass() == SpannedCacheStuffer.class && isPlainText(danmaku);
+    }
+
     @Override
     public void drawStroke(BaseDanmaku danmaku, String lineText, Canvas canvas, float left, float top, Paint paint) {
         if (danmaku.obj == null) {
@@ -85,6 +85,30 @@ public interface IRenderer {
         public long sysTime;
         public long cacheHitCount;
         public long cacheMissCount;
+        /**
+         * 缓存线程未提前算好过滤结果, 绘制线程不得不自己过滤的次数
+         */
+        public long filterFallbackCount;
+
+        /**
+         * 开启提前布局时, 缓存线程未提前计划, 绘制线程不得不自己计划的次数
+         */
+        public long layoutFallbackCount;
+
+        /**
+         * 开启布局记录时, 按记录直接恢复位置的次数
+         */
+        public long layoutRestoreCount;
+
+        /**
+         * 缓存线程开始显示后才构建或来不及构建的弹幕数(累计)
+         */
+        public long cacheDeadlineMissCount;
+
+        /**
+         * 当前的缓存容量(字节), 随内存压力调整
+         */
+        public long cacheBudget;
 
         private IDanmakus runningDanmakus = new Danmakus(Danmakus.ST_BY_LIST);
         private boolean mIsObtaining;
@@ -142,6 +166,11 @@ public interface IRenderer {
             sysTime = other.sysTime;
             cacheHitCount = other.cacheHitCount;
             cacheMissCount = other.cacheMissCount;
+            filterFallbackCount = other.filterFallbackCount;
+            layoutFallbackCount = other.layoutFallbackCount;
+            layoutRestoreCount = other.layoutRestoreCount;
+            cacheDeadlineMissCount = other.cacheDeadlineMissCount;
+            cacheBudget = other.cacheBudget;
         }
 
         public void appendToRunningDanmakus(BaseDanmaku danmaku) {
@@ -181,4 +210,8 @@ public interface IRenderer {
 
     void alignBottom(boolean enable);
 
+    void setLaneLayoutEnabled(int type, boolean enable);
+
+    void setIntervalLayoutEnabled(boolean enable);
+
 }
@@ -34,6 +34,8 @@ public class DanmakuRenderer extends Renderer {
         public IDisplayer disp;
         public RenderingState renderingState;
         public long startRenderTime;
+        public LayoutPlanner layoutPlanner;
+        public LayoutJournal layoutJournal;
 
         @Override
         public int accept(BaseDanmaku drawItem) {
@@ -48,7 +50,9 @@ public class DanmakuRenderer extends Renderer {
             }
 
             if (!drawItem.hasPassedFilter()) {
+                // 过滤结果通常已由缓存线程算好, 这里只是兜底
                 mContext.mDanmakuFilters.filter(drawItem, renderingState.indexInScreen, renderingState.totalSizeInScreen, renderingState.timer, false, mContext);
+                renderingState.filterFallbackCount++;
             }
             if (drawItem.getActualTime() < startRenderTime
                     || (drawItem.priority == 0 && drawItem.isFiltered())) {
@@ -79,7 +83,25 @@ public class DanmakuRenderer extends Renderer {
             }
 
             // layout
-            mDanmakusRetainer.fix(drawItem, disp, mVerifier);
+            if (layoutPlanner != null && drawItem.getType() != BaseDanmaku.TYPE_SPECIAL) {
+                if (layoutPlanner.fix(drawItem, disp, mVerifier)) {
+                    renderingState.layoutFallbackCount++;
+                }
+            } else if (layoutJournal != null && drawItem.getType() != BaseDanmaku.TYPE_SPECIAL && !drawItem.isShown()) {
+                if (layoutJournal.restore(drawItem, disp, mVerifier)) {
+                    if (drawItem.isShown()) {
+                        mDanmakusRetainer.occupy(drawItem);
+                    }
+                    renderingState.layoutRestoreCount++;
+                } else {
+                    mDanmakusRetainer.fix(drawItem, disp, mRecordingVerifier);
+                    if (drawItem.isShown()) {
+                        layoutJournal.record(drawItem, drawItem.getTop(), mRecordingVerifier.lines, mRecordingVerifier.willHit);
+                    }
+                }
+            } else {
+                mDanmakusRetainer.fix(drawItem, disp, mVerifier);
+            }
 
             // draw
             if (drawItem.isShown()) {
@@ -128,7 +150,34 @@ public class DanmakuRenderer extends Renderer {
             return false;
         }
     };
+    /**
+     * 提前布局时在缓存线程上判断, 不修改弹幕的可见性和过滤状态;
+     * 计划生效时由绘制线程的verifier按相同的参数过滤
+     */
+    private final DanmakusRetainer.Verifier planVerifier = new DanmakusRetainer.Verifier() {
+        @Override
+        public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+            return danmaku.priority == 0 && mContext.mDanmakuFilters.checkSecondary(danmaku, lines, willHit);
+        }
+    };
+    /**
+     * 开启布局记录时代替mVerifier, 保存传入的参数
+     */
+    private class RecordingVerifier implements DanmakusRetainer.Verifier {
+        int lines;
+        boolean willHit;
+
+        @Override
+        public boolean skipLayout(BaseDanmaku danmaku, float fixedTop, int lines, boolean willHit) {
+            this.lines = lines;
+            this.willHit = willHit;
+            return mVerifier != null && mVerifier.skipLayout(danmaku, fixedTop, lines, willHit);
+        }
+    }
+    private final RecordingVerifier mRecordingVerifier = new RecordingVerifier();
     private final DanmakusRetainer mDanmakusRetainer;
+    private LayoutPlanner mLayoutPlanner;
+    private int mPlanFilterResetFlag;
     private ICacheManager mCacheManager;
     private OnDanmakuShownListener mOnDanmakuShownListener;
     private Consumer mConsumer = new Consumer();
@@ -136,6 +185,11 @@ public class DanmakuRenderer extends Renderer {
     public DanmakuRenderer(DanmakuContext config) {
         mContext = config;
         mDanmakusRetainer = new DanmakusRetainer(config.isAlignBottom());
+        mDanmakusRetainer.setLaneLayoutEnabled(BaseDanmaku.TYPE_SCROLL_RL, config.isLaneLayoutEnabled(BaseDanmaku.TYPE_SCROLL_RL));
+        mDanmakusRetainer.setLaneLayoutEnabled(BaseDanmaku.TYPE_SCROLL_LR, config.isLaneLayoutEnabled(BaseDanmaku.TYPE_SCROLL_LR));
+        mDanmakusRetainer.setLaneLayoutEnabled(BaseDanmaku.TYPE_FIX_TOP, config.isLaneLayoutEnabled(BaseDanmaku.TYPE_FIX_TOP));
+        mDanmakusRetainer.setLaneLayoutEnabled(BaseDanmaku.TYPE_FIX_BOTTOM, config.isLaneLayoutEnabled(BaseDanmaku.TYPE_FIX_BOTTOM));
+        mDanmakusRetainer.setIntervalLayoutEnabled(config.isIntervalLayoutEnabled());
     }
 
     @Override
@@ -147,6 +201,9 @@ public class DanmakuRenderer extends Renderer {
     @Override
     public void clearRetainer() {
         mDanmakusRetainer.clear();
+        if (mLayoutPlanner != null) {
+            mLayoutPlanner.invalidate();
+        }
     }
 
     @Override
@@ -158,6 +215,9 @@ public class DanmakuRenderer extends Renderer {
     @Override
     public void setVerifierEnabled(boolean enabled) {
         mVerifier = (enabled ? verifier : null);
+        if (mLayoutPlanner != null) {
+            mLayoutPlanner.setVerifier(enabled ? planVerifier : null);
+        }
     }
 
     @Override
@@ -166,7 +226,31 @@ public class DanmakuRenderer extends Renderer {
         mConsumer.disp = disp;
         mConsumer.renderingState = renderingState;
         mConsumer.startRenderTime = startRenderTime;
+        LayoutPlanner layoutPlanner = mContext.getLayoutPlanner();
+        int filterResetFlag = mContext.mGlobalFlagValues.FILTER_RESET_FLAG;
+        if (layoutPlanner != mLayoutPlanner) {
+            mLayoutPlanner = layoutPlanner;
+            if (layoutPlanner != null) {
+                layoutPlanner.alignBottom(mContext.isAlignBottom());
+                layoutPlanner.setVerifier(mVerifier != null ? planVerifier : null);
+            }
+        } else if (layoutPlanner != null && filterResetFlag != mPlanFilterResetFlag) {
+            // 过滤条件变化后重新显示的弹幕不在原有计划中
+            layoutPlanner.invalidate();
+        }
+        mPlanFilterResetFlag = filterResetFlag;
+        mConsumer.layoutPlanner = layoutPlanner;
+        LayoutJournal layoutJournal = mContext.getLayoutJournal();
+        if (layoutJournal != null) {
+            layoutJournal.validate(disp, mContext.isAlignBottom(), mContext.mGlobalFlagValues.MEASURE_RESET_FLAG,
+                    filterResetFlag);
+        }
+        mConsumer.layoutJournal = layoutJournal;
+        // 分区的弹幕按时间归并后绘制, 不同类型弹幕之间的覆盖顺序与不分区时相同
         danmakus.forEachSync(mConsumer);
+        if (layoutPlanner != null && !renderingState.isRunningDanmakus) {
+            layoutPlanner.onFrameRendered(renderingState.timer.currMillisecond);
+        }
     }
 
     public void setCacheManager(ICacheManager cacheManager) {
@@ -187,5 +271,22 @@ public class DanmakuRenderer extends Renderer {
         if (mDanmakusRetainer != null) {
             mDanmakusRetainer.alignBottom(enable);
         }
+        if (mLayoutPlanner != null) {
+            mLayoutPlanner.alignBottom(enable);
+        }
+    }
+
+    @Override
+    public void setLaneLayoutEnabled(int type, boolean enable) {
+        if (mDanmakusRetainer != null) {
+            mDanmakusRetainer.setLaneLayoutEnabled(type, enable);
+        }
+    }
+
+    @Override
+    public void setIntervalLayoutEnabled(boolean enable) {
+        if (mDanmakusRetainer != null) {
+            mDanmakusRetainer.setIntervalLayoutEnabled(enable);
+        }
     }
 }
@@ -19,7 +19,6 @@ package master.flame.danmaku.danmaku.renderer.android;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.IDanmakus;
 import master.flame.danmaku.danmaku.model.IDisplayer;
-import master.flame.danmaku.danmaku.model.android.Danmakus;
 import master.flame.danmaku.danmaku.util.DanmakuUtils;
 
 public class DanmakusRetainer {
@@ -32,19 +31,118 @@ public class DanmakusRetainer {
 
     private IDanmakusRetainer fbdrInstance = null;
 
+    private boolean mAlignBottom;
+
+    /**
+     * 使用LaneRetainer的弹幕类型, 第type位为1表示启用
+     */
+    private int mLaneLayoutTypes;
+
+    /**
+     * 固定弹幕是否使用FixedIntervalRetainer
+     */
+    private boolean mIntervalLayoutEnabled;
+
     public DanmakusRetainer(boolean alignBottom) {
         alignBottom(alignBottom);
     }
 
     public void alignBottom(boolean alignBottom) {
-        rldrInstance = alignBottom ? new AlignBottomRetainer() : new AlignTopRetainer();
-        lrdrInstance = alignBottom ? new AlignBottomRetainer() : new AlignTopRetainer();
+        mAlignBottom = alignBottom;
+        rldrInstance = createRetainer(BaseDanmaku.TYPE_SCROLL_RL);
+        lrdrInstance = createRetainer(BaseDanmaku.TYPE_SCROLL_LR);
         if (ftdrInstance == null) {
-            ftdrInstance = new FTDanmakusRetainer();
+            ftdrInstance = createRetainer(BaseDanmaku.TYPE_FIX_TOP);
         }
         if (fbdrInstance == null) {
-            fbdrInstance = new AlignBottomRetainer();
+            fbdrInstance = createRetainer(BaseDanmaku.TYPE_FIX_BOTTOM);
+        }
+    }
+
+    /**
+     * 设置某种弹幕是否按行(泳道)分配位置
+     * @param type BaseDanmaku.TYPE_SCROLL_RL|BaseDanmaku.TYPE_SCROLL_LR|BaseDanmaku.TYPE_FIX_TOP|BaseDanmaku.TYPE_FIX_BOTTOM
+     */
+    public void setLaneLayoutEnabled(int type, boolean enable) {
+        int flag = 1 << type;
+        if (((mLaneLayoutTypes & flag) != 0) == enable) {
+            return;
+        }
+        mLaneLayoutTypes = enable ? (mLaneLayoutTypes | flag) : (mLaneLayoutTypes & ~flag);
+        switch (type) {
+            case BaseDanmaku.TYPE_SCROLL_RL:
+                rldrInstance = createRetainer(type);
+                break;
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                lrdrInstance = createRetainer(type);
+                break;
+            case BaseDanmaku.TYPE_FIX_TOP:
+                ftdrInstance = createRetainer(type);
+                break;
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                fbdrInstance = createRetainer(type);
+                break;
+        }
+    }
+
+    public boolean isLaneLayoutEnabled(int type) {
+        return (mLaneLayoutTypes & (1 << type)) != 0;
+    }
+
+    /**
+     * 设置固定弹幕(顶部/底部)是否按竖直区间分配位置, 开启时优先于setLaneLayoutEnabled的设置
+     */
+    public void setIntervalLayoutEnabled(boolean enable) {
+        if (mIntervalLayoutEnabled == enable) {
+            return;
+        }
+        mIntervalLayoutEnabled = enable;
+        ftdrInstance = createRetainer(BaseDanmaku.TYPE_FIX_TOP);
+        fbdrInstance = createRetainer(BaseDanmaku.TYPE_FIX_BOTTOM);
+    }
+
+    public boolean isIntervalLayoutEnabled() {
+        return mIntervalLayoutEnabled;
+    }
+
+    private IDanmakusRetainer createRetainer(int type) {
+        boolean lane = isLaneLayoutEnabled(type);
+        switch (type) {
+            case BaseDanmaku.TYPE_SCROLL_RL:
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                if (lane) {
+                    return new LaneRetainer(createLaneAllocator(mAlignBottom));
+                }
+                return mAlignBottom ? new AlignBottomRetainer(createVisibleDanmakus(true))
+                        : new AlignTopRetainer(createVisibleDanmakus(false));
+            case BaseDanmaku.TYPE_FIX_TOP:
+                if (mIntervalLayoutEnabled) {
+                    return new FixedIntervalRetainer(false);
+                }
+                return lane ? new LaneRetainer(createLaneAllocator(false))
+                        : new FTDanmakusRetainer(createVisibleDanmakus(false));
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                if (mIntervalLayoutEnabled) {
+                    return new FixedIntervalRetainer(true);
+                }
+                return lane ? new LaneRetainer(createLaneAllocator(true))
+                        : new AlignBottomRetainer(createVisibleDanmakus(true));
         }
+        return null;
+    }
+
+    /**
+     * 按top排序的布局方式保存屏幕上弹幕的集合, 测试时可覆盖
+     */
+    YPosDanmakus createVisibleDanmakus(boolean descending) {
+        return new YPosDanmakus(descending);
+    }
+
+    /**
+     * 按行分配方式使用的LaneAllocator, 测试时可覆盖
+     */
+    LaneAllocator createLaneAllocator(boolean alignBottom) {
+        return new LaneAllocator(alignBottom);
     }
 
     public void fix(BaseDanmaku danmaku, IDisplayer disp, Verifier verifier) {
@@ -70,6 +168,26 @@ public class DanmakusRetainer {
 
     }
 
+    /**
+     * 记录不经过fix布局的弹幕(如按LayoutJournal恢复的位置), 之后的弹幕会避开它
+     */
+    public void occupy(BaseDanmaku danmaku) {
+        switch (danmaku.getType()) {
+            case BaseDanmaku.TYPE_SCROLL_RL:
+                rldrInstance.occupy(danmaku);
+                break;
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                lrdrInstance.occupy(danmaku);
+                break;
+            case BaseDanmaku.TYPE_FIX_TOP:
+                ftdrInstance.occupy(danmaku);
+                break;
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                fbdrInstance.occupy(danmaku);
+                break;
+        }
+    }
+
     public void clear() {
         if (rldrInstance != null) {
             rldrInstance.clear();
@@ -99,6 +217,8 @@ public class DanmakusRetainer {
 
         public void fix(BaseDanmaku drawItem, IDisplayer disp, Verifier verifier);
 
+        public void occupy(BaseDanmaku drawItem);
+
         public void clear();
 
     }
@@ -118,6 +238,8 @@ public class DanmakusRetainer {
             int lines = 0;
             public BaseDanmaku insertItem = null, firstItem = null, lastItem = null, minRightRow = null, drawItem = null;
             boolean overwriteInsert = false;
+            // 每次fix都复用, 不在绘制线程上分配对象
+            private final RetainerState mRetainerState = new RetainerState();
             boolean shown = false;
             boolean willHit = false;
 
@@ -172,7 +294,7 @@ public class DanmakusRetainer {
 
             @Override
             public RetainerState result() {
-                RetainerState retainerState = new RetainerState();
+                RetainerState retainerState = mRetainerState;
                 retainerState.lines = this.lines;
                 retainerState.firstItem = this.firstItem;
                 retainerState.insertItem = this.insertItem;
@@ -185,10 +307,14 @@ public class DanmakusRetainer {
             }
         }
 
-        protected Danmakus mVisibleDanmakus = new Danmakus(Danmakus.ST_BY_YPOS);
+        protected final YPosDanmakus mVisibleDanmakus;
         protected boolean mCancelFixingFlag = false;
         protected RetainerConsumer mConsumer = new RetainerConsumer();
 
+        AlignTopRetainer(YPosDanmakus visibleDanmakus) {
+            mVisibleDanmakus = visibleDanmakus;
+        }
+
         @Override
         public void fix(BaseDanmaku drawItem, IDisplayer disp, Verifier verifier) {
             if (drawItem.isOutside())
@@ -207,7 +333,7 @@ public class DanmakusRetainer {
                 boolean overwriteInsert = false;
                 mConsumer.disp = disp;
                 mConsumer.drawItem = drawItem;
-                mVisibleDanmakus.forEachSync(mConsumer);
+                mVisibleDanmakus.forEach(mConsumer);
                 RetainerState retainerState = mConsumer.result();
                 if (retainerState != null) {
                     lines = retainerState.lines;
@@ -284,6 +410,13 @@ public class DanmakusRetainer {
             return false;
         }
 
+        @Override
+        public void occupy(BaseDanmaku drawItem) {
+            // 同一行(top相同)的弹幕被替换
+            mVisibleDanmakus.removeItem(drawItem);
+            mVisibleDanmakus.addItem(drawItem);
+        }
+
         @Override
         public void clear() {
             mCancelFixingFlag = true;
@@ -294,6 +427,10 @@ public class DanmakusRetainer {
 
     private static class FTDanmakusRetainer extends AlignTopRetainer {
 
+        FTDanmakusRetainer(YPosDanmakus visibleDanmakus) {
+            super(visibleDanmakus);
+        }
+
         @Override
         protected boolean isOutVerticalEdge(boolean overwriteInsert, BaseDanmaku drawItem,
                                             IDisplayer disp, float topPos, BaseDanmaku firstItem, BaseDanmaku lastItem) {
@@ -312,6 +449,7 @@ public class DanmakusRetainer {
             public BaseDanmaku removeItem = null, firstItem = null, drawItem = null;
             boolean willHit = false;
             float topPos;
+            private final RetainerState mRetainerState = new RetainerState();
 
             @Override
             public void before() {
@@ -359,7 +497,7 @@ public class DanmakusRetainer {
 
             @Override
             public RetainerState result() {
-                RetainerState retainerState = new RetainerState();
+                RetainerState retainerState = mRetainerState;
                 retainerState.lines = this.lines;
                 retainerState.firstItem = this.firstItem;
                 retainerState.removeItem = this.removeItem;
@@ -369,7 +507,13 @@ public class DanmakusRetainer {
         }
 
         protected RetainerConsumer mConsumer = new RetainerConsumer();
-        protected Danmakus mVisibleDanmakus = new Danmakus(Danmakus.ST_BY_YPOS_DESC);
+
+        /**
+         * @param visibleDanmakus 按top降序
+         */
+        AlignBottomRetainer(YPosDanmakus visibleDanmakus) {
+            super(visibleDanmakus);
+        }
 
         @Override
         public void fix(BaseDanmaku drawItem, IDisplayer disp, Verifier verifier) {
@@ -389,7 +533,7 @@ public class DanmakusRetainer {
                 mConsumer.topPos = topPos;
                 mConsumer.disp = disp;
                 mConsumer.drawItem = drawItem;
-                mVisibleDanmakus.forEachSync(mConsumer);
+                mVisibleDanmakus.forEach(mConsumer);
                 RetainerState retainerState = mConsumer.result();
                 topPos = mConsumer.topPos;
                 if (retainerState != null) {
@@ -441,6 +585,13 @@ public class DanmakusRetainer {
             return false;
         }
 
+        @Override
+        public void occupy(BaseDanmaku drawItem) {
+            // 同一行(top相同)的弹幕被替换
+            mVisibleDanmakus.removeItem(drawItem);
+            mVisibleDanmakus.addItem(drawItem);
+        }
+
         @Override
         public void clear() {
             mCancelFixingFlag = true;
@@ -449,4 +600,62 @@ public class DanmakusRetainer {
 
     }
 
+    /**
+     * 使用LaneAllocator按行分配位置, 布局结果与AlignTopRetainer/FTDanmakusRetainer/AlignBottomRetainer一致
+     */
+    private static class LaneRetainer implements IDanmakusRetainer {
+
+        private final LaneAllocator mAllocator;
+
+        LaneRetainer(LaneAllocator allocator) {
+            mAllocator = allocator;
+        }
+
+        @Override
+        public void fix(BaseDanmaku drawItem, IDisplayer disp, Verifier verifier) {
+            if (drawItem.isOutside())
+                return;
+            float topPos;
+            int lines = 0;
+            boolean willHit = false;
+            boolean shown = drawItem.isShown();
+            if (shown) {
+                if (mAllocator.isAlignBottom()) {
+                    topPos = drawItem.getTop();
+                    if (topPos < disp.getAllMarginTop()) {
+                        topPos = disp.getHeight() - drawItem.paintHeight;
+                    }
+                } else {
+                    topPos = disp.getAllMarginTop();
+                }
+            } else {
+                mAllocator.place(drawItem, disp, drawItem.getTimer().currMillisecond, true);
+                topPos = mAllocator.top;
+                lines = mAllocator.lines;
+                willHit = mAllocator.willHit;
+            }
+
+            if (verifier != null && verifier.skipLayout(drawItem, topPos, lines, willHit)) {
+                return;
+            }
+
+            drawItem.layout(disp, drawItem.getLeft(), topPos);
+
+            if (!shown) {
+                mAllocator.commit(drawItem);
+            }
+        }
+
+        @Override
+        public void occupy(BaseDanmaku drawItem) {
+            mAllocator.occupy(drawItem, drawItem.getTop());
+        }
+
+        @Override
+        public void clear() {
+            mAllocator.clear();
+        }
+
+    }
+
 }
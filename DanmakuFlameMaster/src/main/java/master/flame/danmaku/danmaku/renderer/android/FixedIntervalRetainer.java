@@ -0,0 +1,298 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import java.util.Arrays;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDisplayer;
+
+/**
+ * 固定弹幕(顶部/底部)的位置分配: 固定弹幕之间只会在竖直方向和显示时间上重叠, 不需要逐条做碰撞检查
+ *
+ * 按像素行记录屏幕上已占用的竖直区间(弹幕高度加间距), 区间在弹幕消失时释放:
+ * 用覆盖计数线段树找从顶部(底部对齐时从底部)开始第一段足够高的空闲区间, O(log H);
+ * 到期时间用最小堆, 已占用区间的下边界用树状数组计数得到上方的弹幕数(lines)
+ * 高度不同(多行)的弹幕也不会互相重叠, 放不下时和原有方式一样从第一行重新开始
+ */
+class FixedIntervalRetainer implements DanmakusRetainer.IDanmakusRetainer {
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final boolean mAlignBottom;
+
+    /**
+     * 可用的像素行数(显示区域高度加一个间距, 最后一条弹幕的间距可以超出显示区域)
+     */
+    private int mSize;
+
+    private int mHeight, mMarginTop, mMargin;
+
+    /**
+     * 线段树: 完全覆盖节点的区间数, 节点内最长/前缀/后缀空闲长度
+     */
+    private int[] mCover, mMaxFree, mPrefixFree, mSuffixFree;
+
+    /**
+     * 树状数组: 以某行结束的区间数
+     */
+    private int[] mEndCount;
+
+    /**
+     * 已占用区间, 按到期时间组成最小堆
+     */
+    private int mCount;
+
+    private long[] mExpireTimes = new long[INITIAL_CAPACITY];
+
+    private int[] mStarts = new int[INITIAL_CAPACITY];
+
+    private int[] mEnds = new int[INITIAL_CAPACITY];
+
+    FixedIntervalRetainer(boolean alignBottom) {
+        mAlignBottom = alignBottom;
+    }
+
+    @Override
+    public void fix(BaseDanmaku drawItem, IDisplayer disp, DanmakusRetainer.Verifier verifier) {
+        if (drawItem.isOutside())
+            return;
+        if (drawItem.isShown()) {
+            if (verifier != null && verifier.skipLayout(drawItem, drawItem.getTop(), 0, false)) {
+                return;
+            }
+            drawItem.layout(disp, drawItem.getLeft(), drawItem.getTop());
+            return;
+        }
+        ensureSize(disp);
+        expire(drawItem.getTimer().currMillisecond);
+
+        int length = (int) Math.ceil(drawItem.paintHeight) + mMargin;
+        int start = length <= mMaxFree[1] ? findFirstFree(1, 0, mSize - 1, length) : -1;
+        boolean willHit = start < 0;
+        int lines;
+        if (willHit) {
+            // 放不下, 从第一行重新开始
+            start = 0;
+            lines = 1;
+        } else {
+            lines = countEndsBefore(start);
+        }
+        float topPos = toTop(start, drawItem.paintHeight);
+
+        if (verifier != null && verifier.skipLayout(drawItem, topPos, lines, willHit)) {
+            return;
+        }
+        if (willHit) {
+            clear();
+        }
+        drawItem.layout(disp, drawItem.getLeft(), topPos);
+        add(start, Math.min(start + length, mSize), drawItem.getActualTime() + drawItem.getDuration());
+    }
+
+    @Override
+    public void occupy(BaseDanmaku drawItem) {
+        if (mSize == 0) {
+            return;
+        }
+        int length = (int) Math.ceil(drawItem.paintHeight) + mMargin;
+        int start;
+        if (mAlignBottom) {
+            start = mHeight - (int) Math.ceil(drawItem.getBottom());
+        } else {
+            start = (int) drawItem.getTop() - mMarginTop;
+        }
+        start = Math.max(0, Math.min(start, mSize - 1));
+        add(start, Math.min(start + length, mSize), drawItem.getActualTime() + drawItem.getDuration());
+    }
+
+    @Override
+    public void clear() {
+        mCount = 0;
+        if (mSize > 0) {
+            Arrays.fill(mCover, 0);
+            Arrays.fill(mEndCount, 0);
+            build(1, 0, mSize - 1);
+        }
+    }
+
+    private float toTop(int start, float paintHeight) {
+        if (mAlignBottom) {
+            return mHeight - start - paintHeight;
+        }
+        return mMarginTop + start;
+    }
+
+    /**
+     * 显示区域变化时重建
+     */
+    private void ensureSize(IDisplayer disp) {
+        int size = disp.getHeight() - disp.getAllMarginTop() + disp.getMargin();
+        if (size == mSize && mHeight == disp.getHeight() && mMargin == disp.getMargin()) {
+            return;
+        }
+        mSize = Math.max(size, 1);
+        mHeight = disp.getHeight();
+        mMarginTop = disp.getAllMarginTop();
+        mMargin = disp.getMargin();
+        int nodes = 4 * mSize;
+        mCover = new int[nodes];
+        mMaxFree = new int[nodes];
+        mPrefixFree = new int[nodes];
+        mSuffixFree = new int[nodes];
+        mEndCount = new int[mSize + 1];
+        clear();
+    }
+
+    private void expire(long currTime) {
+        while (mCount > 0 && mExpireTimes[0] <= currTime) {
+            update(1, 0, mSize - 1, mStarts[0], mEnds[0] - 1, -1);
+            addEnd(mEnds[0], -1);
+            mCount--;
+            if (mCount > 0) {
+                moveHeap(mCount, 0);
+                siftDown(0);
+            }
+        }
+    }
+
+    /**
+     * 占用[start, end)
+     */
+    private void add(int start, int end, long expireTime) {
+        update(1, 0, mSize - 1, start, end - 1, 1);
+        addEnd(end, 1);
+        if (mCount == mExpireTimes.length) {
+            int capacity = mCount * 2;
+            mExpireTimes = Arrays.copyOf(mExpireTimes, capacity);
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mEnds = Arrays.copyOf(mEnds, capacity);
+        }
+        mExpireTimes[mCount] = expireTime;
+        mStarts[mCount] = start;
+        mEnds[mCount] = end;
+        siftUp(mCount++);
+    }
+
+    private void build(int node, int l, int r) {
+        int length = r - l + 1;
+        mMaxFree[node] = mPrefixFree[node] = mSuffixFree[node] = length;
+        if (l == r) {
+            return;
+        }
+        int mid = (l + r) >>> 1;
+        build(node * 2, l, mid);
+        build(node * 2 + 1, mid + 1, r);
+    }
+
+    private void update(int node, int l, int r, int from, int to, int delta) {
+        if (to < l || r < from) {
+            return;
+        }
+        if (from <= l && r <= to) {
+            mCover[node] += delta;
+        } else {
+            int mid = (l + r) >>> 1;
+            update(node * 2, l, mid, from, to, delta);
+            update(node * 2 + 1, mid + 1, r, from, to, delta);
+        }
+        pull(node, l, r);
+    }
+
+    private void pull(int node, int l, int r) {
+        if (mCover[node] > 0) {
+            mMaxFree[node] = mPrefixFree[node] = mSuffixFree[node] = 0;
+        } else if (l == r) {
+            mMaxFree[node] = mPrefixFree[node] = mSuffixFree[node] = 1;
+        } else {
+            int left = node * 2, right = left + 1;
+            int mid = (l + r) >>> 1;
+            int leftLength = mid - l + 1, rightLength = r - mid;
+            mPrefixFree[node] = mPrefixFree[left] == leftLength ? leftLength + mPrefixFree[right] : mPrefixFree[left];
+            mSuffixFree[node] = mSuffixFree[right] == rightLength ? rightLength + mSuffixFree[left] : mSuffixFree[right];
+            mMaxFree[node] = Math.max(Math.max(mMaxFree[left], mMaxFree[right]), mSuffixFree[left] + mPrefixFree[right]);
+        }
+    }
+
+    /**
+     * 调用前保证mMaxFree[node] >= length
+     */
+    private int findFirstFree(int node, int l, int r, int length) {
+        while (l < r) {
+            int left = node * 2, right = left + 1;
+            int mid = (l + r) >>> 1;
+            if (mMaxFree[left] >= length) {
+                node = left;
+                r = mid;
+            } else if (mSuffixFree[left] + mPrefixFree[right] >= length) {
+                return mid + 1 - mSuffixFree[left];
+            } else {
+                node = right;
+                l = mid + 1;
+            }
+        }
+        return l;
+    }
+
+    private void addEnd(int end, int delta) {
+        for (int i = end; i <= mSize; i += i & -i) {
+            mEndCount[i] += delta;
+        }
+    }
+
+    /**
+     * 结束位置不大于start的区间数, 即在该位置上方(底部对齐时为下方)的弹幕数
+     */
+    private int countEndsBefore(int start) {
+        int count = 0;
+        for (int i = start; i > 0; i -= i & -i) {
+            count += mEndCount[i];
+        }
+        return count;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (mExpireTimes[parent] <= mExpireTimes[i]) {
+                break;
+            }
+            swapHeap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= mCount) {
+                break;
+            }
+            if (child + 1 < mCount && mExpireTimes[child + 1] < mExpireTimes[child]) {
+                child++;
+            }
+            if (mExpireTimes[i] <= mExpireTimes[child]) {
+                break;
+            }
+            swapHeap(i, child);
+            i = child;
+        }
+    }
+
+    private void swapHeap(int i, int j) {
+        long time = mExpireTimes[i];
+        mExpireTimes[i] = mExpireTimes[j];
+        mExpireTimes[j] = time;
+        int start = mStarts[i];
+        mStarts[i] = mStarts[j];
+        mStarts[j] = start;
+        int end = mEnds[i];
+        mEnds[i] = mEnds[j];
+        mEnds[j] = end;
+    }
+
+    private void moveHeap(int from, int to) {
+        mExpireTimes[to] = mExpireTimes[from];
+        mStarts[to] = mStarts[from];
+        mEnds[to] = mEnds[from];
+    }
+
+}
@@ -0,0 +1,296 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import java.util.Arrays;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDisplayer;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.util.DanmakuUtils;
+
+/**
+ * 按行(泳道)分配位置, 每行只记录最后放入的弹幕(行尾弹幕)及其出现和离开屏幕的时间,
+ * 按行的顺序检查新弹幕能否放在行尾弹幕之后, 滚动弹幕用R2LDanmaku.willHit直接算出,
+ * 每行O(1)且不分配对象, 不需要按Y排序的集合和getRectAtTime
+ * 行的排列方式和AlignTopRetainer/FTDanmakusRetainer/AlignBottomRetainer相同, 布局结果一致
+ *
+ * 判断使用的时间由调用方传入: 绘制时为当前时间, 提前布局时为弹幕的出现时间
+ * 先调用place得到位置, 确定使用该位置后再调用commit记录
+ */
+class LaneAllocator {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final boolean mAlignBottom;
+
+    private int mLaneCount;
+
+    private float[] mTops = new float[INITIAL_CAPACITY];
+
+    private BaseDanmaku[] mTails = new BaseDanmaku[INITIAL_CAPACITY];
+
+    private long[] mTailTimes = new long[INITIAL_CAPACITY];
+
+    private long[] mExitAt = new long[INITIAL_CAPACITY];
+
+    /**
+     * place的结果
+     */
+    float top;
+
+    int lines;
+
+    boolean willHit;
+
+    /**
+     * place的结果是否需要commit: 弹幕已在某一行或者只能和其他行重叠时不记录
+     */
+    private boolean mRecord;
+
+    private boolean mReset;
+
+    private int mReplaceLane;
+
+    private boolean mLive;
+
+    LaneAllocator(boolean alignBottom) {
+        mAlignBottom = alignBottom;
+    }
+
+    boolean isAlignBottom() {
+        return mAlignBottom;
+    }
+
+    /**
+     * @return 行数组的容量, 只在扩容时变化
+     */
+    int capacity() {
+        return mTops.length;
+    }
+
+    /**
+     * @param currTime 判断碰撞的时间
+     * @param live 是否在绘制时使用, 会读取弹幕当前的位置并修改被替换弹幕的可见性
+     */
+    void place(BaseDanmaku drawItem, IDisplayer disp, long currTime, boolean live) {
+        float topPos = mAlignBottom ? disp.getHeight() - drawItem.paintHeight : disp.getAllMarginTop();
+        int lines = 0;
+        int laneCount = mLaneCount;
+        boolean willHit = laneCount > 0;
+        boolean shown = false;
+        boolean overwrite = false;
+        boolean isOutOfVerticalEdge = false;
+        int lane = -1;
+        int i = 0;
+        for (; i < laneCount; i++) {
+            lines++;
+            if (mTails[i] == drawItem) {
+                if (!mAlignBottom) {
+                    topPos = mTops[i];
+                }
+                willHit = false;
+                shown = true;
+                break;
+            }
+            if (mAlignBottom) {
+                if ((i == 0 && mTops[0] + mTails[0].paintHeight != disp.getHeight())
+                        || topPos < disp.getAllMarginTop()) {
+                    break;
+                }
+            } else if (drawItem.paintHeight + mTops[i] > disp.getHeight()) {
+                overwrite = true;
+                break;
+            }
+            willHit = willHit(i, drawItem, disp, currTime);
+            if (!willHit) {
+                if (i == 0 && !mAlignBottom) {
+                    topPos = mTops[0];
+                }
+                lane = i;
+                lines--;
+                break;
+            }
+            if (mAlignBottom) {
+                topPos = mTops[i] - disp.getMargin() - drawItem.paintHeight;
+            } else {
+                topPos = mTops[i] + mTails[i].paintHeight + disp.getMargin();
+            }
+        }
+        if (!shown) {
+            if (overwrite && i > 0) {
+                // 放不下新的一行, 和已检查过的行中右边界最小的行重叠, 不替换该行的行尾弹幕
+                int minRightLane = 0;
+                float minRight = getRight(mTails[0], disp, currTime, live);
+                for (int j = 1; j < i; j++) {
+                    float right = getRight(mTails[j], disp, currTime, live);
+                    if (minRight >= right) {
+                        minRightLane = j;
+                        minRight = right;
+                    }
+                }
+                topPos = mTops[minRightLane];
+                shown = true;
+            } else {
+                if (lane < 0) {
+                    willHit = false;
+                }
+                isOutOfVerticalEdge = overwrite || (mAlignBottom ? (topPos < disp.getAllMarginTop()
+                        || (laneCount > 0 && mTops[0] + mTails[0].paintHeight != disp.getHeight()))
+                        : topPos + drawItem.paintHeight > disp.getHeight());
+                if (isOutOfVerticalEdge) {
+                    topPos = mAlignBottom ? disp.getHeight() - drawItem.paintHeight : disp.getAllMarginTop();
+                    willHit = true;
+                    lines = 1;
+                    lane = -1;
+                }
+            }
+        }
+        this.top = topPos;
+        this.lines = lines;
+        this.willHit = willHit;
+        mRecord = !shown;
+        mReset = isOutOfVerticalEdge;
+        mReplaceLane = lane;
+        mLive = live;
+    }
+
+    /**
+     * 记录上一次place的结果
+     */
+    void commit(BaseDanmaku item) {
+        if (mReset) {
+            clear();
+        }
+        if (mRecord) {
+            setTail(mReplaceLane, item, top);
+        }
+    }
+
+    /**
+     * 不经过place直接把弹幕记录在指定位置, 用于已显示在屏幕上的弹幕, 替换top相同的行的行尾弹幕
+     */
+    void occupy(BaseDanmaku item, float top) {
+        mLive = false;
+        int lane = 0;
+        while (lane < mLaneCount && mTops[lane] != top) {
+            lane++;
+        }
+        setTail(lane < mLaneCount ? lane : -1, item, top);
+    }
+
+    /**
+     * 与DanmakuUtils.willHitInDuration的判断相同
+     */
+    private boolean willHit(int lane, BaseDanmaku drawItem, IDisplayer disp, long currTime) {
+        BaseDanmaku tail = mTails[lane];
+        if (tail.getType() != drawItem.getType()) {
+            return false;
+        }
+        long tailTime = mTailTimes[lane];
+        if (currTime <= tailTime || currTime >= mExitAt[lane]) {
+            // 行尾弹幕已不在屏幕上
+            return false;
+        }
+        long dTime = drawItem.getActualTime() - tailTime;
+        if (dTime <= 0) {
+            return true;
+        }
+        long duration = drawItem.getDuration();
+        if (dTime >= duration || currTime - drawItem.getActualTime() >= duration) {
+            return false;
+        }
+        int type = drawItem.getType();
+        if (type != BaseDanmaku.TYPE_SCROLL_RL && type != BaseDanmaku.TYPE_SCROLL_LR) {
+            return true;
+        }
+        if (!(drawItem instanceof R2LDanmaku) || !(tail instanceof R2LDanmaku)) {
+            return DanmakuUtils.willHitInDuration(disp, tail, drawItem, duration, currTime);
+        }
+        return ((R2LDanmaku) tail).willHit((R2LDanmaku) drawItem, currTime, disp.getWidth());
+    }
+
+    private float getRight(BaseDanmaku item, IDisplayer disp, long currTime, boolean live) {
+        if (live) {
+            return item.getRight();
+        }
+        if (item instanceof R2LDanmaku) {
+            return ((R2LDanmaku) item).getRightAtTime(disp, currTime);
+        }
+        // 固定弹幕居中
+        return (disp.getWidth() + item.paintWidth) / 2;
+    }
+
+    /**
+     * 行按top排序(底部对齐时降序), 和原有的排序集合一样, top相同的行已存在时不再加入
+     *
+     * @param replaceLane 被替换的行, 没有时为-1
+     */
+    private void setTail(int replaceLane, BaseDanmaku item, float top) {
+        if (replaceLane >= 0) {
+            BaseDanmaku oldTail = mTails[replaceLane];
+            if (mLive && oldTail.isOutside()) {
+                oldTail.setVisibility(false);
+            }
+            move(replaceLane + 1, replaceLane, mLaneCount - replaceLane - 1);
+            mLaneCount--;
+            mTails[mLaneCount] = null;
+        }
+        int lane = 0;
+        while (lane < mLaneCount && (mAlignBottom ? mTops[lane] > top : mTops[lane] < top)) {
+            lane++;
+        }
+        if (lane < mLaneCount && mTops[lane] == top) {
+            return;
+        }
+        if (mLaneCount == mTops.length) {
+            int capacity = mTops.length * 2;
+            mTops = Arrays.copyOf(mTops, capacity);
+            mTails = Arrays.copyOf(mTails, capacity);
+            mTailTimes = Arrays.copyOf(mTailTimes, capacity);
+            mExitAt = Arrays.copyOf(mExitAt, capacity);
+        }
+        move(lane, lane + 1, mLaneCount - lane);
+        mLaneCount++;
+        long time = item.getActualTime();
+        mTops[lane] = top;
+        mTails[lane] = item;
+        mTailTimes[lane] = time;
+        mExitAt[lane] = time + item.getDuration();
+    }
+
+    private void move(int from, int to, int length) {
+        if (length <= 0) {
+            return;
+        }
+        System.arraycopy(mTops, from, mTops, to, length);
+        System.arraycopy(mTails, from, mTails, to, length);
+        System.arraycopy(mTailTimes, from, mTailTimes, to, length);
+        System.arraycopy(mExitAt, from, mExitAt, to, length);
+    }
+
+    void clear() {
+        Arrays.fill(mTails, 0, mLaneCount, null);
+        mLaneCount = 0;
+    }
+
+    /**
+     * 复制other的行, 两者的对齐方式需相同
+     */
+    void copyFrom(LaneAllocator other) {
+        int laneCount = other.mLaneCount;
+        if (mTops.length < laneCount) {
+            int capacity = other.mTops.length;
+            mTops = new float[capacity];
+            mTails = new BaseDanmaku[capacity];
+            mTailTimes = new long[capacity];
+            mExitAt = new long[capacity];
+        } else if (mLaneCount > laneCount) {
+            Arrays.fill(mTails, laneCount, mLaneCount, null);
+        }
+        System.arraycopy(other.mTops, 0, mTops, 0, laneCount);
+        System.arraycopy(other.mTails, 0, mTails, 0, laneCount);
+        System.arraycopy(other.mTailTimes, 0, mTailTimes, 0, laneCount);
+        System.arraycopy(other.mExitAt, 0, mExitAt, 0, laneCount);
+        mLaneCount = laneCount;
+    }
+
+}
@@ -0,0 +1,188 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDisplayer;
+
+/**
+ * 布局记录: 保存每条弹幕第一次显示时分配的位置(按弹幕index), seek回看或重播时直接恢复, 不再做碰撞检查,
+ * 同一条弹幕每次出现都在同一行
+ *
+ * 按弹幕时间分段保存, 每段用数组紧凑存储, 段数超过上限时淘汰最久未访问的段
+ * 显示区域尺寸, 间距, 对齐方式, measure标记或过滤标记变化后记录全部失效:
+ * 过滤结果变化后显示的弹幕不同, 之前记录的位置不一定还能避开其他弹幕
+ */
+public class LayoutJournal {
+
+    public static final int DEFAULT_MAX_SEGMENTS = 60;
+
+    /**
+     * 每段覆盖的弹幕时间
+     */
+    private static final long SEGMENT_DURATION = 10000;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private static class Segment {
+
+        int size;
+
+        /**
+         * 按index升序
+         */
+        int[] indexes = new int[INITIAL_CAPACITY];
+
+        /**
+         * 弹幕时间相对段开始的偏移, index相同时用于区分不同弹幕
+         */
+        int[] timeOffsets = new int[INITIAL_CAPACITY];
+
+        float[] tops = new float[INITIAL_CAPACITY];
+
+        /**
+         * lines << 1 | willHit
+         */
+        int[] lines = new int[INITIAL_CAPACITY];
+
+        int find(int index) {
+            return Arrays.binarySearch(indexes, 0, size, index);
+        }
+
+        void put(int index, int timeOffset, float top, int packedLines) {
+            int pos = find(index);
+            if (pos < 0) {
+                pos = -pos - 1;
+                if (size == indexes.length) {
+                    int capacity = size * 2;
+                    indexes = Arrays.copyOf(indexes, capacity);
+                    timeOffsets = Arrays.copyOf(timeOffsets, capacity);
+                    tops = Arrays.copyOf(tops, capacity);
+                    lines = Arrays.copyOf(lines, capacity);
+                }
+                int length = size - pos;
+                if (length > 0) {
+                    System.arraycopy(indexes, pos, indexes, pos + 1, length);
+                    System.arraycopy(timeOffsets, pos, timeOffsets, pos + 1, length);
+                    System.arraycopy(tops, pos, tops, pos + 1, length);
+                    System.arraycopy(lines, pos, lines, pos + 1, length);
+                }
+                size++;
+            }
+            indexes[pos] = index;
+            timeOffsets[pos] = timeOffset;
+            tops[pos] = top;
+            lines[pos] = packedLines;
+        }
+    }
+
+    private final int mMaxSegments;
+
+    private final LinkedHashMap<Long, Segment> mSegments;
+
+    private int mEntryCount;
+
+    private int mWidth, mHeight, mMargin, mMarginTop;
+
+    private boolean mAlignBottom;
+
+    private int mMeasureFlag;
+
+    private int mFilterFlag;
+
+    public LayoutJournal() {
+        this(DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param maxSegments 最多保存的段数, 每段SEGMENT_DURATION毫秒
+     */
+    public LayoutJournal(int maxSegments) {
+        mMaxSegments = maxSegments;
+        mSegments = new LinkedHashMap<Long, Segment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Segment> eldest) {
+                if (size() > mMaxSegments) {
+                    mEntryCount -= eldest.getValue().size;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 每帧绘制前调用, 布局条件变化时清空记录
+     */
+    public void validate(IDisplayer disp, boolean alignBottom, int measureFlag, int filterFlag) {
+        if (mWidth != disp.getWidth() || mHeight != disp.getHeight() || mMargin != disp.getMargin()
+                || mMarginTop != disp.getAllMarginTop() || mAlignBottom != alignBottom
+                || mMeasureFlag != measureFlag || mFilterFlag != filterFlag) {
+            clear();
+            mWidth = disp.getWidth();
+            mHeight = disp.getHeight();
+            mMargin = disp.getMargin();
+            mMarginTop = disp.getAllMarginTop();
+            mAlignBottom = alignBottom;
+            mMeasureFlag = measureFlag;
+            mFilterFlag = filterFlag;
+        }
+    }
+
+    /**
+     * 记录弹幕第一次显示时的位置
+     *
+     * @param lines willHit 布局时传给Verifier的参数, 恢复时按相同参数过滤
+     */
+    public void record(BaseDanmaku danmaku, float top, int lines, boolean willHit) {
+        long time = danmaku.getTime();
+        Long key = time / SEGMENT_DURATION;
+        Segment segment = mSegments.get(key);
+        if (segment == null) {
+            segment = new Segment();
+            mSegments.put(key, segment);
+        }
+        int size = segment.size;
+        segment.put(danmaku.index, (int) (time % SEGMENT_DURATION), top, lines << 1 | (willHit ? 1 : 0));
+        mEntryCount += segment.size - size;
+    }
+
+    /**
+     * 按记录的位置布局
+     *
+     * @return 没有记录或被verifier过滤时返回false, 需要正常布局
+     */
+    public boolean restore(BaseDanmaku drawItem, IDisplayer disp, DanmakusRetainer.Verifier verifier) {
+        if (drawItem.isOutside() || mEntryCount == 0) {
+            return false;
+        }
+        long time = drawItem.getTime();
+        Segment segment = mSegments.get(time / SEGMENT_DURATION);
+        if (segment == null) {
+            return false;
+        }
+        int pos = segment.find(drawItem.index);
+        if (pos < 0 || segment.timeOffsets[pos] != (int) (time % SEGMENT_DURATION)) {
+            return false;
+        }
+        float top = segment.tops[pos];
+        int lines = segment.lines[pos];
+        if (verifier != null && verifier.skipLayout(drawItem, top, lines >> 1, (lines & 1) != 0)) {
+            return false;
+        }
+        drawItem.layout(disp, drawItem.getLeft(), top);
+        return true;
+    }
+
+    public int getEntryCount() {
+        return mEntryCount;
+    }
+
+    public void clear() {
+        mSegments.clear();
+        mEntryCount = 0;
+    }
+
+}
@@ -0,0 +1,265 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+import master.flame.danmaku.danmaku.model.IDisplayer;
+
+/**
+ * 提前布局: 缓存线程准备缓存时按时间顺序为即将出现的弹幕算好位置(BaseDanmaku.planned*), 绘制时直接读取
+ * 使用LaneAllocator, 以弹幕自身的出现时间判断碰撞, 所以可以在弹幕出现之前计算, 与DanmakusRetainer的设置无关
+ *
+ * 计划失效(seek, 尺寸、配置或过滤条件变化)后, 绘制线程遇到没有计划的弹幕时同步计划, 已显示的弹幕按实际位置记录;
+ * 绘制线程完成一帧之后缓存线程才继续提前计划, 保证屏幕上的弹幕都来自同一份计划
+ *
+ * 缓存线程在当前行状态的副本上计划, 结果先记在本地, 最后短暂加锁一次性换入;
+ * 期间计划失效或绘制线程改动过行状态时丢弃这次结果, 绘制线程不会等待整个计划过程
+ */
+public class LayoutPlanner {
+
+    private static final int SLOT_R2L = 0;
+
+    private static final int SLOT_L2R = 1;
+
+    private static final int SLOT_FT = 2;
+
+    private static final int SLOT_FB = 3;
+
+    private static final int SLOT_COUNT = 4;
+
+    /**
+     * 当前生效的行状态, 加锁访问
+     */
+    private final LaneAllocator[] mAllocators = new LaneAllocator[SLOT_COUNT];
+
+    /**
+     * 缓存线程计划用的副本, 换入后与mAllocators交换
+     */
+    private LaneAllocator[] mPlanAllocators = new LaneAllocator[SLOT_COUNT];
+
+    /**
+     * 当前计划的版本, 与BaseDanmaku.planFlag相同时计划有效
+     */
+    private int mPlanFlag = 1;
+
+    /**
+     * 绘制线程每次改动mAllocators时加1, 换入前据此判断副本是否过期
+     */
+    private int mModCount;
+
+    /**
+     * 计划失效后绘制线程是否已完成一帧
+     */
+    private boolean mSynced;
+
+    /**
+     * 绘制线程最后一帧的时间, 缓存线程只计划之后出现的弹幕
+     */
+    private long mLastFrameTime;
+
+    private DanmakusRetainer.Verifier mVerifier;
+
+    /**
+     * 以下字段只在缓存线程的plan中使用
+     */
+    private final ArrayList<BaseDanmaku> mPlannedItems = new ArrayList<>();
+
+    private float[] mPlannedTops = new float[16];
+
+    private int[] mPlannedLines = new int[16];
+
+    private boolean[] mPlannedWillHits = new boolean[16];
+
+    private IDisplayer mDisp;
+
+    private int mPlanningFlag;
+
+    private long mPlanningFrameTime;
+
+    private DanmakusRetainer.Verifier mPlanningVerifier;
+
+    private final IDanmakus.DefaultConsumer<BaseDanmaku> mPlanConsumer = new IDanmakus.DefaultConsumer<BaseDanmaku>() {
+
+        @Override
+        public int accept(BaseDanmaku item) {
+            if (item.getActualTime() <= mPlanningFrameTime || item.planFlag == mPlanningFlag
+                    || item.getType() == BaseDanmaku.TYPE_SPECIAL) {
+                return ACTION_CONTINUE;
+            }
+            if (!item.isMeasured() || (item.priority == 0 && item.isFiltered())) {
+                return ACTION_CONTINUE;
+            }
+            // 按弹幕出现后的第一帧计划
+            LaneAllocator allocator = placeItem(mPlanAllocators, item, mDisp, item.getActualTime() + 1, mPlanningVerifier);
+            record(item, allocator.top, allocator.lines, allocator.willHit);
+            return ACTION_CONTINUE;
+        }
+    };
+
+    public LayoutPlanner(boolean alignBottom) {
+        alignBottom(alignBottom);
+    }
+
+    public synchronized void alignBottom(boolean alignBottom) {
+        mAllocators[SLOT_R2L] = new LaneAllocator(alignBottom);
+        mAllocators[SLOT_L2R] = new LaneAllocator(alignBottom);
+        if (mAllocators[SLOT_FT] == null) {
+            mAllocators[SLOT_FT] = new LaneAllocator(false);
+            mAllocators[SLOT_FB] = new LaneAllocator(true);
+        }
+        LaneAllocator[] planAllocators = new LaneAllocator[SLOT_COUNT];
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            planAllocators[i] = new LaneAllocator(mAllocators[i].isAlignBottom());
+        }
+        mPlanAllocators = planAllocators;
+        invalidate();
+    }
+
+    /**
+     * 计划时判断弹幕是否被二级过滤器(最大行数, 防重叠)过滤, 被过滤的弹幕不占用位置
+     * 在缓存线程上调用, 不能修改弹幕的可见性和过滤状态; 过滤状态由fix传入的verifier在绘制线程上设置
+     */
+    public synchronized void setVerifier(DanmakusRetainer.Verifier verifier) {
+        mVerifier = verifier;
+        invalidate();
+    }
+
+    /**
+     * 已有的计划全部失效
+     */
+    public synchronized void invalidate() {
+        mPlanFlag++;
+        mModCount++;
+        mSynced = false;
+        for (LaneAllocator allocator : mAllocators) {
+            allocator.clear();
+        }
+    }
+
+    /**
+     * 缓存线程调用, 为danmakus中在最后一帧之后出现, 已measure且未被过滤的弹幕按时间顺序计划位置
+     */
+    public void plan(IDanmakus danmakus, IDisplayer disp) {
+        int modCount;
+        LaneAllocator[] planAllocators;
+        synchronized (this) {
+            if (!mSynced) {
+                return;
+            }
+            planAllocators = mPlanAllocators;
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                planAllocators[i].copyFrom(mAllocators[i]);
+            }
+            mPlanningFlag = mPlanFlag;
+            mPlanningFrameTime = mLastFrameTime;
+            mPlanningVerifier = mVerifier;
+            modCount = mModCount;
+        }
+        mDisp = disp;
+        danmakus.forEach(mPlanConsumer);
+        mDisp = null;
+        mPlanningVerifier = null;
+        synchronized (this) {
+            if (mPlanFlag == mPlanningFlag && mModCount == modCount && mPlanAllocators == planAllocators) {
+                for (int i = 0; i < SLOT_COUNT; i++) {
+                    LaneAllocator allocator = mAllocators[i];
+                    mAllocators[i] = planAllocators[i];
+                    planAllocators[i] = allocator;
+                }
+                for (int i = 0, size = mPlannedItems.size(); i < size; i++) {
+                    setPlan(mPlannedItems.get(i), mPlannedTops[i], mPlannedLines[i], mPlannedWillHits[i]);
+                }
+            }
+        }
+        mPlannedItems.clear();
+    }
+
+    /**
+     * 绘制线程调用, 按计划的位置布局
+     *
+     * @return 是否因为没有计划而在绘制线程上计划
+     */
+    public boolean fix(BaseDanmaku drawItem, IDisplayer disp, DanmakusRetainer.Verifier verifier) {
+        if (drawItem.isOutside())
+            return false;
+        boolean shown = drawItem.isShown();
+        boolean fallback = false;
+        synchronized (this) {
+            if (drawItem.planFlag != mPlanFlag) {
+                if (shown) {
+                    // 计划失效前已显示的弹幕保持原位
+                    mAllocators[getSlot(drawItem.getType())].occupy(drawItem, drawItem.getTop());
+                    setPlan(drawItem, drawItem.getTop(), 0, false);
+                } else {
+                    LaneAllocator allocator = placeItem(mAllocators, drawItem, disp,
+                            drawItem.getTimer().currMillisecond, mVerifier);
+                    setPlan(drawItem, allocator.top, allocator.lines, allocator.willHit);
+                }
+                mModCount++;
+                fallback = true;
+            }
+        }
+        int lines = shown ? 0 : drawItem.plannedLines;
+        boolean willHit = !shown && drawItem.plannedWillHit;
+        if (verifier != null && verifier.skipLayout(drawItem, drawItem.plannedTop, lines, willHit)) {
+            return fallback;
+        }
+        drawItem.layout(disp, drawItem.getLeft(), drawItem.plannedTop);
+        return fallback;
+    }
+
+    /**
+     * 绘制线程每完成一帧调用一次
+     */
+    public synchronized void onFrameRendered(long currTime) {
+        mLastFrameTime = currTime;
+        mSynced = true;
+    }
+
+    private static LaneAllocator placeItem(LaneAllocator[] allocators, BaseDanmaku item, IDisplayer disp, long currTime,
+                                           DanmakusRetainer.Verifier verifier) {
+        LaneAllocator allocator = allocators[getSlot(item.getType())];
+        allocator.place(item, disp, currTime, false);
+        if (verifier == null || !verifier.skipLayout(item, allocator.top, allocator.lines, allocator.willHit)) {
+            allocator.commit(item);
+        }
+        return allocator;
+    }
+
+    private void record(BaseDanmaku item, float top, int lines, boolean willHit) {
+        int index = mPlannedItems.size();
+        if (index == mPlannedTops.length) {
+            int capacity = index * 2;
+            mPlannedTops = Arrays.copyOf(mPlannedTops, capacity);
+            mPlannedLines = Arrays.copyOf(mPlannedLines, capacity);
+            mPlannedWillHits = Arrays.copyOf(mPlannedWillHits, capacity);
+        }
+        mPlannedItems.add(item);
+        mPlannedTops[index] = top;
+        mPlannedLines[index] = lines;
+        mPlannedWillHits[index] = willHit;
+    }
+
+    private void setPlan(BaseDanmaku item, float top, int lines, boolean willHit) {
+        item.plannedTop = top;
+        item.plannedLines = lines;
+        item.plannedWillHit = willHit;
+        item.planFlag = mPlanFlag;
+    }
+
+    private static int getSlot(int type) {
+        switch (type) {
+            case BaseDanmaku.TYPE_SCROLL_LR:
+                return SLOT_L2R;
+            case BaseDanmaku.TYPE_FIX_TOP:
+                return SLOT_FT;
+            case BaseDanmaku.TYPE_FIX_BOTTOM:
+                return SLOT_FB;
+            default:
+                return SLOT_R2L;
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package master.flame.danmaku.danmaku.renderer.android;
+
+import java.util.Arrays;
+
+import master.flame.danmaku.danmaku.model.BaseDanmaku;
+import master.flame.danmaku.danmaku.model.IDanmakus;
+
+/**
+ * 按top排序(可降序)的弹幕数组, 代替Danmakus(ST_BY_YPOS/ST_BY_YPOS_DESC)供AlignTopRetainer/AlignBottomRetainer使用
+ * 与TreeSet的行为相同: top相同的弹幕视为同一个, 已存在时不再加入, 删除时删除top相同的弹幕;
+ * 遍历和增删不分配对象, 只有数组扩容时分配
+ */
+class YPosDanmakus {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final boolean mDescending;
+
+    private BaseDanmaku[] mItems = new BaseDanmaku[INITIAL_CAPACITY];
+
+    private int mSize;
+
+    YPosDanmakus(boolean descending) {
+        mDescending = descending;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return 数组容量, 只在扩容时变化
+     */
+    int capacity() {
+        return mItems.length;
+    }
+
+    boolean addItem(BaseDanmaku item) {
+        int index = indexOf(item.getTop());
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (mSize == mItems.length) {
+            mItems = Arrays.copyOf(mItems, mSize * 2);
+        }
+        System.arraycopy(mItems, index, mItems, index + 1, mSize - index);
+        mItems[index] = item;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * 与Danmakus.removeItem相同, 已离开屏幕的弹幕同时设为不可见
+     */
+    boolean removeItem(BaseDanmaku item) {
+        if (item == null) {
+            return false;
+        }
+        if (item.isOutside()) {
+            item.setVisibility(false);
+        }
+        int index = indexOf(item.getTop());
+        if (index < 0) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    void forEach(IDanmakus.Consumer<? super BaseDanmaku, ?> consumer) {
+        consumer.before();
+        for (int i = 0; i < mSize; i++) {
+            int action = consumer.accept(mItems[i]);
+            if (action == IDanmakus.DefaultConsumer.ACTION_BREAK) {
+                break;
+            } else if (action == IDanmakus.DefaultConsumer.ACTION_REMOVE) {
+                removeAt(i--);
+            } else if (action == IDanmakus.DefaultConsumer.ACTION_REMOVE_AND_BREAK) {
+                removeAt(i);
+                break;
+            }
+        }
+        consumer.after();
+    }
+
+    void clear() {
+        Arrays.fill(mItems, 0, mSize, null);
+        mSize = 0;
+    }
+
+    private void removeAt(int index) {
+        mSize--;
+        System.arraycopy(mItems, index + 1, mItems, index, mSize - index);
+        mItems[mSize] = null;
+    }
+
+    /**
+     * @return 与Arrays.binarySearch相同, 找不到时返回(-(插入位置) - 1)
+     */
+    private int indexOf(float top) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = mDescending ? Float.compare(top, mItems[mid].getTop()) : Float.compare(mItems[mid].getTop(), top);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+}
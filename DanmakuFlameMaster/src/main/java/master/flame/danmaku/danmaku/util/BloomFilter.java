@@ -0,0 +1,64 @@
+package master.flame.danmaku.danmaku.util;
+
+/**
+ * 布隆过滤器, 用于在查询集合前快速排除绝大部分不存在的元素
+ * 只支持添加, 删除元素需重新构建; 元素以32位hash值表示
+ */
+public class BloomFilter {
+
+    private static final int BITS_PER_ELEMENT = 10;
+
+    private static final int HASH_COUNT = 7;
+
+    private final int[] mBits;
+
+    private final int mBitCount;
+
+    private final int mCapacity;
+
+    /**
+     * @param capacity 预期元素数量, 不超过该数量时误判率约为1%
+     */
+    public BloomFilter(int capacity) {
+        mCapacity = Math.max(capacity, 1);
+        int words = (int) Math.min(Integer.MAX_VALUE / 32, ((long) mCapacity * BITS_PER_ELEMENT + 31) / 32);
+        mBits = new int[words];
+        mBitCount = words * 32;
+    }
+
+    public void put(int hash) {
+        int h1 = mix(hash);
+        int h2 = mix(h1 ^ 0x9E3779B9);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitCount;
+            mBits[bit >>> 5] |= 1 << (bit & 31);
+        }
+    }
+
+    public boolean mightContain(int hash) {
+        int h1 = mix(hash);
+        int h2 = mix(h1 ^ 0x9E3779B9);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % mBitCount;
+            if ((mBits[bit >>> 5] & (1 << (bit & 31))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    private static int mix(int h) {
+        // murmur3 fmix32
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
@@ -21,6 +21,8 @@ import android.text.TextUtils;
 import master.flame.danmaku.danmaku.model.AbsDisplayer;
 import master.flame.danmaku.danmaku.model.BaseDanmaku;
 import master.flame.danmaku.danmaku.model.IDisplayer;
+import master.flame.danmaku.danmaku.model.R2LDanmaku;
+import master.flame.danmaku.danmaku.model.android.AndroidDisplayer;
 import master.flame.danmaku.danmaku.model.android.DrawingCache;
 import master.flame.danmaku.danmaku.model.android.DrawingCacheHolder;
 
@@ -55,6 +57,13 @@ public class DanmakuUtils {
             return true;
         }
 
+        if (d1 instanceof R2LDanmaku && d2 instanceof R2LDanmaku) {
+            if (!d1.isMeasured() || !d2.isMeasured()) {
+                return false;
+            }
+            return ((R2LDanmaku) d1).willHit((R2LDanmaku) d2, currTime, disp.getWidth());
+        }
+
         return checkHitAtTime(disp, d1, d2, currTime) 
                 || checkHitAtTime(disp, d1, d2,  d1.getActualTime() + d1.getDuration());
     }
@@ -86,9 +95,27 @@ public class DanmakuUtils {
 
     public static DrawingCache buildDanmakuDrawingCache(BaseDanmaku danmaku, IDisplayer disp,
             DrawingCache cache, int bitsPerPixel) {
+        return buildDanmakuDrawingCache(danmaku, disp, cache, bitsPerPixel, false);
+    }
+
+    /**
+     * @param alphaOnly 支持时只缓存覆盖率, 见{@link #isColorAgnostic}
+     */
+    public static DrawingCache buildDanmakuDrawingCache(BaseDanmaku danmaku, IDisplayer disp,
+            DrawingCache cache, int bitsPerPixel, boolean alphaOnly) {
         if (cache == null)
             cache = new DrawingCache();
 
+        if (alphaOnly && isColorAgnostic(danmaku, disp)) {
+            AndroidDisplayer displayer = (AndroidDisplayer) disp;
+            cache.buildAlpha((int) Math.ceil(danmaku.paintWidth), (int) Math.ceil(danmaku.paintHeight), disp.getDensityDpi(), false,
+                    displayer.hasOutline(danmaku));
+            DrawingCacheHolder holder = cache.get();
+            if (holder != null) {
+                displayer.drawDanmakuLayers(danmaku, holder.strokeBitmap != null ? holder.strokeCanvas : null, holder.canvas);
+            }
+            return cache;
+        }
         cache.build((int) Math.ceil(danmaku.paintWidth), (int) Math.ceil(danmaku.paintHeight), disp.getDensityDpi(), false, bitsPerPixel);
         DrawingCacheHolder holder = cache.get();
         if (holder != null) {
@@ -101,6 +128,20 @@ public class DanmakuUtils {
         return cache;
     }
 
+    /**
+     * danmaku能否使用只保存覆盖率的缓存: cacheStuffer支持, 且硬件加速时不需要分块
+     */
+    public static boolean isColorAgnostic(BaseDanmaku danmaku, IDisplayer disp) {
+        if (!(disp instanceof AndroidDisplayer) || !((AndroidDisplayer) disp).isColorAgnostic(danmaku)) {
+            return false;
+        }
+        if (disp.isHardwareAccelerated()) {
+            return Math.ceil(danmaku.paintWidth) <= disp.getMaximumCacheWidth()
+                    && Math.ceil(danmaku.paintHeight) <= disp.getMaximumCacheHeight();
+        }
+        return true;
+    }
+
     public static int getCacheSize(int w, int h, int bytesPerPixel) {
         return (w) * (h) * bytesPerPixel;
     }
@@ -0,0 +1,171 @@
+package master.flame.danmaku.danmaku.util;
+
+import java.util.Arrays;
+
+/**
+ * int集合(开放寻址), 避免Integer装箱, 非线程安全
+ */
+public class IntHashSet {
+
+    private static final int FREE_KEY = 0;
+
+    private int[] mKeys;
+
+    private int mMask;
+
+    private int mSize;
+
+    private boolean mHasFreeKey;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    public IntHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+    public boolean contains(int key) {
+        if (key == FREE_KEY) {
+            return mHasFreeKey;
+        }
+        int[] keys = mKeys;
+        int mask = mMask;
+        int index = mix(key) & mask;
+        int k;
+        while ((k = keys[index]) != FREE_KEY) {
+            if (k == key) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean add(int key) {
+        if (key == FREE_KEY) {
+            if (mHasFreeKey) {
+                return false;
+            }
+            mHasFreeKey = true;
+            mSize++;
+            return true;
+        }
+        int index = mix(key) & mMask;
+        int k;
+        while ((k = mKeys[index]) != FREE_KEY) {
+            if (k == key) {
+                return false;
+            }
+            index = (index + 1) & mMask;
+        }
+        mKeys[index] = key;
+        mSize++;
+        if (mSize * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    public boolean remove(int key) {
+        if (key == FREE_KEY) {
+            if (!mHasFreeKey) {
+                return false;
+            }
+            mHasFreeKey = false;
+            mSize--;
+            return true;
+        }
+        int index = mix(key) & mMask;
+        int k;
+        while ((k = mKeys[index]) != FREE_KEY) {
+            if (k == key) {
+                shiftKeys(index);
+                mSize--;
+                return true;
+            }
+            index = (index + 1) & mMask;
+        }
+        return false;
+    }
+
+    /**
+     * 线性探测删除: 将后续冲突的元素前移, 保证查找链不断开
+     */
+    private void shiftKeys(int pos) {
+        int last, slot, k;
+        while (true) {
+            last = pos;
+            pos = (pos + 1) & mMask;
+            while (true) {
+                if ((k = mKeys[pos]) == FREE_KEY) {
+                    mKeys[last] = FREE_KEY;
+                    return;
+                }
+                slot = mix(k) & mMask;
+                if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mMask;
+            }
+            mKeys[last] = k;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = mKeys;
+        mKeys = new int[newCapacity];
+        mMask = newCapacity - 1;
+        for (int k : oldKeys) {
+            if (k != FREE_KEY) {
+                int index = mix(k) & mMask;
+                while (mKeys[index] != FREE_KEY) {
+                    index = (index + 1) & mMask;
+                }
+                mKeys[index] = k;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, FREE_KEY);
+        mHasFreeKey = false;
+        mSize = 0;
+    }
+
+    /**
+     * @return 集合中所有元素的拷贝, 无序
+     */
+    public int[] toArray() {
+        int[] result = new int[mSize];
+        int i = 0;
+        if (mHasFreeKey) {
+            result[i++] = FREE_KEY;
+        }
+        for (int k : mKeys) {
+            if (k != FREE_KEY) {
+                result[i++] = k;
+            }
+        }
+        return result;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,184 @@
+package master.flame.danmaku.danmaku.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 多关键词匹配自动机(Aho-Corasick)
+ * 构建完成后只读, 可在绘制线程和缓存线程上同时使用, 单次匹配耗时只与文本长度相关
+ */
+public class KeywordAutomaton {
+
+    private static final int ROOT = 0;
+
+    /**
+     * 状态i的转移边位于 [mEdgeStart[i], mEdgeStart[i + 1]), 按字符升序排列
+     */
+    private final int[] mEdgeStart;
+
+    private final char[] mEdgeChars;
+
+    private final int[] mEdgeTargets;
+
+    private final int[] mFail;
+
+    /**
+     * 状态(或其失配链上的某个状态)是否为某个关键词的结尾
+     */
+    private final boolean[] mTerminal;
+
+    private final boolean mIgnoreCase;
+
+    private final int mKeywordCount;
+
+    private KeywordAutomaton(int[] edgeStart, char[] edgeChars, int[] edgeTargets, boolean[] terminal,
+                             boolean ignoreCase, int keywordCount) {
+        mEdgeStart = edgeStart;
+        mEdgeChars = edgeChars;
+        mEdgeTargets = edgeTargets;
+        mTerminal = terminal;
+        mFail = new int[terminal.length];
+        mIgnoreCase = ignoreCase;
+        mKeywordCount = keywordCount;
+        buildFailLinks();
+    }
+
+    public static KeywordAutomaton compile(Collection<String> keywords, boolean ignoreCase) {
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<Boolean> terminal = new ArrayList<>();
+        children.add(new HashMap<Character, Integer>());
+        terminal.add(false);
+        int keywordCount = 0;
+        int edgeCount = 0;
+        if (keywords != null) {
+            for (String keyword : keywords) {
+                if (keyword == null || keyword.length() == 0) {
+                    continue;
+                }
+                int state = ROOT;
+                for (int i = 0; i < keyword.length(); i++) {
+                    char c = normalize(keyword.charAt(i), ignoreCase);
+                    Integer next = children.get(state).get(c);
+                    if (next == null) {
+                        next = children.size();
+                        children.get(state).put(c, next);
+                        children.add(new HashMap<Character, Integer>());
+                        terminal.add(false);
+                        edgeCount++;
+                    }
+                    state = next;
+                }
+                if (!terminal.get(state)) {
+                    terminal.set(state, true);
+                    keywordCount++;
+                }
+            }
+        }
+
+        int stateCount = children.size();
+        int[] edgeStart = new int[stateCount + 1];
+        char[] edgeChars = new char[edgeCount];
+        int[] edgeTargets = new int[edgeCount];
+        boolean[] terminalArray = new boolean[stateCount];
+        int offset = 0;
+        for (int state = 0; state < stateCount; state++) {
+            edgeStart[state] = offset;
+            terminalArray[state] = terminal.get(state);
+            Map<Character, Integer> edges = children.get(state);
+            if (edges.isEmpty()) {
+                continue;
+            }
+            Character[] chars = edges.keySet().toArray(new Character[edges.size()]);
+            Arrays.sort(chars);
+            for (Character c : chars) {
+                edgeChars[offset] = c;
+                edgeTargets[offset] = edges.get(c);
+                offset++;
+            }
+        }
+        edgeStart[stateCount] = offset;
+        return new KeywordAutomaton(edgeStart, edgeChars, edgeTargets, terminalArray, ignoreCase, keywordCount);
+    }
+
+    private static char normalize(char c, boolean ignoreCase) {
+        return ignoreCase ? Character.toLowerCase(c) : c;
+    }
+
+    private void buildFailLinks() {
+        int[] queue = new int[mTerminal.length];
+        int head = 0, tail = 0;
+        for (int e = mEdgeStart[ROOT]; e < mEdgeStart[ROOT + 1]; e++) {
+            int child = mEdgeTargets[e];
+            mFail[child] = ROOT;
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int e = mEdgeStart[state]; e < mEdgeStart[state + 1]; e++) {
+                char c = mEdgeChars[e];
+                int child = mEdgeTargets[e];
+                int f = mFail[state];
+                int next;
+                while ((next = next(f, c)) < 0 && f != ROOT) {
+                    f = mFail[f];
+                }
+                mFail[child] = next < 0 ? ROOT : next;
+                if (mTerminal[mFail[child]]) {
+                    mTerminal[child] = true;
+                }
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    private int next(int state, char c) {
+        int low = mEdgeStart[state];
+        int high = mEdgeStart[state + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char midChar = mEdgeChars[mid];
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return mEdgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return text中是否包含任意一个关键词
+     */
+    public boolean matches(CharSequence text) {
+        if (text == null || mKeywordCount == 0) {
+            return false;
+        }
+        int state = ROOT;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = normalize(text.charAt(i), mIgnoreCase);
+            int next;
+            while ((next = next(state, c)) < 0 && state != ROOT) {
+                state = mFail[state];
+            }
+            state = next < 0 ? ROOT : next;
+            if (mTerminal[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 不重复的关键词数量
+     */
+    public int size() {
+        return mKeywordCount;
+    }
+
+}
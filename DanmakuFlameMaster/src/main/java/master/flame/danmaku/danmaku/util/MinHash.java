@@ -0,0 +1,155 @@
+package master.flame.danmaku.danmaku.util;
+
+/**
+ * 弹幕文本的MinHash签名, 两个签名中相同位置取值相等的比例近似于文本字符二元组集合的Jaccard相似度
+ * 文本先归一化(忽略标点空白、大小写和全角, 连续重复的字符最多保留两个), 符号和emoji保留
+ */
+public class MinHash {
+
+    /**
+     * 签名长度
+     */
+    public static final int SIZE = 16;
+
+    /**
+     * 归一化后少于这么多字符的文本特征太少, 不参与相似合并
+     */
+    public static final int MIN_NORMALIZED_LENGTH = 2;
+
+    /**
+     * 连续重复的字符最多保留的个数
+     */
+    private static final int MAX_REPEAT = 2;
+
+    private static final int[] SEEDS = new int[SIZE];
+
+    static {
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < SIZE; i++) {
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+            SEEDS[i] = (int) seed | 1;
+        }
+    }
+
+    private MinHash() {
+    }
+
+    /**
+     * 归一化: "2333333!!" 和 "233333" 都会变成 "233", "？？？" 变成 ""
+     */
+    public static String normalize(CharSequence text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        int last = -1;
+        int repeat = 0;
+        for (int i = 0, length = text.length(); i < length; ) {
+            int c = Character.codePointAt(text, i);
+            i += Character.charCount(c);
+            if (c >= '！' && c <= '～') {  // 全角转半角
+                c -= 0xFEE0;
+            }
+            if (isIgnorable(c)) {
+                continue;
+            }
+            c = Character.toLowerCase(c);
+            if (c == last) {
+                if (++repeat > MAX_REPEAT) {
+                    continue;
+                }
+            } else {
+                last = c;
+                repeat = 1;
+            }
+            sb.appendCodePoint(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return normalized是否有足够的字符参与相似合并
+     */
+    public static boolean isMergeable(String normalized) {
+        return normalized.codePointCount(0, normalized.length()) >= MIN_NORMALIZED_LENGTH;
+    }
+
+    private static boolean isIgnorable(int c) {
+        if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+            return true;
+        }
+        switch (Character.getType(c)) {
+            case Character.CONTROL:
+            case Character.FORMAT:
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param signature 长度为SIZE的输出数组, 由调用方复用以避免分配
+     */
+    public static void signature(String normalized, int[] signature) {
+        int length = normalized.length();
+        int[] features;
+        if (length < 2) {
+            // 单个字符或空文本只有一个特征
+            features = new int[]{(int) mix(length == 0 ? 0 : normalized.charAt(0))};
+        } else {
+            features = new int[length - 1];
+            for (int i = 0; i < length - 1; i++) {
+                features[i] = (int) mix((normalized.charAt(i) << 16) | normalized.charAt(i + 1));
+            }
+        }
+        for (int i = 0; i < SIZE; i++) {
+            int seed = SEEDS[i];
+            int min = Integer.MAX_VALUE;
+            for (int feature : features) {
+                // 乘奇数再异或移位作为第i个哈希函数, 取非负值方便比较
+                int h = feature * seed;
+                h = (h ^ (h >>> 15)) & Integer.MAX_VALUE;
+                if (h < min) {
+                    min = h;
+                }
+            }
+            signature[i] = min;
+        }
+    }
+
+    public static int[] signature(CharSequence text) {
+        int[] signature = new int[SIZE];
+        signature(normalize(text), signature);
+        return signature;
+    }
+
+    /**
+     * @return 签名中取值相等的位置数, [0...SIZE]
+     */
+    public static int matches(int[] signature1, int[] signature2) {
+        int count = 0;
+        for (int i = 0; i < SIZE; i++) {
+            if (signature1[i] == signature2[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -1,6 +1,7 @@
 
 package com.sample;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
@@ -303,6 +304,16 @@ public class MainActivity extends Activity implements View.OnClickListener {
         }
     }
 
+    @TargetApi(14)
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mContext != null) {
+            // 内存紧张时缩小弹幕缓存
+            mContext.onTrimMemory(level);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();